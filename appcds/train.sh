@@ -0,0 +1,38 @@
+#!/bin/sh
+# Builds the class data sharing archive of the offline commands (Java 11 and newer):
+#   train.sh <jar-with-dependencies> [archive]
+# The archive defaults to the jar's name with ".jsa". Run the jar with it as
+#   java -XX:SharedArchiveFile=<archive> -jar <jar-with-dependencies> ...
+set -e
+
+JAR=$(cd "$(dirname "$1")" && pwd)/$(basename "$1")
+ARCHIVE=${2:-${JAR%.jar}.jsa}
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+cd "$(dirname "$0")"
+# Every command records the classes it loads. Lists are merged keeping the first occurrence, so that
+# the order classes are loaded in (supers before subclasses) is kept
+for args in \
+    "-h" \
+    "-c training.json -v -i inventory.json -l" \
+    "-c training.json -b -i inventory.json -k $WORK/catalog" \
+    "-c training.json -q name=file -k $WORK/catalog"
+do
+    # A failing command is fine as long as it has got through the startup, so failures only show up as a warning.
+    # A command, which hasn't recorded its classes at all, stops the training
+    rm -f "$WORK/classes"
+    java -Xshare:off -XX:DumpLoadedClassList="$WORK/classes" -jar "$JAR" $args > "$WORK/run.log" 2>&1 \
+        || { echo "Warning: training command \"$args\" has failed:" >&2; tail -n 20 "$WORK/run.log" >&2; }
+    if [ ! -s "$WORK/classes" ]; then
+        echo "Training command \"$args\" has recorded no classes" >&2
+        exit 1
+    fi
+    cat "$WORK/classes" >> "$WORK/all"
+done
+rm -f training_*.log*
+awk '!seen[$0]++' "$WORK/all" > "$WORK/classlist"
+
+java -Xshare:dump -XX:SharedClassListFile="$WORK/classlist" -XX:SharedArchiveFile="$ARCHIVE" -cp "$JAR" > "$WORK/dump.log" 2>&1 \
+    || { cat "$WORK/dump.log" >&2; exit 1; }
+echo "Archived $(wc -l < "$WORK/classlist") classes into $ARCHIVE"
@@ -0,0 +1,60 @@
+package com.vkleban.glacier_backup.benchmark;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.BackupMaster;
+
+/**
+ * Glob filtering of an inventory as done by downloadByGlob and removeByGlob.
+ * Logging of the matches is switched off to measure the matching itself
+ * 
+ * @author vova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GlobFilterBenchmark {
+
+    // Keep a strong reference, otherwise the level is lost with the garbage collected logger
+    private static final Logger quietLogger= Logger.getLogger("com.vkleban");
+
+    @Param({ "100000" })
+    public int entries;
+
+    @Param({ "**.log", "dir01/**", "dir0?/sub1*/**/file-*[0-4].{sql,csv}" })
+    public String glob;
+
+    private List<Archive> archives_;
+
+    @Setup
+    public void setup() {
+        quietLogger.setLevel(Level.WARNING);
+        archives_= Inventories.archives(entries);
+    }
+
+    @Benchmark
+    public Set<Archive> filterByGlob() {
+        return BackupMaster.filterByGlob(archives_, glob);
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.vkleban.glacier_backup.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.vkleban.glacier_backup.Archive;
+
+/**
+ * Synthetic inventories with field lengths of real Glacier inventories
+ * 
+ * @author vova
+ */
+final class Inventories {
+
+    private static final char[] ID_ALPHABET=
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final char[] HEX= "0123456789abcdef".toCharArray();
+    private static final String[] EXTENSIONS= { "log", "sql", "csv", "jpg", "tar", "gz" };
+
+    private Inventories() {}
+
+    private static String random(Random random, char[] alphabet, int length) {
+        char[] value= new char[length];
+        for (int i= 0; i < length; i++)
+            value[i]= alphabet[random.nextInt(alphabet.length)];
+        return new String(value);
+    }
+
+    /**
+     * @param entries - number of archives
+     * @return archives spread over a directory tree 3 levels deep
+     */
+    static List<Archive> archives(int entries) {
+        Random random= new Random(entries);
+        List<Archive> archives= new ArrayList<>(entries);
+        for (int i= 0; i < entries; i++) {
+            String name= String.format("dir%02d/sub%03d/leaf%d/file-%08d.%s",
+                random.nextInt(16),
+                random.nextInt(256),
+                random.nextInt(8),
+                i,
+                EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+            archives.add(new Archive(
+                random(random, ID_ALPHABET, 138),
+                name,
+                random(random, HEX, 64),
+                (long) random.nextInt(Integer.MAX_VALUE)));
+        }
+        return archives;
+    }
+
+}
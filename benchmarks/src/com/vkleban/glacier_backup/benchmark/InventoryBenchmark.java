@@ -0,0 +1,60 @@
+package com.vkleban.glacier_backup.benchmark;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.BackupMaster;
+
+/**
+ * Inventory JSON parsing and generation. Both work on a single String, so inventories of
+ * 10M entries of real Glacier field lengths exceed the maximum Java String length and are
+ * not measured until the inventory handling is streamed
+ * 
+ * @author vova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class InventoryBenchmark {
+
+    @Param({ "10000", "1000000" })
+    public int entries;
+
+    private List<Archive> archives_;
+    private String inventory_;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        archives_= Inventories.archives(entries);
+        inventory_= BackupMaster.ArchivesToInventoryJSON(archives_);
+    }
+
+    @Benchmark
+    public Set<Archive> parseInventoryJSONToArchiveFileMap() {
+        return BackupMaster.parseInventoryJSONToArchiveFileMap(inventory_);
+    }
+
+    @Benchmark
+    public String archivesToInventoryJSON() {
+        return BackupMaster.ArchivesToInventoryJSON(archives_);
+    }
+
+}
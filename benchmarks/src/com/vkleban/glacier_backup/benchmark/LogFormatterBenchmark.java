@@ -0,0 +1,63 @@
+package com.vkleban.glacier_backup.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vkleban.glacier_backup.log.LogFormatter;
+
+/**
+ * File log formatting of a typical slave record, with and without a stack trace
+ * 
+ * @author vova
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogFormatterBenchmark {
+
+    private LogFormatter formatter_;
+    private LogRecord record_;
+    private LogRecord thrownRecord_;
+
+    private static LogRecord record(String message) {
+        LogRecord record= new LogRecord(Level.INFO, message);
+        record.setSourceClassName(LogFormatterBenchmark.class.getName());
+        record.setSourceMethodName("setup");
+        return record;
+    }
+
+    @Setup
+    public void setup() {
+        formatter_= new LogFormatter();
+        record_= record("Uploading \"dir01/sub002/leaf3/file-00000042.log\"");
+        thrownRecord_= record("Failed file operation:\n");
+        thrownRecord_.setThrown(new IOException("No space left on device"));
+    }
+
+    @Benchmark
+    public String format() {
+        return formatter_.format(record_);
+    }
+
+    @Benchmark
+    public String formatThrown() {
+        return formatter_.format(thrownRecord_);
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.vkleban.glacier_backup.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vkleban.glacier_backup.slave.SlaveResponse;
+import com.vkleban.glacier_backup.slave.TransferEngine;
+
+/**
+ * Dispatch overhead of the transfer engine: a batch of no-op transfers is submitted, run by given number
+ * of concurrent transfers and drained, on virtual or platform threads
+ * 
+ * @author vova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferEngineBenchmark {
+
+    @Param({ "10000" })
+    public int batch;
+
+    @Param({ "16", "1024" })
+    public int limit;
+
+    @Param({ "platform", "virtual" })
+    public String threads;
+
+    @Benchmark
+    public int dispatch() throws InterruptedException {
+        TransferEngine<String, String> engine= new TransferEngine<>(
+            "Benchmark",
+            request -> new SlaveResponse<String>(request, null, false),
+            TransferEngine.newExecutor(threads),
+            limit,
+            null);
+        for (int i= 0; i < batch; i++)
+            engine.submit("dir01/sub002/leaf3/file-00000042.log");
+        engine.shutdown();
+        int reports= 0;
+        while (engine.take() != null)
+            reports++;
+        return reports;
+    }
+
+}
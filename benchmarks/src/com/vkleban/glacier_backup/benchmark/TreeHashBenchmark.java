@@ -0,0 +1,89 @@
+package com.vkleban.glacier_backup.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Glacier SHA-256 tree hash of an in-memory archive: AWS SDK generator against
+ * a single reused digest working directly on the array. Plain SHA-256 is the lower bound
+ * 
+ * @author vova
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeHashBenchmark {
+
+    private static final int CHUNK= 1024 * 1024;
+
+    // Archive size in MiB
+    @Param({ "1", "16", "256" })
+    public int sizeMiB;
+
+    private byte[] data_;
+    private MessageDigest digest_;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        data_= new byte[sizeMiB * CHUNK];
+        new Random(42).nextBytes(data_);
+        digest_= MessageDigest.getInstance("SHA-256");
+    }
+
+    @Benchmark
+    public String sdkTreeHash() {
+        return TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(data_));
+    }
+
+    @Benchmark
+    public String reusedDigestTreeHash() {
+        int chunks= (data_.length + CHUNK - 1) / CHUNK;
+        byte[][] level= new byte[chunks][];
+        for (int i= 0; i < chunks; i++) {
+            int offset= i * CHUNK;
+            digest_.update(data_, offset, Math.min(CHUNK, data_.length - offset));
+            level[i]= digest_.digest();
+        }
+        while (level.length > 1) {
+            byte[][] next= new byte[(level.length + 1) / 2][];
+            for (int i= 0; i < next.length; i++) {
+                if (2 * i + 1 < level.length) {
+                    digest_.update(level[2 * i]);
+                    digest_.update(level[2 * i + 1]);
+                    next[i]= digest_.digest();
+                } else {
+                    next[i]= level[2 * i];
+                }
+            }
+            level= next;
+        }
+        return BinaryUtils.toHex(level[0]);
+    }
+
+    @Benchmark
+    public byte[] plainSha256() {
+        return digest_.digest(data_);
+    }
+
+}
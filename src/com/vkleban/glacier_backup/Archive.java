@@ -10,11 +10,66 @@ public class Archive {
     private String fileName_;
     @SerializedName("SHA256TreeHash")
     private String treeHash_;
+    @SerializedName("Size")
+    private Long size_;
+    @SerializedName("Codec")
+    private String codec_;
+    @SerializedName("EncryptionKeyId")
+    private String encryptionKeyId_;
+    @SerializedName("OriginalSize")
+    private Long originalSize_;
+    @SerializedName("OriginalSHA256TreeHash")
+    private String originalTreeHash_;
+    @SerializedName("Shard")
+    private String shard_;
+    @SerializedName("Chunked")
+    private Boolean chunked_;
+    @SerializedName("EncodingUnknown")
+    private Boolean encodingUnknown_;
     
     public Archive(String archiveId, String fileName, String treeHash) {
+        this(archiveId, fileName, treeHash, null);
+    }
+
+    /**
+     * @param size - archive size in bytes. null if unknown
+     */
+    public Archive(String archiveId, String fileName, String treeHash, Long size) {
+        this(archiveId, fileName, treeHash, size, null, null, null, null, null);
+    }
+
+    /**
+     * Archive of the whole file, not chunked
+     */
+    public Archive(String archiveId, String fileName, String treeHash, Long size,
+                   String codec, String encryptionKeyId, Long originalSize, String originalTreeHash, String shard)
+    {
+        this(archiveId, fileName, treeHash, size, codec, encryptionKeyId, originalSize, originalTreeHash, shard, false);
+    }
+
+    /**
+     * @param size             - archive size in bytes. null if unknown
+     * @param codec            - codec the file contents were encoded with. null if not compressed
+     * @param encryptionKeyId  - ID of the key the encoded contents were encrypted with. null if not encrypted
+     * @param originalSize     - file size before encoding. null if stored as is
+     * @param originalTreeHash - tree hash of the file before encoding. null if stored as is
+     * @param shard            - shard (vault) holding the archive. null if the backup is not sharded
+     * @param chunked          - the archive is the chunk manifest of the file. See Manifest
+     */
+    public Archive(String archiveId, String fileName, String treeHash, Long size,
+                   String codec, String encryptionKeyId, Long originalSize, String originalTreeHash, String shard,
+                   boolean chunked)
+    {
         archiveID_= archiveId;
         fileName_= fileName;
         treeHash_= treeHash;
+        size_= size;
+        codec_= codec;
+        encryptionKeyId_= encryptionKeyId;
+        originalSize_= originalSize;
+        originalTreeHash_= originalTreeHash;
+        shard_= shard;
+        chunked_= chunked ? Boolean.TRUE : null;
     }
 
     public String getArchiveId() {
@@ -28,7 +83,71 @@ public class Archive {
     public String getTreeHash() {
         return treeHash_;
     }
+
+    /**
+     * @return archive size in bytes. null if unknown (e.g. inventory made by older version)
+     */
+    public Long getSize() {
+        return size_;
+    }
+
+    /**
+     * @return codec the file contents were encoded with. null if not compressed
+     */
+    public String getCodec() {
+        return codec_;
+    }
+
+    /**
+     * @return ID of the key the encoded contents were encrypted with (AES-GCM). null if not encrypted
+     */
+    public String getEncryptionKeyId() {
+        return encryptionKeyId_;
+    }
+
+    /**
+     * @return file size before encoding. null if stored as is
+     */
+    public Long getOriginalSize() {
+        return originalSize_;
+    }
+
+    /**
+     * @return tree hash of the file before encoding. null if stored as is
+     */
+    public String getOriginalTreeHash() {
+        return originalTreeHash_;
+    }
+
+    /**
+     * @return shard (vault) holding the archive. null if the backup is not sharded
+     */
+    public String getShard() {
+        return shard_;
+    }
     
+    /**
+     * @return true if the archive is the chunk manifest of the file, which is stored in chunk packs
+     */
+    public boolean isChunked() {
+        return chunked_ != null && chunked_;
+    }
+
+    /**
+     * @return true if the archive is taken from Glacier's listing, which doesn't know its codec, encryption
+     *         or chunking. See ArchiveReader
+     */
+    public boolean isEncodingUnknown() {
+        return encodingUnknown_ != null && encodingUnknown_;
+    }
+
+    /**
+     * Mark the archive as taken from Glacier's listing
+     */
+    void setEncodingUnknown() {
+        encodingUnknown_= Boolean.TRUE;
+    }
+
     @Override
     public int hashCode() {
         return archiveID_.hashCode();
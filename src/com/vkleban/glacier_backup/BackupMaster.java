@@ -1,11 +1,19 @@
 package com.vkleban.glacier_backup;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -18,14 +26,16 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
@@ -34,6 +44,7 @@ import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
@@ -41,26 +52,62 @@ import com.amazonaws.SdkBaseException;
 import com.amazonaws.services.glacier.TreeHashGenerator;
 import com.amazonaws.services.glacier.model.DeleteArchiveRequest;
 import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
 import com.amazonaws.services.glacier.model.GetJobOutputRequest;
 import com.amazonaws.services.glacier.model.GetJobOutputResult;
 import com.amazonaws.services.glacier.model.InitiateJobRequest;
 import com.amazonaws.services.glacier.model.InitiateJobResult;
+import com.amazonaws.services.glacier.model.InsufficientCapacityException;
 import com.amazonaws.services.glacier.model.JobParameters;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+import com.amazonaws.services.glacier.model.StatusCode;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.vkleban.argument_parser.ArgumentException;
 import com.vkleban.argument_parser.ArgumentParser;
+import com.vkleban.glacier_backup.catalog.Catalog;
+import com.vkleban.glacier_backup.catalog.CatalogQuery;
+import com.vkleban.glacier_backup.chunk.ChunkIndex;
+import com.vkleban.glacier_backup.codec.Codec;
+import com.vkleban.glacier_backup.codec.EncryptionKey;
+import com.vkleban.glacier_backup.codec.GcmEncryptInputStream;
+import com.vkleban.glacier_backup.codec.TreeHashInputStream;
 import com.vkleban.glacier_backup.config.Config;
 import com.vkleban.glacier_backup.log.ConsoleFormatter;
 import com.vkleban.glacier_backup.log.LogFormatter;
+import com.vkleban.glacier_backup.progress.BandwidthLimiter;
+import com.vkleban.glacier_backup.progress.FileProgressListener;
+import com.vkleban.glacier_backup.progress.ProgressReporter;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+import com.vkleban.glacier_backup.restore.ChunkRestore;
+import com.vkleban.glacier_backup.restore.JobLedger;
+import com.vkleban.glacier_backup.restore.JobLedger.State;
+import com.vkleban.glacier_backup.restore.TarRestore;
+import com.vkleban.glacier_backup.restore.TierPlanner;
+import com.vkleban.glacier_backup.restore.TierPlanner.Tier;
+import com.vkleban.glacier_backup.scan.FileScanner;
+import com.vkleban.glacier_backup.scan.LocalFile;
+import com.vkleban.glacier_backup.scan.UploadScheduler;
+import com.vkleban.glacier_backup.shard.Shard;
+import com.vkleban.glacier_backup.shard.ShardRing;
+import com.vkleban.glacier_backup.slave.BatchedSync;
+import com.vkleban.glacier_backup.slave.ConcurrencyController;
 import com.vkleban.glacier_backup.slave.DownloadSlave;
-import com.vkleban.glacier_backup.slave.SlaveRequest;
+import com.vkleban.glacier_backup.slave.RetryLane;
 import com.vkleban.glacier_backup.slave.SlaveResponse;
+import com.vkleban.glacier_backup.slave.StreamUploader;
+import com.vkleban.glacier_backup.slave.TransferControl;
+import com.vkleban.glacier_backup.slave.TransferEngine;
 import com.vkleban.glacier_backup.slave.UploadSlave;
+import com.vkleban.glacier_backup.sync.SyncPlanner;
+import com.vkleban.glacier_backup.trace.Tracer;
+import com.vkleban.glacier_backup.watch.WatchDaemon;
 
 public class BackupMaster extends GlacierClient {
 
@@ -69,31 +116,33 @@ public class BackupMaster extends GlacierClient {
     /**
      * Initiate inventory (listing contents) job
      * 
+     * @param shard - vault to list
      * @return inventory job ID
      */
-    private String initiateListJob() {
+    private String initiateListJob(Shard shard) {
         InitiateJobRequest initJobRequest = new InitiateJobRequest()
-                .withVaultName(c_.vault)
+                .withVaultName(shard.getVault())
                 .withJobParameters(
                         new JobParameters()
                         .withType("inventory-retrieval")
-                        .withSNSTopic(c_.sns_topic_arn)
+                        .withSNSTopic(shard.getSnsTopicArn())
                         );
         log.finer("Initiating list job \"" + initJobRequest + "\"");
-        InitiateJobResult initJobResult = amazonGlacier_.initiateJob(initJobRequest);
+        InitiateJobResult initJobResult = shard.getGlacier().initiateJob(initJobRequest);
         return initJobResult.getJobId();
     }
     
     /**
      * Wait on completion of a single job. For multiple jobs please use StatusMonitor
      * 
+     * @param shard - vault of the job
      * @param jobId - job to wait for
      */
-    private void waitForJobCompletion(String jobId) {
+    private void waitForJobCompletion(Shard shard, String jobId) {
         for (DescribeJobRequest describeJobRequest= new DescribeJobRequest()
-                .withVaultName(c_.vault)
+                .withVaultName(shard.getVault())
                 .withJobId(jobId);
-             !amazonGlacier_.describeJob(describeJobRequest).isCompleted();)
+             !shard.getGlacier().describeJob(describeJobRequest).isCompleted();)
         {
             log.finest("Job \""
                     + jobId
@@ -109,17 +158,18 @@ public class BackupMaster extends GlacierClient {
     /**
      * Download job output, which is in JSON format
      * 
+     * @param shard - vault of the job
      * @param jobId - job result to download
      * @return job result
      * @throws IOException when reading job result fails
      */
-    private String downloadJsonJobOutput(String jobId) throws IOException
+    private String downloadJsonJobOutput(Shard shard, String jobId) throws IOException
     {      
         GetJobOutputRequest getJobOutputRequest = new GetJobOutputRequest()
-            .withVaultName(c_.vault)
+            .withVaultName(shard.getVault())
             .withJobId(jobId);
         log.finer("Initiating job request \"" + getJobOutputRequest + "\"");
-        GetJobOutputResult getJobOutputResult = amazonGlacier_.getJobOutput(getJobOutputRequest);
+        GetJobOutputResult getJobOutputResult = shard.getGlacier().getJobOutput(getJobOutputRequest);
         
         String inputLine;
         try (BufferedReader in=
@@ -152,17 +202,41 @@ public class BackupMaster extends GlacierClient {
     }
     
     /**
-     * Get listing of the vault
+     * Get listing of single vault
      * 
+     * @param shard - the vault
      * @return vault listing
      * @throws IOException
      */
-    public String getListing() throws IOException {
-        String jobId = initiateListJob();
-        log.info("List job successfully initiated. About 4 hours is required for completion");
-        waitForJobCompletion(jobId);
+    private String getListing(Shard shard) throws IOException {
+        String jobId = initiateListJob(shard);
+        log.info("List job of \"" + shard + "\" successfully initiated. About 4 hours is required for completion");
+        waitForJobCompletion(shard, jobId);
         log.fine("Job \"" + jobId + "\" has been completed. Downloading inventory...");
-        return downloadJsonJobOutput(jobId);
+        return downloadJsonJobOutput(shard, jobId);
+    }
+
+    /**
+     * Get listing of the vault. Listings of the shards of sharded backup are taken at once and merged into one,
+     * each archive marked with its shard
+     * 
+     * @return vault listing
+     * @throws IOException
+     */
+    public String getListing() throws IOException {
+        ShardRing shards= ShardRing.get();
+        if (!shards.isSharded())
+            return getListing(shards.getShards().get(0));
+        JsonArray archiveList= new JsonArray();
+        for (Map.Entry<Shard, String> listing : ShardRing.onEach(shards.getShards(), this::getListing).entrySet()) {
+            for (JsonElement archive : new JsonParser().parse(listing.getValue()).getAsJsonObject().getAsJsonArray("ArchiveList")) {
+                archive.getAsJsonObject().addProperty("Shard", listing.getKey().getName());
+                archiveList.add(archive);
+            }
+        }
+        JsonObject merged= new JsonObject();
+        merged.add("ArchiveList", archiveList);
+        return merged.toString();
     }
     
     /**
@@ -173,27 +247,57 @@ public class BackupMaster extends GlacierClient {
         log.info("Listing contents:\n" + beautifyJson(getListing()));
     }
     
+    /**
+     * Get archives of the vault listing. Glacier doesn't know how this tool encoded them, so they are marked
+     * as of unknown encoding, for the downloads to tell it from their contents
+     * 
+     * @return archives of the listing
+     * @throws IOException
+     */
+    private Set<Archive> getListedArchives() throws IOException {
+        String listing= getListing();
+        log.finer("Received inventory:\n" + beautifyJson(listing));
+        Set<Archive> archives= parseInventoryJSONToArchiveFileMap(listing);
+        for (Archive archive : archives)
+            archive.setEncodingUnknown();
+        return archives;
+    }
+    
     /**
      * Download archives by Java glob. This operation first uses inventory to get listing, which takes about 4 hours.
      * Then the download times will depend on configured tier
      * 
      * @param glob - Java glob
+     * @param tar  - stream the files as tar to standard output instead of writing them under root_dir
      * @throws IOException
      */
-    public void downloadByGlob(String glob) throws IOException {
+    public void downloadByGlob(String glob, boolean tar) throws IOException {
         log.info("Attempting to download files by glob \"" + glob + "\"");
+        Set<Archive> archives= filterByGlob(getListedArchives(), glob);
+        if (tar)
+            downloadToTar(archives);
+        else
+            downloadList(archives);
+    }
+    
+    /**
+     * Select archives, which file names match given Java glob
+     * 
+     * @param archives - archives to filter
+     * @param glob     - Java glob
+     * @return matching archives in the original order
+     */
+    public static Set<Archive> filterByGlob(Collection<Archive> archives, String glob) {
         PathMatcher matcher= FileSystems.getDefault()
                 .getPathMatcher("glob:" + glob);
         Set<Archive> filteredList= new LinkedHashSet<>();
-        String inventory= getListing();
-        log.finer("Received inventory:\n" + beautifyJson(inventory));
-        for (Archive entry : parseInventoryJSONToArchiveFileMap(inventory)) {
+        for (Archive entry : archives) {
             if (matcher.matches(Paths.get(entry.getFileName()))) {
                 log.info("File \"" + entry.getFileName() + "\" matched pattern \"" + glob + "\"");
                 filteredList.add(entry);
             }
         }
-        downloadList(filteredList);
+        return filteredList;
     }
     
     /**
@@ -201,29 +305,39 @@ public class BackupMaster extends GlacierClient {
      * 
      * @param archiveID - Amazon Glacier archive ID (list operation will give you the IDs)
      * @param name      - File name to be given to the downloaded archive
+     * @param tar       - stream the files as tar to standard output in the order of the inventory
      * @throws IOException when failed reading given inventory
      */
-    public void downloadByListing(Path inventory) throws IOException {
+    public void downloadByListing(Path inventory, boolean tar) throws IOException {
         log.info("Attempting to download files from given inventory \"" + inventory + "\"");
-        downloadList(parseInventoryJSONToArchiveFileMap(
+        Set<Archive> archives= parseInventoryJSONToArchiveFileMap(
                 new String(Files.readAllBytes(inventory),
-                StandardCharsets.UTF_8)));
+                StandardCharsets.UTF_8));
+        if (tar)
+            downloadToTar(archives);
+        else
+            downloadList(archives);
     }
     
     /**
      * Remove list of files by given archive list
      * 
      * @param archiveNameMap - map of archive IDs to file names
+     * @throws IOException when removal from a shard fails
      */
-    public void removeList(Set<Archive> archiveNameMap) {
-        for (Archive archive : archiveNameMap)
-        {
-            log.info("Removing archive \"" + archive.getFileName() + "\" with archive ID \"" + archive.getArchiveId() + "\"");
-            DeleteArchiveRequest request = new DeleteArchiveRequest()
-                    .withVaultName(c_.vault)
-                    .withArchiveId(archive.getArchiveId());
-            amazonGlacier_.deleteArchive(request);
-        }
+    public void removeList(Set<Archive> archiveNameMap) throws IOException {
+        Map<Shard, List<Archive>> shards= ShardRing.get().group(archiveNameMap);
+        ShardRing.onEach(shards.keySet(), shard -> {
+            for (Archive archive : shards.get(shard))
+            {
+                log.info("Removing archive \"" + archive.getFileName() + "\" with archive ID \"" + archive.getArchiveId() + "\"");
+                DeleteArchiveRequest request = new DeleteArchiveRequest()
+                        .withVaultName(shard.getVault())
+                        .withArchiveId(archive.getArchiveId());
+                shard.getGlacier().deleteArchive(request);
+            }
+            return null;
+        });
     }
     
     /**
@@ -236,16 +350,7 @@ public class BackupMaster extends GlacierClient {
         log.warning("Attempting to remove files by glob \"" + glob + "\". Is this what you really want?\n"
                   + "I suggest deletion of files by the inventory instead to stay on the safer side.\n"
                   + "You still have few hours to change your mind");
-        PathMatcher matcher= FileSystems.getDefault()
-                .getPathMatcher("glob:" + glob);
-        Set<Archive> filteredList= new LinkedHashSet<>();
-        for (Archive entry : parseInventoryJSONToArchiveFileMap(getListing())) {
-            if (matcher.matches(Paths.get(entry.getFileName()))) {
-                log.info("File \"" + entry.getFileName() + "\" matched pattern \"" + glob + "\"");
-                filteredList.add(entry);
-            }
-        }
-        removeList(filteredList);
+        removeList(filterByGlob(parseInventoryJSONToArchiveFileMap(getListing()), glob));
     }
     
     /**
@@ -261,12 +366,48 @@ public class BackupMaster extends GlacierClient {
                 StandardCharsets.UTF_8)));
     }
     
+    /**
+     * Build catalog of given inventory or, if there is none, of current listing
+     * 
+     * @param inventory - inventory file. null to get listing, which takes about 4 hours
+     * @param catalog   - catalog directory
+     * @throws IOException when the inventory or listing can't be read or the catalog can't be written
+     */
+    public void buildCatalog(Path inventory, Path catalog) throws IOException {
+        if (inventory != null) {
+            Catalog.build(inventory, catalog);
+            return;
+        }
+        Path listing= Files.createTempFile("glacier_backup_listing", ".json");
+        try {
+            Files.write(listing, getListing().getBytes(StandardCharsets.UTF_8));
+            Catalog.build(listing, catalog);
+        } finally {
+            Files.deleteIfExists(listing);
+        }
+    }
+    
+    /**
+     * Print inventory of the catalog archives matching given query to standard output
+     * 
+     * @param catalog - catalog directory
+     * @param query   - the query
+     * @throws IOException when the catalog can't be read
+     */
+    public static void queryCatalog(Path catalog, String query) throws IOException {
+        try (Catalog opened= new Catalog(catalog)) {
+            Writer out= new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+            opened.query(CatalogQuery.parse(query), out);
+        }
+    }
+    
     /**
      * Reset and re-initialize java.util.logging based logger
      * 
+     * @param stderr - log to standard error, keeping standard output for data
      * @throws InitException
      */
-    private static void initLogger() throws InitException {
+    private static void initLogger(boolean stderr) throws InitException {
         try {
             // Close root logger handlers
             for (Handler h: Logger.getLogger("").getHandlers())
@@ -284,7 +425,7 @@ public class BackupMaster extends GlacierClient {
             Handler ch= new ConsoleHandler() {
                 @Override
                 protected synchronized void setOutputStream(OutputStream out) throws SecurityException {
-                    super.setOutputStream(System.out);
+                    super.setOutputStream(stderr ? System.err : System.out);
                 }
             };
             ch.setFormatter(new ConsoleFormatter());
@@ -301,7 +442,7 @@ public class BackupMaster extends GlacierClient {
      * @param archives - collection of archives
      * @return Emulation of Glacier inventory JSON
      */
-    public String ArchivesToInventoryJSON(Collection<Archive> archives) {
+    public static String ArchivesToInventoryJSON(Collection<Archive> archives) {
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
         JsonObject archiveList = new JsonObject();
         archiveList.add("ArchiveList", gson.toJsonTree(archives));
@@ -314,47 +455,92 @@ public class BackupMaster extends GlacierClient {
      * @param inventory - Glacier inventory JSON
      * @return Set of archives for which ArchiveDescription matches glob
      */
-    public Set<Archive> parseInventoryJSONToArchiveFileMap(String inventory) {
+    public static Set<Archive> parseInventoryJSONToArchiveFileMap(String inventory) {
 
         JsonParser parser = new JsonParser();
         JsonObject parsedListing= parser.parse(inventory).getAsJsonObject();
         JsonArray archiveList= parsedListing.getAsJsonArray("ArchiveList");
         Set<Archive> archiveIds= new LinkedHashSet<>();
-        for (JsonElement fileEntry : archiveList) {
-            JsonObject object= fileEntry.getAsJsonObject();
-            archiveIds.add(
-                new Archive(
-                    object.get("ArchiveId").getAsString(),
-                    object.get("ArchiveDescription").getAsString(),
-                    object.get("SHA256TreeHash").getAsString()));
-        }
+        for (JsonElement fileEntry : archiveList)
+            archiveIds.add(parseArchive(fileEntry.getAsJsonObject()));
         return archiveIds;
     }
     
+    /**
+     * @param object - single entry of Glacier inventory JSON
+     * @return the archive
+     */
+    public static Archive parseArchive(JsonObject object) {
+        JsonElement size= object.get("Size");
+        JsonElement codec= object.get("Codec");
+        JsonElement encryptionKeyId= object.get("EncryptionKeyId");
+        JsonElement originalSize= object.get("OriginalSize");
+        JsonElement originalTreeHash= object.get("OriginalSHA256TreeHash");
+        JsonElement shard= object.get("Shard");
+        JsonElement chunked= object.get("Chunked");
+        JsonElement encodingUnknown= object.get("EncodingUnknown");
+        Archive archive= new Archive(
+            object.get("ArchiveId").getAsString(),
+            object.get("ArchiveDescription").getAsString(),
+            object.get("SHA256TreeHash").getAsString(),
+            size == null || size.isJsonNull() ? null : size.getAsLong(),
+            codec == null || codec.isJsonNull() ? null : codec.getAsString(),
+            encryptionKeyId == null || encryptionKeyId.isJsonNull() ? null : encryptionKeyId.getAsString(),
+            originalSize == null || originalSize.isJsonNull() ? null : originalSize.getAsLong(),
+            originalTreeHash == null || originalTreeHash.isJsonNull() ? null : originalTreeHash.getAsString(),
+            shard == null || shard.isJsonNull() ? null : shard.getAsString(),
+            chunked != null && !chunked.isJsonNull() && chunked.getAsBoolean());
+        if (encodingUnknown != null && !encodingUnknown.isJsonNull() && encodingUnknown.getAsBoolean())
+            archive.setEncodingUnknown();
+        return archive;
+    }
+    
     /**
      * Given set of archives, initiate their downloads
      * 
      * @param archiveIDs - list of archive IDs to download
      * @return map of job IDs to archives
+     * @throws IOException when initiation of jobs in a shard fails
      */
-    private Map<String, Archive> initiateDownloadJobs(Set<Archive> archives) {
-        Map<String, Archive> jobArchiveMap= new HashMap<>();
+    private Map<String, Archive> initiateDownloadJobs(Set<Archive> archives) throws IOException {
+        Map<String, Archive> jobArchiveMap= new ConcurrentHashMap<>();
+        Map<Archive, Tier> tiers= new ConcurrentHashMap<>();
+        TierPlanner planner= new TierPlanner();
         log.info("Creating file download jobs");
-        for (Archive archiveID: archives) {
-            JobParameters jobParameters = new JobParameters()
-                    .withType("archive-retrieval")
-                    .withArchiveId(archiveID.getArchiveId())
-                    .withTier(c_.retrieval_tier)
-                    .withSNSTopic(c_.sns_topic_arn);
-                
-                InitiateJobRequest request = new InitiateJobRequest()
-                    .withVaultName(c_.vault)
-                    .withJobParameters(jobParameters);
-                
-                String jobID= amazonGlacier_.initiateJob(request).getJobId();
-                jobArchiveMap.put(jobID, archiveID);
-                log.fine("Job " + jobID + " for archive " + archiveID);
-        }
+        Map<Shard, List<Archive>> shards= ShardRing.get().group(archives);
+        ShardRing.onEach(shards.keySet(), shard -> {
+            for (Archive archiveID: shards.get(shard)) {
+                Tier tier= planner.plan(archiveID);
+                while (true) {
+                    JobParameters jobParameters = new JobParameters()
+                        .withType("archive-retrieval")
+                        .withArchiveId(archiveID.getArchiveId())
+                        .withTier(tier.getName())
+                        .withSNSTopic(shard.getSnsTopicArn());
+                    
+                    InitiateJobRequest request = new InitiateJobRequest()
+                        .withVaultName(shard.getVault())
+                        .withJobParameters(jobParameters);
+                    
+                    try {
+                        String jobID= shard.getGlacier().initiateJob(request).getJobId();
+                        jobArchiveMap.put(jobID, archiveID);
+                        tiers.put(archiveID, tier);
+                        log.fine("Job " + jobID + " for archive " + archiveID + " using tier " + tier.getName());
+                        break;
+                    } catch (InsufficientCapacityException e) {
+                        Tier slower= planner.fallback(tier, archiveID);
+                        if (slower == null)
+                            throw e;
+                        log.fine("No " + tier.getName() + " capacity for \"" + archiveID.getFileName()
+                                + "\". Falling back to " + slower.getName());
+                        tier= slower;
+                    }
+                }
+            }
+            return null;
+        });
+        log.info(planner.report(tiers));
         return jobArchiveMap;
     }
 
@@ -366,28 +552,118 @@ public class BackupMaster extends GlacierClient {
      * @throws IOException when file operation errors happen
      */
     public void downloadList(Set<Archive> archives) throws IOException {
-        Map<String, Archive> jobArchiveMap= initiateDownloadJobs(archives);
-        log.fine("Starting download slaves");
-        // NOTE! downloadJobs size must be at least the size of the number of jobs. Otherwise deadlock is possible
-        ArrayBlockingQueue<SlaveRequest<DownloadJob>> downloadJobs= new ArrayBlockingQueue<>(archives.size() + 1);
-        // NOTE! slaveReplies size must be at least the size of the number of jobs + number of threads
-        // Otherwise deadlock is possible
-        ArrayBlockingQueue<SlaveResponse<DownloadJob>> slaveReplies=
-            new ArrayBlockingQueue<>(archives.size()
-                                   + c_.file_transfer_slaves);
-        Set<Thread> workers= new HashSet<>(c_.file_transfer_slaves);
-        for (int i= 0; i < c_.file_transfer_slaves; i++) {
-            Thread worker= new Thread(new DownloadSlave(downloadJobs, slaveReplies), "DownloadSlave-" + i);
-            worker.start();
-            workers.add(worker);
+        archives= withUniqueNames(archives);
+        Set<Archive> chunked= archives.stream()
+            .filter(Archive::isChunked)
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+        if (chunked.isEmpty()) {
+            downloadJobs(initiateDownloadJobs(archives), null);
+            return;
+        }
+        // Chunked files take two rounds: their manifests along with the other files, then the packs of their chunks
+        try (ChunkRestore restore= new ChunkRestore(chunked)) {
+            Set<Archive> first= new LinkedHashSet<>(archives);
+            first.removeAll(chunked);
+            first.addAll(restore.getManifests());
+            Set<Archive> packs= restore.readManifests(downloadJobs(initiateDownloadJobs(first), null));
+            Set<Archive> failed= packs.isEmpty()
+                ? Collections.emptySet()
+                : downloadJobs(initiateDownloadJobs(packs), null);
+            Set<Archive> incomplete= restore.assemble(failed);
+            if (incomplete.size() == 0) {
+                log.info(chunked.size() + " chunked files have been restored successfully");
+            } else {
+                log.severe("The following list of chunked files failed to restore:\n"
+                         + ArchivesToInventoryJSON(incomplete));
+            }
         }
+    }
+
+    /**
+     * @param archives - archives to restore
+     * @param how      - restore, which can't take chunked files
+     * @return the archives without chunked ones, which are logged as skipped
+     */
+    private static Set<Archive> withoutChunked(Set<Archive> archives, String how) {
+        Set<Archive> whole= new LinkedHashSet<>();
+        for (Archive archive : archives) {
+            if (archive.isChunked())
+                log.severe("\"" + archive.getFileName() + "\" is stored in chunks, which " + how
+                    + " can't restore. Skipping it. Download it with -d");
+            else
+                whole.add(archive);
+        }
+        return whole;
+    }
+    
+    /**
+     * @param archives - archives to download under root_dir
+     * @return the archives with one archive of every file name, the last one. The others are logged as skipped
+     */
+    private static Set<Archive> withUniqueNames(Set<Archive> archives) {
+        Map<Path, Archive> names= new LinkedHashMap<>();
+        for (Archive archive : archives) {
+            Archive earlier= names.put(Paths.get(archive.getFileName()).normalize(), archive);
+            if (earlier != null)
+                log.warning("\"" + archive.getFileName() + "\" has more than one archive, which would overwrite each other."
+                    + " Skipping archive \"" + earlier.getArchiveId() + "\" for the later \"" + archive.getArchiveId()
+                    + "\". Download it with a listing of its own");
+        }
+        return new LinkedHashSet<>(names.values());
+    }
+    
+    /**
+     * Download outputs of given retrieval jobs into root_dir as they complete
+     * 
+     * @param jobArchiveMap - map of job IDs to archives. Completed jobs are removed from it
+     * @param ledger        - ledger of the jobs to keep up to date and to collect through reusable SQS queue.
+     *                        null for the jobs of this run only
+     * @return archives, which failed to download
+     * @throws IOException when file operation errors happen
+     */
+    private Set<Archive> downloadJobs(Map<String, Archive> jobArchiveMap, JobLedger ledger) throws IOException {
+        Set<Archive> archives= new LinkedHashSet<>(jobArchiveMap.values());
+        TransferProgress progress= new TransferProgress();
+        for (Archive archive: archives)
+            progress.plan(archive.getSize() == null ? 0 : archive.getSize());
+        log.fine("Starting download slaves");
+        RetryLane<DownloadJob> retries= new RetryLane<>();
+        BatchedSync sync= new BatchedSync(c_.download_sync_files, c_.download_sync_milliseconds);
+        // Target files to the jobs downloaded into them. A ledger may have more jobs of one file
+        Map<Path, List<DownloadJob>> downloaded= new HashMap<>();
+        TransferEngine<DownloadJob, DownloadJob> slaves= new TransferEngine<>(
+            "DownloadSlave",
+            new DownloadSlave(retries, progress, sync),
+            TransferEngine.newExecutor(c_.transfer_threads),
+            ConcurrencyController.initialSlaves(c_.file_transfer_slaves),
+            retries);
+        ConcurrencyController controller= new ConcurrencyController(slaves, progress);
+        TransferControl control= new TransferControl("Download", slaves, progress);
         log.info("Awaiting download jobs completion");
-        try (StatusMonitor jobMonitor = new StatusMonitor(amazonSQS_, amazonSNS_)) {
+        ProgressReporter reporter= new ProgressReporter("Download", progress, c_.progress_milliseconds);
+        try (StatusMonitor jobMonitor = ledger == null
+                ? new StatusMonitor(sqs(), ShardRing.get().getShards())
+                : new StatusMonitor(sqs(), ShardRing.get().getShards(), c_.job_queue_name, ledger::isResolved))
+        {
+            // Jobs of the ledger may have completed while nobody was listening
+            Iterator<StatusMonitor.JobResult> completed= ledger == null
+                ? Collections.emptyIterator()
+                : describeJobs(jobArchiveMap, ledger).iterator();
             Set<String> jobsToComplete= jobArchiveMap.keySet();
             while (jobsToComplete.size() != 0) {
-                StatusMonitor.JobResult jobResult= jobMonitor.waitForJobToComplete(jobsToComplete);
+                StatusMonitor.JobResult jobResult= completed.hasNext()
+                    ? completed.next()
+                    : jobMonitor.waitForJobToComplete(jobsToComplete);
                 Archive archive= jobArchiveMap.remove(jobResult.getJob());
+                if (ledger != null)
+                    ledger.update(jobResult.getJob(), jobResult.succeeded() ? State.SUCCEEDED : State.FAILED);
+                long size= archive.getSize() == null ? 0 : archive.getSize();
+                if (archive.getSize() == null && jobResult.getArchiveSize() != null) {
+                    size= jobResult.getArchiveSize();
+                    progress.planBytes(size);
+                }
                 if (!jobResult.succeeded()) {
+                    progress.fileFailed(0, size);
                     log.severe(
                         "Download job of file \""
                         + archive.getFileName()
@@ -407,25 +683,25 @@ public class BackupMaster extends GlacierClient {
                         + "\" using job \""
                         + jobResult.getJob()
                         + "\"");
-                downloadJobs.add(new SlaveRequest<DownloadJob>(new DownloadJob(jobResult.getJob(), archive) , false));
+                slaves.submit(new DownloadJob(jobResult.getJob(), archive, size));
             }
             log.fine("End of jobs. Announcing shutdown to slave threads");
         } finally {
-            downloadJobs.add(new SlaveRequest<DownloadJob>(null, true));
-            while (workers.size() > 0) {
+            slaves.shutdown();
+            while (true) {
                 try {
-                    SlaveResponse<DownloadJob> slaveResponse= slaveReplies.take();
-                    if (slaveResponse.isStopped()) {
-                        Thread slave= slaveResponse.getSlave();
-                        log.fine("Joining thread \"" + slave + "\"");
-                        workers.remove(slave);
-                        slave.join();                        
+                    SlaveResponse<DownloadJob> slaveResponse= slaves.take();
+                    if (slaveResponse == null) {
+                        break;
                     } else if (slaveResponse.getException() == null) {
-                        Archive downloadedArchive= slaveResponse.getResponse().getArchive();
+                        DownloadJob downloadedJob= slaveResponse.getResponse();
+                        Archive downloadedArchive= downloadedJob.getArchive();
                         log.fine("Registering archive with ID \""
                                + downloadedArchive.getArchiveId()
                                + "\" as downloaded");
                         archives.remove(downloadedArchive);
+                        downloaded.computeIfAbsent(Paths.get(c_.root_dir, downloadedArchive.getFileName()),
+                            path -> new ArrayList<>()).add(downloadedJob);
                     } else {
                         String error= "Download slave thread \"" + slaveResponse.getSlave().getName()
                                 + "\" has reported a problem:\n"
@@ -441,6 +717,24 @@ public class BackupMaster extends GlacierClient {
                     }
                 } catch (InterruptedException e) {}
             }
+            controller.close();
+            control.close();
+            reporter.close();
+            // Downloaded files aren't there until they are synced
+            for (Path failed : sync.finish()) {
+                List<DownloadJob> jobs= downloaded.remove(failed);
+                if (jobs != null) {
+                    for (DownloadJob job : jobs)
+                        archives.add(job.getArchive());
+                }
+            }
+            if (ledger != null) {
+                for (List<DownloadJob> jobs : downloaded.values()) {
+                    for (DownloadJob job : jobs)
+                        ledger.update(job.getJobId(), State.DOWNLOADED);
+                }
+                log.info("Ledger: " + ledger.summary());
+            }
             if (archives.size() == 0) {
                 log.info("Downloads have completed successfully");
             } else {
@@ -449,169 +743,477 @@ public class BackupMaster extends GlacierClient {
                          + ArchivesToInventoryJSON(archives));
             }
         }
+        return archives;
+    }
+    
+    /**
+     * Check given jobs of the ledger on Glacier. Jobs gone from Glacier (their output is kept for 24 hours) are
+     * submitted again
+     * 
+     * @param jobArchiveMap - map of job IDs to archives. Resubmitted jobs are replaced in it
+     * @param ledger        - ledger of the jobs
+     * @return results of the jobs, which have completed
+     * @throws IOException when the ledger can't be updated or jobs can't be submitted again
+     */
+    private List<StatusMonitor.JobResult> describeJobs(Map<String, Archive> jobArchiveMap, JobLedger ledger)
+        throws IOException
+    {
+        log.info("Checking " + jobArchiveMap.size() + " jobs of the ledger on Glacier");
+        List<StatusMonitor.JobResult> completed= Collections.synchronizedList(new ArrayList<>());
+        Set<String> expired= ConcurrentHashMap.newKeySet();
+        // The ledger may have more jobs of one archive
+        Map<Archive, List<String>> archiveJobMap= new HashMap<>();
+        for (Map.Entry<String, Archive> job : jobArchiveMap.entrySet())
+            archiveJobMap.computeIfAbsent(job.getValue(), archive -> new ArrayList<>()).add(job.getKey());
+        Map<Shard, List<Archive>> shards= ShardRing.get().group(archiveJobMap.keySet());
+        ShardRing.onEach(shards.keySet(), shard -> {
+            for (Archive archive : shards.get(shard)) {
+                for (String jobId : archiveJobMap.get(archive)) {
+                    try {
+                        DescribeJobResult job= shard.getGlacier().describeJob(new DescribeJobRequest()
+                            .withVaultName(shard.getVault())
+                            .withJobId(jobId));
+                        if (job.isCompleted())
+                            completed.add(new StatusMonitor.JobResult(
+                                jobId, StatusCode.Succeeded.toString().equals(job.getStatusCode()), job.getArchiveSizeInBytes()));
+                    } catch (ResourceNotFoundException e) {
+                        expired.add(jobId);
+                    }
+                }
+            }
+            return null;
+        });
+        log.info(completed.size() + " jobs have completed meanwhile");
+        if (!expired.isEmpty()) {
+            Set<Archive> again= new LinkedHashSet<>();
+            for (String jobId : expired) {
+                ledger.update(jobId, State.EXPIRED);
+                again.add(jobArchiveMap.remove(jobId));
+            }
+            log.warning(expired.size() + " jobs are gone from Glacier before their download. Submitting them again");
+            Map<String, Archive> resubmitted= initiateDownloadJobs(again);
+            ledger.submitted(resubmitted);
+            jobArchiveMap.putAll(resubmitted);
+        }
+        return completed;
+    }
+    
+    /**
+     * Initiate retrieval jobs of given archives, record them in the ledger and exit. Notifications of the jobs
+     * wait in the reusable SQS queue for the collection
+     * 
+     * @param archives - list of archives
+     * @param ledger   - ledger file
+     * @throws IOException when jobs can't be initiated or the ledger can't be written
+     */
+    public void submit(Set<Archive> archives, Path ledger) throws IOException {
+        archives= withUniqueNames(withoutChunked(archives, "the job ledger"));
+        // The queue is subscribed before the jobs start, so that no notification is missed
+        new StatusMonitor(sqs(), ShardRing.get().getShards(), c_.job_queue_name).close();
+        try (JobLedger jobs= new JobLedger(ledger)) {
+            jobs.submitted(initiateDownloadJobs(archives));
+            log.info("Ledger: " + jobs.summary() + ". Collect the downloads with -j " + ledger + " -x");
+        }
+    }
+    
+    /**
+     * Download outputs of the pending jobs of the ledger into root_dir, as they complete. Can be interrupted
+     * and run again
+     * 
+     * @param ledger - ledger file
+     * @throws IOException when the ledger can't be read or file operation errors happen
+     */
+    public void collect(Path ledger) throws IOException {
+        try (JobLedger jobs= new JobLedger(ledger)) {
+            Map<String, Archive> pending= new ConcurrentHashMap<>(jobs.pending());
+            if (pending.isEmpty()) {
+                log.info("Nothing to collect in ledger \"" + ledger + "\"");
+                return;
+            }
+            downloadJobs(pending, jobs);
+        }
+    }
+    
+    /**
+     * Stream files of given archives to standard output as a single tar, in the order of the archives.
+     * Nothing is written to local disk
+     * 
+     * @param archives - list of archives
+     * @throws IOException when jobs can't be initiated or the tar stream can't be written
+     */
+    public void downloadToTar(Set<Archive> archives) throws IOException {
+        archives= withoutChunked(archives, "tar");
+        Map<String, Archive> jobArchiveMap= initiateDownloadJobs(archives);
+        Map<Archive, String> jobs= new LinkedHashMap<>();
+        Map<Archive, String> archiveJobMap= new HashMap<>();
+        for (Map.Entry<String, Archive> job : jobArchiveMap.entrySet())
+            archiveJobMap.put(job.getValue(), job.getKey());
+        TransferProgress progress= new TransferProgress();
+        for (Archive archive: archives) {
+            jobs.put(archive, archiveJobMap.get(archive));
+            progress.plan(archive.getSize() == null ? 0 : archive.getSize());
+        }
+        log.info("Awaiting download jobs completion");
+        OutputStream out= new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 20);
+        ProgressReporter reporter= new ProgressReporter("Download", progress, c_.progress_milliseconds);
+        Set<Archive> failed;
+        try (TarRestore tar= new TarRestore(jobs, out, progress);
+             StatusMonitor jobMonitor = new StatusMonitor(sqs(), ShardRing.get().getShards()))
+        {
+            Set<String> jobsToComplete= jobArchiveMap.keySet();
+            while (jobsToComplete.size() != 0) {
+                StatusMonitor.JobResult jobResult= jobMonitor.waitForJobToComplete(jobsToComplete);
+                Archive archive= jobArchiveMap.remove(jobResult.getJob());
+                if (archive.getSize() == null && jobResult.getArchiveSize() != null)
+                    progress.planBytes(jobResult.getArchiveSize());
+                tar.ready(jobResult.getJob(), jobResult.succeeded(), jobResult.getArchiveSize());
+            }
+            log.fine("End of jobs. Awaiting the end of the tar stream");
+            failed= tar.finish();
+        } finally {
+            reporter.close();
+        }
+        if (failed.size() == 0) {
+            log.info("Downloads have completed successfully");
+        } else {
+            log.severe("Downloads have completed with errors. "
+                     + "The following list of archives is missing from the tar stream or incomplete in it:\n"
+                     + ArchivesToInventoryJSON(failed));
+        }
+    }
+    
+    /**
+     * Files to upload: either the ones provided in standard input and new line separated,
+     * or the ones found by the built-in scan of root_dir
+     * 
+     * @param scan - scan root_dir instead of reading standard input
+     * @return stream of files relative to root_dir. Scanned files come as soon as they are found
+     */
+    private Stream<LocalFile> uploadSource(boolean scan) {
+        if (scan) {
+            log.info("Scanning \"" + c_.root_dir + "\"");
+            return new FileScanner().stream();
+        }
+        BufferedReader in= new BufferedReader(new InputStreamReader(System.in));
+        return in.lines()
+            .map(line -> LocalFile.stat(c_.root_dir, Paths.get(line).normalize().toString()))
+            .onClose(() -> {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            });
     }
     
     /**
-     * Upload files provided in standard input, while filtering them against existing inventory,
+     * Upload files provided in standard input or found by scan, while filtering them against existing inventory,
      * given as a local inventory file.
      * The existing inventory is updated as soon as upload is finished
      * 
-     * @param inventoryFileName - inventory file 
+     * @param inventoryFileName - inventory file. null plans every file as new, and is meant for the dry run
+     * @param scan              - scan root_dir instead of reading standard input
+     * @param dryRun            - print the plan instead of uploading
      * @throws AmazonClientException when Amazon Glacier operation fails
      * @throws IOException when disk operation fails
      */
-    public void uploadIncremental(String inventoryFileName)
+    public void uploadIncremental(String inventoryFileName, boolean scan, boolean dryRun)
         throws AmazonClientException, IOException
     {
-        Set<Archive> existingArchives;
-        // Load inventory and check the corresponding file is writable
-        Path inventoryPath= Paths.get(inventoryFileName);
+        Path inventoryPath= inventoryFileName == null ? null : Paths.get(inventoryFileName);
+        boolean exists= inventoryPath != null && ensureInventoryWritable(inventoryPath);
+        List<Archive> uploaded;
+        // Merge-join the files with the inventory, then upload new and changed ones
+        try (Stream<LocalFile> files= uploadSource(scan);
+             SyncPlanner planner= new SyncPlanner(files, exists ? inventoryPath : null))
+        {
+            Stream<SyncPlanner.Step> plan= planner.plan();
+            if (dryRun) {
+                plan.forEach(System.out::println);
+                log.info("Dry run. Nothing uploaded. Plan: " + planner.summary());
+                return;
+            }
+            uploaded= upload(plan
+                .filter(step -> {
+                    if (step.getAction() == SyncPlanner.Action.SKIP)
+                        log.fine("Skipping existing in inventory \"" + step.getEntry().getPath() + "\"");
+                    else if (step.getAction() == SyncPlanner.Action.ORPHAN)
+                        log.fine("Archive \"" + step.getEntry().getArchiveId() + "\" of \""
+                            + step.getEntry().getPath() + "\" has no local file");
+                    return step.isUpload();
+                })
+                .map(step -> LocalFile.stat(c_.root_dir, step.getEntry().getPath())));
+            log.info("Sync plan: " + planner.summary());
+        }
+        // Update the inventory with freshly uploaded files
+        if (uploaded.size() == 0 || inventoryPath == null)
+            return;
+        appendToInventory(inventoryPath, uploaded);
+    }
+
+    /**
+     * Check the inventory file can be updated
+     * 
+     * @param inventoryPath - inventory file. It's created later if it doesn't exist
+     * @return true if the inventory exists
+     * @throws IOException when the inventory can't be updated
+     */
+    private static boolean ensureInventoryWritable(Path inventoryPath) throws IOException {
         String inventoryError= "Unable to ensure I can update \"" + inventoryPath + "\" file";
         File inventoryFile= inventoryPath.toFile();
         if (!inventoryFile.isFile()) {
             log.warning("Given inventory file does not exist. Will create new one");
-            existingArchives= new LinkedHashSet<>();
             try {
                 Files.createFile(inventoryPath);
                 Files.delete(inventoryPath);
             } catch (Exception e) {
                 throw new IOException(inventoryError, e);
             }
-        } else {
-            if (!inventoryFile.canWrite())
-                throw new IOException(inventoryError);
-            existingArchives= parseInventoryJSONToArchiveFileMap(
-                new String(Files.readAllBytes(inventoryPath),
-                    StandardCharsets.UTF_8));
-        }
-        // Load file paths and filter them through the inventory contents
-        Set<Path> filter= existingArchives
-            .stream()
-            .map(a -> Paths.get(a.getFileName()).normalize())
-            .collect(Collectors.toSet());
-        Set<String> files= new LinkedHashSet<>();
-        try (Scanner sc= new Scanner(System.in)) {
-            while (sc.hasNextLine()) {
-                Path filePath= Paths.get(sc.nextLine()).normalize();
-                // NOTE! Path equality is tested without normalization!
-                // Tested on Linux
-                if (filter.contains(filePath)) {
-                    log.info("Skipping existing in inventory \"" + filePath + "\"");
-                } else {
-                    files.add(filePath.toString());
-                }
-            }
+            return false;
         }
-        // Upload files
-        List<Archive> uploaded= upload(new LinkedHashSet<>(files));
-        // Update the inventory with freshly uploaded files
-        if (uploaded.size() == 0)
-            return;
-        existingArchives.addAll(uploaded);
-        Path tempFile= inventoryPath.resolveSibling(
-            inventoryFileName +
-            DateTimeFormatter.ofPattern("'.'yyyyMMdd'T'HHmmss'.'SSS").format(LocalDateTime.now()));
-        log.fine("Creating temp file \"" + tempFile + "\"");
+        if (!inventoryFile.canWrite())
+            throw new IOException(inventoryError);
+        return true;
+    }
+
+    /**
+     * Load inventory, which is going to be updated, and check the corresponding file is writable
+     * 
+     * @param inventoryPath - inventory file. It's created later if it doesn't exist
+     * @return archives of the inventory
+     * @throws IOException when the inventory can't be read or updated
+     */
+    public static Set<Archive> readInventoryForUpdate(Path inventoryPath) throws IOException {
+        if (!ensureInventoryWritable(inventoryPath))
+            return new LinkedHashSet<>();
+        return parseInventoryJSONToArchiveFileMap(
+            new String(Files.readAllBytes(inventoryPath),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replace the inventory atomically, so that it's never left half written
+     * 
+     * @param inventoryPath - inventory file
+     * @param archives      - archives of the inventory
+     * @throws IOException when the inventory can't be written
+     */
+    public static void writeInventory(Path inventoryPath, Collection<Archive> archives) throws IOException {
+        Path tempFile= inventoryTempFile(inventoryPath);
         Files.write(
             tempFile,
-            ArchivesToInventoryJSON(existingArchives).getBytes(StandardCharsets.UTF_8),
+            ArchivesToInventoryJSON(archives).getBytes(StandardCharsets.UTF_8),
             StandardOpenOption.CREATE_NEW);
         log.info("Updating inventory \"" + inventoryPath + "\"");
         Files.move(tempFile, inventoryPath, StandardCopyOption.ATOMIC_MOVE);
     }
+
+    /**
+     * Add archives to the inventory, replacing it atomically. The existing archives are copied one by one,
+     * so that inventory of any size is updated in bounded memory
+     * 
+     * @param inventoryPath - inventory file. Created if it doesn't exist
+     * @param archives      - archives to add
+     * @throws IOException when the inventory can't be read or written
+     */
+    public static void appendToInventory(Path inventoryPath, Collection<Archive> archives) throws IOException {
+        if (!Files.isRegularFile(inventoryPath)) {
+            writeInventory(inventoryPath, archives);
+            return;
+        }
+        Path tempFile= inventoryTempFile(inventoryPath);
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        JsonParser parser = new JsonParser();
+        try (JsonReader in= new JsonReader(Files.newBufferedReader(inventoryPath, StandardCharsets.UTF_8));
+             JsonWriter out= gson.newJsonWriter(
+                 Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW)))
+        {
+            out.beginObject().name("ArchiveList").beginArray();
+            in.beginObject();
+            while (in.hasNext()) {
+                if (!in.nextName().equals("ArchiveList")) {
+                    in.skipValue();
+                    continue;
+                }
+                in.beginArray();
+                while (in.hasNext())
+                    gson.toJson(parser.parse(in), out);
+                in.endArray();
+            }
+            in.endObject();
+            for (Archive archive : archives)
+                gson.toJson(gson.toJsonTree(archive), out);
+            out.endArray().endObject();
+        }
+        log.info("Updating inventory \"" + inventoryPath + "\"");
+        Files.move(tempFile, inventoryPath, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path inventoryTempFile(Path inventoryPath) {
+        Path tempFile= inventoryPath.resolveSibling(
+            inventoryPath.getFileName() +
+            DateTimeFormatter.ofPattern("'.'yyyyMMdd'T'HHmmss'.'SSS").format(LocalDateTime.now()));
+        log.fine("Creating temp file \"" + tempFile + "\"");
+        return tempFile;
+    }
     
     /**
-     * Upload files given in standard input and new line separated
+     * Upload standard input as a single archive, without a temporary file, through the configured codec and
+     * encryption. The stream is read to the end, so its length needn't be known in advance
+     * 
+     * @param name      - archive description, e.g. "db/2024-03-01.sql"
+     * @param inventory - inventory file to add the archive to. null just logs it
+     * @throws AmazonClientException when Amazon Glacier operation fails
+     * @throws IOException when reading the stream or updating the inventory fails
+     */
+    public void uploadStream(String name, String inventory) throws AmazonClientException, IOException {
+        Path inventoryPath= inventory == null ? null : Paths.get(inventory);
+        if (inventoryPath != null)
+            ensureInventoryWritable(inventoryPath);
+        Shard shard= ShardRing.get().forPath(name);
+        Codec codec= Codec.forName(c_.compression);
+        EncryptionKey key= EncryptionKey.get();
+        TransferProgress progress= new TransferProgress();
+        progress.plan(0);
+        FileProgressListener listener= new FileProgressListener(progress);
+        Archive archive;
+        log.info("Uploading standard input as \"" + name + "\""
+            + (shard.getName() == null ? "" : " to \"" + shard + "\""));
+        try (ProgressReporter reporter= new ProgressReporter("Stream", progress, c_.progress_milliseconds);
+             TreeHashInputStream original= new TreeHashInputStream(System.in);
+             InputStream compressed= codec.encode(original, c_.compression_level);
+             InputStream encoded= key == null ? compressed : new GcmEncryptInputStream(compressed, key))
+        {
+            Archive uploaded= new StreamUploader(shard.getGlacier(), shard.getVault(), progress)
+                .upload(name, encoded, listener);
+            boolean plain= codec == Codec.NONE && key == null;
+            archive= new Archive(
+                uploaded.getArchiveId(),
+                name,
+                uploaded.getTreeHash(),
+                uploaded.getSize(),
+                codec == Codec.NONE ? null : codec.getName(),
+                key == null ? null : key.getId(),
+                plain ? null : original.getCount(),
+                plain ? null : original.getTreeHash(),
+                shard.getName());
+            progress.fileCompleted();
+        }
+        log.info("Upload successful. Archive ID: " + archive.getArchiveId() + ", "
+            + archive.getSize() + " bytes\n"
+            + ArchivesToInventoryJSON(Collections.singletonList(archive)));
+        if (inventoryPath != null)
+            appendToInventory(inventoryPath, Collections.singletonList(archive));
+    }
+
+    /**
+     * Upload files given in standard input and new line separated, or found by scan
      * 
+     * @param scan - scan root_dir instead of reading standard input
      * @throws AmazonClientException
      * @throws FileNotFoundException
      */
-    public void uploadUnfiltered() throws AmazonClientException, FileNotFoundException {
-        Set<String> files= new LinkedHashSet<>();
-        try (Scanner sc= new Scanner(System.in)) {
-            while (sc.hasNextLine())
-                files.add(Paths.get(sc.nextLine()).normalize().toString());
+    public void uploadUnfiltered(boolean scan) throws AmazonClientException, FileNotFoundException {
+        try (Stream<LocalFile> files= uploadSource(scan)) {
+            // The scan gives every file once, the listing may repeat them
+            upload(scan ? files : files.filter(new HashSet<>()::add));
         }
-        upload(files);
     }
     
     /**
-     * Upload files given by set of relative (to root_dir) paths given as strings
+     * Upload given files. Files are handed over to the slaves as they come, so uploads overlap
+     * with producing the stream (e.g. scan)
      * 
-     * @param files - set of relative paths given as strings. NOTE! The set is modified here
+     * @param files - files relative to root_dir with their stat data
      * @return the list of successfully uploaded files
      * 
      * @throws AmazonClientException when Amazon Glacier operation fails
      * @throws FileNotFoundException when file to be uploaded is not found
      */
-    public List<Archive> upload(Set<String> files)
+    public List<Archive> upload(Stream<LocalFile> files)
         throws AmazonClientException, FileNotFoundException
     {
         log.fine("Starting upload slaves");
-        // NOTE! downloadJobs size must be at least the size of the number of jobs. Otherwise deadlock is possible
-        ArrayBlockingQueue<SlaveRequest<String>> uploadJobs= new ArrayBlockingQueue<>(files.size() + 1);
-        // NOTE! slaveReplies size must be at least the size of the number of jobs + number of threads
-        // Otherwise deadlock is possible
-        ArrayBlockingQueue<SlaveResponse<Archive>> slaveReplies=
-            new ArrayBlockingQueue<>(files.size()
-                                   + c_.file_transfer_slaves);
-        Set<Thread> workers= new HashSet<>(c_.file_transfer_slaves);
-        for (int i= 0; i < c_.file_transfer_slaves; i++) {
-            Thread worker= new Thread(new UploadSlave(uploadJobs, slaveReplies), "UploadSlave-" + i);
-            worker.start();
-            workers.add(worker);
-        }
-        log.info("Uploading " + files.size() + " files");
-        for (String file : files) {
-            log.fine("Scheduling upload of file \""
-                    + file
-                    + "\"");
-            uploadJobs.add(new SlaveRequest<String>(file, false));
-        }
-        uploadJobs.add(new SlaveRequest<String>(null, true));
+        TransferProgress progress= new TransferProgress();
+        RetryLane<String> retries= new RetryLane<>();
+        TransferEngine<String, Archive> slaves= new TransferEngine<>(
+            "UploadSlave",
+            new UploadSlave(retries, progress),
+            TransferEngine.newExecutor(c_.transfer_threads),
+            ConcurrencyController.initialSlaves(c_.file_transfer_slaves),
+            retries);
+        ProgressReporter reporter= new ProgressReporter("Upload", progress, c_.progress_milliseconds);
+        // Started before the first file is submitted, so that it adapts the slaves over the whole run
+        ConcurrencyController controller= new ConcurrencyController(slaves, progress);
+        TransferControl control= new TransferControl("Upload", slaves, progress);
+        // Files not uploaded (yet)
+        Set<String> pending= new LinkedHashSet<>();
         List<Archive> uploaded= new ArrayList<>();
-        while (workers.size() > 0) {
+        // Source failure (e.g. incomplete scan). What was submitted is still uploaded, then it's rethrown
+        UncheckedIOException incomplete= null;
+        try {
             try {
-                SlaveResponse<Archive> slaveResponse= slaveReplies.take();
-                if (slaveResponse.isStopped()) {
-                    Thread slave= slaveResponse.getSlave();
-                    log.fine("Joining thread \"" + slave + "\"");
-                    workers.remove(slave);
-                    slave.join();                        
-                } else if (slaveResponse.getException() == null) {
-                    Archive uploadedArchive= slaveResponse.getResponse();
-                    log.fine("Registering archive with ID \""
-                           + uploadedArchive.getArchiveId()
-                           + "\" as uploaded");
-                    uploaded.add(uploadedArchive);
-                    files.remove(uploadedArchive.getFileName());
-                } else {
-                    String file= slaveResponse.getResponse() == null
-                            ? null
-                            : slaveResponse.getResponse().getFileName(); 
-                    log.severe("Upload slave thread \"" + slaveResponse.getSlave().getName()
-                            + "\" while uploading "
-                            + (file == null ? "UNKNOWN FILE" : "\"" + file + "\"")
-                            + " has reported a problem:\n"
-                            + slaveResponse.getException() + "\n");
-                }
-            } catch (InterruptedException e) {}
+                UploadScheduler.order(files, c_.schedule_lookahead, c_.schedule_small_bytes).forEach(file -> {
+                    log.fine("Scheduling upload of file \""
+                            + file.getPath()
+                            + "\"");
+                    progress.plan(file.getSize());
+                    pending.add(file.getPath());
+                    slaves.submit(file.getPath());
+                });
+            } catch (UncheckedIOException e) {
+                log.severe("Not all files to upload could be listed: " + e.getCause().getMessage());
+                incomplete= e;
+            } catch (RuntimeException e) {
+                slaves.cancel();
+                throw e;
+            }
+            log.info("Uploading " + pending.size() + " files");
+            slaves.shutdown();
+            while (true) {
+                try {
+                    SlaveResponse<Archive> slaveResponse= slaves.take();
+                    if (slaveResponse == null) {
+                        break;
+                    } else if (slaveResponse.getException() == null) {
+                        Archive uploadedArchive= slaveResponse.getResponse();
+                        log.fine("Registering archive with ID \""
+                               + uploadedArchive.getArchiveId()
+                               + "\" as uploaded");
+                        uploaded.add(uploadedArchive);
+                        pending.remove(uploadedArchive.getFileName());
+                    } else {
+                        String file= slaveResponse.getResponse() == null
+                                ? null
+                                : slaveResponse.getResponse().getFileName(); 
+                        log.severe("Upload slave thread \"" + slaveResponse.getSlave().getName()
+                                + "\" while uploading "
+                                + (file == null ? "UNKNOWN FILE" : "\"" + file + "\"")
+                                + " has reported a problem:\n"
+                                + slaveResponse.getException() + "\n");
+                    }
+                } catch (InterruptedException e) {}
+            }
+        } finally {
+            controller.close();
+            control.close();
+            reporter.close();
         }
         log.info(
             "Inventory of successfully uploaded files:\n"
             + ArchivesToInventoryJSON(uploaded));
-        if (files.size() == 0) {
+        if (pending.size() == 0) {
             log.info("All uploads have completed successfully");
         } else {
             StringBuilder error= new StringBuilder("Uploads have completed with errors. "
                      + "The following list of files failed to upload:\n");
-            for (String failedFile : files) {
+            for (String failedFile : pending) {
                 error.append(failedFile).append("\n");
             }
             log.severe(error.toString());
         }
         log.warning("WARNING: Amazon Glacier updates your inventory once per day.\n"
                   + "This means you won't see these uploads in the vault for up to a 24 hours");
+        if (incomplete != null)
+            throw incomplete;
         return uploaded;
     }
     
@@ -631,7 +1233,11 @@ public class BackupMaster extends GlacierClient {
             String fileName= testArchive.getFileName();
             try {
                 String actualChecksum = TreeHashGenerator.calculateTreeHash(Paths.get(c_.root_dir, fileName).toFile());
-                if (actualChecksum.equals(testArchive.getTreeHash())) {
+                // Encoded archives are checked against the file contents before encoding
+                String expectedChecksum= testArchive.getOriginalTreeHash() == null
+                    ? testArchive.getTreeHash()
+                    : testArchive.getOriginalTreeHash();
+                if (actualChecksum.equals(expectedChecksum)) {
                     log.info("\"" + fileName + "\" is OK");
                 } else {
                     failedArchives.add(testArchive);
@@ -639,7 +1245,7 @@ public class BackupMaster extends GlacierClient {
                         "FAILED checksum test of \"" +
                         fileName +
                         "\". Expected checksum: " +
-                        testArchive.getTreeHash() +
+                        expectedChecksum +
                         ". Actual checksum: " +
                         actualChecksum);
                 }
@@ -701,13 +1307,23 @@ public class BackupMaster extends GlacierClient {
     private static String usage() {
         return
             "Usage:\n"
-            + "java -jar glacier_backup.jar {h|c:{u[i:]|vi:{l|r}|l|d{g:|i:}|r{g:|i:}}}\n"
+            + "java -jar glacier_backup.jar {h|c:{u[s][n][i:]|p:[i:]|vi:{l|r}|l|d[t]{g:|i:}|r{g:|i:}|wi:|b[i:]k:|q:k:|j:{g:|i:|x}}}\n"
             + "where:\n"
             + "-h   usage\n"
             + "-c   configuration file\n"
-            + "-i   file with Amazon Glacier inventory style JSON\n\n"
-            + "Upload. If inventory is given, upload only what's not yet there, updating the inventory afterwards:\n"
-            + "    <file listing relative to configured root_dir> | java -jar glacier_backup.jar -c <config file> -u [ -i <inventory> ]\n"
+            + "-i   file with Amazon Glacier inventory style JSON\n"
+            + "-s   scan configured root_dir instead of reading file listing from standard input\n"
+            + "-p   archive name of the stream uploaded from standard input\n"
+            + "-n   dry run: print the sync plan (UPLOAD, CHANGED, SKIP, ORPHAN) against the inventory, upload nothing\n"
+            + "-j   job ledger file\n"
+            + "-k   catalog directory\n"
+            + "-q   catalog query: space separated \"name=<prefix>\", \"size<op><bytes>[k|M|G|T]\", \"created<op><yyyy-MM-dd>\", <op> is one of = < <= > >=\n"
+            + "-t   download as a single tar stream to standard output in the order of the inventory. Log goes to standard error\n\n"
+            + "Upload. If inventory is given, upload only what's new or changed in size, updating the inventory afterwards:\n"
+            + "    <file listing relative to configured root_dir> | java -jar glacier_backup.jar -c <config file> -u [ -n ] [ -i <inventory> ]\n"
+            + "    java -jar glacier_backup.jar -c <config file> -u -s [ -n ] [ -i <inventory> ]\n"
+            + "Upload standard input as a single archive, adding it to the inventory if given:\n"
+            + "    pg_dump db | java -jar glacier_backup.jar -c <config file> -p <name> [ -i <inventory> ]\n"
             + "Verify given inventory against local files (-l) or Glacier (-r):\n"
             + "    java -jar glacier_backup.jar -c <config file> -v -i <inventory> {-l|-r} \n"
             + "List files (get current inventory):\n"
@@ -716,30 +1332,52 @@ public class BackupMaster extends GlacierClient {
             + "    java -jar glacier_backup.jar -c <config file> -d -g <Java style file glob>\n"
             + "Download files by inventory (best effort):\n"
             + "    java -jar glacier_backup.jar -c <config file> -d -i <inventory>\n"
+            + "Download files by glob or inventory as tar to standard output (best effort):\n"
+            + "    java -jar glacier_backup.jar -c <config file> -d -t {-g <Java style file glob>|-i <inventory>} | tar x\n"
             + "Remove files by glob:\n"
             + "    java -jar glacier_backup.jar -c <config file> -r -g <Java style file glob>\n"
             + "Remove files by inventory:\n"
-            + "    java -jar glacier_backup.jar -c <config file> -r -i <inventory>\n";
+            + "    java -jar glacier_backup.jar -c <config file> -r -i <inventory>\n"
+            + "Watch configured root_dir and upload changes as they happen, keeping the inventory up to date:\n"
+            + "    java -jar glacier_backup.jar -c <config file> -w -i <inventory>\n"
+            + "Submit download jobs by glob or inventory to the ledger and exit:\n"
+            + "    java -jar glacier_backup.jar -c <config file> -j <ledger> {-g <Java style file glob>|-i <inventory>}\n"
+            + "Collect downloads of the ledger jobs, including the ones completed meanwhile (can be run again):\n"
+            + "    java -jar glacier_backup.jar -c <config file> -j <ledger> -x\n"
+            + "Build catalog of given inventory or, without it, of current Glacier listing (takes hours):\n"
+            + "    java -jar glacier_backup.jar -c <config file> -b [ -i <inventory> ] -k <catalog>\n"
+            + "Query catalog, printing inventory of matching archives for -d -i or -r -i:\n"
+            + "    java -jar glacier_backup.jar -c <config file> -q \"size>10G created<2024-03-01\" -k <catalog> > <inventory>\n";
     }
     
     public static void main(String[] args) throws AmazonServiceException, AmazonClientException {
         try {
-            ArgumentParser optParser = new ArgumentParser("{h|c:{u[i:]|vi:{l|r}|l|d{g:|i:}|r{g:|i:}}}");
+            ArgumentParser optParser = new ArgumentParser("{h|c:{u[s][n][i:]|p:[i:]|vi:{l|r}|l|d[t]{g:|i:}|r{g:|i:}|wi:|b[i:]k:|q:k:|j:{g:|i:|x}}}");
             Map<String, String> opts = optParser.parseArguments(args);
             if (opts.containsKey("h")) {
                 System.out.println(usage());
                 return;
             }
             Config.init(Paths.get(opts.get("c")));
-            initLogger();
+            // Restored data (-t), catalog queries (-q) and the dry run plan (-n) go to standard output
+            initLogger(opts.containsKey("t") || opts.containsKey("q") || opts.containsKey("n"));
+            BandwidthLimiter.init();
+            EncryptionKey.init();
+            ChunkIndex.init();
+            ShardRing.init();
+            Tracer.init();
             BackupMaster bm= new BackupMaster();
 //            testSerialization();
             if (opts.containsKey("u")) {
                 String parameter = opts.get("i");
-                if (parameter != null)
-                    bm.uploadIncremental(parameter);
+                boolean scan= opts.containsKey("s");
+                // The dry run plans against an empty inventory when none is given
+                if (parameter != null || opts.containsKey("n"))
+                    bm.uploadIncremental(parameter, scan, opts.containsKey("n"));
                 else
-                    bm.uploadUnfiltered();
+                    bm.uploadUnfiltered(scan);
+            } else if (opts.containsKey("p")) {
+                bm.uploadStream(opts.get("p"), opts.get("i"));
             } else if (opts.containsKey("v")) {
                 String inventory= opts.get("i");
                 if (opts.containsKey("l"))
@@ -749,9 +1387,9 @@ public class BackupMaster extends GlacierClient {
             } else if (opts.containsKey("d")) {
                 String parameter = opts.get("g");
                 if (parameter != null) {
-                    bm.downloadByGlob(parameter);
+                    bm.downloadByGlob(parameter, opts.containsKey("t"));
                 } else {
-                    bm.downloadByListing(Paths.get(opts.get("i")));
+                    bm.downloadByListing(Paths.get(opts.get("i")), opts.containsKey("t"));
                 }
             } else if (opts.containsKey("r")) {
                 String parameter = opts.get("g");
@@ -760,6 +1398,28 @@ public class BackupMaster extends GlacierClient {
                 } else {
                     bm.removeByListing(Paths.get(opts.get("i")));
                 }
+            } else if (opts.containsKey("w")) {
+                WatchDaemon daemon= new WatchDaemon(opts.get("i"));
+                Thread watch= Thread.currentThread();
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    watch.interrupt();
+                    daemon.close();
+                }, "WatchShutdown"));
+                daemon.run();
+            } else if (opts.containsKey("j")) {
+                Path ledger= Paths.get(opts.get("j"));
+                if (opts.containsKey("x"))
+                    bm.collect(ledger);
+                else if (opts.containsKey("g"))
+                    bm.submit(filterByGlob(bm.getListedArchives(), opts.get("g")), ledger);
+                else
+                    bm.submit(parseInventoryJSONToArchiveFileMap(
+                        new String(Files.readAllBytes(Paths.get(opts.get("i"))), StandardCharsets.UTF_8)), ledger);
+            } else if (opts.containsKey("b")) {
+                String inventory= opts.get("i");
+                bm.buildCatalog(inventory == null ? null : Paths.get(inventory), Paths.get(opts.get("k")));
+            } else if (opts.containsKey("q")) {
+                queryCatalog(Paths.get(opts.get("k")), opts.get("q"));
             } else if (opts.containsKey("l")) {
                 bm.list();
             }
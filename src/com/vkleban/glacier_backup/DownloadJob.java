@@ -9,14 +9,17 @@ package com.vkleban.glacier_backup;
 public class DownloadJob {
     private String job_;
     private Archive archive_;
+    private long size_;
     
     /**
      * @param job - download job ID
      * @param file - file path to download the archive to
+     * @param size - archive size in bytes as counted by the transfer progress. 0 if unknown
      */
-    public DownloadJob(String job, Archive archive) {
+    public DownloadJob(String job, Archive archive, long size) {
         job_= job;
         archive_= archive;
+        size_= size;
     }
     
     public String getJobId() {
@@ -27,4 +30,13 @@ public class DownloadJob {
         return archive_;
     }
 
+    public long getSize() {
+        return size_;
+    }
+
+    @Override
+    public String toString() {
+        return archive_.getFileName();
+    }
+
 }
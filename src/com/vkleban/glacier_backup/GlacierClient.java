@@ -9,36 +9,84 @@ import com.amazonaws.services.sns.AmazonSNSClientBuilder;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
 import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.simulator.SimulatedAws;
 
+/**
+ * Glacier, SQS and SNS clients of a region. Each client is created on its first use, so that commands not talking
+ * to AWS (or to one of the services) don't pay for loading and setting up the SDK
+ */
 public abstract class GlacierClient {
     
     protected final Config c_;
     
-    protected AmazonGlacier          amazonGlacier_;
-    protected AmazonSQS              amazonSQS_;
-    protected AmazonSNS              amazonSNS_;
+    private final String region_;
+    private volatile AmazonGlacier amazonGlacier_;
+    private volatile AmazonSQS     amazonSQS_;
+    private volatile AmazonSNS     amazonSNS_;
 
     protected GlacierClient() {
+        this(Config.get().region);
+    }
+
+    /**
+     * @param region - region of the clients
+     */
+    protected GlacierClient(String region) {
         c_ = Config.get();
+        region_= region;
+    }
 
+    private AWSStaticCredentialsProvider credentials() {
         BasicAWSCredentials credentials = new BasicAWSCredentials(c_.access_key, c_.secret_key);
-        AWSStaticCredentialsProvider credentialsProvider = new AWSStaticCredentialsProvider(credentials);
-
-        amazonGlacier_ = AmazonGlacierClientBuilder
-                .standard()
-                .withRegion(c_.region)
-                .withCredentials(credentialsProvider)
-                .build();
-        amazonSQS_ = AmazonSQSClientBuilder
-                .standard()
-                .withCredentials(credentialsProvider)
-                .withRegion(c_.region)
-                .build();
-        amazonSNS_ = AmazonSNSClientBuilder
-                .standard()
-                .withCredentials(credentialsProvider)
-                .withRegion(c_.region)
-                .build();
+        return new AWSStaticCredentialsProvider(credentials);
+    }
+
+    protected AmazonGlacier glacier() {
+        if (amazonGlacier_ == null) {
+            synchronized (this) {
+                if (amazonGlacier_ == null)
+                    amazonGlacier_= c_.simulator.enabled
+                        ? SimulatedAws.get().glacier()
+                        : AmazonGlacierClientBuilder
+                            .standard()
+                            .withRegion(region_)
+                            .withCredentials(credentials())
+                            .build();
+            }
+        }
+        return amazonGlacier_;
+    }
+
+    protected AmazonSQS sqs() {
+        if (amazonSQS_ == null) {
+            synchronized (this) {
+                if (amazonSQS_ == null)
+                    amazonSQS_= c_.simulator.enabled
+                        ? SimulatedAws.get().sqs()
+                        : AmazonSQSClientBuilder
+                            .standard()
+                            .withCredentials(credentials())
+                            .withRegion(region_)
+                            .build();
+            }
+        }
+        return amazonSQS_;
+    }
+
+    protected AmazonSNS sns() {
+        if (amazonSNS_ == null) {
+            synchronized (this) {
+                if (amazonSNS_ == null)
+                    amazonSNS_= c_.simulator.enabled
+                        ? SimulatedAws.get().sns()
+                        : AmazonSNSClientBuilder
+                            .standard()
+                            .withCredentials(credentials())
+                            .withRegion(region_)
+                            .build();
+            }
+        }
+        return amazonSNS_;
     }
 
 }
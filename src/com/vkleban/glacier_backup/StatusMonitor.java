@@ -1,9 +1,14 @@
 package com.vkleban.glacier_backup;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 import com.amazonaws.AmazonClientException;
@@ -15,7 +20,6 @@ import com.amazonaws.auth.policy.Statement.Effect;
 import com.amazonaws.auth.policy.actions.SQSActions;
 import com.amazonaws.auth.policy.conditions.ConditionFactory;
 import com.amazonaws.services.glacier.model.StatusCode;
-import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.model.SubscribeRequest;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.model.CreateQueueRequest;
@@ -29,6 +33,7 @@ import com.amazonaws.util.BinaryUtils;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.shard.Shard;
 
 public class StatusMonitor implements AutoCloseable {
     
@@ -44,16 +49,25 @@ public class StatusMonitor implements AutoCloseable {
     public static class JobResult {
         private final String job_;
         private final boolean success_;
+        private final Long archiveSize_;
         
-        private JobResult(String job, boolean success) {
+        JobResult(String job, boolean success, Long archiveSize) {
             job_= job;
             success_= success;
+            archiveSize_= archiveSize;
         }
         
         public String getJob() {
             return job_;
         }
 
+        /**
+         * @return size of the retrieved archive as reported by Glacier. null if not reported
+         */
+        public Long getArchiveSize() {
+            return archiveSize_;
+        }
+
         public boolean succeeded() {
             return success_;
         }        
@@ -63,6 +77,12 @@ public class StatusMonitor implements AutoCloseable {
     
     private final String queueUrl_;
     
+    // Temporary queue is removed on close. Reusable one stays for later runs
+    private final boolean temporary_;
+    
+    // Jobs of the reusable queue, which have been dealt with by an earlier run or without their notification
+    private final Predicate<String> resolved_;
+    
     private final AmazonSQS amazonSQS_;
     
     private Iterator<Message> messageIterator_= new Iterator<Message>() {
@@ -79,17 +99,47 @@ public class StatusMonitor implements AutoCloseable {
     };
 
     /**
-     * Create an SQS queue and attach it to configured SNS
+     * Create a temporary SQS queue and attach it to the job notification topics of given shards
      * 
      * @param amazonSQS - Amazon SQS object
-     * @param amazonSNS - Amazon SNS object
+     * @param shards    - shards, which jobs to monitor
      */
-    public StatusMonitor(AmazonSQS amazonSQS, AmazonSNS amazonSNS) {
+    public StatusMonitor(AmazonSQS amazonSQS, Collection<Shard> shards) {
+        this(amazonSQS, shards, null);
+    }
+
+    /**
+     * Attach to the SQS queue of given name, creating it and its subscriptions if needed. The queue stays after
+     * close, so that notifications of jobs completing meanwhile wait in it for the next run
+     * 
+     * @param amazonSQS - Amazon SQS object
+     * @param shards    - shards, which jobs to monitor
+     * @param queueName - name of the reusable queue. null for a temporary queue
+     */
+    public StatusMonitor(AmazonSQS amazonSQS, Collection<Shard> shards, String queueName) {
+        this(amazonSQS, shards, queueName, job -> false);
+    }
+
+    /**
+     * Attach to the SQS queue of given name, creating it and its subscriptions if needed. Notifications of resolved
+     * jobs are removed from the queue as they come, others not waited for are left for later runs
+     * 
+     * @param amazonSQS - Amazon SQS object
+     * @param shards    - shards, which jobs to monitor
+     * @param queueName - name of the reusable queue. null for a temporary queue
+     * @param resolved  - tells the jobs, which notifications are of no use anymore
+     */
+    public StatusMonitor(AmazonSQS amazonSQS, Collection<Shard> shards, String queueName, Predicate<String> resolved) {
         amazonSQS_= amazonSQS;
-        String randomSeed = UUID.randomUUID().toString();
-        String queueName = "glacier-archive-transfer-" + randomSeed;
-        log.fine("Generated SQS queue name \"" + queueName + "\"");
+        resolved_= resolved;
+        temporary_= queueName == null;
+        if (temporary_) {
+            String randomSeed = UUID.randomUUID().toString();
+            queueName = "glacier-archive-transfer-" + randomSeed;
+            log.fine("Generated SQS queue name \"" + queueName + "\"");
+        }
 
+        // Creation of existing queue returns its URL
         queueUrl_ = amazonSQS.createQueue(new CreateQueueRequest(queueName)).getQueueUrl();
         String queueARN = amazonSQS
                 .getQueueAttributes(
@@ -100,20 +150,29 @@ public class StatusMonitor implements AutoCloseable {
         
         log.finer("Received SQS queue name ARN \"" + queueARN + "\"");
 
-        Policy sqsPolicy =
-            new Policy().withStatements(
+        // Shards sharing a topic are subscribed once
+        Map<String, Shard> topics= new LinkedHashMap<>();
+        for (Shard shard : shards)
+            topics.putIfAbsent(shard.getSnsTopicArn(), shard);
+        List<Statement> statements= new ArrayList<>();
+        for (String topic : topics.keySet()) {
+            statements.add(
                     new Statement(Effect.Allow)
                     .withPrincipals(Principal.AllUsers)
                     .withActions(SQSActions.SendMessage)
                     .withResources(new Resource(queueARN))
-                    .withConditions(ConditionFactory.newSourceArnCondition(c_.sns_topic_arn)));
+                    .withConditions(ConditionFactory.newSourceArnCondition(topic)));
+        }
+        Policy sqsPolicy = new Policy().withStatements(statements.toArray(new Statement[statements.size()]));
         log.finest("SQS policy: " + BackupMaster.beautifyJson(sqsPolicy.toJson()));
         amazonSQS.setQueueAttributes(
                 new SetQueueAttributesRequest(
                         queueUrl_,
                         newAttributes("Policy", sqsPolicy.toJson())));
 
-        amazonSNS.subscribe(new SubscribeRequest(c_.sns_topic_arn, "sqs", queueARN));
+        // Subscription of subscribed queue returns the existing subscription
+        for (Map.Entry<String, Shard> topic : topics.entrySet())
+            topic.getValue().getSNS().subscribe(new SubscribeRequest(topic.getKey(), "sqs", queueARN));
     }
     
     /**
@@ -142,7 +201,8 @@ public class StatusMonitor implements AutoCloseable {
      */
     private Message getMessage() {
         while (!messageIterator_.hasNext()) {
-            messageIterator_ = amazonSQS_.receiveMessage(new ReceiveMessageRequest(queueUrl_)).getMessages().iterator();
+            messageIterator_ = amazonSQS_.receiveMessage(new ReceiveMessageRequest(queueUrl_).withMaxNumberOfMessages(10))
+                .getMessages().iterator();
             if (!messageIterator_.hasNext())
                 try {
                     Thread.sleep(c_.polling_milliseconds);
@@ -174,15 +234,27 @@ public class StatusMonitor implements AutoCloseable {
                 String jsonMessage = parsedMessageBody.get("Message").getAsString().replace("\\\"", "\"");
                 JsonObject parsedBody = parser_.parse(jsonMessage).getAsJsonObject();
                 String messageJobId = parsedBody.get("JobId").getAsString();
-                String messageStatus = parsedBody.get("StatusMessage").getAsString();
+                // StatusMessage is free text, the status is in StatusCode
+                String messageStatus = parsedBody.get("StatusCode").getAsString();
+                Long archiveSize = parsedBody.has("ArchiveSizeInBytes") && !parsedBody.get("ArchiveSizeInBytes").isJsonNull()
+                        ? parsedBody.get("ArchiveSizeInBytes").getAsLong()
+                        : null;
 
                 log.fine("Received job \"" + messageJobId + "\" with status \"" + messageStatus + "\"");
 
                 // Don't process this message if it wasn't the job we were looking for
                 if (!jobs.contains(messageJobId)) {
-                    log.warning("Received a message I haven't been subscribed for:\n"
-                               + BackupMaster.beautifyJson(messageBody));
-                    deleteMessage(message);
+                    if (temporary_) {
+                        log.warning("Received a message I haven't been subscribed for:\n"
+                                   + BackupMaster.beautifyJson(messageBody));
+                        deleteMessage(message);
+                    } else if (resolved_.test(messageJobId)) {
+                        log.fine("Removing message of resolved job \"" + messageJobId + "\" from the queue");
+                        deleteMessage(message);
+                    } else {
+                        // May belong to another ledger. Left to become visible again, until the queue's retention drops it
+                        log.fine("Leaving message of job \"" + messageJobId + "\" in the queue");
+                    }
                     continue;
                 }
                 
@@ -190,12 +262,16 @@ public class StatusMonitor implements AutoCloseable {
                     if (StatusCode.Succeeded.toString().equals(messageStatus)) 
                     {
                         log.fine("Notifying requestor of job \"" + messageJobId + "\"");
-                        return new JobResult(messageJobId, true);
+                        return new JobResult(messageJobId, true, archiveSize);
                     }
                     if (StatusCode.Failed.toString().equals(messageStatus)) {
                         log.fine("Notifying requestor of job failure \"" + messageJobId + "\"");
-                        return new JobResult(messageJobId, true);
+                        return new JobResult(messageJobId, false, archiveSize);
                     }
+                    // Completion notification of no known status. Taken as failed, not to wait for it forever
+                    log.warning("Job \"" + messageJobId + "\" has completed with unknown status \"" + messageStatus
+                        + "\". Taking it as failed");
+                    return new JobResult(messageJobId, false, archiveSize);
                 } finally {
                     deleteMessage(message);
                 }
@@ -214,6 +290,10 @@ public class StatusMonitor implements AutoCloseable {
 
     @Override
     public void close() {
+        if (!temporary_) {
+            log.fine("Leaving SQS queue \"" + queueUrl_ + "\" for later runs");
+            return;
+        }
         log.fine("Removing SQS queue \"" + queueUrl_ + "\"");
         amazonSQS_.deleteQueue(new DeleteQueueRequest(queueUrl_));
     }
@@ -0,0 +1,315 @@
+package com.vkleban.glacier_backup.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.sync.ExternalSorter;
+
+/**
+ * On-disk catalog of the archives of an inventory, with indexes on name, size and creation date. Records keep
+ * the inventory entry of the archive as it is, so query results are an inventory again, which download (-d -i) and
+ * removal (-r -i) take directly. The catalog is built once from an inventory of any size in bounded memory and
+ * is read-only afterwards. A query reads the index, which bounds its conditions to the fewest entries
+ *
+ * @author vova
+ */
+public class Catalog implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(Catalog.class.getName());
+
+    private static final String RECORDS= "archives";
+    private static final String NAME_INDEX= "name.idx";
+    private static final String SIZE_INDEX= "size.idx";
+    private static final String CREATED_INDEX= "created.idx";
+
+    private static final long UNKNOWN_CREATED= Long.MIN_VALUE;
+
+    /**
+     * Archive as stored in the catalog
+     */
+    private static class Record {
+        final String name_;
+        final long size_;
+        final long created_;
+        final String json_;
+
+        Record(String name, long size, long created, String json) {
+            name_= name;
+            size_= size;
+            created_= created;
+            json_= json;
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            long size= in.readLong();
+            long created= in.readLong();
+            String name= readString(in);
+            return new Record(name, size, created, readString(in));
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] bytes= new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return bytes written
+         */
+        long write(DataOutputStream out) throws IOException {
+            byte[] name= name_.getBytes(StandardCharsets.UTF_8);
+            byte[] json= json_.getBytes(StandardCharsets.UTF_8);
+            out.writeLong(size_);
+            out.writeLong(created_);
+            out.writeInt(name.length);
+            out.write(name);
+            out.writeInt(json.length);
+            out.write(json);
+            return 8 + 8 + 4 + name.length + 4 + json.length;
+        }
+    }
+
+    private final Path records_;
+    private final FileChannel channel_;
+    private final IndexFile name_;
+    private final IndexFile size_;
+    private final IndexFile created_;
+
+    /**
+     * Build the catalog from the inventory, replacing whatever catalog is in the directory
+     *
+     * @param inventory - inventory JSON, as kept by this program or as listed by Glacier (with "CreationDate")
+     * @param directory - catalog directory
+     * @return number of the archives
+     * @throws IOException on read or write failure
+     */
+    public static long build(Path inventory, Path directory) throws IOException {
+        Files.createDirectories(directory);
+        int limit= Config.get().sync_sort_entries;
+        long count= 0;
+        try (ExternalSorter<IndexEntry> names= new ExternalSorter<>(limit, IndexEntry.SERIALIZER);
+             ExternalSorter<IndexEntry> sizes= new ExternalSorter<>(limit, IndexEntry.SERIALIZER);
+             ExternalSorter<IndexEntry> dates= new ExternalSorter<>(limit, IndexEntry.SERIALIZER))
+        {
+            try (Reader in= Files.newBufferedReader(inventory, StandardCharsets.UTF_8);
+                 JsonReader json= new JsonReader(in);
+                 DataOutputStream out= new DataOutputStream(new BufferedOutputStream(
+                     Files.newOutputStream(directory.resolve(RECORDS)), 1 << 16)))
+            {
+                JsonParser parser= new JsonParser();
+                long offset= 0;
+                json.beginObject();
+                while (json.hasNext()) {
+                    if (!json.nextName().equals("ArchiveList")) {
+                        json.skipValue();
+                        continue;
+                    }
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        JsonObject archive= parser.parse(json).getAsJsonObject();
+                        Record record= new Record(
+                            archive.get("ArchiveDescription").getAsString(),
+                            isNull(archive.get("Size")) ? -1 : archive.get("Size").getAsLong(),
+                            created(archive.get("CreationDate")),
+                            archive.toString());
+                        names.add(new IndexEntry(record.name_, 0, offset));
+                        if (record.size_ >= 0)
+                            sizes.add(new IndexEntry(null, record.size_, offset));
+                        if (record.created_ != UNKNOWN_CREATED)
+                            dates.add(new IndexEntry(null, record.created_, offset));
+                        offset+= record.write(out);
+                        count++;
+                    }
+                    json.endArray();
+                }
+                json.endObject();
+            }
+            IndexFile.write(directory.resolve(NAME_INDEX), true, names.sorted());
+            long sized= IndexFile.write(directory.resolve(SIZE_INDEX), false, sizes.sorted());
+            long dated= IndexFile.write(directory.resolve(CREATED_INDEX), false, dates.sorted());
+            log.info("Catalog \"" + directory + "\" is built of " + count + " archives. "
+                + (count - sized) + " of unknown size, " + (count - dated) + " of unknown creation date");
+        }
+        return count;
+    }
+
+    private static boolean isNull(JsonElement element) {
+        return element == null || element.isJsonNull();
+    }
+
+    private static long created(JsonElement date) {
+        if (isNull(date))
+            return UNKNOWN_CREATED;
+        try {
+            return Instant.parse(date.getAsString()).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            log.warning("Unknown creation date format \"" + date.getAsString() + "\"");
+            return UNKNOWN_CREATED;
+        }
+    }
+
+    /**
+     * Open built catalog
+     *
+     * @param directory - catalog directory
+     * @throws IOException when the catalog can't be read
+     */
+    public Catalog(Path directory) throws IOException {
+        records_= directory.resolve(RECORDS);
+        channel_= FileChannel.open(records_, StandardOpenOption.READ);
+        name_= new IndexFile(directory.resolve(NAME_INDEX));
+        size_= new IndexFile(directory.resolve(SIZE_INDEX));
+        created_= new IndexFile(directory.resolve(CREATED_INDEX));
+    }
+
+    private Record read(long offset) throws IOException {
+        ByteBuffer header= ByteBuffer.allocate(8 + 8 + 4);
+        read(header, offset);
+        long size= header.getLong(0);
+        long created= header.getLong(8);
+        ByteBuffer name= ByteBuffer.allocate(header.getInt(16) + 4);
+        read(name, offset + header.capacity());
+        ByteBuffer json= ByteBuffer.allocate(name.getInt(name.capacity() - 4));
+        read(json, offset + header.capacity() + name.capacity());
+        return new Record(new String(name.array(), 0, name.capacity() - 4, StandardCharsets.UTF_8),
+                          size,
+                          created,
+                          new String(json.array(), StandardCharsets.UTF_8));
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel_.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of catalog \"" + records_ + "\"");
+        }
+    }
+
+    /**
+     * Write the inventory of the archives matching the query, in the order of the index used
+     *
+     * @param query - conditions on the archives
+     * @param out   - the inventory goes here
+     * @return number of matching archives
+     * @throws IOException on read or write failure
+     */
+    public long query(CatalogQuery query, Writer out) throws IOException {
+        IndexFile index= null;
+        IndexEntry from= null;
+        IndexEntry to= null;
+        long best= Long.MAX_VALUE;
+        if (query.getPrefix() != null) {
+            from= new IndexEntry(query.getPrefix(), 0, 0);
+            to= new IndexEntry(query.getPrefix() + Character.MAX_VALUE, 0, 0);
+            index= name_;
+            best= name_.estimate(from, to);
+        }
+        if (query.isSizeBounded()) {
+            IndexEntry low= new IndexEntry(null, query.getMinSize(), 0);
+            IndexEntry high= new IndexEntry(null, query.getMaxSize(), 0);
+            long estimate= size_.estimate(low, high);
+            if (estimate < best) {
+                index= size_;
+                from= low;
+                to= high;
+                best= estimate;
+            }
+        }
+        if (query.isCreatedBounded()) {
+            IndexEntry low= new IndexEntry(null, query.getMinCreated(), 0);
+            IndexEntry high= new IndexEntry(null, query.getMaxCreated(), 0);
+            long estimate= created_.estimate(low, high);
+            if (estimate < best) {
+                index= created_;
+                from= low;
+                to= high;
+                best= estimate;
+            }
+        }
+        long count= 0;
+        out.write("{\"ArchiveList\":[");
+        if (index == null) {
+            log.fine("Scanning the whole catalog");
+            try (DataInputStream in= new DataInputStream(new BufferedInputStream(Files.newInputStream(records_), 1 << 16))) {
+                while (true) {
+                    Record record;
+                    try {
+                        record= Record.read(in);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (query.matches(record.name_, record.size_, record.created_))
+                        count= emit(record, count, out);
+                }
+            }
+        } else {
+            log.fine("Reading about " + best + " entries of " + (index == name_ ? "name" : index == size_ ? "size" : "creation date")
+                + " index");
+            for (Iterator<IndexEntry> i= index.scan(from); i.hasNext();) {
+                IndexEntry entry= i.next();
+                if (index == name_ ? !entry.getName().startsWith(query.getPrefix()) : entry.compareKey(to) > 0)
+                    break;
+                Record record= read(entry.getOffset());
+                if (query.matches(record.name_, record.size_, record.created_))
+                    count= emit(record, count, out);
+            }
+        }
+        out.write("\n]}\n");
+        out.flush();
+        log.info(count + " archives match");
+        return count;
+    }
+
+    private static long emit(Record record, long count, Writer out) throws IOException {
+        out.write(count == 0 ? "\n" : ",\n");
+        out.write(record.json_);
+        return count + 1;
+    }
+
+    /**
+     * @return the first failure of the closes so far, with the failure of this one added to it
+     */
+    private static IOException close(Closeable resource, IOException failure) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+            if (failure == null)
+                return e;
+            failure.addSuppressed(e);
+        }
+        return failure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.finer("Closing catalog \"" + records_ + "\"");
+        IOException failure= close(created_, null);
+        failure= close(size_, failure);
+        failure= close(name_, failure);
+        failure= close(channel_, failure);
+        if (failure != null)
+            throw failure;
+    }
+
+}
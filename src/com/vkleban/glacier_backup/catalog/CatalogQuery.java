@@ -0,0 +1,168 @@
+package com.vkleban.glacier_backup.catalog;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Conditions on catalog archives, all of which have to hold. Given as space separated terms:
+ * "name=db/" (name prefix), "size>10G" (k, M, G, T are powers of 1024), "created<2024-03-01" (UTC day or instant).
+ * Sizes and dates compare with =, &lt;, &lt;=, &gt; and &gt;=. Archives of unknown size or creation date fail the
+ * conditions on them
+ *
+ * @author vova
+ */
+public class CatalogQuery {
+
+    private static final Pattern TERM= Pattern.compile("(name|size|created)(<=|>=|=|<|>)(.+)");
+    private static final Pattern SIZE= Pattern.compile("(\\d+)([kMGT]?)");
+
+    private String prefix_= null;
+    private Long minSize_= null;
+    private Long maxSize_= null;
+    private Long minCreated_= null;
+    private Long maxCreated_= null;
+
+    /**
+     * @param query - space separated terms. Empty matches all the archives
+     * @return the query
+     * @throws IllegalArgumentException when a term is malformed
+     */
+    public static CatalogQuery parse(String query) {
+        CatalogQuery parsed= new CatalogQuery();
+        for (String term : query.trim().split("\\s+")) {
+            if (term.isEmpty())
+                continue;
+            Matcher matcher= TERM.matcher(term);
+            if (!matcher.matches())
+                throw new IllegalArgumentException("Malformed query term \"" + term + "\"");
+            String operator= matcher.group(2);
+            switch (matcher.group(1)) {
+            case "name":
+                if (!operator.equals("="))
+                    throw new IllegalArgumentException("Name takes a prefix: \"name=<prefix>\"");
+                parsed.prefix_= matcher.group(3);
+                break;
+            case "size": {
+                long size= size(matcher.group(3));
+                parsed.minSize_= max(parsed.minSize_, lowest(operator, size, size));
+                parsed.maxSize_= min(parsed.maxSize_, highest(operator, size, size));
+                break;
+            }
+            default: {
+                long[] period= period(matcher.group(3));
+                parsed.minCreated_= max(parsed.minCreated_, lowest(operator, period[0], period[1]));
+                parsed.maxCreated_= min(parsed.maxCreated_, highest(operator, period[0], period[1]));
+            }
+            }
+        }
+        return parsed;
+    }
+
+    private static long size(String size) {
+        Matcher matcher= SIZE.matcher(size);
+        if (!matcher.matches())
+            throw new IllegalArgumentException("Malformed size \"" + size + "\"");
+        int unit= matcher.group(2).isEmpty() ? 0 : "kMGT".indexOf(matcher.group(2)) + 1;
+        return Long.parseLong(matcher.group(1)) << (10 * unit);
+    }
+
+    /**
+     * @return first and last millisecond of the day, or the instant twice
+     */
+    private static long[] period(String date) {
+        try {
+            long start= LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            return new long[] { start, start + 86400000L - 1 };
+        } catch (DateTimeParseException e) {
+            try {
+                long instant= Instant.parse(date).toEpochMilli();
+                return new long[] { instant, instant };
+            } catch (DateTimeParseException e1) {
+                throw new IllegalArgumentException("Malformed date \"" + date + "\". Expected 2024-03-01 or 2024-03-01T10:15:30Z");
+            }
+        }
+    }
+
+    /**
+     * @return lowest matching value of the term on the period [first, last]. null if unbounded
+     */
+    private static Long lowest(String operator, long first, long last) {
+        switch (operator) {
+        case ">":  return last + 1;
+        case ">=":
+        case "=":  return first;
+        default:   return null;
+        }
+    }
+
+    /**
+     * @return highest matching value of the term on the period [first, last]. null if unbounded
+     */
+    private static Long highest(String operator, long first, long last) {
+        switch (operator) {
+        case "<":  return first - 1;
+        case "<=":
+        case "=":  return last;
+        default:   return null;
+        }
+    }
+
+    private static Long max(Long a, Long b) {
+        return a == null ? b : b == null ? a : Long.valueOf(Math.max(a, b));
+    }
+
+    private static Long min(Long a, Long b) {
+        return a == null ? b : b == null ? a : Long.valueOf(Math.min(a, b));
+    }
+
+    /**
+     * @return name prefix. null if not given
+     */
+    String getPrefix() {
+        return prefix_;
+    }
+
+    boolean isSizeBounded() {
+        return minSize_ != null || maxSize_ != null;
+    }
+
+    long getMinSize() {
+        return minSize_ == null ? 0 : minSize_;
+    }
+
+    long getMaxSize() {
+        return maxSize_ == null ? Long.MAX_VALUE : maxSize_;
+    }
+
+    boolean isCreatedBounded() {
+        return minCreated_ != null || maxCreated_ != null;
+    }
+
+    long getMinCreated() {
+        return minCreated_ == null ? Long.MIN_VALUE + 1 : minCreated_;
+    }
+
+    long getMaxCreated() {
+        return maxCreated_ == null ? Long.MAX_VALUE : maxCreated_;
+    }
+
+    /**
+     * @param name    - file name of the archive
+     * @param size    - archive size. Negative if unknown
+     * @param created - creation time in milliseconds since epoch. Long.MIN_VALUE if unknown
+     * @return true if all the conditions hold
+     */
+    boolean matches(String name, long size, long created) {
+        if (prefix_ != null && !name.startsWith(prefix_))
+            return false;
+        if (isSizeBounded() && (size < 0 || size < getMinSize() || size > getMaxSize()))
+            return false;
+        return !isCreatedBounded()
+            || (created != Long.MIN_VALUE && created >= getMinCreated() && created <= getMaxCreated());
+    }
+
+}
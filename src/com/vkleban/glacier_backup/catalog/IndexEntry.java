@@ -0,0 +1,95 @@
+package com.vkleban.glacier_backup.catalog;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.vkleban.glacier_backup.sync.ExternalSorter;
+
+/**
+ * Key of a catalog index with the offset of its record. Keys are either names or numbers
+ *
+ * @author vova
+ */
+class IndexEntry implements Comparable<IndexEntry> {
+
+    static final ExternalSorter.Serializer<IndexEntry> SERIALIZER= new ExternalSorter.Serializer<IndexEntry>() {
+        @Override
+        public void write(IndexEntry entry, DataOutput out) throws IOException {
+            out.writeBoolean(entry.name_ != null);
+            entry.writeKey(out);
+            out.writeLong(entry.offset_);
+        }
+
+        @Override
+        public IndexEntry read(DataInput in) throws IOException {
+            boolean named= in.readBoolean();
+            IndexEntry key= readKey(in, named, 0);
+            return new IndexEntry(key.name_, key.value_, in.readLong());
+        }
+    };
+
+    private final String name_;
+    private final long value_;
+    private final long offset_;
+
+    /**
+     * @param name   - name key. null for number keys
+     * @param value  - number key
+     * @param offset - offset of the record in the catalog
+     */
+    IndexEntry(String name, long value, long offset) {
+        name_= name;
+        value_= value;
+        offset_= offset;
+    }
+
+    String getName() {
+        return name_;
+    }
+
+    long getValue() {
+        return value_;
+    }
+
+    long getOffset() {
+        return offset_;
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    int writeKey(DataOutput out) throws IOException {
+        if (name_ == null) {
+            out.writeLong(value_);
+            return 8;
+        }
+        byte[] name= name_.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(name.length);
+        out.write(name);
+        return 4 + name.length;
+    }
+
+    static IndexEntry readKey(DataInput in, boolean named, long offset) throws IOException {
+        if (!named)
+            return new IndexEntry(null, in.readLong(), offset);
+        byte[] name= new byte[in.readInt()];
+        in.readFully(name);
+        return new IndexEntry(new String(name, StandardCharsets.UTF_8), 0, offset);
+    }
+
+    /**
+     * @return order of the keys alone
+     */
+    int compareKey(IndexEntry another) {
+        return name_ == null ? Long.compare(value_, another.value_) : name_.compareTo(another.name_);
+    }
+
+    @Override
+    public int compareTo(IndexEntry another) {
+        int order= compareKey(another);
+        return order != 0 ? order : Long.compare(offset_, another.offset_);
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.vkleban.glacier_backup.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only B+-tree of two levels, bulk loaded from sorted entries: leaf blocks of entries in key order, and
+ * the directory of the first key of every block at the end of the file. The directory is read in memory on open,
+ * so that a lookup takes a binary search and a sequential read from the block the key falls in.
+ * Scans share the file position, so one scan runs at a time
+ *
+ * @author vova
+ */
+class IndexFile implements Closeable {
+
+    private static final int BLOCK_BYTES= 1 << 16;
+
+    private final FileChannel channel_;
+    private final boolean named_;
+    private final List<IndexEntry> firstKeys_= new ArrayList<>();
+    private final List<Long> positions_= new ArrayList<>();
+    // Entries in the blocks before each block
+    private final List<Long> before_= new ArrayList<>();
+    private final long entries_;
+
+    /**
+     * Write the index
+     *
+     * @param path    - index file
+     * @param named   - true for name keys, false for number keys
+     * @param entries - entries sorted by key
+     * @return number of the entries
+     * @throws IOException on write failure
+     */
+    static long write(Path path, boolean named, Iterator<IndexEntry> entries) throws IOException {
+        List<IndexEntry> firstKeys= new ArrayList<>();
+        List<Long> positions= new ArrayList<>();
+        List<Long> counts= new ArrayList<>();
+        long count= 0;
+        try (DataOutputStream out= new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 1 << 16)))
+        {
+            long position= 0;
+            long blockStart= -BLOCK_BYTES;
+            while (entries.hasNext()) {
+                IndexEntry entry= entries.next();
+                if (position - blockStart >= BLOCK_BYTES) {
+                    blockStart= position;
+                    firstKeys.add(entry);
+                    positions.add(position);
+                    counts.add(0L);
+                }
+                position+= entry.writeKey(out) + 8;
+                out.writeLong(entry.getOffset());
+                counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+                count++;
+            }
+            out.writeBoolean(named);
+            out.writeInt(firstKeys.size());
+            for (int i= 0; i < firstKeys.size(); i++) {
+                firstKeys.get(i).writeKey(out);
+                out.writeLong(positions.get(i));
+                out.writeLong(counts.get(i));
+            }
+            out.writeLong(position);
+        }
+        return count;
+    }
+
+    IndexFile(Path path) throws IOException {
+        channel_= FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer end= ByteBuffer.allocate(8);
+            read(end, channel_.size() - 8);
+            long directory= end.getLong(0);
+            DataInputStream in= new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel_.position(directory)), 1 << 16));
+            named_= in.readBoolean();
+            int blocks= in.readInt();
+            long entries= 0;
+            for (int i= 0; i < blocks; i++) {
+                firstKeys_.add(IndexEntry.readKey(in, named_, Long.MIN_VALUE));
+                positions_.add(in.readLong());
+                before_.add(entries);
+                entries+= in.readLong();
+            }
+            entries_= entries;
+        } catch (IOException | RuntimeException e) {
+            channel_.close();
+            throw e;
+        }
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel_.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of the index");
+        }
+    }
+
+    /**
+     * @return block holding the first entry of the key or after it
+     */
+    private int block(IndexEntry key) {
+        // Equal keys may end the block before the one starting with the key
+        int low= 0;
+        int high= firstKeys_.size() - 1;
+        int found= 0;
+        while (low <= high) {
+            int middle= (low + high) >>> 1;
+            if (firstKeys_.get(middle).compareKey(key) < 0) {
+                found= middle;
+                low= middle + 1;
+            } else {
+                high= middle - 1;
+            }
+        }
+        return found;
+    }
+
+    boolean isNamed() {
+        return named_;
+    }
+
+    /**
+     * @param from - lowest key
+     * @param to   - highest key
+     * @return estimate of the number of entries between the keys, at block granularity
+     */
+    long estimate(IndexEntry from, IndexEntry to) {
+        if (firstKeys_.isEmpty())
+            return 0;
+        int last= block(to) + 1;
+        long end= last < before_.size() ? before_.get(last) : entries_;
+        return end - before_.get(block(from));
+    }
+
+    /**
+     * @param from - lowest key
+     * @return entries from the key on in key order. The stream must not be used after the index is closed
+     * @throws IOException on read failure
+     */
+    Iterator<IndexEntry> scan(IndexEntry from) throws IOException {
+        if (firstKeys_.isEmpty())
+            return new ArrayList<IndexEntry>().iterator();
+        int block= block(from);
+        DataInputStream in= new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(channel_.position(positions_.get(block))), 1 << 16));
+        long left= entries_ - before_.get(block);
+        return new Iterator<IndexEntry>() {
+
+            private long left_= left;
+            private IndexEntry next_= advance();
+
+            private IndexEntry advance() {
+                try {
+                    while (left_-- > 0) {
+                        IndexEntry key= IndexEntry.readKey(in, named_, 0);
+                        IndexEntry entry= new IndexEntry(key.getName(), key.getValue(), in.readLong());
+                        if (entry.compareKey(from) >= 0)
+                            return entry;
+                    }
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed reading the index", e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next_ != null;
+            }
+
+            @Override
+            public IndexEntry next() {
+                if (next_ == null)
+                    throw new NoSuchElementException();
+                IndexEntry entry= next_;
+                next_= advance();
+                return entry;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel_.close();
+    }
+
+}
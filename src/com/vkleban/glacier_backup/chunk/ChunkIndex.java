@@ -0,0 +1,177 @@
+package com.vkleban.glacier_backup.chunk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.BackupMaster;
+import com.vkleban.glacier_backup.InitException;
+import com.vkleban.glacier_backup.config.Config;
+
+/**
+ * Local index of the chunks uploaded so far, by their SHA-256, enabled by "chunk_index". It's an append-only file
+ * of JSON lines, one per uploaded pack: the pack archive and the SHA-256, offset and length of its chunks. The index
+ * is read on first use. Losing it or a torn last line only costs uploading the chunks again
+ *
+ * @author vova
+ */
+public class ChunkIndex {
+
+    private static final Logger log= Logger.getLogger(ChunkIndex.class.getName());
+
+    private static ChunkIndex instance_= null;
+
+    /**
+     * Place of a chunk in a pack
+     */
+    public static class Location {
+
+        private final Archive pack_;
+        private final long offset_;
+        private final int length_;
+
+        Location(Archive pack, long offset, int length) {
+            pack_= pack;
+            offset_= offset;
+            length_= length;
+        }
+
+        public Archive getPack() {
+            return pack_;
+        }
+
+        public long getOffset() {
+            return offset_;
+        }
+
+        public int getLength() {
+            return length_;
+        }
+    }
+
+    private final Path path_;
+    private final Gson gson_= new Gson();
+    // SHA-256 of every indexed chunk to its place. null until read
+    private Map<String, Location> chunks_= null;
+    private FileChannel channel_= null;
+
+    private ChunkIndex(Path path) {
+        path_= path;
+    }
+
+    /**
+     * Set up the index of the configuration. Chunked storage is off if "chunk_index" is empty
+     *
+     * @throws InitException when the chunk sizes are invalid
+     */
+    public static synchronized void init() throws InitException {
+        Config c= Config.get();
+        if (c.chunk_index.isEmpty()) {
+            instance_= null;
+            return;
+        }
+        if (c.chunk_average_bytes < 4096 || c.chunk_average_bytes > 64 * 1024 * 1024)
+            throw new InitException("\"chunk_average_bytes\" has to be between 4 KiB and 64 MiB");
+        if (c.chunk_pack_bytes < c.chunk_average_bytes * 4)
+            throw new InitException(
+                "\"chunk_pack_bytes\" has to hold the largest chunk, 4 times \"chunk_average_bytes\"");
+        instance_= new ChunkIndex(Paths.get(c.chunk_index));
+    }
+
+    /**
+     * @return the index. null when chunked storage is off
+     */
+    public static synchronized ChunkIndex get() {
+        return instance_;
+    }
+
+    private void load() throws IOException {
+        if (chunks_ != null)
+            return;
+        chunks_= new HashMap<>();
+        if (Files.exists(path_)) {
+            JsonParser parser= new JsonParser();
+            long number= 0;
+            try (BufferedReader in= Files.newBufferedReader(path_, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line= in.readLine()) != null) {
+                    number++;
+                    if (line.isEmpty())
+                        continue;
+                    try {
+                        JsonObject entry= parser.parse(line).getAsJsonObject();
+                        Archive pack= BackupMaster.parseArchive(entry.getAsJsonObject("Pack"));
+                        for (JsonElement chunk : entry.getAsJsonArray("Chunks")) {
+                            JsonArray fields= chunk.getAsJsonArray();
+                            chunks_.putIfAbsent(fields.get(0).getAsString(),
+                                new Location(pack, fields.get(1).getAsLong(), fields.get(2).getAsInt()));
+                        }
+                    } catch (RuntimeException e) {
+                        log.warning("Skipping malformed line " + number + " of chunk index \"" + path_ + "\": " + e);
+                    }
+                }
+            }
+        }
+        log.info("Chunk index \"" + path_ + "\" holds " + chunks_.size() + " chunks");
+        channel_= FileChannel.open(path_, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel_.position(channel_.size());
+        // Whatever comes after a torn line starts on a line of its own
+        ByteBuffer last= ByteBuffer.allocate(1);
+        if (channel_.size() > 0 && channel_.read(last, channel_.size() - 1) == 1 && last.get(0) != '\n')
+            channel_.write(ByteBuffer.wrap(new byte[] { '\n' }));
+    }
+
+    /**
+     * @param sha256 - hex SHA-256 of a chunk
+     * @return place of the chunk. null if it hasn't been uploaded
+     * @throws IOException when the index can't be read
+     */
+    public synchronized Location find(String sha256) throws IOException {
+        load();
+        return chunks_.get(sha256);
+    }
+
+    /**
+     * Record an uploaded pack
+     *
+     * @param pack   - pack archive
+     * @param chunks - SHA-256, offset and length of every chunk of the pack
+     * @throws IOException when the index can't be written
+     */
+    public synchronized void add(Archive pack, List<Manifest.Chunk> chunks) throws IOException {
+        load();
+        JsonObject entry= new JsonObject();
+        entry.add("Pack", gson_.toJsonTree(pack));
+        JsonArray array= new JsonArray();
+        for (Manifest.Chunk chunk : chunks) {
+            JsonArray fields= new JsonArray();
+            fields.add(chunk.getSha256());
+            fields.add(chunk.getOffset());
+            fields.add(chunk.getLength());
+            array.add(fields);
+            chunks_.putIfAbsent(chunk.getSha256(), new Location(pack, chunk.getOffset(), chunk.getLength()));
+        }
+        entry.add("Chunks", array);
+        ByteBuffer buffer= ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining())
+            channel_.write(buffer);
+        channel_.force(false);
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.vkleban.glacier_backup.chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Content-defined chunking of a stream (FastCDC). A gear rolling hash over the last 64 bytes cuts the stream where
+ * its top bits are zero, so cut points follow the content: an insertion or a change moves or adds the chunks around
+ * it only, and the rest of the file splits into the same chunks as before. Chunks are between a quarter and four
+ * times the average size. A stricter mask before the average and a looser one after it keep sizes close to it
+ *
+ * @author vova
+ */
+public class Chunker {
+
+    // Same table in every run and on every machine, as the chunks of earlier uploads depend on it
+    private static final long[] GEAR= new long[256];
+    static {
+        Random random= new Random(0x676c6163696572L);
+        for (int i= 0; i < GEAR.length; i++)
+            GEAR[i]= random.nextLong();
+    }
+
+    private final InputStream in_;
+    private final int min_;
+    private final int average_;
+    private final int max_;
+    private final long strictMask_;
+    private final long looseMask_;
+    private final byte[] buffer_;
+    private int start_= 0;
+    private int end_= 0;
+    private boolean eof_= false;
+
+    /**
+     * @param in      - stream to split
+     * @param average - average chunk size in bytes
+     */
+    public Chunker(InputStream in, int average) {
+        in_= in;
+        int bits= 31 - Integer.numberOfLeadingZeros(average);
+        average_= average;
+        min_= average / 4;
+        max_= average * 4;
+        strictMask_= -1L << (64 - bits - 1);
+        looseMask_= -1L << (64 - bits + 1);
+        buffer_= new byte[max_ * 2];
+    }
+
+    /**
+     * Have at least a chunk of the maximum size in the buffer, unless the stream ends before
+     */
+    private void fill() throws IOException {
+        if (end_ - start_ >= max_ || eof_)
+            return;
+        System.arraycopy(buffer_, start_, buffer_, 0, end_ - start_);
+        end_-= start_;
+        start_= 0;
+        while (end_ < buffer_.length) {
+            int n= in_.read(buffer_, end_, buffer_.length - end_);
+            if (n < 0) {
+                eof_= true;
+                return;
+            }
+            end_+= n;
+        }
+    }
+
+    /**
+     * @return the next chunk. null at the end of the stream
+     * @throws IOException when reading the stream fails
+     */
+    public byte[] next() throws IOException {
+        fill();
+        int available= end_ - start_;
+        if (available == 0)
+            return null;
+        int cut= start_ + Math.min(available, max_);
+        if (available > min_) {
+            int normal= start_ + Math.min(available, average_);
+            long hash= 0;
+            int i= start_ + min_;
+            for (; i < normal; i++) {
+                hash= (hash << 1) + GEAR[buffer_[i] & 0xff];
+                if ((hash & strictMask_) == 0)
+                    break;
+            }
+            if (i == normal) {
+                for (; i < cut; i++) {
+                    hash= (hash << 1) + GEAR[buffer_[i] & 0xff];
+                    if ((hash & looseMask_) == 0)
+                        break;
+                }
+            }
+            cut= Math.min(i + 1, cut);
+        }
+        byte[] chunk= Arrays.copyOfRange(buffer_, start_, cut);
+        start_= cut;
+        return chunk;
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.vkleban.glacier_backup.chunk;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import com.vkleban.glacier_backup.Archive;
+
+/**
+ * File version stored as chunks: the packs holding its chunks and the chunks in file order, each as a place in
+ * a pack. It's uploaded as the archive of the file, so the file can be restored from its inventory entry alone,
+ * without the local chunk index
+ *
+ * @author vova
+ */
+public class Manifest {
+
+    // Start of the JSON of every manifest, as Gson writes the fields in their order
+    private static final Pattern START=
+        Pattern.compile("\\{\"Size\":\\d+,\"SHA256TreeHash\":\"[0-9a-f]{64}\",\"Packs\":\\[");
+
+    /**
+     * Chunk of the file
+     */
+    public static class Chunk {
+
+        @SerializedName("P")
+        private int pack_;
+        @SerializedName("O")
+        private long offset_;
+        @SerializedName("L")
+        private int length_;
+        @SerializedName("H")
+        private String sha256_;
+
+        /**
+         * @param pack   - index of the pack in the manifest
+         * @param offset - offset of the chunk in the pack contents
+         * @param length - chunk length
+         * @param sha256 - hex SHA-256 of the chunk
+         */
+        public Chunk(int pack, long offset, int length, String sha256) {
+            pack_= pack;
+            offset_= offset;
+            length_= length;
+            sha256_= sha256;
+        }
+
+        /**
+         * @return index of the pack in the manifest
+         */
+        public int getPack() {
+            return pack_;
+        }
+
+        /**
+         * @return offset of the chunk in the pack contents (after decoding)
+         */
+        public long getOffset() {
+            return offset_;
+        }
+
+        public int getLength() {
+            return length_;
+        }
+
+        /**
+         * @return hex SHA-256 of the chunk
+         */
+        public String getSha256() {
+            return sha256_;
+        }
+    }
+
+    @SerializedName("Size")
+    private long size_;
+    @SerializedName("SHA256TreeHash")
+    private String treeHash_;
+    @SerializedName("Packs")
+    private List<Archive> packs_= new ArrayList<>();
+    @SerializedName("Chunks")
+    private List<Chunk> chunks_= new ArrayList<>();
+    // Index of every pack in packs_ by archive ID
+    private transient Map<String, Integer> packIndexes_= new HashMap<>();
+
+    /**
+     * @param pack - pack archive
+     * @return index of the pack in the manifest, which is added if it's not there yet
+     */
+    public int pack(Archive pack) {
+        Integer index= packIndexes_.get(pack.getArchiveId());
+        if (index != null)
+            return index;
+        packs_.add(pack);
+        packIndexes_.put(pack.getArchiveId(), packs_.size() - 1);
+        return packs_.size() - 1;
+    }
+
+    /**
+     * @return index of a pack, which is still being filled. See setPack
+     */
+    public int reservePack() {
+        packs_.add(null);
+        return packs_.size() - 1;
+    }
+
+    /**
+     * @param index - reserved index
+     * @param pack  - the pack uploaded
+     */
+    public void setPack(int index, Archive pack) {
+        packs_.set(index, pack);
+        packIndexes_.put(pack.getArchiveId(), index);
+    }
+
+    /**
+     * @param chunk - the next chunk of the file
+     */
+    public void add(Chunk chunk) {
+        chunks_.add(chunk);
+    }
+
+    /**
+     * @param size     - file size
+     * @param treeHash - tree hash of the file
+     */
+    public void finish(long size, String treeHash) {
+        size_= size;
+        treeHash_= treeHash;
+    }
+
+    public long getSize() {
+        return size_;
+    }
+
+    public String getTreeHash() {
+        return treeHash_;
+    }
+
+    public List<Archive> getPacks() {
+        return packs_;
+    }
+
+    public List<Chunk> getChunks() {
+        return chunks_;
+    }
+
+    public String toJson() {
+        return new Gson().toJson(this);
+    }
+
+    /**
+     * @param start - first bytes of a file, at least 128 of them
+     * @return true if they are the start of a manifest
+     */
+    public static boolean isManifestStart(byte[] start) {
+        return START.matcher(new String(start, StandardCharsets.ISO_8859_1)).lookingAt();
+    }
+
+    /**
+     * @param json - manifest JSON
+     * @return the manifest
+     * @throws JsonParseException when the JSON is not a manifest
+     */
+    public static Manifest fromJson(String json) {
+        Manifest manifest= new Gson().fromJson(json, Manifest.class);
+        // Lists missing from the JSON keep their empty defaults, so it takes the tree hash to tell a manifest
+        if (manifest == null || manifest.treeHash_ == null || manifest.packs_ == null || manifest.chunks_ == null)
+            throw new JsonParseException("Not a chunk manifest");
+        long size= 0;
+        for (Chunk chunk : manifest.chunks_) {
+            if (chunk.pack_ < 0 || chunk.pack_ >= manifest.packs_.size() || manifest.packs_.get(chunk.pack_) == null)
+                throw new JsonParseException("Chunk manifest refers to unknown pack " + chunk.pack_);
+            size+= chunk.length_;
+        }
+        if (size != manifest.size_)
+            throw new JsonParseException("Chunks of the manifest make " + size + " bytes instead of " + manifest.size_);
+        return manifest;
+    }
+
+}
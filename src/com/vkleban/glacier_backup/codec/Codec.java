@@ -0,0 +1,81 @@
+package com.vkleban.glacier_backup.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression applied to file contents before upload. The codec name is recorded in the inventory,
+ * so that the download knows how to decode the archive
+ *
+ * @author vova
+ */
+public enum Codec {
+
+    NONE("none") {
+        @Override
+        public InputStream encode(InputStream in, int level) {
+            return in;
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    },
+
+    GZIP("gzip") {
+        @Override
+        public InputStream encode(InputStream in, int level) {
+            return new ParallelGzipInputStream(in, level);
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new GZIPInputStream(in, 64 * 1024);
+        }
+    };
+
+    private final String name_;
+
+    private Codec(String name) {
+        name_= name;
+    }
+
+    /**
+     * @return name as recorded in configuration and inventory
+     */
+    public String getName() {
+        return name_;
+    }
+
+    /**
+     * @param in    - original data
+     * @param level - compression level 0-9
+     * @return stream of encoded data
+     */
+    public abstract InputStream encode(InputStream in, int level);
+
+    /**
+     * @param in - encoded data
+     * @return stream of original data
+     * @throws IOException when the encoded data is malformed
+     */
+    public abstract InputStream decode(InputStream in) throws IOException;
+
+    /**
+     * @param name - codec name. null means no codec
+     * @return the codec
+     * @throws IllegalArgumentException on unknown codec
+     */
+    public static Codec forName(String name) {
+        if (name == null)
+            return NONE;
+        for (Codec codec : values()) {
+            if (codec.name_.equalsIgnoreCase(name))
+                return codec;
+        }
+        throw new IllegalArgumentException("Unknown codec \"" + name + "\"");
+    }
+
+}
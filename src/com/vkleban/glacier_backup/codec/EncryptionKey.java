@@ -0,0 +1,84 @@
+package com.vkleban.glacier_backup.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.vkleban.glacier_backup.InitException;
+import com.vkleban.glacier_backup.config.Config;
+
+/**
+ * AES key of client side encryption, loaded from a local keyfile holding base64 of 16, 24 or 32 random bytes.
+ * The key is identified by the start of its SHA-256, which is recorded with every encrypted archive,
+ * so that decryption with a wrong key is refused up front
+ *
+ * @author vova
+ */
+public class EncryptionKey {
+
+    private static EncryptionKey instance_= null;
+
+    private final SecretKey key_;
+    private final String id_;
+
+    private EncryptionKey(byte[] key) throws Exception {
+        key_= new SecretKeySpec(key, "AES");
+        byte[] digest= MessageDigest.getInstance("SHA-256").digest(key);
+        StringBuilder id= new StringBuilder();
+        for (int i= 0; i < 8; i++)
+            id.append(String.format("%02x", digest[i]));
+        id_= id.toString();
+    }
+
+    /**
+     * Load the key configured by encryption_keyfile. Encryption is off if it's empty
+     *
+     * @throws InitException when the keyfile can't be read or doesn't hold an AES key
+     */
+    public static synchronized void init() throws InitException {
+        String keyfile= Config.get().encryption_keyfile;
+        if (keyfile.isEmpty()) {
+            instance_= null;
+            return;
+        }
+        byte[] key;
+        try {
+            key= Base64.getMimeDecoder().decode(
+                new String(Files.readAllBytes(Paths.get(keyfile)), StandardCharsets.US_ASCII).trim());
+        } catch (Exception e) {
+            throw new InitException("Failed reading encryption keyfile \"" + keyfile + "\"", e);
+        }
+        if (key.length != 16 && key.length != 24 && key.length != 32)
+            throw new InitException("Encryption keyfile \"" + keyfile + "\" has to hold base64 of 16, 24 or 32 bytes. "
+                + "It holds " + key.length + " bytes");
+        try {
+            instance_= new EncryptionKey(key);
+        } catch (Exception e) {
+            throw new InitException("Failed initializing encryption key", e);
+        }
+    }
+
+    /**
+     * @return the key. null when encryption is off
+     */
+    public static synchronized EncryptionKey get() {
+        return instance_;
+    }
+
+    public SecretKey getKey() {
+        return key_;
+    }
+
+    /**
+     * @return key identifier, which is safe to store along with the data
+     */
+    public String getId() {
+        return id_;
+    }
+
+}
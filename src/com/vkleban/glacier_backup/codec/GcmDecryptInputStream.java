@@ -0,0 +1,131 @@
+package com.vkleban.glacier_backup.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+/**
+ * Decrypting counterpart of GcmEncryptInputStream. Chunks are opened one by one as the stream is read,
+ * a chunk's plain text is given out only after its tag has been verified
+ *
+ * @author vova
+ */
+public class GcmDecryptInputStream extends InputStream {
+
+    private final InputStream source_;
+    private final EncryptionKey key_;
+    private final byte[] sealed_= new byte[GcmEncryptInputStream.CHUNK + GcmEncryptInputStream.TAG];
+    private byte[] noncePrefix_= null;
+    private long index_= 0;
+    private boolean last_= false;
+    private byte[] current_= new byte[0];
+    private int position_= 0;
+
+    public GcmDecryptInputStream(InputStream source, EncryptionKey key) {
+        source_= source;
+        key_= key;
+    }
+
+    /**
+     * @param start - first bytes of an archive
+     * @return ID of the key the archive is encrypted with. null if the archive doesn't start as an encrypted one
+     */
+    public static String keyId(byte[] start) {
+        int magic= GcmEncryptInputStream.MAGIC.length;
+        if (start.length < magic + GcmEncryptInputStream.KEY_ID
+            || !Arrays.equals(Arrays.copyOf(start, magic), GcmEncryptInputStream.MAGIC))
+            return null;
+        String keyId= new String(start, magic, GcmEncryptInputStream.KEY_ID, StandardCharsets.US_ASCII);
+        return keyId.matches("[0-9a-f]+") ? keyId : null;
+    }
+
+    /**
+     * @param size - size of an encrypted archive
+     * @return size of its plain text
+     */
+    public static long plainSize(long size) {
+        long sealed= GcmEncryptInputStream.CHUNK + GcmEncryptInputStream.TAG;
+        long chunks= size - GcmEncryptInputStream.MAGIC.length - GcmEncryptInputStream.KEY_ID
+            - GcmEncryptInputStream.NONCE_PREFIX;
+        return chunks / sealed * GcmEncryptInputStream.CHUNK + Math.max(0, chunks % sealed - GcmEncryptInputStream.TAG);
+    }
+
+    private int readFully(byte[] buffer, int length) throws IOException {
+        int total= 0;
+        while (total < length) {
+            int n= source_.read(buffer, total, length - total);
+            if (n < 0)
+                break;
+            total+= n;
+        }
+        return total;
+    }
+
+    private void readHeader() throws IOException {
+        int magic= GcmEncryptInputStream.MAGIC.length;
+        byte[] header= new byte[magic + GcmEncryptInputStream.KEY_ID + GcmEncryptInputStream.NONCE_PREFIX];
+        if (readFully(header, header.length) != header.length
+            || !Arrays.equals(Arrays.copyOf(header, magic), GcmEncryptInputStream.MAGIC))
+            throw new IOException("Not an encrypted archive");
+        String keyId= new String(header, magic, GcmEncryptInputStream.KEY_ID, StandardCharsets.US_ASCII);
+        if (!keyId.equals(key_.getId()))
+            throw new IOException("Archive is encrypted with key \"" + keyId + "\", not with \"" + key_.getId() + "\"");
+        noncePrefix_= Arrays.copyOfRange(header, magic + GcmEncryptInputStream.KEY_ID, header.length);
+    }
+
+    /**
+     * @return false at the end of the plain text
+     * @throws IOException on truncated or tampered data
+     */
+    private boolean next() throws IOException {
+        if (noncePrefix_ == null)
+            readHeader();
+        if (last_) {
+            if (source_.read() >= 0)
+                throw new IOException("Unexpected data after the last encrypted chunk");
+            return false;
+        }
+        int length= readFully(sealed_, sealed_.length);
+        last_= length < sealed_.length;
+        if (length < GcmEncryptInputStream.TAG)
+            throw new IOException("Encrypted archive is truncated at chunk " + index_);
+        try {
+            current_= GcmEncryptInputStream.cipher(Cipher.DECRYPT_MODE, key_, noncePrefix_, index_++, last_)
+                .doFinal(sealed_, 0, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed decrypting chunk " + (index_ - 1) + ". The archive is truncated or corrupted", e);
+        }
+        position_= 0;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b= new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (position_ == current_.length) {
+            if (!next())
+                return -1;
+        }
+        int n= Math.min(len, current_.length - position_);
+        System.arraycopy(current_, position_, b, off, n);
+        position_+= n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source_.close();
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.vkleban.glacier_backup.codec;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * AES-GCM encrypting stream, which seals independent chunks of the source on all the cores.
+ * Layout: magic, key ID, random nonce prefix, then sealed chunks. Every chunk but the last one holds
+ * exactly CHUNK bytes of plain text. Chunk nonce is the prefix followed by chunk number, and the number with
+ * the last chunk flag is authenticated, so reordered, dropped or truncated chunks fail decryption
+ *
+ * @author vova
+ */
+public class GcmEncryptInputStream extends ParallelBlockInputStream {
+
+    static final byte[] MAGIC= "GBE1".getBytes(StandardCharsets.US_ASCII);
+    static final int CHUNK= 1024 * 1024;
+    // Key ID as hex text
+    static final int KEY_ID= 16;
+    static final int NONCE_PREFIX= 8;
+    static final int TAG= 16;
+    static final String TRANSFORMATION= "AES/GCM/NoPadding";
+
+    private static final SecureRandom random_= new SecureRandom();
+
+    private final EncryptionKey key_;
+    private final byte[] noncePrefix_;
+    private boolean lastSealed_= false;
+
+    public GcmEncryptInputStream(InputStream source, EncryptionKey key) {
+        this(source, key, newNoncePrefix());
+    }
+
+    private GcmEncryptInputStream(InputStream source, EncryptionKey key, byte[] noncePrefix) {
+        super(source, CHUNK, header(key, noncePrefix));
+        key_= key;
+        noncePrefix_= noncePrefix;
+    }
+
+    private static byte[] newNoncePrefix() {
+        byte[] prefix= new byte[NONCE_PREFIX];
+        random_.nextBytes(prefix);
+        return prefix;
+    }
+
+    private static byte[] header(EncryptionKey key, byte[] noncePrefix) {
+        return ByteBuffer.allocate(MAGIC.length + KEY_ID + NONCE_PREFIX)
+            .put(MAGIC)
+            .put(key.getId().getBytes(StandardCharsets.US_ASCII))
+            .put(noncePrefix)
+            .array();
+    }
+
+    /**
+     * @param mode        - Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param key         - encryption key
+     * @param noncePrefix - random prefix of the stream
+     * @param index       - chunk number
+     * @param last        - the chunk is the last one
+     * @return cipher initialized with the nonce and associated data of the chunk
+     */
+    static Cipher cipher(int mode, EncryptionKey key, byte[] noncePrefix, long index, boolean last)
+        throws GeneralSecurityException
+    {
+        byte[] nonce= ByteBuffer.allocate(NONCE_PREFIX + 4).put(noncePrefix).putInt((int) index).array();
+        Cipher cipher= Cipher.getInstance(TRANSFORMATION);
+        cipher.init(mode, key.getKey(), new GCMParameterSpec(8 * TAG, nonce));
+        cipher.updateAAD(ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array());
+        return cipher;
+    }
+
+    private byte[] seal(byte[] chunk, long index, boolean last) throws GeneralSecurityException {
+        return cipher(Cipher.ENCRYPT_MODE, key_, noncePrefix_, index, last).doFinal(chunk);
+    }
+
+    @Override
+    protected Callable<byte[]> encoder(byte[] block, long index) {
+        boolean last= block.length < CHUNK;
+        lastSealed_= last;
+        return () -> seal(block, index, last);
+    }
+
+    @Override
+    protected byte[] trailer(long blocks) {
+        if (lastSealed_)
+            return new byte[0];
+        // The source ended on chunk boundary. Empty last chunk marks the end
+        try {
+            return seal(new byte[0], blocks, true);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed sealing last chunk", e);
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.vkleban.glacier_backup.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stream encoding independent blocks of the source on all the cores. Blocks are read and handed over to encoders
+ * in order, encoded concurrently and read back in order. Bounded number of blocks is encoded ahead of the reader
+ *
+ * @author vova
+ */
+public abstract class ParallelBlockInputStream extends InputStream {
+
+    private static final int THREADS= Runtime.getRuntime().availableProcessors();
+    // Blocks being encoded ahead of the reader
+    private static final int WINDOW= 2 * THREADS;
+
+    // Shared by all the encoding streams of the process, so that encoding never takes more than all the cores
+    private static final ExecutorService executor_= Executors.newFixedThreadPool(THREADS, task -> {
+        Thread thread= new Thread(task, "BlockEncoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final InputStream source_;
+    private final int blockSize_;
+    private final Deque<Future<byte[]>> pending_= new ArrayDeque<>();
+    private long blocks_= 0;
+    private boolean sourceDone_= false;
+    private boolean trailerDone_= false;
+    private byte[] current_;
+    private int position_= 0;
+
+    /**
+     * @param source    - data to encode
+     * @param blockSize - size of the blocks. Only the last one can be shorter
+     * @param header    - bytes preceding the encoded blocks
+     */
+    protected ParallelBlockInputStream(InputStream source, int blockSize, byte[] header) {
+        source_= source;
+        blockSize_= blockSize;
+        current_= header;
+    }
+
+    /**
+     * Called in order of the blocks, before they are encoded
+     *
+     * @param block - source block
+     * @param index - number of the block starting with 0
+     * @return task encoding the block. It runs concurrently with the other blocks
+     */
+    protected abstract Callable<byte[]> encoder(byte[] block, long index);
+
+    /**
+     * @param blocks - number of the blocks encoded
+     * @return bytes following the encoded blocks
+     */
+    protected abstract byte[] trailer(long blocks);
+
+    private byte[] readBlock() throws IOException {
+        byte[] block= new byte[blockSize_];
+        int length= 0;
+        while (length < blockSize_) {
+            int n= source_.read(block, length, blockSize_ - length);
+            if (n < 0)
+                break;
+            length+= n;
+        }
+        if (length == 0)
+            return null;
+        return length == blockSize_ ? block : Arrays.copyOf(block, length);
+    }
+
+    private void submitBlocks() throws IOException {
+        while (!sourceDone_ && pending_.size() < WINDOW) {
+            byte[] block= readBlock();
+            if (block == null) {
+                sourceDone_= true;
+                return;
+            }
+            pending_.add(executor_.submit(encoder(block, blocks_++)));
+            if (block.length < blockSize_)
+                sourceDone_= true;
+        }
+    }
+
+    /**
+     * Move on to the next piece of output
+     *
+     * @return false at the end of the output
+     * @throws IOException
+     */
+    private boolean next() throws IOException {
+        submitBlocks();
+        if (!pending_.isEmpty()) {
+            try {
+                current_= pending_.poll().get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while encoding");
+            } catch (ExecutionException e) {
+                throw new IOException("Failed encoding block", e.getCause());
+            }
+        } else if (!trailerDone_) {
+            current_= trailer(blocks_);
+            trailerDone_= true;
+        } else {
+            return false;
+        }
+        position_= 0;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b= new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (position_ == current_.length) {
+            if (!next())
+                return -1;
+        }
+        int n= Math.min(len, current_.length - position_);
+        System.arraycopy(current_, position_, b, off, n);
+        position_+= n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> block : pending_)
+            block.cancel(false);
+        pending_.clear();
+        source_.close();
+    }
+
+}
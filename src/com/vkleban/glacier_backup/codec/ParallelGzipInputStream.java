@@ -0,0 +1,91 @@
+package com.vkleban.glacier_backup.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compressing stream, which deflates independent blocks of the source on all the cores, pigz style.
+ * Every block is primed with the last 32 KiB of the previous one and ends with a sync flush, so the blocks
+ * concatenate into a single standard gzip member readable by any gzip decoder. The header carries an extra field
+ * of its own, so that downloads of unknown encoding tell these archives from gzip files a user has backed up
+ *
+ * @author vova
+ */
+public class ParallelGzipInputStream extends ParallelBlockInputStream {
+
+    private static final int BLOCK= 128 * 1024;
+    private static final int DICTIONARY= 32 * 1024;
+    // Magic, deflate, extra field, no modification time, no extra flags, unknown OS, then the extra field
+    // of 5 bytes: subfield "GB" of 1 byte, the format version
+    private static final byte[] HEADER= {
+        0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 5, 0, 'G', 'B', 1, 0, 1 };
+    // Empty final stored block
+    private static final byte[] LAST_BLOCK= { 3, 0 };
+
+    private final int level_;
+    private final CRC32 crc_= new CRC32();
+    private long size_= 0;
+    private byte[] dictionary_= null;
+
+    /**
+     * @param source - data to compress
+     * @param level  - deflate level 0-9
+     */
+    public ParallelGzipInputStream(InputStream source, int level) {
+        super(source, BLOCK, HEADER);
+        level_= level;
+    }
+
+    /**
+     * @param start - start of a stream
+     * @return true if the stream has been compressed by this class
+     */
+    public static boolean isOwnStart(byte[] start) {
+        return start.length >= HEADER.length && Arrays.equals(Arrays.copyOf(start, HEADER.length), HEADER);
+    }
+
+    private byte[] compress(byte[] block, byte[] dictionary) {
+        Deflater deflater= new Deflater(level_, true);
+        try {
+            if (dictionary != null)
+                deflater.setDictionary(dictionary);
+            deflater.setInput(block);
+            ByteArrayOutputStream out= new ByteArrayOutputStream(block.length / 2);
+            byte[] buffer= new byte[64 * 1024];
+            int n;
+            do {
+                n= deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, n);
+            } while (n == buffer.length);
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    protected Callable<byte[]> encoder(byte[] block, long index) {
+        crc_.update(block, 0, block.length);
+        size_+= block.length;
+        byte[] dictionary= dictionary_;
+        dictionary_= Arrays.copyOfRange(block, Math.max(0, block.length - DICTIONARY), block.length);
+        return () -> compress(block, dictionary);
+    }
+
+    @Override
+    protected byte[] trailer(long blocks) {
+        byte[] trailer= new byte[LAST_BLOCK.length + 8];
+        System.arraycopy(LAST_BLOCK, 0, trailer, 0, LAST_BLOCK.length);
+        long crc= crc_.getValue();
+        for (int i= 0; i < 4; i++) {
+            trailer[LAST_BLOCK.length + i]= (byte) (crc >>> (8 * i));
+            trailer[LAST_BLOCK.length + 4 + i]= (byte) (size_ >>> (8 * i));
+        }
+        return trailer;
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.vkleban.glacier_backup.codec;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.glacier.TreeHashGenerator;
+
+/**
+ * Stream computing Glacier tree hash and size of everything read through it
+ *
+ * @author vova
+ */
+public class TreeHashInputStream extends FilterInputStream {
+
+    // Tree hash leaf size
+    private static final int CHUNK= 1024 * 1024;
+
+    private final MessageDigest digest_;
+    private final List<byte[]> chunks_= new ArrayList<>();
+    private int chunkBytes_= 0;
+    private long count_= 0;
+    private String treeHash_= null;
+
+    public TreeHashInputStream(InputStream in) {
+        super(in);
+        try {
+            digest_= MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private void update(byte[] b, int off, int len) {
+        count_+= len;
+        while (len > 0) {
+            int n= Math.min(len, CHUNK - chunkBytes_);
+            digest_.update(b, off, n);
+            chunkBytes_+= n;
+            off+= n;
+            len-= n;
+            if (chunkBytes_ == CHUNK) {
+                chunks_.add(digest_.digest());
+                chunkBytes_= 0;
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b= in.read();
+        if (b >= 0)
+            update(new byte[] { (byte) b }, 0, 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n= in.read(b, off, len);
+        if (n > 0)
+            update(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer= new byte[(int) Math.min(n, 64 * 1024)];
+        long skipped= 0;
+        while (skipped < n) {
+            int read= read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0)
+                break;
+            skipped+= read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Read the rest of the stream, so that the tree hash covers all of it
+     *
+     * @throws IOException
+     */
+    public void drain() throws IOException {
+        byte[] buffer= new byte[64 * 1024];
+        while (read(buffer, 0, buffer.length) >= 0);
+    }
+
+    /**
+     * @return number of bytes read so far
+     */
+    public long getCount() {
+        return count_;
+    }
+
+    /**
+     * @return tree hash of the bytes read. Call it once everything has been read
+     */
+    public String getTreeHash() {
+        if (treeHash_ == null) {
+            if (chunkBytes_ > 0 || chunks_.isEmpty())
+                chunks_.add(digest_.digest());
+            treeHash_= TreeHashGenerator.calculateTreeHash(chunks_);
+        }
+        return treeHash_;
+    }
+
+}
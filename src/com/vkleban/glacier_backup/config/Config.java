@@ -1,10 +1,15 @@
 package com.vkleban.glacier_backup.config;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -26,13 +31,116 @@ public class Config {
     public String  access_key;
     public String  secret_key;
     public String  sns_topic_arn;
-    public Long    polling_milliseconds;
+    // Tunable at runtime through JMX, as are file_transfer_slaves and bandwidth_limit
+    public volatile Long    polling_milliseconds;
     public String  retrieval_tier;
     public String  log_name;
     public String  log_level;
     public Integer log_files;
     public Integer log_size;
-    public Integer file_transfer_slaves;
+    public volatile Integer file_transfer_slaves;
+    // Optional entries below. Their defaults are assigned here
+    // Interval of the console progress line during transfers. 0 disables it
+    public Long    progress_milliseconds= 10000L;
+    // Adapt number of transfer slaves to the network (AIMD), starting at file_transfer_slaves
+    public Boolean adaptive_slaves= false;
+    public Integer min_transfer_slaves= 1;
+    public Integer max_transfer_slaves= 32;
+    public Long    adaptive_interval_milliseconds= 30000L;
+    // Attempts of a single file transfer on transient failures. Backoff between them is exponential with full jitter
+    public Integer transfer_attempts= 5;
+    public Long    retry_base_milliseconds= 1000L;
+    public Long    retry_max_milliseconds= 300000L;
+    // Limit of all transfers together in bits per second with optional k, M or G suffix. Empty or 0 is unlimited
+    public volatile String  bandwidth_limit= "";
+    // Time of day ("HH:mm") to the limit from then on, e.g. {"08:00" : "20M", "19:00" : "0"}. Overrides bandwidth_limit
+    public Map<String, String> bandwidth_schedule= new HashMap<>();
+    // Compression of file contents before upload: "none" or "gzip" (parallel blocks on all cores)
+    public String  compression= "none";
+    public Integer compression_level= 6;
+    // File with base64 of AES key. If set, file contents are encrypted (AES-GCM) on the way to Glacier
+    public String  encryption_keyfile= "";
+    // Built-in scan of root_dir (upload with -s): globs relative to root_dir. Empty include list takes all the files
+    public List<String> scan_include= new ArrayList<>();
+    public List<String> scan_exclude= new ArrayList<>();
+    // Threads listing directories in parallel. Network file systems benefit from many
+    public Integer scan_threads= 16;
+    // Upload order is planned over this many files at a time: largest first, small files by directory. 0 keeps input order
+    public Integer schedule_lookahead= 10000;
+    // Files up to this size are uploaded a directory at a time in inode order
+    public Long    schedule_small_bytes= 16777216L;
+    // Threads running the transfers: "virtual" (Java 21+), "platform" or "auto" (virtual when available)
+    public String  transfer_threads= "auto";
+    // Downloaded files are synced to disk in batches of this many files, or when the oldest has waited this long
+    public Integer download_sync_files= 64;
+    public Long    download_sync_milliseconds= 10000L;
+    // Restore deadline in hours. Every archive gets the cheapest retrieval tier in time. 0 uses retrieval_tier
+    public Double  retrieval_deadline_hours= 0.0;
+    // Deadlines in hours of files matching globs relative to root_dir, e.g. {"etc/**" : 0.25}. First match wins
+    public Map<String, Double> retrieval_priorities= new LinkedHashMap<>();
+    // Expected download rate of a restore, to plan the tiers and predict the completion
+    public Long    retrieval_bytes_per_second= 10485760L;
+    // Reusable SQS queue of job notifications of ledger restores (-j). Jobs completing while nobody collects wait in it
+    public String  job_queue_name= "glacier-backup-jobs";
+    // Multipart upload part size in MiB. 0 chooses it per file from the concurrency, latency and throughput seen:
+    // requests may take part_request_overhead of the time of a part, and a part may take part_retry_seconds
+    public Integer part_size_mib= 0;
+    public Double  part_request_overhead= 0.02;
+    public Double  part_retry_seconds= 60.0;
+    // Stream upload (-p): the longest expected stream, which sizes its parts, and parts buffered while being sent
+    public Long    stream_max_bytes= 1099511627776L;
+    public Integer stream_part_buffers= 4;
+    // Chunked storage, off unless chunk_index names the local index file. Files of chunk_min_file_bytes and more
+    // are split by content into chunks of chunk_average_bytes on average, and only chunks missing from the index
+    // are uploaded, packed into archives of up to chunk_pack_bytes
+    public String  chunk_index= "";
+    public Long    chunk_min_file_bytes= 268435456L;
+    public Integer chunk_average_bytes= 4194304;
+    public Integer chunk_pack_bytes= 67108864;
+    // Tar restore (-d -t): a completed retrieval may go into the tar ahead of this many earlier ones. 0 keeps strict order
+    public Integer tar_reorder_window= 16;
+    // Entries of the sync plan (-u -i) and of catalog indexes (-b) sorted in memory. Beyond it they are sorted on disk
+    public Integer sync_sort_entries= 1000000;
+    // Watch daemon (-w): quiet time of a changed file before its upload, full scan interval, inventory save interval
+    public Long    watch_debounce_milliseconds= 5000L;
+    public Long    watch_reconcile_milliseconds= 3600000L;
+    public Long    watch_save_milliseconds= 60000L;
+    // Per-file trace of the transfers as JSON lines. Empty for no tracing. Summaries list this many slowest files
+    public String  trace_file= "";
+    public Integer trace_slowest= 10;
+    // Vaults to spread the uploads over by consistent hashing of file paths. Empty for the single region/vault above
+    public List<Shard> shards= new ArrayList<>();
+    // In-process Glacier/SQS/SNS simulator for offline load testing
+    public Simulator simulator= new Simulator();
+
+    public static class Shard {
+        public String  region;
+        public String  vault;
+        // Topic of job notifications in the shard's region. Empty for the sns_topic_arn above
+        public String  sns_topic_arn= "";
+    }
+
+    public static class Simulator {
+        // Replace Amazon services by the simulator
+        public Boolean enabled= false;
+        // Latency added to every simulated request
+        public Long    request_latency_milliseconds= 0L;
+        // Cap of the overall simulated transfer rate. 0 means unlimited
+        public Long    bandwidth_bytes_per_second= 0L;
+        // Probability of a Glacier request to fail with throttling error
+        public Double  throttling_probability= 0.0;
+        // Probability of an Expedited retrieval to be refused for lack of capacity
+        public Double  expedited_refusal_probability= 0.0;
+        // Time it takes Glacier to complete a job (inventory or retrieval)
+        public Long    job_completion_milliseconds= 0L;
+        // Keep the uploaded data in memory. If false, only sizes and checksums are kept and zeros are downloaded
+        public Boolean keep_data= true;
+        // Inventory file to populate the simulated vault with at start. Empty for empty vault
+        public String  inventory= "";
+    }
+
+	// Used by Gson, so that defaults of optional entries are assigned
+	private Config() {}
 
 	private Config(Path configPath) {}
 	
@@ -40,7 +148,7 @@ public class Config {
 		for (Field field: obj.getClass().getDeclaredFields()) {
 			try {
 				// Skip all static and non-public fields
-				if (field.getModifiers() != 1);
+				if ((field.getModifiers() & (Modifier.PUBLIC | Modifier.STATIC)) != Modifier.PUBLIC);
 				// Error out for null field
 				else if (field.get(obj) == null)
 					throw new InitException("Missing config entry: \"" + pathToObject + field.getName() + "\"");
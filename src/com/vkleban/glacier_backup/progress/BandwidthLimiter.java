@@ -0,0 +1,168 @@
+package com.vkleban.glacier_backup.progress;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.vkleban.glacier_backup.InitException;
+import com.vkleban.glacier_backup.config.Config;
+
+/**
+ * Token bucket shared by all transfer streams of the process. Streams take tokens for every chunk they send or
+ * receive and wait when the bucket is empty, so the overall rate stays within the limit. The bucket holds
+ * a fraction of a second worth of bytes, so the pace of every part is smooth rather than bursty.
+ * The limit can follow a time-of-day schedule, and can be replaced while transfers run
+ *
+ * @author vova
+ */
+public class BandwidthLimiter {
+
+    private static final Logger log= Logger.getLogger(BandwidthLimiter.class.getName());
+
+    // Bucket size as the time worth of bytes at the current rate
+    private static final double BURST_SECONDS= 0.1;
+    private static final double MIN_BURST_BYTES= 64 * 1024;
+    // How often the schedule is looked up
+    private static final long SCHEDULE_CHECK_NANOS= TimeUnit.SECONDS.toNanos(1);
+
+    private static BandwidthLimiter instance_= null;
+
+    // Start time of day to bytes per second. 0 is unlimited
+    private final TreeMap<LocalTime, Long> schedule_= new TreeMap<>();
+    private long rate_= 0;
+    private double tokens_= 0;
+    private long lastNanos_= System.nanoTime();
+    private long scheduleCheckedNanos_= lastNanos_ - SCHEDULE_CHECK_NANOS;
+
+    private BandwidthLimiter(Config c) throws InitException {
+        if (c.bandwidth_schedule.isEmpty()) {
+            schedule_.put(LocalTime.MIDNIGHT, parseRate("bandwidth_limit", c.bandwidth_limit));
+            return;
+        }
+        for (Map.Entry<String, String> entry : c.bandwidth_schedule.entrySet()) {
+            try {
+                schedule_.put(LocalTime.parse(entry.getKey()), parseRate("bandwidth_schedule", entry.getValue()));
+            } catch (DateTimeParseException e) {
+                throw new InitException("Invalid time of day \"" + entry.getKey() + "\" in \"bandwidth_schedule\"", e);
+            }
+        }
+    }
+
+    /**
+     * @param entry - config entry name for the error message
+     * @param rate  - bits per second with optional decimal suffix k, M or G. Empty or 0 is unlimited
+     * @return bytes per second. 0 is unlimited
+     * @throws InitException on malformed rate
+     */
+    private static long parseRate(String entry, String rate) throws InitException {
+        String value= rate.trim();
+        if (value.isEmpty())
+            return 0;
+        long multiplier= 1;
+        switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+        case 'K':
+            multiplier= 1000L;
+            break;
+        case 'M':
+            multiplier= 1000L * 1000;
+            break;
+        case 'G':
+            multiplier= 1000L * 1000 * 1000;
+            break;
+        }
+        if (multiplier != 1)
+            value= value.substring(0, value.length() - 1).trim();
+        try {
+            double bits= Double.parseDouble(value) * multiplier;
+            if (bits < 0)
+                throw new NumberFormatException("negative rate");
+            return (long) Math.ceil(bits / 8);
+        } catch (NumberFormatException e) {
+            throw new InitException("Invalid bandwidth \"" + rate + "\" in \"" + entry + "\"", e);
+        }
+    }
+
+    /**
+     * Create the limiter shared by all the transfers of this process from configuration
+     *
+     * @throws InitException on malformed bandwidth entries
+     */
+    public static synchronized void init() throws InitException {
+        instance_= new BandwidthLimiter(Config.get());
+    }
+
+    public static synchronized BandwidthLimiter get() {
+        if (instance_ == null)
+            throw new RuntimeException("Forgot to initialize bandwidth limiter. Please fix the code");
+        return instance_;
+    }
+
+    /**
+     * Replace the configured limit or schedule with a fixed limit until the end of the process
+     *
+     * @param rate - bits per second with optional decimal suffix k, M or G. Empty or 0 is unlimited
+     * @throws InitException on malformed rate
+     */
+    public synchronized void setLimit(String rate) throws InitException {
+        long bytes= parseRate("bandwidth_limit", rate);
+        schedule_.clear();
+        schedule_.put(LocalTime.MIDNIGHT, bytes);
+        checkSchedule(System.nanoTime());
+    }
+
+    /**
+     * @return current limit in bytes per second. 0 is unlimited
+     */
+    public synchronized long getLimit() {
+        return rate_;
+    }
+
+    private void checkSchedule(long now) {
+        scheduleCheckedNanos_= now;
+        Map.Entry<LocalTime, Long> entry= schedule_.floorEntry(LocalTime.now());
+        long rate= (entry == null ? schedule_.lastEntry() : entry).getValue();
+        if (rate == rate_)
+            return;
+        log.info("Bandwidth limit is now " + (rate == 0 ? "off" : ProgressReporter.bytes(rate) + "/s"));
+        rate_= rate;
+        tokens_= Math.min(tokens_, burst());
+    }
+
+    private double burst() {
+        return Math.max(MIN_BURST_BYTES, rate_ * BURST_SECONDS);
+    }
+
+    /**
+     * Take tokens for a chunk of data, waiting until the bucket has them
+     *
+     * @param bytes - chunk size
+     */
+    public void acquire(long bytes) {
+        long waitNanos;
+        synchronized (this) {
+            long now= System.nanoTime();
+            if (now - scheduleCheckedNanos_ >= SCHEDULE_CHECK_NANOS)
+                checkSchedule(now);
+            if (rate_ == 0) {
+                lastNanos_= now;
+                return;
+            }
+            tokens_= Math.min(burst(), tokens_ + (now - lastNanos_) * rate_ / 1e9);
+            lastNanos_= now;
+            // Going into debt queues the callers: each one waits until its own chunk is paid off
+            tokens_-= bytes;
+            if (tokens_ >= 0)
+                return;
+            waitNanos= (long) (-tokens_ * 1e9 / rate_);
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
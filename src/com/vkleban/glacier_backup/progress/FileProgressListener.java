@@ -0,0 +1,79 @@
+package com.vkleban.glacier_backup.progress;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.event.DeliveryMode;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressListener;
+import com.vkleban.glacier_backup.trace.TransferTrace;
+import com.vkleban.glacier_backup.trace.TransferTrace.Phase;
+
+/**
+ * AWS progress listener of a single file transfer. Forwards byte counts of every transferred part
+ * to the run-wide progress and remembers how much of this file has been counted.
+ * Request latency and retries are forwarded as well. Parts of a file may be sent in parallel, but every request
+ * is sent and answered by a single thread, so the time a request is sent is kept per thread.
+ * Events are delivered synchronously by the thread doing the I/O, which is held by the bandwidth limiter.
+ * The time between a request sent and its response started counts to the Glacier phase of the transfer trace
+ *
+ * @author vova
+ */
+public class FileProgressListener implements ProgressListener, DeliveryMode {
+
+    private final TransferProgress progress_;
+    private final BandwidthLimiter limiter_= BandwidthLimiter.get();
+    private final AtomicLong bytes_= new AtomicLong();
+    private final ThreadLocal<Long> requestSentNanos_= new ThreadLocal<>();
+
+    public FileProgressListener(TransferProgress progress) {
+        progress_= progress;
+    }
+
+    @Override
+    public boolean isSyncCallSafe() {
+        return true;
+    }
+
+    @Override
+    public void progressChanged(ProgressEvent progressEvent) {
+        long bytes;
+        switch (progressEvent.getEventType()) {
+        case REQUEST_BYTE_TRANSFER_EVENT:
+        case RESPONSE_BYTE_TRANSFER_EVENT:
+            bytes= progressEvent.getBytesTransferred();
+            break;
+        case HTTP_REQUEST_CONTENT_RESET_EVENT:
+        case HTTP_RESPONSE_CONTENT_RESET_EVENT:
+            bytes= -progressEvent.getBytesTransferred();
+            break;
+        case HTTP_REQUEST_COMPLETED_EVENT:
+            requestSentNanos_.set(System.nanoTime());
+            TransferTrace.current().enter(Phase.GLACIER);
+            return;
+        case HTTP_RESPONSE_STARTED_EVENT:
+            TransferTrace.current().enter(Phase.NETWORK);
+            Long sent= requestSentNanos_.get();
+            if (sent != null)
+                progress_.requestLatency(System.nanoTime() - sent);
+            requestSentNanos_.remove();
+            return;
+        case CLIENT_REQUEST_RETRY_EVENT:
+            progress_.congestion();
+            return;
+        default:
+            return;
+        }
+        bytes_.addAndGet(bytes);
+        progress_.transferred(bytes);
+        if (bytes > 0)
+            limiter_.acquire(bytes);
+    }
+
+    /**
+     * @return bytes of this file counted so far
+     */
+    public long getBytes() {
+        return bytes_.get();
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.vkleban.glacier_backup.progress;
+
+import java.util.logging.Logger;
+
+/**
+ * Background thread printing compact status line of a transfer run at fixed interval:
+ * files, bytes, moving average rate and ETA
+ *
+ * @author vova
+ */
+public class ProgressReporter implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(ProgressReporter.class.getName());
+
+    // Time constant of the exponential moving average of the transfer rate
+    private static final double AVERAGE_WINDOW_MILLISECONDS= 60000;
+
+    private static final String[] UNITS= { "B", "KiB", "MiB", "GiB", "TiB", "PiB" };
+
+    private final String name_;
+    private final TransferProgress progress_;
+    private final long intervalMilliseconds_;
+    private final Thread thread_;
+
+    private long lastBytes_;
+    private long lastNanos_;
+    // Bytes per second. Negative until the first sample
+    private double rate_= -1;
+
+    /**
+     * Start reporting given progress
+     *
+     * @param name                 - name of the run to print (e.g. "Upload")
+     * @param progress             - counters to report
+     * @param intervalMilliseconds - reporting interval. 0 disables reporting
+     */
+    public ProgressReporter(String name, TransferProgress progress, long intervalMilliseconds) {
+        name_= name;
+        progress_= progress;
+        intervalMilliseconds_= intervalMilliseconds;
+        lastBytes_= progress.getTransferredBytes();
+        lastNanos_= System.nanoTime();
+        if (intervalMilliseconds <= 0) {
+            thread_= null;
+            return;
+        }
+        thread_= new Thread(this::report, name + "ProgressReporter");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    private void report() {
+        try {
+            while (true) {
+                Thread.sleep(intervalMilliseconds_);
+                log.info(sample());
+            }
+        } catch (InterruptedException e) {
+            log.finer("Progress reporter \"" + name_ + "\" has been stopped");
+        }
+    }
+
+    /**
+     * Update moving average rate with the current counters
+     *
+     * @return status line
+     */
+    String sample() {
+        long now= System.nanoTime();
+        long bytes= progress_.getTransferredBytes();
+        double elapsedMilliseconds= (now - lastNanos_) / 1e6;
+        if (elapsedMilliseconds > 0) {
+            double current= (bytes - lastBytes_) * 1000 / elapsedMilliseconds;
+            if (rate_ < 0) {
+                rate_= current;
+            } else {
+                double alpha= 1 - Math.exp(-elapsedMilliseconds / AVERAGE_WINDOW_MILLISECONDS);
+                rate_+= alpha * (current - rate_);
+            }
+        }
+        lastNanos_= now;
+        lastBytes_= bytes;
+        long plannedBytes= progress_.getPlannedBytes();
+        StringBuilder sb= new StringBuilder(name_)
+            .append(": ")
+            .append(progress_.getCompletedFiles())
+            .append("/")
+            .append(progress_.getPlannedFiles())
+            .append(" files");
+        long failed= progress_.getFailedFiles();
+        long retried= progress_.getRetries();
+        if (failed > 0 && retried > 0)
+            sb.append(" (").append(failed).append(" failed, ").append(retried).append(" retries)");
+        else if (failed > 0)
+            sb.append(" (").append(failed).append(" failed)");
+        else if (retried > 0)
+            sb.append(" (").append(retried).append(" retries)");
+        sb.append(", ").append(bytes(bytes)).append("/").append(bytes(plannedBytes));
+        if (plannedBytes > 0)
+            sb.append(String.format(" (%.1f%%)", Math.min(100.0, 100.0 * bytes / plannedBytes)));
+        sb.append(", ").append(bytes(Math.max(0, (long) rate_))).append("/s");
+        if (rate_ > 0 && plannedBytes >= bytes)
+            sb.append(", ETA ").append(duration((long) ((plannedBytes - bytes) / rate_)));
+        return sb.toString();
+    }
+
+    /**
+     * @param bytes - number of bytes
+     * @return human readable binary size
+     */
+    public static String bytes(long bytes) {
+        double value= bytes;
+        int unit= 0;
+        while (Math.abs(value) >= 1024 && unit < UNITS.length - 1) {
+            value/= 1024;
+            unit++;
+        }
+        return unit == 0 ? bytes + " B" : String.format("%.1f %s", value, UNITS[unit]);
+    }
+
+    /**
+     * @param seconds - duration
+     * @return duration formatted like "1d 2h 3m 4s", skipping leading zero units
+     */
+    public static String duration(long seconds) {
+        long days= seconds / 86400;
+        long hours= seconds / 3600 % 24;
+        long minutes= seconds / 60 % 60;
+        StringBuilder sb= new StringBuilder();
+        if (days > 0)
+            sb.append(days).append("d ");
+        if (days > 0 || hours > 0)
+            sb.append(hours).append("h ");
+        if (days > 0 || hours > 0 || minutes > 0)
+            sb.append(minutes).append("m ");
+        return sb.append(seconds % 60).append("s").toString();
+    }
+
+    /**
+     * Stop reporting and print the final status line
+     */
+    @Override
+    public void close() {
+        if (thread_ == null)
+            return;
+        thread_.interrupt();
+        try {
+            thread_.join();
+        } catch (InterruptedException e) {}
+        log.info(sample());
+    }
+
+}
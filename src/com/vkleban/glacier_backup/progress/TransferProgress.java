@@ -0,0 +1,131 @@
+package com.vkleban.glacier_backup.progress;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a single transfer run (upload or download). Slaves and master update them concurrently,
+ * the reporter samples them periodically. Updates are LongAdder increments, so they are cheap enough
+ * to be done on every transferred chunk
+ *
+ * @author vova
+ */
+public class TransferProgress {
+
+    private final LongAdder plannedFiles_= new LongAdder();
+    private final LongAdder plannedBytes_= new LongAdder();
+    private final LongAdder completedFiles_= new LongAdder();
+    private final LongAdder failedFiles_= new LongAdder();
+    private final LongAdder retries_= new LongAdder();
+    private final LongAdder transferredBytes_= new LongAdder();
+    private final LongAdder requests_= new LongAdder();
+    private final LongAdder requestNanos_= new LongAdder();
+    private final LongAdder congestion_= new LongAdder();
+
+    /**
+     * Register one more file to be transferred
+     *
+     * @param bytes - file size. 0 if unknown yet
+     */
+    public void plan(long bytes) {
+        plannedFiles_.increment();
+        plannedBytes_.add(bytes);
+    }
+
+    /**
+     * Register size of a planned file, which was unknown at planning time
+     *
+     * @param bytes - file size
+     */
+    public void planBytes(long bytes) {
+        plannedBytes_.add(bytes);
+    }
+
+    /**
+     * Register bytes sent or received over the network
+     *
+     * @param bytes - number of bytes. Negative value rewinds the counter (e.g. on request reset)
+     */
+    public void transferred(long bytes) {
+        transferredBytes_.add(bytes);
+    }
+
+    /**
+     * Register service latency of a single request: from request sent to response started
+     *
+     * @param nanos - latency in nanoseconds
+     */
+    public void requestLatency(long nanos) {
+        requests_.increment();
+        requestNanos_.add(nanos);
+    }
+
+    /**
+     * Register a sign of congestion: throttling error or request retry
+     */
+    public void congestion() {
+        congestion_.increment();
+    }
+
+    public void fileCompleted() {
+        completedFiles_.increment();
+    }
+
+    /**
+     * Register failed attempt of a file transfer, which is going to be retried
+     *
+     * @param transferredBytes - bytes of this attempt already counted as transferred
+     */
+    public void attemptFailed(long transferredBytes) {
+        retries_.increment();
+        transferredBytes_.add(-transferredBytes);
+    }
+
+    /**
+     * Register final file transfer failure
+     *
+     * @param transferredBytes - bytes of this file already counted as transferred
+     * @param size             - file size counted at planning time
+     */
+    public void fileFailed(long transferredBytes, long size) {
+        failedFiles_.increment();
+        transferredBytes_.add(-transferredBytes);
+        plannedBytes_.add(-size);
+    }
+
+    public long getPlannedFiles() {
+        return plannedFiles_.sum();
+    }
+
+    public long getPlannedBytes() {
+        return plannedBytes_.sum();
+    }
+
+    public long getCompletedFiles() {
+        return completedFiles_.sum();
+    }
+
+    public long getFailedFiles() {
+        return failedFiles_.sum();
+    }
+
+    public long getRetries() {
+        return retries_.sum();
+    }
+
+    public long getTransferredBytes() {
+        return transferredBytes_.sum();
+    }
+
+    public long getRequests() {
+        return requests_.sum();
+    }
+
+    public long getRequestNanos() {
+        return requestNanos_.sum();
+    }
+
+    public long getCongestion() {
+        return congestion_.sum();
+    }
+
+}
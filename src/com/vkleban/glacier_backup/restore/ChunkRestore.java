@@ -0,0 +1,253 @@
+package com.vkleban.glacier_backup.restore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.chunk.Manifest;
+import com.vkleban.glacier_backup.codec.TreeHashInputStream;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.slave.BatchedSync;
+import com.vkleban.glacier_backup.slave.ChunkedUploader;
+import com.vkleban.glacier_backup.slave.DownloadWriter;
+
+/**
+ * Restore of chunked files in two rounds of retrievals: first their manifests, then the packs holding their chunks.
+ * Both are downloaded like any archive into the ".chunks" directory of root_dir, then every file is put together
+ * from its chunks, checking the SHA-256 of every chunk and the tree hash of the file. The staged manifests and packs
+ * are deleted at the end
+ *
+ * @author vova
+ */
+public class ChunkRestore implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(ChunkRestore.class.getName());
+
+    private final Config c_= Config.get();
+    private final Path root_= Paths.get(c_.root_dir);
+    // Chunked file archives to their manifest archives, which are downloaded under the staging directory
+    private final Map<Archive, Archive> manifests_= new LinkedHashMap<>();
+    // Chunked file archives to their manifests, once downloaded
+    private final Map<Archive, Manifest> read_= new LinkedHashMap<>();
+    private final Set<Path> staged_= new LinkedHashSet<>();
+
+    /**
+     * @param chunked - archives of chunked files to restore
+     */
+    public ChunkRestore(Collection<Archive> chunked) {
+        for (Archive archive : chunked) {
+            manifests_.put(archive, new Archive(
+                archive.getArchiveId(),
+                ChunkedUploader.CHUNK_DIR + "/" + archive.getArchiveId() + ".manifest",
+                archive.getTreeHash(),
+                archive.getSize(),
+                archive.getCodec(),
+                archive.getEncryptionKeyId(),
+                null,
+                null,
+                archive.getShard()));
+        }
+    }
+
+    /**
+     * @return archives of the manifests to download first
+     */
+    public Set<Archive> getManifests() {
+        return new LinkedHashSet<>(manifests_.values());
+    }
+
+    private Path staged(Archive archive) {
+        Path path= root_.resolve(archive.getFileName());
+        staged_.add(path);
+        return path;
+    }
+
+    /**
+     * Read the downloaded manifests
+     *
+     * @param failed - archives, which failed to download
+     * @return archives of the packs to download, holding the chunks of the files
+     */
+    public Set<Archive> readManifests(Set<Archive> failed) {
+        Set<Archive> packs= new LinkedHashSet<>();
+        for (Map.Entry<Archive, Archive> entry : manifests_.entrySet()) {
+            Archive archive= entry.getKey();
+            Path path= staged(entry.getValue());
+            if (failed.contains(entry.getValue()))
+                continue;
+            try {
+                Manifest manifest= Manifest.fromJson(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+                read_.put(archive, manifest);
+                for (Archive pack : manifest.getPacks()) {
+                    staged(pack);
+                    packs.add(pack);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.severe("Failed reading chunk manifest of \"" + archive.getFileName() + "\": " + e);
+            }
+        }
+        log.info(read_.size() + " chunked files need " + packs.size() + " packs");
+        return packs;
+    }
+
+    /**
+     * Contents of a file read chunk by chunk from the downloaded packs
+     */
+    private class ChunkInputStream extends InputStream {
+
+        private final Manifest manifest_;
+        private final Map<Archive, FileChannel> packs_= new HashMap<>();
+        private final MessageDigest sha256_;
+        private int next_= 0;
+        private ByteBuffer chunk_= ByteBuffer.allocate(0);
+
+        ChunkInputStream(Manifest manifest) {
+            manifest_= manifest;
+            try {
+                sha256_= MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        /**
+         * @return false at the end of the file
+         */
+        private boolean nextChunk() throws IOException {
+            if (next_ == manifest_.getChunks().size())
+                return false;
+            Manifest.Chunk chunk= manifest_.getChunks().get(next_++);
+            Archive pack= manifest_.getPacks().get(chunk.getPack());
+            FileChannel channel= packs_.get(pack);
+            if (channel == null) {
+                channel= FileChannel.open(staged(pack), StandardOpenOption.READ);
+                packs_.put(pack, channel);
+            }
+            chunk_= ByteBuffer.allocate(chunk.getLength());
+            while (chunk_.hasRemaining()) {
+                if (channel.read(chunk_, chunk.getOffset() + chunk_.position()) < 0)
+                    throw new IOException("Pack \"" + pack.getFileName() + "\" ends before chunk at "
+                        + chunk.getOffset());
+            }
+            StringBuilder hex= new StringBuilder();
+            for (byte b : sha256_.digest(chunk_.array()))
+                hex.append(String.format("%02x", b));
+            if (!hex.toString().equals(chunk.getSha256()))
+                throw new IOException("Checksum mismatch of chunk at " + chunk.getOffset() + " of pack \""
+                    + pack.getFileName() + "\"");
+            chunk_.flip();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b= new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (!chunk_.hasRemaining()) {
+                if (!nextChunk())
+                    return -1;
+            }
+            int n= Math.min(len, chunk_.remaining());
+            chunk_.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FileChannel channel : packs_.values())
+                channel.close();
+        }
+    }
+
+    /**
+     * Put the files together from the downloaded packs
+     *
+     * @param failed - packs, which failed to download
+     * @return archives of the files, which failed to be restored
+     */
+    public Set<Archive> assemble(Set<Archive> failed) {
+        Set<Archive> incomplete= new LinkedHashSet<>(manifests_.keySet());
+        Map<Path, Archive> committed= new HashMap<>();
+        BatchedSync sync= new BatchedSync(c_.download_sync_files, c_.download_sync_milliseconds);
+        try {
+            for (Map.Entry<Archive, Manifest> entry : read_.entrySet()) {
+                Archive archive= entry.getKey();
+                Manifest manifest= entry.getValue();
+                if (manifest.getPacks().stream().anyMatch(failed::contains)) {
+                    log.severe("Packs of \"" + archive.getFileName() + "\" are missing");
+                    continue;
+                }
+                Path target= root_.resolve(archive.getFileName());
+                try {
+                    if (target.getParent() != null)
+                        Files.createDirectories(target.getParent());
+                    try (TreeHashInputStream contents= new TreeHashInputStream(new ChunkInputStream(manifest));
+                         DownloadWriter writer= new DownloadWriter(target, manifest.getSize()))
+                    {
+                        long size= writer.write(contents);
+                        String expected= archive.getOriginalTreeHash() == null
+                            ? manifest.getTreeHash()
+                            : archive.getOriginalTreeHash();
+                        if (size != manifest.getSize() || !contents.getTreeHash().equals(expected))
+                            throw new IOException("Checksum mismatch of assembled \"" + archive.getFileName()
+                                + "\". Expected: " + expected + ". Actual: " + contents.getTreeHash());
+                        writer.commit(sync);
+                    }
+                    committed.put(target, archive);
+                    log.info("Restored \"" + archive.getFileName() + "\" from " + manifest.getChunks().size()
+                        + " chunks");
+                } catch (IOException | RuntimeException e) {
+                    log.severe("Failed restoring chunked \"" + archive.getFileName() + "\": " + e);
+                }
+            }
+        } finally {
+            List<Path> unsynced= sync.finish();
+            for (Path path : committed.keySet()) {
+                if (!unsynced.contains(path))
+                    incomplete.remove(committed.get(path));
+            }
+        }
+        return incomplete;
+    }
+
+    /**
+     * Delete the staged manifests and packs
+     */
+    @Override
+    public void close() {
+        for (Path path : staged_) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warning("Failed deleting \"" + path + "\": " + e);
+            }
+        }
+        try {
+            Files.deleteIfExists(root_.resolve(ChunkedUploader.CHUNK_DIR));
+        } catch (IOException e) {
+            log.fine("Keeping \"" + ChunkedUploader.CHUNK_DIR + "\": " + e);
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.vkleban.glacier_backup.restore;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.BackupMaster;
+
+/**
+ * Local record of retrieval jobs of a restore, so that the restore can be submitted, left and collected later,
+ * surviving crashes in between. It's an append-only file of JSON lines: submission of a job with its archive, then
+ * changes of the job's state. Every change is synced to disk before it's acted upon. A line torn by a crash
+ * is skipped on open
+ *
+ * @author vova
+ */
+public class JobLedger implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(JobLedger.class.getName());
+
+    public enum State {
+        // Job is initiated, its completion is not known yet
+        SUBMITTED,
+        // Job output is ready to be downloaded
+        SUCCEEDED,
+        // Job has failed on Glacier
+        FAILED,
+        // Job output is downloaded and synced
+        DOWNLOADED,
+        // Job is gone from Glacier before its output was downloaded. The archive is submitted again
+        EXPIRED
+    }
+
+    private final Path path_;
+    private final FileChannel channel_;
+    private final Gson gson_= new Gson();
+    // Jobs in submission order
+    private final Map<String, Archive> archives_= new LinkedHashMap<>();
+    private final Map<String, State> states_= new LinkedHashMap<>();
+
+    /**
+     * Open the ledger, creating it if it doesn't exist
+     *
+     * @param path - ledger file
+     * @throws IOException when the ledger can't be read or opened for writing
+     */
+    public JobLedger(Path path) throws IOException {
+        path_= path;
+        if (Files.exists(path))
+            replay();
+        channel_= FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel_.position(channel_.size());
+        // Whatever comes after a torn line starts on a line of its own
+        ByteBuffer last= ByteBuffer.allocate(1);
+        if (channel_.size() > 0 && channel_.read(last, channel_.size() - 1) == 1 && last.get(0) != '\n')
+            append(new StringBuilder("\n"));
+    }
+
+    private void replay() throws IOException {
+        JsonParser parser= new JsonParser();
+        long number= 0;
+        try (BufferedReader in= Files.newBufferedReader(path_, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line= in.readLine()) != null) {
+                number++;
+                if (line.isEmpty())
+                    continue;
+                try {
+                    JsonObject entry= parser.parse(line).getAsJsonObject();
+                    String job= entry.get("JobId").getAsString();
+                    if (entry.has("Archive"))
+                        archives_.put(job, BackupMaster.parseArchive(entry.getAsJsonObject("Archive")));
+                    if (archives_.containsKey(job))
+                        states_.put(job, State.valueOf(entry.get("State").getAsString()));
+                } catch (RuntimeException e) {
+                    log.warning("Skipping malformed line " + number + " of ledger \"" + path_ + "\": " + e);
+                }
+            }
+        }
+        log.info("Ledger \"" + path_ + "\": " + summary());
+    }
+
+    private void append(StringBuilder lines) throws IOException {
+        ByteBuffer buffer= ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining())
+            channel_.write(buffer);
+        channel_.force(false);
+    }
+
+    private void line(StringBuilder lines, String job, State state, Archive archive) {
+        JsonObject entry= new JsonObject();
+        entry.addProperty("JobId", job);
+        entry.addProperty("State", state.name());
+        if (archive != null)
+            entry.add("Archive", gson_.toJsonTree(archive));
+        lines.append(entry).append('\n');
+        states_.put(job, state);
+    }
+
+    /**
+     * @param jobs - initiated jobs to their archives
+     * @throws IOException when the ledger can't be written
+     */
+    public synchronized void submitted(Map<String, Archive> jobs) throws IOException {
+        StringBuilder lines= new StringBuilder();
+        for (Map.Entry<String, Archive> job : jobs.entrySet()) {
+            archives_.put(job.getKey(), job.getValue());
+            line(lines, job.getKey(), State.SUBMITTED, job.getValue());
+        }
+        append(lines);
+    }
+
+    /**
+     * @param job   - job ID
+     * @param state - new state of the job
+     * @throws IOException when the ledger can't be written
+     */
+    public synchronized void update(String job, State state) throws IOException {
+        if (!archives_.containsKey(job) || states_.get(job) == state)
+            return;
+        StringBuilder lines= new StringBuilder();
+        line(lines, job, state, null);
+        append(lines);
+    }
+
+    /**
+     * @param job - job ID
+     * @return true if the job has succeeded, failed or been downloaded, so its notification is of no use anymore
+     */
+    public synchronized boolean isResolved(String job) {
+        State state= states_.get(job);
+        return state == State.SUCCEEDED || state == State.FAILED || state == State.DOWNLOADED;
+    }
+
+    /**
+     * @return jobs still to be collected (submitted or succeeded) to their archives, in submission order
+     */
+    public synchronized Map<String, Archive> pending() {
+        Map<String, Archive> pending= new LinkedHashMap<>();
+        for (Map.Entry<String, State> job : states_.entrySet()) {
+            if (job.getValue() == State.SUBMITTED || job.getValue() == State.SUCCEEDED)
+                pending.put(job.getKey(), archives_.get(job.getKey()));
+        }
+        return pending;
+    }
+
+    /**
+     * @return number of jobs in every state
+     */
+    public synchronized String summary() {
+        Map<State, Integer> counts= new EnumMap<>(State.class);
+        for (State state : states_.values())
+            counts.merge(state, 1, Integer::sum);
+        return counts.isEmpty() ? "no jobs" : counts.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel_.close();
+    }
+
+}
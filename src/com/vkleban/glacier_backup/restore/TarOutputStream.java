@@ -0,0 +1,181 @@
+package com.vkleban.glacier_backup.restore;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * POSIX (ustar) tar stream. Names beyond 100 bytes or not ASCII and sizes beyond the 8GiB of the ustar header
+ * are given in a PAX extended header before the entry. The size of an entry has to be known up front
+ *
+ * @author vova
+ */
+public class TarOutputStream extends FilterOutputStream {
+
+    private static final int BLOCK= 512;
+    private static final long USTAR_MAX_SIZE= 077777777777L;
+
+    private final byte[] zeros_= new byte[BLOCK];
+    // Declared and written bytes of the current entry. Negative declared size means there is no entry open
+    private long entrySize_= -1;
+    private long entryWritten_= 0;
+
+    public TarOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Start a regular file entry
+     *
+     * @param name     - path inside the archive
+     * @param size     - exact size of the file contents
+     * @param modified - modification time in milliseconds since epoch
+     * @throws IOException on write failure
+     */
+    public void putEntry(String name, long size, long modified) throws IOException {
+        if (entrySize_ >= 0)
+            closeEntry();
+        byte[] nameBytes= name.getBytes(StandardCharsets.UTF_8);
+        boolean longName= nameBytes.length > 100 || nameBytes.length != name.length();
+        if (longName || size > USTAR_MAX_SIZE) {
+            StringBuilder pax= new StringBuilder();
+            if (longName)
+                pax.append(paxRecord("path", name));
+            if (size > USTAR_MAX_SIZE)
+                pax.append(paxRecord("size", Long.toString(size)));
+            byte[] records= pax.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(header("PaxHeaders/" + asciiName(name, 88), records.length, modified, (byte) 'x'));
+            out.write(records);
+            pad(records.length);
+        }
+        out.write(header(asciiName(name, 100), Math.min(size, USTAR_MAX_SIZE), modified, (byte) '0'));
+        entrySize_= size;
+        entryWritten_= 0;
+    }
+
+    /**
+     * Finish the current entry. Contents short of the declared size are filled with zeros, so that the stream stays
+     * readable after a failed entry
+     *
+     * @return number of zero bytes filled in
+     * @throws IOException on write failure
+     */
+    public long closeEntry() throws IOException {
+        if (entrySize_ < 0)
+            return 0;
+        long missing= entrySize_ - entryWritten_;
+        for (long left= missing; left > 0; left-= BLOCK)
+            out.write(zeros_, 0, (int) Math.min(BLOCK, left));
+        pad(entrySize_);
+        entrySize_= -1;
+        return missing;
+    }
+
+    /**
+     * @return bytes of the current entry written so far
+     */
+    public long getEntryWritten() {
+        return entryWritten_;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (entryWritten_ + len > entrySize_)
+            throw new IOException("Writing beyond the declared size of the tar entry: " + entrySize_);
+        out.write(b, off, len);
+        entryWritten_+= len;
+    }
+
+    /**
+     * Close the current entry and write the end of the archive, without closing the underlying stream
+     *
+     * @throws IOException on write failure
+     */
+    public void finish() throws IOException {
+        closeEntry();
+        out.write(zeros_);
+        out.write(zeros_);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    private void pad(long length) throws IOException {
+        int rest= (int) (length % BLOCK);
+        if (rest != 0)
+            out.write(zeros_, 0, BLOCK - rest);
+    }
+
+    /**
+     * @return name cut to given bytes with non-ASCII characters replaced. The PAX header carries the real one
+     */
+    private static String asciiName(String name, int max) {
+        StringBuilder ascii= new StringBuilder();
+        for (int i= 0; i < name.length() && ascii.length() < max; i++) {
+            char c= name.charAt(i);
+            ascii.append(c < 0x80 ? c : '_');
+        }
+        return ascii.toString();
+    }
+
+    /**
+     * @return PAX record "<length> <key>=<value>\n", where the length counts the whole record including itself
+     */
+    private static String paxRecord(String key, String value) {
+        int length= (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int total= length + Integer.toString(length).length();
+        if (Integer.toString(total).length() != Integer.toString(length).length())
+            total++;
+        return total + " " + key + "=" + value + "\n";
+    }
+
+    private static byte[] header(String name, long size, long modified, byte type) {
+        byte[] header= new byte[BLOCK];
+        field(header, 0, 100, name.getBytes(StandardCharsets.US_ASCII));
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, Math.max(0, modified / 1000));
+        header[156]= type;
+        field(header, 257, 6, "ustar\0".getBytes(StandardCharsets.US_ASCII));
+        field(header, 263, 2, "00".getBytes(StandardCharsets.US_ASCII));
+        // Checksum is counted with its own field taken as spaces
+        for (int i= 148; i < 156; i++)
+            header[i]= ' ';
+        long checksum= 0;
+        for (byte b : header)
+            checksum+= b & 0xff;
+        octal(header, 148, 7, checksum);
+        header[155]= ' ';
+        return header;
+    }
+
+    private static void field(byte[] header, int offset, int length, byte[] value) {
+        System.arraycopy(value, 0, header, offset, Math.min(length, value.length));
+    }
+
+    /**
+     * Zero padded octal number ending with NUL
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits= Long.toOctalString(value);
+        StringBuilder field= new StringBuilder();
+        for (int i= digits.length(); i < length - 1; i++)
+            field.append('0');
+        field.append(digits);
+        field(header, offset, length - 1, field.toString().getBytes(StandardCharsets.US_ASCII));
+        header[offset + length - 1]= 0;
+    }
+
+}
@@ -0,0 +1,287 @@
+package com.vkleban.glacier_backup.restore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.DownloadJob;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.progress.FileProgressListener;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+import com.vkleban.glacier_backup.shard.ShardRing;
+import com.vkleban.glacier_backup.slave.ArchiveReader;
+import com.vkleban.glacier_backup.slave.RetryLane;
+
+/**
+ * Restore of archives into a single tar stream, in the order they were asked for. Retrieval jobs complete in any
+ * order, so a completed job may overtake up to tar_reorder_window ones before it. Further ahead
+ * it waits. The window holds only the completed jobs, not their data: job output stays in Glacier for
+ * 24 hours and is streamed from there straight into the tar, so nothing is staged on local disk.
+ * Failed jobs and archives of unknown file size (encoded, from inventories without "OriginalSize", or compressed,
+ * from Glacier's listing) are left out
+ *
+ * @author vova
+ */
+public class TarRestore implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(TarRestore.class.getName());
+
+    private static class Entry {
+        final Archive archive_;
+        final String job_;
+        boolean ready_= false;
+        boolean taken_= false;
+        long size_= 0;
+
+        Entry(Archive archive, String job) {
+            archive_= archive;
+            job_= job;
+        }
+    }
+
+    private final Config c_= Config.get();
+    private final List<Entry> order_= new ArrayList<>();
+    private final Map<String, Entry> byJob_= new HashMap<>();
+    private final TransferProgress progress_;
+    private final TarOutputStream tar_;
+    private final Set<Archive> failed_= new LinkedHashSet<>();
+    private final Thread writer_;
+    // First entry not taken yet
+    private int head_= 0;
+    private IOException streamFailure_= null;
+
+    /**
+     * Start the writer of the tar stream
+     *
+     * @param jobs     - archives to their retrieval jobs in the order of the tar
+     * @param out      - the tar stream goes here
+     * @param progress - transfer progress of the restore
+     */
+    public TarRestore(Map<Archive, String> jobs, OutputStream out, TransferProgress progress) {
+        for (Map.Entry<Archive, String> job : jobs.entrySet()) {
+            Entry entry= new Entry(job.getKey(), job.getValue());
+            order_.add(entry);
+            byJob_.put(entry.job_, entry);
+        }
+        progress_= progress;
+        tar_= new TarOutputStream(out);
+        writer_= new Thread(this::write, "TarWriter");
+        writer_.start();
+    }
+
+    /**
+     * Report completion of a retrieval job
+     *
+     * @param job         - job ID
+     * @param succeeded   - false if the job has failed on Glacier
+     * @param archiveSize - size of the retrieved archive as reported by Glacier. null if not reported
+     */
+    public synchronized void ready(String job, boolean succeeded, Long archiveSize) {
+        Entry entry= byJob_.get(job);
+        if (entry == null || entry.ready_ || entry.taken_)
+            return;
+        if (succeeded) {
+            entry.ready_= true;
+            entry.size_= entry.archive_.getSize() != null
+                ? entry.archive_.getSize()
+                : archiveSize == null ? 0 : archiveSize;
+        } else {
+            entry.taken_= true;
+            failed_.add(entry.archive_);
+            log.severe("Download job of file \"" + entry.archive_.getFileName() + "\" using job \"" + job
+                + "\" has failed on Glacier. It is left out of the tar stream");
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return completed job to write next, the earliest one within the window. null when all entries are taken
+     * @throws InterruptedException
+     */
+    private synchronized Entry next() throws InterruptedException {
+        int window= Math.max(0, c_.tar_reorder_window);
+        while (true) {
+            while (head_ < order_.size() && order_.get(head_).taken_)
+                head_++;
+            if (head_ == order_.size())
+                return null;
+            for (int i= head_; i < order_.size() && i <= head_ + window; i++) {
+                Entry entry= order_.get(i);
+                if (entry.ready_ && !entry.taken_) {
+                    entry.taken_= true;
+                    return entry;
+                }
+            }
+            wait();
+        }
+    }
+
+    private void write() {
+        try {
+            Entry entry;
+            while ((entry= next()) != null) {
+                if (!writeEntry(entry)) {
+                    synchronized (this) {
+                        failed_.add(entry.archive_);
+                    }
+                }
+            }
+            tar_.finish();
+            log.info("Tar stream is complete");
+        } catch (InterruptedException e) {
+            log.warning("Tar stream has been stopped before its end");
+        } catch (IOException e) {
+            synchronized (this) {
+                streamFailure_= e;
+                // Nothing more can be written. Whatever is left fails
+                for (Entry left : order_) {
+                    if (!left.taken_)
+                        failed_.add(left.archive_);
+                    left.taken_= true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream single archive into the tar. A transient failure in the middle restarts the job output from its
+     * beginning, skipping what is already written, so that the whole tree hash is still checked
+     *
+     * @return true if the entry is complete and verified
+     * @throws IOException when the tar stream itself can't be written
+     */
+    private boolean writeEntry(Entry entry) throws IOException {
+        Archive archive= entry.archive_;
+        if (archive.getOriginalSize() == null && (archive.getCodec() != null || archive.getEncryptionKeyId() != null)) {
+            progress_.fileFailed(0, entry.size_);
+            log.severe("File size of encoded \"" + archive.getFileName()
+                + "\" is not in the inventory. It is left out of the tar stream");
+            return false;
+        }
+        DownloadJob job= new DownloadJob(entry.job_, archive, entry.size_);
+        // Archives of unknown encoding are sized once their start is read
+        long size= -1;
+        log.info("Streaming \"" + archive.getFileName() + "\" into the tar");
+        for (int attempt= 1;; attempt++) {
+            FileProgressListener listener= new FileProgressListener(progress_);
+            try (ArchiveReader reader= new ArchiveReader(ShardRing.get().forArchive(archive), job, listener)) {
+                if (size < 0) {
+                    if (reader.getFileSize() < 0)
+                        throw new IllegalStateException("\"" + archive.getFileName() + "\" is compressed and "
+                            + "Glacier's listing doesn't tell its file size");
+                    size= reader.getFileSize();
+                    try {
+                        tar_.putEntry(archive.getFileName(), size, System.currentTimeMillis());
+                    } catch (IOException e) {
+                        throw new TarWriteException(e);
+                    }
+                }
+                copy(reader.getContents(), size);
+                reader.verify();
+                if (tar_.getEntryWritten() != size)
+                    throw new IOException("\"" + archive.getFileName() + "\" is " + tar_.getEntryWritten()
+                        + " bytes, while " + size + " bytes were expected");
+            } catch (TarWriteException e) {
+                throw e.getCause();
+            } catch (IOException | RuntimeException e) {
+                if (attempt < c_.transfer_attempts && RetryLane.isTransient(e)) {
+                    progress_.attemptFailed(listener.getBytes());
+                    log.warning("Attempt " + attempt + " of " + c_.transfer_attempts + " of \""
+                        + archive.getFileName() + "\" has failed:\n" + e + "\nRestarting it");
+                    continue;
+                }
+                progress_.fileFailed(listener.getBytes(), entry.size_);
+                if (size < 0) {
+                    log.severe("Streaming of \"" + archive.getFileName() + "\" has failed:\n" + e + "\n"
+                        + "It is left out of the tar stream");
+                    return false;
+                }
+                long filled= tar_.closeEntry();
+                log.severe("Streaming of \"" + archive.getFileName() + "\" has failed:\n" + e + "\n"
+                    + (filled > 0 ? "Its tar entry is filled up with " + filled + " zero bytes" : "Its tar entry doesn't match the checksum"));
+                return false;
+            }
+            tar_.closeEntry();
+            progress_.fileCompleted();
+            return true;
+        }
+    }
+
+    /**
+     * Failure of the tar stream, as opposed to failure of the archive being read
+     */
+    private static class TarWriteException extends IOException {
+        private static final long serialVersionUID= 1L;
+
+        TarWriteException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Copy the contents into the tar entry, skipping the bytes written by earlier attempts
+     */
+    private void copy(InputStream in, long size) throws IOException {
+        byte[] buffer= new byte[1 << 16];
+        long written= tar_.getEntryWritten();
+        long position= 0;
+        int read;
+        while ((read= in.read(buffer)) > 0) {
+            int skip= (int) Math.max(0, Math.min(read, written - position));
+            position+= read;
+            if (position > size)
+                throw new IOException("Contents are longer than " + size + " bytes");
+            if (skip < read) {
+                try {
+                    tar_.write(buffer, skip, read - skip);
+                } catch (IOException e) {
+                    throw new TarWriteException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the writer to take all the entries and end the tar stream
+     *
+     * @return archives left out of the tar or written incompletely
+     * @throws IOException when the tar stream couldn't be written
+     */
+    public Set<Archive> finish() throws IOException {
+        try {
+            writer_.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (streamFailure_ != null)
+                throw streamFailure_;
+            return failed_;
+        }
+    }
+
+    /**
+     * Stop the writer, leaving the tar stream unfinished if it's still running
+     */
+    @Override
+    public void close() {
+        writer_.interrupt();
+        try {
+            writer_.join();
+        } catch (InterruptedException e) {}
+    }
+
+}
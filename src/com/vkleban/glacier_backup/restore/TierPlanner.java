@@ -0,0 +1,213 @@
+package com.vkleban.glacier_backup.restore;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.config.Config;
+
+/**
+ * Retrieval tier of every archive of a restore. Each archive gets its deadline: the one of the first
+ * retrieval_priorities glob matching its file, otherwise retrieval_deadline_hours. The archive then gets the cheapest
+ * tier, which retrieves and downloads it in time, or the fastest one, if none does. Without any deadline the archive
+ * gets retrieval_tier. Prediction of the whole restore lets the downloads share retrieval_bytes_per_second as the
+ * jobs complete
+ *
+ * @author vova
+ */
+public class TierPlanner {
+
+    private static final Logger log= Logger.getLogger(TierPlanner.class.getName());
+
+    /**
+     * Glacier retrieval tiers, fastest (and most expensive) first, with their worst case job completion time
+     */
+    public enum Tier {
+        EXPEDITED("Expedited", Duration.ofMinutes(5), 250L << 20),
+        STANDARD("Standard", Duration.ofHours(5), Long.MAX_VALUE),
+        BULK("Bulk", Duration.ofHours(12), Long.MAX_VALUE);
+
+        private final String name_;
+        private final Duration latency_;
+        private final long maxSize_;
+
+        private Tier(String name, Duration latency, long maxSize) {
+            name_= name;
+            latency_= latency;
+            maxSize_= maxSize;
+        }
+
+        /**
+         * @return name of the tier in Glacier requests
+         */
+        public String getName() {
+            return name_;
+        }
+
+        public Duration getLatency() {
+            return latency_;
+        }
+
+        /**
+         * @return next slower tier. null for the slowest one
+         */
+        public Tier slower() {
+            return ordinal() + 1 < values().length ? values()[ordinal() + 1] : null;
+        }
+
+        /**
+         * @param name - tier name as in Glacier requests, any case
+         * @return the tier
+         * @throws IllegalArgumentException when there is no such tier
+         */
+        public static Tier forName(String name) {
+            for (Tier tier : values()) {
+                if (tier.name_.equalsIgnoreCase(name))
+                    return tier;
+            }
+            throw new IllegalArgumentException("Unknown retrieval tier \"" + name + "\"");
+        }
+    }
+
+    private final Config c_= Config.get();
+    private final Tier defaultTier_= Tier.forName(c_.retrieval_tier);
+    private final Map<PathMatcher, Duration> priorities_= new LinkedHashMap<>();
+    private final Duration deadline_;
+    // Set once Glacier has refused Expedited capacity, so that the rest of the restore doesn't ask again
+    private volatile boolean expeditedRefused_= false;
+
+    public TierPlanner() {
+        for (Map.Entry<String, Double> priority : c_.retrieval_priorities.entrySet())
+            priorities_.put(FileSystems.getDefault().getPathMatcher("glob:" + priority.getKey()), hours(priority.getValue()));
+        deadline_= c_.retrieval_deadline_hours > 0 ? hours(c_.retrieval_deadline_hours) : null;
+    }
+
+    private static Duration hours(double hours) {
+        return Duration.ofMillis((long) (hours * 3600000));
+    }
+
+    /**
+     * @return deadline of the archive. null if it has none
+     */
+    private Duration deadline(Archive archive) {
+        for (Map.Entry<PathMatcher, Duration> priority : priorities_.entrySet()) {
+            if (priority.getKey().matches(Paths.get(archive.getFileName())))
+                return priority.getValue();
+        }
+        return deadline_;
+    }
+
+    private static long size(Archive archive) {
+        return archive.getSize() == null ? 0 : archive.getSize();
+    }
+
+    private Duration downloadTime(long bytes) {
+        return Duration.ofMillis(c_.retrieval_bytes_per_second > 0 ? bytes * 1000 / c_.retrieval_bytes_per_second : 0);
+    }
+
+    private boolean available(Tier tier, Archive archive) {
+        return size(archive) <= tier.maxSize_ && !(tier == Tier.EXPEDITED && expeditedRefused_);
+    }
+
+    /**
+     * @param archive - archive to retrieve
+     * @return the cheapest tier completing the archive by its deadline
+     */
+    public Tier plan(Archive archive) {
+        Duration deadline= deadline(archive);
+        if (deadline == null)
+            return available(defaultTier_, archive) ? defaultTier_ : slower(defaultTier_, archive);
+        Tier[] tiers= Tier.values();
+        Tier fastest= null;
+        for (int i= tiers.length - 1; i >= 0; i--) {
+            if (!available(tiers[i], archive))
+                continue;
+            if (tiers[i].latency_.plus(downloadTime(size(archive))).compareTo(deadline) <= 0)
+                return tiers[i];
+            fastest= tiers[i];
+        }
+        log.warning("\"" + archive.getFileName() + "\" can't be restored within " + deadline.toMinutes()
+            + " minutes by any tier. Retrieving it " + fastest.name_);
+        return fastest;
+    }
+
+    /**
+     * @param refused - tier Glacier has refused for lack of capacity
+     * @param archive - archive to retrieve
+     * @return next slower tier to try. null if there is none
+     */
+    public Tier fallback(Tier refused, Archive archive) {
+        if (refused == Tier.EXPEDITED && !expeditedRefused_) {
+            expeditedRefused_= true;
+            log.warning("Glacier has no Expedited capacity. The rest of the restore is retrieved by slower tiers");
+        }
+        return slower(refused, archive);
+    }
+
+    /**
+     * @return the fastest tier slower than given one, which can retrieve the archive. null if there is none
+     */
+    private Tier slower(Tier tier, Archive archive) {
+        for (Tier slower= tier.slower(); slower != null; slower= slower.slower()) {
+            if (available(slower, archive))
+                return slower;
+        }
+        return null;
+    }
+
+    /**
+     * Predict completion of the restore: archives download one after another at retrieval_bytes_per_second,
+     * each once its job has completed
+     *
+     * @param tiers - archives to their initiated tiers
+     * @return completion time of the restore from now
+     */
+    public Duration predict(Map<Archive, Tier> tiers) {
+        List<Map.Entry<Archive, Tier>> byReadiness= new ArrayList<>(tiers.entrySet());
+        byReadiness.sort(Comparator.comparing(entry -> entry.getValue().latency_));
+        Duration linkFree= Duration.ZERO;
+        for (Map.Entry<Archive, Tier> entry : byReadiness) {
+            Duration start= entry.getValue().latency_.compareTo(linkFree) > 0 ? entry.getValue().latency_ : linkFree;
+            linkFree= start.plus(downloadTime(size(entry.getKey())));
+        }
+        return linkFree;
+    }
+
+    /**
+     * @param tiers - archives to their initiated tiers
+     * @return files and bytes per tier, predicted completion time and the archives likely to miss their deadlines
+     */
+    public String report(Map<Archive, Tier> tiers) {
+        Map<Tier, long[]> totals= new EnumMap<>(Tier.class);
+        for (Map.Entry<Archive, Tier> entry : tiers.entrySet()) {
+            long[] total= totals.computeIfAbsent(entry.getValue(), t -> new long[2]);
+            total[0]++;
+            total[1]+= size(entry.getKey());
+        }
+        StringBuilder report= new StringBuilder("Retrieval plan:");
+        for (Map.Entry<Tier, long[]> total : totals.entrySet())
+            report.append(" ").append(total.getKey().name_).append(" ").append(total.getValue()[0])
+                .append(" files (").append(total.getValue()[1]).append(" bytes);");
+        Duration completion= predict(tiers);
+        report.append(" predicted completion at ").append(LocalDateTime.now().plus(completion).withNano(0))
+            .append(" (in ").append(completion.toMinutes()).append(" minutes)");
+        for (Map.Entry<Archive, Tier> entry : tiers.entrySet()) {
+            Duration deadline= deadline(entry.getKey());
+            if (deadline != null && entry.getValue().latency_.plus(downloadTime(size(entry.getKey()))).compareTo(deadline) > 0)
+                report.append("\nMay miss its deadline: \"").append(entry.getKey().getFileName())
+                    .append("\" (").append(entry.getValue().name_).append(")");
+        }
+        return report.toString();
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.vkleban.glacier_backup.scan;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.vkleban.glacier_backup.config.Config;
+
+/**
+ * Parallel walk of root_dir. Every directory is listed by its own task on a work-stealing pool, so that slow
+ * network file systems are listed by many threads at once. Regular files passing include/exclude globs
+ * (relative to root_dir) are streamed to the consumer as soon as they are found, with their stat data.
+ * Excluded directories are not entered. Symbolic links are not followed. Directories and files, which can't be read,
+ * are skipped and the walk goes on, but the scan then ends with an error, so that it isn't taken for a complete one
+ *
+ * @author vova
+ */
+public class FileScanner implements Iterator<LocalFile>, AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(FileScanner.class.getName());
+
+    // Found files waiting for the consumer. The walk pauses when the consumer lags behind
+    private static final int QUEUE= 10000;
+    private static final LocalFile END= new LocalFile(null, 0, 0, null);
+
+    private final Path root_;
+    private final PathFilter filter_= new PathFilter();
+    private final ForkJoinPool pool_;
+    private final BlockingQueue<LocalFile> found_= new LinkedBlockingQueue<>(QUEUE);
+    private final Thread thread_;
+    private LocalFile next_= null;
+    // Directories and files, which couldn't be read, and the first of them
+    private final AtomicInteger failures_= new AtomicInteger();
+    private volatile String firstFailure_= null;
+
+    private class ListDirectory extends RecursiveAction {
+
+        private static final long serialVersionUID= 1L;
+
+        private final Path directory_;
+
+        ListDirectory(Path directory) {
+            directory_= directory;
+        }
+
+        @Override
+        protected void compute() {
+            List<ListDirectory> subdirectories= new ArrayList<>();
+            try (DirectoryStream<Path> entries= Files.newDirectoryStream(directory_)) {
+                for (Path entry : entries) {
+                    Path relative= root_.relativize(entry);
+                    if (filter_.excludes(relative))
+                        continue;
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes= Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        log.fine("\"" + entry + "\" is gone");
+                        continue;
+                    } catch (IOException | RuntimeException e) {
+                        failed(entry, e);
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        ListDirectory subdirectory= new ListDirectory(entry);
+                        subdirectory.fork();
+                        subdirectories.add(subdirectory);
+                    } else if (attributes.isRegularFile() && filter_.accepts(relative)) {
+                        found_.put(new LocalFile(relative.toString(), attributes));
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                log.fine("\"" + directory_ + "\" is gone");
+            } catch (IOException | RuntimeException e) {
+                // Also DirectoryIteratorException and SecurityException. The subdirectories found so far are listed
+                failed(directory_, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            for (ListDirectory subdirectory : subdirectories)
+                subdirectory.join();
+        }
+    }
+
+    /**
+     * Start scanning configured root_dir by configured rules
+     */
+    public FileScanner() {
+        Config c= Config.get();
+        root_= Paths.get(c.root_dir);
+        pool_= new ForkJoinPool(c.scan_threads);
+        thread_= new Thread(() -> {
+            long start= System.nanoTime();
+            try {
+                pool_.invoke(new ListDirectory(root_));
+                log.info("Scan of \"" + root_ + "\" has ended in " + (System.nanoTime() - start) / 1000000 + " ms, "
+                    + failures_.get() + " directories or files skipped");
+            } catch (RuntimeException | Error e) {
+                failed(root_, e);
+            } finally {
+                try {
+                    found_.put(END);
+                } catch (InterruptedException e) {}
+            }
+        }, "FileScanner");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    private void failed(Path path, Throwable e) {
+        log.warning("Skipping unreadable \"" + path + "\": " + e);
+        if (failures_.getAndIncrement() == 0)
+            firstFailure_= "\"" + path + "\": " + e;
+    }
+
+    /**
+     * @throws UncheckedIOException at the end of the scan, if anything couldn't be read
+     */
+    @Override
+    public boolean hasNext() {
+        if (next_ == null) {
+            try {
+                next_= found_.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                next_= END;
+                return false;
+            }
+        }
+        if (next_ == END && failures_.get() > 0)
+            throw new UncheckedIOException(new IOException("Scan of \"" + root_ + "\" is incomplete: "
+                + failures_.get() + " directories or files couldn't be read, the first one " + firstFailure_));
+        return next_ != END;
+    }
+
+    @Override
+    public LocalFile next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        LocalFile file= next_;
+        next_= null;
+        return file;
+    }
+
+    /**
+     * @return the scan as a stream, which stops the scan when closed
+     */
+    public Stream<LocalFile> stream() {
+        return StreamSupport
+            .stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(this::close);
+    }
+
+    @Override
+    public void close() {
+        pool_.shutdownNow();
+        thread_.interrupt();
+    }
+
+}
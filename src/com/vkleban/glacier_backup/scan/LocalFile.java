@@ -0,0 +1,79 @@
+package com.vkleban.glacier_backup.scan;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * File to be uploaded: path relative to root_dir along with its stat data
+ *
+ * @author vova
+ */
+public class LocalFile {
+
+    private final String path_;
+    private final long size_;
+    private final long modified_;
+    private final Object fileKey_;
+
+    /**
+     * @param path     - path relative to root_dir
+     * @param size     - file size in bytes
+     * @param modified - last modification time in milliseconds since epoch
+     * @param fileKey  - file system identity of the file (e.g. device and inode). null if unknown
+     */
+    public LocalFile(String path, long size, long modified, Object fileKey) {
+        path_= path;
+        size_= size;
+        modified_= modified;
+        fileKey_= fileKey;
+    }
+
+    /**
+     * @param path       - path relative to root_dir
+     * @param attributes - stat data of the file
+     */
+    public LocalFile(String path, BasicFileAttributes attributes) {
+        this(path, attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+    }
+
+    /**
+     * Stat given file. Missing or unreadable files get zero size, so that they fail at upload and get reported
+     *
+     * @param root - root directory
+     * @param path - path relative to the root
+     * @return the file with its stat data
+     */
+    public static LocalFile stat(String root, String path) {
+        try {
+            return new LocalFile(path,
+                Files.readAttributes(Paths.get(root, path), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException e) {
+            return new LocalFile(path, 0, 0, null);
+        }
+    }
+
+    public String getPath() {
+        return path_;
+    }
+
+    public long getSize() {
+        return size_;
+    }
+
+    public long getModified() {
+        return modified_;
+    }
+
+    public Object getFileKey() {
+        return fileKey_;
+    }
+
+    @Override
+    public String toString() {
+        return path_;
+    }
+
+}
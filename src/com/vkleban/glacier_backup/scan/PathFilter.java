@@ -0,0 +1,53 @@
+package com.vkleban.glacier_backup.scan;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vkleban.glacier_backup.config.Config;
+
+/**
+ * Configured scan_include/scan_exclude globs, matched against paths relative to root_dir
+ *
+ * @author vova
+ */
+public class PathFilter {
+
+    private final List<PathMatcher> include_= new ArrayList<>();
+    private final List<PathMatcher> exclude_= new ArrayList<>();
+
+    public PathFilter() {
+        Config c= Config.get();
+        for (String glob : c.scan_include)
+            include_.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        for (String glob : c.scan_exclude)
+            exclude_.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    private static boolean matches(List<PathMatcher> matchers, Path path) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(path))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param relative - file or directory path relative to root_dir
+     * @return true if the path is excluded. Excluded directories are not entered
+     */
+    public boolean excludes(Path relative) {
+        return matches(exclude_, relative);
+    }
+
+    /**
+     * @param relative - regular file path relative to root_dir
+     * @return true if the file is to be backed up
+     */
+    public boolean accepts(Path relative) {
+        return !excludes(relative) && (include_.isEmpty() || matches(include_, relative));
+    }
+
+}
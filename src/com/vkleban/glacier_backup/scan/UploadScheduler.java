@@ -0,0 +1,127 @@
+package com.vkleban.glacier_backup.scan;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reorders files to be uploaded within a bounded lookahead window, so that streamed input keeps streaming.
+ * Large files go largest first: the longest transfers start early instead of leaving one slave working alone
+ * at the end of the run. Small files go a directory at a time in inode order, which keeps disk reads local.
+ * The directory with most bytes in the window goes first
+ *
+ * @author vova
+ */
+public class UploadScheduler implements Iterator<LocalFile> {
+
+    // Inode number in the file key of Unix file systems, e.g. "(dev=803,ino=1234)"
+    private static final Pattern INODE= Pattern.compile("ino=(\\d+)");
+
+    private final Iterator<LocalFile> source_;
+    private final int lookahead_;
+    private final long small_;
+    private final PriorityQueue<LocalFile> large_= new PriorityQueue<>(
+        Comparator.comparingLong(LocalFile::getSize).reversed());
+    private final Map<Path, List<LocalFile>> directories_= new HashMap<>();
+    private final Map<Path, Long> directoryBytes_= new HashMap<>();
+    // Directory being given out
+    private final Deque<LocalFile> batch_= new ArrayDeque<>();
+    private int window_= 0;
+
+    /**
+     * @param source    - files in input order
+     * @param lookahead - number of files to reorder at a time
+     * @param small     - files up to this size in bytes are grouped by directory
+     */
+    public UploadScheduler(Iterator<LocalFile> source, int lookahead, long small) {
+        source_= source;
+        lookahead_= Math.max(1, lookahead);
+        small_= small;
+    }
+
+    /**
+     * @param files     - files in input order
+     * @param lookahead - number of files to reorder at a time. 0 or less keeps input order
+     * @param small     - files up to this size in bytes are grouped by directory
+     * @return the files in upload order. Closing it closes the input stream
+     */
+    public static Stream<LocalFile> order(Stream<LocalFile> files, int lookahead, long small) {
+        if (lookahead <= 0)
+            return files;
+        UploadScheduler scheduler= new UploadScheduler(files.iterator(), lookahead, small);
+        return StreamSupport
+            .stream(Spliterators.spliteratorUnknownSize(scheduler, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(files::close);
+    }
+
+    private static long inode(LocalFile file) {
+        if (file.getFileKey() == null)
+            return Long.MAX_VALUE;
+        Matcher matcher= INODE.matcher(file.getFileKey().toString());
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : Long.MAX_VALUE;
+    }
+
+    private void fill() {
+        while (window_ < lookahead_ && source_.hasNext()) {
+            LocalFile file= source_.next();
+            window_++;
+            if (file.getSize() > small_) {
+                large_.add(file);
+            } else {
+                Path parent= Paths.get(file.getPath()).getParent();
+                directories_.computeIfAbsent(parent, p -> new ArrayList<>()).add(file);
+                directoryBytes_.merge(parent, file.getSize(), Long::sum);
+            }
+        }
+    }
+
+    private void nextDirectory() {
+        Path busiest= null;
+        long bytes= -1;
+        for (Map.Entry<Path, Long> directory : directoryBytes_.entrySet()) {
+            if (directory.getValue() > bytes) {
+                busiest= directory.getKey();
+                bytes= directory.getValue();
+            }
+        }
+        directoryBytes_.remove(busiest);
+        List<LocalFile> files= directories_.remove(busiest);
+        files.sort(Comparator.comparingLong(UploadScheduler::inode).thenComparing(LocalFile::getPath));
+        batch_.addAll(files);
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        return window_ > 0;
+    }
+
+    @Override
+    public LocalFile next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        window_--;
+        if (!batch_.isEmpty())
+            return batch_.removeFirst();
+        if (!large_.isEmpty())
+            return large_.poll();
+        nextDirectory();
+        return batch_.removeFirst();
+    }
+
+}
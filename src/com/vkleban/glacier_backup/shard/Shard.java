@@ -0,0 +1,100 @@
+package com.vkleban.glacier_backup.shard;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.transfer.ArchiveTransferManager;
+import com.amazonaws.services.glacier.transfer.ArchiveTransferManagerBuilder;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.vkleban.glacier_backup.GlacierClient;
+import com.vkleban.glacier_backup.slave.MultipartUploader;
+
+/**
+ * Single vault holding part of the backup, with its own clients (and so its own connection pool) in the vault's region.
+ * The clients are created on first use
+ *
+ * @author vova
+ */
+public class Shard extends GlacierClient {
+
+    private final String name_;
+    private final String region_;
+    private final String vault_;
+    private final String snsTopicArn_;
+    private volatile ArchiveTransferManager transferManager_;
+    private volatile MultipartUploader uploader_;
+
+    /**
+     * @param name        - name recorded in the inventory. null for the single vault of an unsharded backup
+     * @param region      - region of the vault
+     * @param vault       - vault name
+     * @param snsTopicArn - topic of job notifications in the region
+     */
+    Shard(String name, String region, String vault, String snsTopicArn) {
+        super(region);
+        name_= name;
+        region_= region;
+        vault_= vault;
+        snsTopicArn_= snsTopicArn;
+    }
+
+    /**
+     * @return name recorded in the inventory. null for the single vault of an unsharded backup
+     */
+    public String getName() {
+        return name_;
+    }
+
+    public String getRegion() {
+        return region_;
+    }
+
+    public String getVault() {
+        return vault_;
+    }
+
+    public String getSnsTopicArn() {
+        return snsTopicArn_;
+    }
+
+    public AmazonGlacier getGlacier() {
+        return glacier();
+    }
+
+    public AmazonSQS getSQS() {
+        return sqs();
+    }
+
+    public AmazonSNS getSNS() {
+        return sns();
+    }
+
+    public ArchiveTransferManager getTransferManager() {
+        if (transferManager_ == null) {
+            synchronized (this) {
+                if (transferManager_ == null)
+                    transferManager_= new ArchiveTransferManagerBuilder()
+                        .withGlacierClient(glacier())
+                        .withSqsClient(sqs())
+                        .withSnsClient(sns())
+                        .build();
+            }
+        }
+        return transferManager_;
+    }
+
+    public MultipartUploader getUploader() {
+        if (uploader_ == null) {
+            synchronized (this) {
+                if (uploader_ == null)
+                    uploader_= new MultipartUploader(glacier(), vault_);
+            }
+        }
+        return uploader_;
+    }
+
+    @Override
+    public String toString() {
+        return region_ + "/" + vault_;
+    }
+
+}
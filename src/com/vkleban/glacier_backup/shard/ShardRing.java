@@ -0,0 +1,217 @@
+package com.vkleban.glacier_backup.shard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.InitException;
+import com.vkleban.glacier_backup.config.Config;
+
+/**
+ * Vaults the backup is spread over. Files are placed by consistent hashing of their paths, so that adding
+ * a shard moves only its share of the files. Every archive records the shard it was uploaded to, and that
+ * is where its downloads and removals go. Without configured shards the backup is the single configured
+ * vault, which is not recorded in the inventory
+ *
+ * @author vova
+ */
+public class ShardRing {
+
+    // Points of every shard on the ring. Evens out the share of each shard
+    private static final int POINTS= 128;
+
+    private static ShardRing instance_= null;
+
+    private final List<Shard> shards_= new ArrayList<>();
+    private final Map<String, Shard> byName_= new LinkedHashMap<>();
+    private final TreeMap<Long, Shard> ring_= new TreeMap<>();
+
+    /**
+     * Work done on a single shard
+     *
+     * @param <T> - result of the work
+     */
+    @FunctionalInterface
+    public interface ShardTask<T> {
+        T run(Shard shard) throws Exception;
+    }
+
+    private ShardRing(Config c) {
+        if (c.shards.isEmpty()) {
+            shards_.add(new Shard(null, c.region, c.vault, c.sns_topic_arn));
+            return;
+        }
+        for (Config.Shard target : c.shards) {
+            Shard shard= new Shard(target.region + "/" + target.vault,
+                                   target.region,
+                                   target.vault,
+                                   target.sns_topic_arn.isEmpty() ? c.sns_topic_arn : target.sns_topic_arn);
+            shards_.add(shard);
+            byName_.put(shard.getName(), shard);
+            for (int i= 0; i < POINTS; i++)
+                ring_.put(hash(shard.getName() + "#" + i), shard);
+        }
+    }
+
+    /**
+     * Check the configured shards and place them on the ring. Their AWS clients are created on first use
+     *
+     * @throws InitException when shards are misconfigured
+     */
+    public static synchronized void init() throws InitException {
+        Config c= Config.get();
+        Set<String> seen= new HashSet<>();
+        for (Config.Shard target : c.shards) {
+            if (!seen.add(target.region + "/" + target.vault))
+                throw new InitException("Shard \"" + target.region + "/" + target.vault + "\" is configured twice");
+        }
+        try {
+            instance_= new ShardRing(c);
+        } catch (Exception e) {
+            throw new InitException("Failed placing the shards on the ring", e);
+        }
+    }
+
+    public static synchronized ShardRing get() {
+        if (instance_ == null)
+            throw new RuntimeException("Forgot to initialize shards. Please fix the code");
+        return instance_;
+    }
+
+    private static long hash(String key) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)))
+                .getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if the backup is spread over several vaults
+     */
+    public boolean isSharded() {
+        return !byName_.isEmpty();
+    }
+
+    /**
+     * @return all the shards
+     */
+    public List<Shard> getShards() {
+        return Collections.unmodifiableList(shards_);
+    }
+
+    /**
+     * @param path - file path relative to root_dir
+     * @return shard the file goes to
+     */
+    public Shard forPath(String path) {
+        if (!isSharded())
+            return shards_.get(0);
+        SortedMap<Long, Shard> tail= ring_.tailMap(hash(path));
+        return tail.isEmpty() ? ring_.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * @param archive - archive of the backup
+     * @return shard holding the archive
+     * @throws IllegalArgumentException when the archive's shard is not configured
+     */
+    public Shard forArchive(Archive archive) {
+        if (archive.getShard() == null) {
+            if (isSharded())
+                throw new IllegalArgumentException("Archive of \"" + archive.getFileName()
+                    + "\" has no shard recorded, while the configuration is sharded");
+            return shards_.get(0);
+        }
+        Shard shard= byName_.get(archive.getShard());
+        if (shard == null)
+            throw new IllegalArgumentException("Archive of \"" + archive.getFileName()
+                + "\" is in shard \"" + archive.getShard() + "\", which is not configured");
+        return shard;
+    }
+
+    /**
+     * @param archives - archives of the backup
+     * @return the archives by the shard holding them, in the original order
+     */
+    public Map<Shard, List<Archive>> group(Collection<Archive> archives) {
+        Map<Shard, List<Archive>> groups= new LinkedHashMap<>();
+        for (Archive archive : archives)
+            groups.computeIfAbsent(forArchive(archive), s -> new ArrayList<>()).add(archive);
+        return groups;
+    }
+
+    /**
+     * Run the task on given shards at once, a thread per shard
+     *
+     * @param shards - shards to run the task on
+     * @param task   - the task
+     * @return results of the task by shard
+     * @throws IOException when a task fails. Unchecked failures are thrown as they are
+     */
+    public static <T> Map<Shard, T> onEach(Collection<Shard> shards, ShardTask<T> task) throws IOException {
+        Map<Shard, T> results= new LinkedHashMap<>();
+        if (shards.size() == 1) {
+            Shard shard= shards.iterator().next();
+            results.put(shard, call(shard, task));
+            return results;
+        }
+        ExecutorService executor= Executors.newFixedThreadPool(Math.max(1, shards.size()));
+        try {
+            Map<Shard, Future<T>> futures= new LinkedHashMap<>();
+            for (Shard shard : shards)
+                futures.put(shard, executor.submit(() -> task.run(shard)));
+            for (Map.Entry<Shard, Future<T>> future : futures.entrySet()) {
+                try {
+                    results.put(future.getKey(), future.getValue().get());
+                } catch (ExecutionException e) {
+                    rethrow(future.getKey(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for shard \"" + future.getKey() + "\"", e);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T call(Shard shard, ShardTask<T> task) throws IOException {
+        try {
+            return task.run(shard);
+        } catch (Exception e) {
+            rethrow(shard, e);
+            return null;
+        }
+    }
+
+    private static void rethrow(Shard shard, Throwable e) throws IOException {
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        if (e instanceof IOException)
+            throw (IOException) e;
+        throw new IOException("Failed working on shard \"" + shard + "\"", e);
+    }
+
+}
@@ -0,0 +1,288 @@
+package com.vkleban.glacier_backup.simulator;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.google.gson.JsonObject;
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.BackupMaster;
+import com.vkleban.glacier_backup.config.Config;
+
+/**
+ * In-process emulation of Amazon Glacier, SQS and SNS for offline load testing.
+ * All clients share a single state, so that upload slaves, download slaves and status monitor
+ * see the same vault, jobs and queues. Latency, bandwidth cap, throttling and job completion
+ * delay are taken from "simulator" configuration section
+ *
+ * @author vova
+ */
+public class SimulatedAws {
+
+    private static final Logger log= Logger.getLogger(SimulatedAws.class.getName());
+
+    static final String ACCOUNT= "000000000000";
+
+    private static SimulatedAws instance_= null;
+
+    private final Config.Simulator c_;
+    private final String region_;
+    private final Random random_= new Random();
+    private final ScheduledExecutorService scheduler_;
+    // Nanosecond timestamp when the simulated link becomes free
+    private long linkFreeNanos_= 0;
+
+    // Topic ARN to subscribed queue ARNs
+    private final Map<String, Set<String>> subscriptions_= new ConcurrentHashMap<>();
+
+    private final SimulatedGlacier glacier_;
+    private final SimulatedSQS sqs_;
+    private final AmazonSNS sns_;
+
+    private SimulatedAws(Config c) {
+        c_= c.simulator;
+        region_= c.region;
+        scheduler_= Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread= new Thread(r, "SimulatedGlacierJobs");
+            thread.setDaemon(true);
+            return thread;
+        });
+        glacier_= new SimulatedGlacier(this);
+        sqs_= new SimulatedSQS(this);
+        sns_= new SimulatedSNS(this).client();
+        log.warning("Amazon services are SIMULATED in-process. Nothing is transferred to Amazon");
+        if (!c_.inventory.isEmpty())
+            seed(c.vault, Paths.get(c_.inventory));
+    }
+
+    /**
+     * Populate simulated vault with archives of given inventory. Their data is not known,
+     * so they are downloaded as zeros
+     *
+     * @param vault     - vault to populate
+     * @param inventory - inventory file
+     */
+    private void seed(String vault, Path inventory) {
+        try {
+            Set<Archive> archives= BackupMaster.parseInventoryJSONToArchiveFileMap(
+                new String(Files.readAllBytes(inventory), StandardCharsets.UTF_8));
+            for (Archive archive : archives) {
+                // Archives of a sharded backup go to the vault of their shard ("region/vault")
+                String shard= archive.getShard();
+                glacier_.seed(shard == null ? vault : shard.substring(shard.indexOf('/') + 1), archive);
+            }
+            log.info("Simulated vault \"" + vault + "\" is populated with " + archives.size() + " archives");
+        } catch (IOException e) {
+            throw new AmazonClientException("Failed populating simulated vault from \"" + inventory + "\"", e);
+        }
+    }
+
+    /**
+     * @return the simulator shared by all the clients of this process
+     */
+    public static synchronized SimulatedAws get() {
+        if (instance_ == null)
+            instance_= new SimulatedAws(Config.get());
+        return instance_;
+    }
+
+    public AmazonGlacier glacier() {
+        return glacier_;
+    }
+
+    public AmazonSQS sqs() {
+        return sqs_;
+    }
+
+    public AmazonSNS sns() {
+        return sns_;
+    }
+
+    String region() {
+        return region_;
+    }
+
+    boolean keepData() {
+        return c_.keep_data;
+    }
+
+    /**
+     * Emulate request round trip latency
+     */
+    void request() {
+        if (c_.request_latency_milliseconds <= 0)
+            return;
+        try {
+            Thread.sleep(c_.request_latency_milliseconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Publish progress event the same way AWS clients do
+     *
+     * @param listener - request progress listener. Can be null
+     * @param type     - event type
+     * @param bytes    - number of bytes of byte transfer events
+     */
+    static void publish(ProgressListener listener, ProgressEventType type, long bytes) {
+        if (listener != null)
+            listener.progressChanged(new ProgressEvent(type, bytes));
+    }
+
+    /**
+     * Emulate Glacier request round trip, which can be throttled. Request progress listener is notified
+     * about request sent and response started, so that the service latency can be measured
+     *
+     * @param operation - name of the operation for the error message
+     * @param request   - the request
+     */
+    void glacierRequest(String operation, AmazonWebServiceRequest request) {
+        ProgressListener listener= request.getGeneralProgressListener();
+        publish(listener, ProgressEventType.HTTP_REQUEST_COMPLETED_EVENT, 0);
+        request();
+        publish(listener, ProgressEventType.HTTP_RESPONSE_STARTED_EVENT, 0);
+        if (c_.throttling_probability > 0 && random_.nextDouble() < c_.throttling_probability) {
+            log.finer("Throttling simulated \"" + operation + "\"");
+            AmazonServiceException e= new AmazonServiceException("Rate exceeded (simulated " + operation + ")");
+            e.setErrorCode("ThrottlingException");
+            e.setErrorType(ErrorType.Client);
+            e.setStatusCode(400);
+            e.setServiceName("AmazonGlacier");
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if Expedited capacity is to be refused this time
+     */
+    boolean refuseExpedited() {
+        return c_.expedited_refusal_probability > 0 && random_.nextDouble() < c_.expedited_refusal_probability;
+    }
+
+    /**
+     * Block the caller for as long as it takes to move given number of bytes through the simulated link,
+     * which is shared by all the simulated transfers
+     *
+     * @param bytes - number of bytes transferred
+     */
+    void pace(long bytes) {
+        long rate= c_.bandwidth_bytes_per_second;
+        if (rate <= 0 || bytes <= 0)
+            return;
+        long until;
+        synchronized (this) {
+            long now= System.nanoTime();
+            linkFreeNanos_= Math.max(now, linkFreeNanos_) + bytes * 1000000000L / rate;
+            until= linkFreeNanos_;
+        }
+        long waitNanos;
+        while ((waitNanos= until - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param in       - stream to pace
+     * @param listener - progress listener to notify about transferred bytes. Can be null
+     * @param type     - byte transfer event type (request or response bytes)
+     * @return stream which is read no faster than the simulated link allows
+     */
+    InputStream paced(InputStream in, ProgressListener listener, ProgressEventType type) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int value= super.read();
+                if (value >= 0) {
+                    pace(1);
+                    publish(listener, type, 1);
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read= super.read(b, off, len);
+                if (read > 0) {
+                    pace(read);
+                    publish(listener, type, read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Run given action after job completion delay
+     *
+     * @param action - action to run
+     */
+    void completeLater(Runnable action) {
+        scheduler_.schedule(action, c_.job_completion_milliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    void subscribe(String topicArn, String queueArn) {
+        subscriptions_.computeIfAbsent(topicArn, t -> ConcurrentHashMap.newKeySet()).add(queueArn);
+    }
+
+    void unsubscribe(String topicArn, String queueArn) {
+        Set<String> queues= subscriptions_.get(topicArn);
+        if (queues != null)
+            queues.remove(queueArn);
+    }
+
+    /**
+     * Deliver SNS notification to all the queues subscribed to the topic
+     *
+     * @param topicArn - SNS topic
+     * @param message  - notification message (JSON)
+     */
+    void publish(String topicArn, String message) {
+        Set<String> queues= subscriptions_.get(topicArn);
+        if (queues == null || queues.isEmpty()) {
+            log.finer("Nobody is subscribed to \"" + topicArn + "\". Dropping notification");
+            return;
+        }
+        JsonObject envelope= new JsonObject();
+        envelope.addProperty("Type", "Notification");
+        envelope.addProperty("MessageId", UUID.randomUUID().toString());
+        envelope.addProperty("TopicArn", topicArn);
+        envelope.addProperty("Message", message);
+        String body= envelope.toString();
+        List<String> targets= new ArrayList<>(queues);
+        for (String queueArn : targets)
+            sqs_.deliver(queueArn, body);
+    }
+
+}
@@ -0,0 +1,554 @@
+package com.vkleban.glacier_backup.simulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.services.glacier.AbstractAmazonGlacier;
+import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.services.glacier.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.AbortMultipartUploadResult;
+import com.amazonaws.services.glacier.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.glacier.model.DeleteArchiveRequest;
+import com.amazonaws.services.glacier.model.DeleteArchiveResult;
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.GetJobOutputRequest;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+import com.amazonaws.services.glacier.model.GlacierJobDescription;
+import com.amazonaws.services.glacier.model.InitiateJobRequest;
+import com.amazonaws.services.glacier.model.InitiateJobResult;
+import com.amazonaws.services.glacier.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.glacier.model.InsufficientCapacityException;
+import com.amazonaws.services.glacier.model.JobParameters;
+import com.amazonaws.services.glacier.model.ListJobsRequest;
+import com.amazonaws.services.glacier.model.ListJobsResult;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+import com.amazonaws.services.glacier.model.StatusCode;
+import com.amazonaws.services.glacier.model.UploadArchiveRequest;
+import com.amazonaws.services.glacier.model.UploadArchiveResult;
+import com.amazonaws.services.glacier.model.UploadMultipartPartRequest;
+import com.amazonaws.services.glacier.model.UploadMultipartPartResult;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.vkleban.glacier_backup.Archive;
+
+/**
+ * Simulated Glacier vault. Keeps archives in memory (or only their sizes and checksums),
+ * completes jobs after configured delay and notifies about it through simulated SNS
+ *
+ * @author vova
+ */
+class SimulatedGlacier extends AbstractAmazonGlacier {
+
+    private static final Logger log= Logger.getLogger(SimulatedGlacier.class.getName());
+
+    private static final int CHUNK= 1024 * 1024;
+    // Contents of archives, which data is not kept
+    private static final byte[] ZEROS= new byte[CHUNK];
+    private static final Pattern PART_RANGE= Pattern.compile("bytes (\\d+)-(\\d+)/\\*");
+    private static final Pattern OUTPUT_RANGE= Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    /**
+     * Stored archive. Data is null unless configured to keep it
+     */
+    private static class StoredArchive {
+        final String id_;
+        final String description_;
+        final String creationDate_= Instant.now().toString();
+        final long size_;
+        final String treeHash_;
+        final byte[] data_;
+
+        StoredArchive(String id, String description, long size, String treeHash, byte[] data) {
+            id_= id;
+            description_= description;
+            size_= size;
+            treeHash_= treeHash;
+            data_= data;
+        }
+    }
+
+    /**
+     * Multipart upload in progress. Part offset to part data (or null) and part chunk digests
+     */
+    private static class Upload {
+        final String description_;
+        final long partSize_;
+        final TreeMap<Long, byte[]> data_= new TreeMap<>();
+        final TreeMap<Long, List<byte[]>> digests_= new TreeMap<>();
+        final TreeMap<Long, Long> sizes_= new TreeMap<>();
+
+        Upload(String description, long partSize) {
+            description_= description;
+            partSize_= partSize;
+        }
+    }
+
+    private static class Job {
+        final String id_= UUID.randomUUID().toString();
+        final String creationDate_= Instant.now().toString();
+        final JobParameters parameters_;
+        final String vault_;
+        volatile String completionDate_= null;
+        volatile byte[] inventory_= null;
+
+        Job(String vault, JobParameters parameters) {
+            vault_= vault;
+            parameters_= parameters;
+        }
+
+        boolean isInventory() {
+            return "inventory-retrieval".equals(parameters_.getType());
+        }
+    }
+
+    private final SimulatedAws aws_;
+    // Vault name to archive ID to archive
+    private final Map<String, Map<String, StoredArchive>> vaults_= new ConcurrentHashMap<>();
+    private final Map<String, Upload> uploads_= new ConcurrentHashMap<>();
+    private final Map<String, Job> jobs_= new ConcurrentHashMap<>();
+
+    SimulatedGlacier(SimulatedAws aws) {
+        aws_= aws;
+    }
+
+    private static AmazonServiceException error(String code, int status, String message) {
+        // Typed like the SDK unmarshals them, so that callers can catch them
+        AmazonServiceException e= "ResourceNotFoundException".equals(code)
+            ? new ResourceNotFoundException(message)
+            : new AmazonServiceException(message);
+        e.setErrorCode(code);
+        e.setErrorType(ErrorType.Client);
+        e.setStatusCode(status);
+        e.setServiceName("AmazonGlacier");
+        return e;
+    }
+
+    private Map<String, StoredArchive> vault(String name) {
+        return vaults_.computeIfAbsent(name, n -> new ConcurrentHashMap<>());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AmazonClientException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param data - data to hash
+     * @return SHA-256 digests of 1 MiB chunks of the data
+     */
+    private static List<byte[]> chunkDigests(byte[] data) {
+        return chunkDigests(data, 0, data.length);
+    }
+
+    /**
+     * @param data   - data to hash. null for zeros
+     * @param offset - offset of the range to hash
+     * @param length - length of the range
+     * @return SHA-256 digests of 1 MiB chunks of the range
+     */
+    private static List<byte[]> chunkDigests(byte[] data, long offset, long length) {
+        MessageDigest digest= sha256();
+        List<byte[]> digests= new ArrayList<>();
+        byte[] zeroChunk= null;
+        for (long done= 0; done < length; done+= CHUNK) {
+            int size= (int) Math.min(CHUNK, length - done);
+            if (data != null) {
+                digest.update(data, (int) (offset + done), size);
+            } else if (size == CHUNK) {
+                // All the full chunks of zeros have the same digest
+                if (zeroChunk == null)
+                    zeroChunk= digest.digest(ZEROS);
+                digests.add(zeroChunk);
+                continue;
+            } else {
+                digest.update(ZEROS, 0, size);
+            }
+            digests.add(digest.digest());
+        }
+        if (digests.isEmpty())
+            digests.add(digest.digest());
+        return digests;
+    }
+
+    /**
+     * Range of an archive, read from its data or as zeros if its data is not kept, without copying it
+     */
+    private static class RangeInputStream extends InputStream {
+
+        private final byte[] data_;
+        private long position_;
+        private final long end_;
+
+        RangeInputStream(byte[] data, long start, long length) {
+            data_= data;
+            position_= start;
+            end_= start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b= new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position_ >= end_)
+                return -1;
+            int n= (int) Math.min(len, end_ - position_);
+            if (data_ != null)
+                System.arraycopy(data_, (int) position_, b, off, n);
+            else
+                Arrays.fill(b, off, off + n, (byte) 0);
+            position_+= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end_ - position_);
+        }
+    }
+
+    private byte[] read(AmazonWebServiceRequest request, InputStream body) {
+        try (InputStream in= aws_.paced(body,
+                                        request.getGeneralProgressListener(),
+                                        ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT))
+        {
+            ByteArrayOutputStream out= new ByteArrayOutputStream();
+            byte[] buffer= new byte[64 * 1024];
+            for (int read; (read= in.read(buffer)) >= 0;)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new AmazonClientException("Failed reading request body", e);
+        }
+    }
+
+    private StoredArchive store(String vault, String description, long size, String treeHash, byte[] data) {
+        StoredArchive archive= new StoredArchive(
+            UUID.randomUUID().toString().replace("-", "") + UUID.randomUUID().toString().replace("-", ""),
+            description,
+            size,
+            treeHash,
+            aws_.keepData() ? data : null);
+        vault(vault).put(archive.id_, archive);
+        log.finer("Stored simulated archive \"" + archive.id_ + "\" of " + size + " bytes");
+        return archive;
+    }
+
+    /**
+     * Put an archive of an existing inventory into the vault without its data
+     *
+     * @param vault   - vault name
+     * @param archive - archive from an inventory
+     */
+    void seed(String vault, Archive archive) {
+        vault(vault).put(archive.getArchiveId(), new StoredArchive(
+            archive.getArchiveId(),
+            archive.getFileName(),
+            archive.getSize() == null ? 0 : archive.getSize(),
+            archive.getTreeHash(),
+            null));
+    }
+
+    @Override
+    public UploadArchiveResult uploadArchive(UploadArchiveRequest request) {
+        byte[] data= read(request, request.getBody());
+        aws_.glacierRequest("UploadArchive", request);
+        String treeHash= TreeHashGenerator.calculateTreeHash(chunkDigests(data));
+        if (request.getChecksum() != null && !request.getChecksum().equals(treeHash))
+            throw error("InvalidParameterValueException", 400, "Checksum mismatch");
+        StoredArchive archive= store(request.getVaultName(), request.getArchiveDescription(), data.length, treeHash, data);
+        return new UploadArchiveResult()
+            .withArchiveId(archive.id_)
+            .withChecksum(treeHash);
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        aws_.glacierRequest("InitiateMultipartUpload", request);
+        String uploadId= UUID.randomUUID().toString();
+        uploads_.put(uploadId, new Upload(request.getArchiveDescription(), Long.parseLong(request.getPartSize())));
+        return new InitiateMultipartUploadResult().withUploadId(uploadId);
+    }
+
+    private Upload upload(String uploadId) {
+        Upload upload= uploads_.get(uploadId);
+        if (upload == null)
+            throw error("ResourceNotFoundException", 404, "Unknown upload ID \"" + uploadId + "\"");
+        return upload;
+    }
+
+    @Override
+    public UploadMultipartPartResult uploadMultipartPart(UploadMultipartPartRequest request) {
+        byte[] data= read(request, request.getBody());
+        aws_.glacierRequest("UploadMultipartPart", request);
+        Upload upload= upload(request.getUploadId());
+        Matcher range= PART_RANGE.matcher(request.getRange());
+        if (!range.matches())
+            throw error("InvalidParameterValueException", 400, "Invalid range \"" + request.getRange() + "\"");
+        long start= Long.parseLong(range.group(1));
+        long length= Long.parseLong(range.group(2)) - start + 1;
+        if (data.length != length || start % upload.partSize_ != 0 || length > upload.partSize_)
+            throw error("InvalidParameterValueException", 400, "Part does not match range \"" + request.getRange() + "\"");
+        List<byte[]> digests= chunkDigests(data);
+        String treeHash= TreeHashGenerator.calculateTreeHash(digests);
+        if (!treeHash.equals(request.getChecksum()))
+            throw error("InvalidParameterValueException", 400, "Checksum mismatch of part \"" + request.getRange() + "\"");
+        synchronized (upload) {
+            upload.digests_.put(start, digests);
+            upload.sizes_.put(start, length);
+            if (aws_.keepData())
+                upload.data_.put(start, data);
+        }
+        return new UploadMultipartPartResult().withChecksum(treeHash);
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        aws_.glacierRequest("CompleteMultipartUpload", request);
+        Upload upload= upload(request.getUploadId());
+        long size= Long.parseLong(request.getArchiveSize());
+        List<byte[]> digests= new ArrayList<>();
+        ByteArrayOutputStream data= new ByteArrayOutputStream();
+        synchronized (upload) {
+            long expected= 0;
+            for (Map.Entry<Long, Long> part : upload.sizes_.entrySet()) {
+                if (part.getKey() != expected)
+                    throw error("InvalidParameterValueException", 400, "Missing part at offset " + expected);
+                expected+= part.getValue();
+                digests.addAll(upload.digests_.get(part.getKey()));
+                if (aws_.keepData())
+                    data.write(upload.data_.get(part.getKey()), 0, part.getValue().intValue());
+            }
+            if (expected != size)
+                throw error("InvalidParameterValueException", 400, "Archive size mismatch: " + expected + " != " + size);
+        }
+        if (digests.isEmpty())
+            digests.add(sha256().digest());
+        String treeHash= TreeHashGenerator.calculateTreeHash(digests);
+        if (!treeHash.equals(request.getChecksum()))
+            throw error("InvalidParameterValueException", 400, "Archive checksum mismatch");
+        uploads_.remove(request.getUploadId());
+        StoredArchive archive= store(request.getVaultName(), upload.description_, size, treeHash, data.toByteArray());
+        return new CompleteMultipartUploadResult()
+            .withArchiveId(archive.id_)
+            .withChecksum(treeHash);
+    }
+
+    @Override
+    public AbortMultipartUploadResult abortMultipartUpload(AbortMultipartUploadRequest request) {
+        aws_.glacierRequest("AbortMultipartUpload", request);
+        uploads_.remove(request.getUploadId());
+        return new AbortMultipartUploadResult();
+    }
+
+    @Override
+    public DeleteArchiveResult deleteArchive(DeleteArchiveRequest request) {
+        aws_.glacierRequest("DeleteArchive", request);
+        if (vault(request.getVaultName()).remove(request.getArchiveId()) == null)
+            throw error("ResourceNotFoundException", 404, "Unknown archive ID \"" + request.getArchiveId() + "\"");
+        return new DeleteArchiveResult();
+    }
+
+    @Override
+    public InitiateJobResult initiateJob(InitiateJobRequest request) {
+        aws_.glacierRequest("InitiateJob", request);
+        JobParameters parameters= request.getJobParameters();
+        Job job= new Job(request.getVaultName(), parameters);
+        if (!job.isInventory() && !vault(job.vault_).containsKey(parameters.getArchiveId()))
+            throw error("ResourceNotFoundException", 404, "Unknown archive ID \"" + parameters.getArchiveId() + "\"");
+        if ("Expedited".equalsIgnoreCase(parameters.getTier()) && aws_.refuseExpedited()) {
+            InsufficientCapacityException e= new InsufficientCapacityException("No Expedited capacity (simulated)");
+            e.setErrorCode("InsufficientCapacityException");
+            e.setErrorType(ErrorType.Client);
+            e.setStatusCode(400);
+            e.setServiceName("AmazonGlacier");
+            throw e;
+        }
+        jobs_.put(job.id_, job);
+        log.finer("Initiated simulated job \"" + job.id_ + "\" of type \"" + parameters.getType() + "\"");
+        aws_.completeLater(() -> complete(job));
+        return new InitiateJobResult().withJobId(job.id_);
+    }
+
+    private byte[] inventory(String vault) {
+        JsonArray archives= new JsonArray();
+        for (StoredArchive archive : vault(vault).values()) {
+            JsonObject entry= new JsonObject();
+            entry.addProperty("ArchiveId", archive.id_);
+            entry.addProperty("ArchiveDescription", archive.description_);
+            entry.addProperty("CreationDate", archive.creationDate_);
+            entry.addProperty("Size", archive.size_);
+            entry.addProperty("SHA256TreeHash", archive.treeHash_);
+            archives.add(entry);
+        }
+        JsonObject inventory= new JsonObject();
+        inventory.addProperty("VaultARN", "arn:aws:glacier:" + aws_.region() + ":" + SimulatedAws.ACCOUNT + ":vaults/" + vault);
+        inventory.addProperty("InventoryDate", Instant.now().toString());
+        inventory.add("ArchiveList", archives);
+        return inventory.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void complete(Job job) {
+        if (job.isInventory())
+            job.inventory_= inventory(job.vault_);
+        job.completionDate_= Instant.now().toString();
+        log.finer("Completed simulated job \"" + job.id_ + "\"");
+        String topic= job.parameters_.getSNSTopic();
+        if (topic != null)
+            aws_.publish(topic, describe(job).toString());
+    }
+
+    /**
+     * @return job description as sent by Glacier in SNS notifications
+     */
+    private JsonObject describe(Job job) {
+        JsonObject description= new JsonObject();
+        description.addProperty("JobId", job.id_);
+        description.addProperty("Action", job.isInventory() ? "InventoryRetrieval" : "ArchiveRetrieval");
+        description.addProperty("Completed", job.completionDate_ != null);
+        description.addProperty("CreationDate", job.creationDate_);
+        description.addProperty("CompletionDate", job.completionDate_);
+        String status= job.completionDate_ == null ? StatusCode.InProgress.toString() : StatusCode.Succeeded.toString();
+        description.addProperty("StatusCode", status);
+        description.addProperty("StatusMessage", status);
+        description.addProperty("Tier", job.parameters_.getTier());
+        description.addProperty("SNSTopic", job.parameters_.getSNSTopic());
+        if (job.isInventory()) {
+            description.addProperty("InventorySizeInBytes", job.inventory_ == null ? null : (long) job.inventory_.length);
+        } else {
+            StoredArchive archive= vault(job.vault_).get(job.parameters_.getArchiveId());
+            description.addProperty("ArchiveId", job.parameters_.getArchiveId());
+            if (archive != null) {
+                description.addProperty("ArchiveSizeInBytes", archive.size_);
+                description.addProperty("ArchiveSHA256TreeHash", archive.treeHash_);
+                description.addProperty("SHA256TreeHash", archive.treeHash_);
+            }
+        }
+        return description;
+    }
+
+    private Job job(String jobId) {
+        Job job= jobs_.get(jobId);
+        if (job == null)
+            throw error("ResourceNotFoundException", 404, "Unknown job ID \"" + jobId + "\"");
+        return job;
+    }
+
+    @Override
+    public DescribeJobResult describeJob(DescribeJobRequest request) {
+        aws_.glacierRequest("DescribeJob", request);
+        Job job= job(request.getJobId());
+        JsonObject description= describe(job);
+        DescribeJobResult result= new DescribeJobResult()
+            .withJobId(job.id_)
+            .withAction(description.get("Action").getAsString())
+            .withCompleted(job.completionDate_ != null)
+            .withStatusCode(description.get("StatusCode").getAsString())
+            .withStatusMessage(description.get("StatusMessage").getAsString())
+            .withCreationDate(job.creationDate_)
+            .withCompletionDate(job.completionDate_)
+            .withTier(job.parameters_.getTier())
+            .withSNSTopic(job.parameters_.getSNSTopic())
+            .withArchiveId(job.parameters_.getArchiveId());
+        if (description.has("ArchiveSizeInBytes")) {
+            result.setArchiveSizeInBytes(description.get("ArchiveSizeInBytes").getAsLong());
+            result.setSHA256TreeHash(description.get("SHA256TreeHash").getAsString());
+            result.setArchiveSHA256TreeHash(description.get("ArchiveSHA256TreeHash").getAsString());
+        }
+        if (job.inventory_ != null)
+            result.setInventorySizeInBytes((long) job.inventory_.length);
+        return result;
+    }
+
+    @Override
+    public ListJobsResult listJobs(ListJobsRequest request) {
+        aws_.glacierRequest("ListJobs", request);
+        List<GlacierJobDescription> jobs= new ArrayList<>();
+        for (Job job : jobs_.values()) {
+            if (!job.vault_.equals(request.getVaultName()))
+                continue;
+            JsonObject description= describe(job);
+            jobs.add(new GlacierJobDescription()
+                .withJobId(job.id_)
+                .withAction(description.get("Action").getAsString())
+                .withArchiveId(job.parameters_.getArchiveId())
+                .withCompleted(job.completionDate_ != null)
+                .withStatusCode(description.get("StatusCode").getAsString())
+                .withStatusMessage(description.get("StatusMessage").getAsString())
+                .withCreationDate(job.creationDate_)
+                .withCompletionDate(job.completionDate_)
+                .withTier(job.parameters_.getTier())
+                .withSNSTopic(job.parameters_.getSNSTopic()));
+        }
+        return new ListJobsResult().withJobList(jobs);
+    }
+
+    @Override
+    public GetJobOutputResult getJobOutput(GetJobOutputRequest request) {
+        aws_.glacierRequest("GetJobOutput", request);
+        Job job= job(request.getJobId());
+        if (job.completionDate_ == null)
+            throw error("InvalidParameterValueException", 400, "Job \"" + job.id_ + "\" is not completed yet");
+        if (job.isInventory()) {
+            return new GetJobOutputResult()
+                .withBody(aws_.paced(new ByteArrayInputStream(job.inventory_),
+                                     request.getGeneralProgressListener(),
+                                     ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT))
+                .withContentType("application/json")
+                .withStatus(200);
+        }
+        StoredArchive archive= vault(job.vault_).get(job.parameters_.getArchiveId());
+        if (archive == null)
+            throw error("ResourceNotFoundException", 404, "Archive of job \"" + job.id_ + "\" is gone");
+        long start= 0;
+        long end= archive.size_ - 1;
+        if (request.getRange() != null) {
+            Matcher range= OUTPUT_RANGE.matcher(request.getRange());
+            if (!range.matches())
+                throw error("InvalidParameterValueException", 400, "Invalid range \"" + request.getRange() + "\"");
+            start= Long.parseLong(range.group(1));
+            end= Math.min(end, Long.parseLong(range.group(2)));
+        }
+        long length= Math.max(0, end - start + 1);
+        return new GetJobOutputResult()
+            .withBody(aws_.paced(new RangeInputStream(archive.data_, start, length),
+                                 request.getGeneralProgressListener(),
+                                 ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT))
+            .withChecksum(TreeHashGenerator.calculateTreeHash(chunkDigests(archive.data_, start, length)))
+            .withContentRange("bytes " + start + "-" + end + "/" + archive.size_)
+            .withArchiveDescription(archive.description_)
+            .withContentType("application/octet-stream")
+            .withStatus(request.getRange() == null ? 200 : 206);
+    }
+
+}
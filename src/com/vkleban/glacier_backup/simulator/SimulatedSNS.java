@@ -0,0 +1,99 @@
+package com.vkleban.glacier_backup.simulator;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.sns.AbstractAmazonSNS;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.UnsubscribeRequest;
+import com.amazonaws.services.sns.model.UnsubscribeResult;
+
+/**
+ * Simulated SNS. Supports SQS subscriptions, which is what Glacier job notifications need, and publishing to them.
+ * Other calls fail with the name of the call (see client)
+ *
+ * @author vova
+ */
+class SimulatedSNS extends AbstractAmazonSNS {
+
+    private final SimulatedAws aws_;
+    // Subscription ARN to {topic ARN, queue ARN}
+    private final Map<String, String[]> subscriptions_= new ConcurrentHashMap<>();
+
+    SimulatedSNS(SimulatedAws aws) {
+        aws_= aws;
+    }
+
+    /**
+     * @return client of the simulated SNS, which fails calls not implemented here with an exception naming them
+     */
+    AmazonSNS client() {
+        return (AmazonSNS) Proxy.newProxyInstance(AmazonSNS.class.getClassLoader(), new Class<?>[] { AmazonSNS.class },
+            (proxy, method, args) -> {
+                Method implemented;
+                try {
+                    implemented= method.getDeclaringClass() == Object.class
+                        ? method
+                        : SimulatedSNS.class.getDeclaredMethod(method.getName(), method.getParameterTypes());
+                } catch (NoSuchMethodException e) {
+                    throw new UnsupportedOperationException("Simulated SNS does not support \"" + method.getName() + "\"");
+                }
+                try {
+                    return implemented.invoke(this, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+    }
+
+    @Override
+    public SubscribeResult subscribe(SubscribeRequest request) {
+        aws_.request();
+        if (!"sqs".equals(request.getProtocol()))
+            throw new UnsupportedOperationException("Simulated SNS supports only SQS subscriptions");
+        // Same as SNS, subscribing the same endpoint again returns the existing subscription
+        String[] subscription= { request.getTopicArn(), request.getEndpoint() };
+        for (Map.Entry<String, String[]> existing : subscriptions_.entrySet()) {
+            if (existing.getValue()[0].equals(subscription[0]) && existing.getValue()[1].equals(subscription[1]))
+                return new SubscribeResult().withSubscriptionArn(existing.getKey());
+        }
+        String arn= request.getTopicArn() + ":" + UUID.randomUUID();
+        subscriptions_.put(arn, subscription);
+        aws_.subscribe(subscription[0], subscription[1]);
+        return new SubscribeResult().withSubscriptionArn(arn);
+    }
+
+    @Override
+    public UnsubscribeResult unsubscribe(UnsubscribeRequest request) {
+        aws_.request();
+        String[] subscription= subscriptions_.remove(request.getSubscriptionArn());
+        if (subscription != null)
+            aws_.unsubscribe(subscription[0], subscription[1]);
+        return new UnsubscribeResult();
+    }
+
+    @Override
+    public PublishResult publish(PublishRequest request) {
+        aws_.request();
+        aws_.publish(request.getTopicArn(), request.getMessage());
+        return new PublishResult().withMessageId(UUID.randomUUID().toString());
+    }
+
+    @Override
+    public PublishResult publish(String topicArn, String message) {
+        return publish(new PublishRequest(topicArn, message));
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+}
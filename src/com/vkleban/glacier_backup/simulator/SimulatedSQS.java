@@ -0,0 +1,177 @@
+package com.vkleban.glacier_backup.simulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.SetQueueAttributesResult;
+
+/**
+ * Simulated SQS. Received messages are not redelivered, so visibility timeout is not emulated
+ *
+ * @author vova
+ */
+class SimulatedSQS extends AbstractAmazonSQS {
+
+    private static final int MAX_MESSAGES= 10;
+
+    private static class Queue {
+        final String name_;
+        final String arn_;
+        final Map<String, String> attributes_= new ConcurrentHashMap<>();
+        final LinkedBlockingQueue<Message> messages_= new LinkedBlockingQueue<>();
+        // Receipt handle to received, but not yet deleted message
+        final Map<String, Message> inFlight_= new ConcurrentHashMap<>();
+
+        Queue(String name, String arn) {
+            name_= name;
+            arn_= arn;
+            attributes_.put("QueueArn", arn);
+        }
+    }
+
+    private final SimulatedAws aws_;
+    // Queue URL to queue
+    private final Map<String, Queue> queues_= new ConcurrentHashMap<>();
+
+    SimulatedSQS(SimulatedAws aws) {
+        aws_= aws;
+    }
+
+    private String url(String name) {
+        return "https://sqs." + aws_.region() + ".simulator/" + SimulatedAws.ACCOUNT + "/" + name;
+    }
+
+    private Queue queue(String url) {
+        Queue queue= queues_.get(url);
+        if (queue == null) {
+            AmazonServiceException e= new QueueDoesNotExistException("Queue \"" + url + "\" does not exist");
+            e.setErrorCode("AWS.SimpleQueueService.NonExistentQueue");
+            e.setStatusCode(400);
+            throw e;
+        }
+        return queue;
+    }
+
+    /**
+     * Put a message into a queue. Messages to deleted queues are lost, same as in SQS
+     *
+     * @param queueArn - destination queue
+     * @param body     - message body
+     */
+    void deliver(String queueArn, String body) {
+        for (Queue queue : queues_.values()) {
+            if (queue.arn_.equals(queueArn)) {
+                Message message= new Message()
+                    .withMessageId(UUID.randomUUID().toString())
+                    .withBody(body);
+                queue.messages_.add(message);
+            }
+        }
+    }
+
+    @Override
+    public CreateQueueResult createQueue(CreateQueueRequest request) {
+        aws_.request();
+        String name= request.getQueueName();
+        String url= url(name);
+        Queue queue= queues_.computeIfAbsent(url,
+            u -> new Queue(name, "arn:aws:sqs:" + aws_.region() + ":" + SimulatedAws.ACCOUNT + ":" + name));
+        if (request.getAttributes() != null)
+            queue.attributes_.putAll(request.getAttributes());
+        return new CreateQueueResult().withQueueUrl(url);
+    }
+
+    @Override
+    public GetQueueUrlResult getQueueUrl(GetQueueUrlRequest request) {
+        aws_.request();
+        String url= url(request.getQueueName());
+        queue(url);
+        return new GetQueueUrlResult().withQueueUrl(url);
+    }
+
+    @Override
+    public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest request) {
+        aws_.request();
+        Queue queue= queue(request.getQueueUrl());
+        Map<String, String> attributes= new HashMap<>();
+        for (String name : request.getAttributeNames()) {
+            if ("All".equals(name))
+                attributes.putAll(queue.attributes_);
+            else if (queue.attributes_.containsKey(name))
+                attributes.put(name, queue.attributes_.get(name));
+        }
+        return new GetQueueAttributesResult().withAttributes(attributes);
+    }
+
+    @Override
+    public SetQueueAttributesResult setQueueAttributes(SetQueueAttributesRequest request) {
+        aws_.request();
+        queue(request.getQueueUrl()).attributes_.putAll(request.getAttributes());
+        return new SetQueueAttributesResult();
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+        aws_.request();
+        Queue queue= queue(request.getQueueUrl());
+        int max= request.getMaxNumberOfMessages() == null
+            ? 1
+            : Math.min(MAX_MESSAGES, request.getMaxNumberOfMessages());
+        List<Message> messages= new ArrayList<>();
+        queue.messages_.drainTo(messages, max);
+        if (messages.isEmpty() && request.getWaitTimeSeconds() != null && request.getWaitTimeSeconds() > 0) {
+            try {
+                Message message= queue.messages_.poll(request.getWaitTimeSeconds(), TimeUnit.SECONDS);
+                if (message != null)
+                    messages.add(message);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Message message : messages) {
+            message.setReceiptHandle(UUID.randomUUID().toString());
+            queue.inFlight_.put(message.getReceiptHandle(), message);
+        }
+        return new ReceiveMessageResult().withMessages(messages);
+    }
+
+    @Override
+    public DeleteMessageResult deleteMessage(DeleteMessageRequest request) {
+        aws_.request();
+        queue(request.getQueueUrl()).inFlight_.remove(request.getReceiptHandle());
+        return new DeleteMessageResult();
+    }
+
+    @Override
+    public DeleteQueueResult deleteQueue(DeleteQueueRequest request) {
+        aws_.request();
+        Queue queue= queues_.remove(request.getQueueUrl());
+        if (queue != null)
+            queue.messages_.clear();
+        return new DeleteQueueResult();
+    }
+
+}
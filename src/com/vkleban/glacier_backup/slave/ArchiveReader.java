@@ -0,0 +1,188 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import com.amazonaws.event.ProgressListener;
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.DownloadJob;
+import com.vkleban.glacier_backup.chunk.Manifest;
+import com.vkleban.glacier_backup.codec.Codec;
+import com.vkleban.glacier_backup.codec.EncryptionKey;
+import com.vkleban.glacier_backup.codec.GcmDecryptInputStream;
+import com.vkleban.glacier_backup.codec.ParallelGzipInputStream;
+import com.vkleban.glacier_backup.codec.TreeHashInputStream;
+import com.vkleban.glacier_backup.shard.Shard;
+import com.vkleban.glacier_backup.trace.TracedInputStream;
+import com.vkleban.glacier_backup.trace.TransferTrace;
+import com.vkleban.glacier_backup.trace.TransferTrace.Phase;
+
+/**
+ * File contents of a retrieved archive, streamed from Glacier and decrypted and decompressed on the way
+ * if the archive is encoded. The tree hash of the archive is counted as it streams. The encoding of archives
+ * taken from Glacier's listing is unknown, so it's told from the start of their contents instead: the key ID
+ * of encrypted ones and the gzip header written by the compression. Other gzip data is a gzip file backed up as it
+ * is, so it's kept that way. Chunk manifests are refused, as the file is in the chunk packs
+ *
+ * @author vova
+ */
+public class ArchiveReader implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(ArchiveReader.class.getName());
+
+    // Enough of the start of an archive to tell its encoding
+    private static final int PEEK= 256;
+    private static final int GZIP_MAGIC= 0x8b1f;
+
+    private final Archive archive_;
+    private final TreeHashInputStream downloaded_;
+    private final InputStream contents_;
+    private final long fileSize_;
+
+    /**
+     * @param shard    - shard holding the archive
+     * @param job      - completed retrieval job of the archive
+     * @param listener - progress listener of the Glacier requests
+     * @throws IOException when the decoder can't be set up
+     * @throws IllegalStateException when the archive is encrypted with another key than the configured one,
+     *         or it is a chunk manifest of unknown encoding
+     */
+    public ArchiveReader(Shard shard, DownloadJob job, ProgressListener listener) throws IOException {
+        archive_= job.getArchive();
+        EncryptionKey key= EncryptionKey.get();
+        String keyId= archive_.getEncryptionKeyId();
+        checkKey(keyId, key);
+        downloaded_= new TreeHashInputStream(
+            new JobOutputInputStream(shard.getGlacier(), shard.getVault(), job.getJobId(), job.getSize(), listener));
+        try {
+            InputStream hashed= new TracedInputStream(downloaded_, Phase.HASH);
+            long fileSize= archive_.getOriginalSize() != null
+                || archive_.getCodec() == null && archive_.getEncryptionKeyId() == null ? fileSize(job) : -1;
+            Codec codec= Codec.forName(archive_.getCodec());
+            if (archive_.isEncodingUnknown()) {
+                hashed= new BufferedInputStream(hashed, 64 * 1024);
+                keyId= GcmDecryptInputStream.keyId(peek(hashed, false));
+                if (keyId != null) {
+                    log.info("\"" + archive_.getFileName() + "\" is encrypted with key \"" + keyId + "\"");
+                    checkKey(keyId, key);
+                    fileSize= job.getSize() == 0 ? 0 : GcmDecryptInputStream.plainSize(job.getSize());
+                }
+            }
+            InputStream decrypted= keyId == null
+                ? hashed
+                : new GcmDecryptInputStream(hashed, key);
+            if (archive_.isEncodingUnknown()) {
+                decrypted= new BufferedInputStream(decrypted, 64 * 1024);
+                byte[] start= peek(decrypted, false);
+                boolean gzip= isGzip(start);
+                if (Manifest.isManifestStart(gzip ? peek(decrypted, true) : start))
+                    throw new IllegalStateException("\"" + archive_.getFileName() + "\" is the chunk manifest of a "
+                        + "chunked file. Download it by the inventory (-d -i) to restore the file");
+                if (ParallelGzipInputStream.isOwnStart(start)) {
+                    log.info("\"" + archive_.getFileName() + "\" is gzip compressed");
+                    codec= Codec.GZIP;
+                    // Not known before the end of the archive
+                    fileSize= -1;
+                }
+            }
+            fileSize_= fileSize;
+            contents_= new TracedInputStream(codec.decode(decrypted), Phase.CODEC);
+        } catch (IOException | RuntimeException e) {
+            downloaded_.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param keyId - ID of the key the archive is encrypted with. null if it's not encrypted
+     * @param key   - configured key. null if there is none
+     * @throws IllegalStateException when the archive is encrypted with another key than the configured one
+     */
+    private void checkKey(String keyId, EncryptionKey key) {
+        if (keyId != null && (key == null || !key.getId().equals(keyId)))
+            throw new IllegalStateException("\"" + archive_.getFileName() + "\" is encrypted with key \""
+                + keyId + "\", which is not the configured encryption_keyfile");
+    }
+
+    /**
+     * @param in     - stream supporting mark
+     * @param gunzip - peek at the decompressed contents of the gzip stream
+     * @return up to PEEK first bytes of the stream, which is then back at its start. Nothing of a malformed
+     *         gzip stream
+     */
+    private static byte[] peek(InputStream in, boolean gunzip) throws IOException {
+        byte[] start= new byte[PEEK];
+        int length= 0;
+        in.mark(64 * 1024);
+        try {
+            InputStream source= gunzip ? new GZIPInputStream(in) : in;
+            for (int n; length < PEEK && (n= source.read(start, length, PEEK - length)) >= 0;)
+                length+= n;
+        } catch (IOException e) {
+            if (!gunzip)
+                throw e;
+            length= 0;
+        } finally {
+            in.reset();
+        }
+        return Arrays.copyOf(start, length);
+    }
+
+    private static boolean isGzip(byte[] start) {
+        return start.length >= 2 && ((start[0] & 0xff) | (start[1] & 0xff) << 8) == GZIP_MAGIC;
+    }
+
+    /**
+     * @param job - retrieval job of the archive
+     * @return size of the file contents, as far as it's known before reading the archive. 0 if unknown
+     */
+    public static long fileSize(DownloadJob job) {
+        Archive archive= job.getArchive();
+        if (archive.getOriginalSize() != null)
+            return archive.getOriginalSize();
+        return archive.getCodec() == null && archive.getEncryptionKeyId() == null ? job.getSize() : 0;
+    }
+
+    /**
+     * @return size of the file contents, also of encrypted archives of unknown encoding. -1 if unknown, as for
+     *         encoded archives without "OriginalSize" and compressed archives of unknown encoding
+     */
+    public long getFileSize() {
+        return fileSize_;
+    }
+
+    /**
+     * @return the file contents
+     */
+    public InputStream getContents() {
+        return contents_;
+    }
+
+    /**
+     * Read the rest of the archive and check its tree hash
+     *
+     * @throws IOException on read failure or checksum mismatch
+     */
+    public void verify() throws IOException {
+        TransferTrace trace= TransferTrace.current();
+        Phase previous= trace.enter(Phase.HASH);
+        try {
+            downloaded_.drain();
+        } finally {
+            trace.enter(previous);
+        }
+        if (archive_.getTreeHash() != null && !archive_.getTreeHash().equals(downloaded_.getTreeHash()))
+            throw new IOException("Checksum mismatch of downloaded \"" + archive_.getFileName()
+                + "\". Expected: " + archive_.getTreeHash() + ". Actual: " + downloaded_.getTreeHash());
+    }
+
+    @Override
+    public void close() throws IOException {
+        contents_.close();
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Makes written files durable in batches instead of one by one. Completed files wait in their temporary
+ * names until the batch is full or old enough, then they are synced, renamed to their final names and their
+ * directories are synced. So a file under its final name is always complete, while the kernel is free to
+ * write back many files before the first sync
+ *
+ * @author vova
+ */
+public class BatchedSync implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(BatchedSync.class.getName());
+
+    private static class Pending {
+        final FileChannel channel_;
+        final Path temp_;
+        final Path target_;
+
+        Pending(FileChannel channel, Path temp, Path target) {
+            channel_= channel;
+            temp_= temp;
+            target_= target;
+        }
+    }
+
+    private final int files_;
+    private final long interval_;
+    private final List<Pending> pending_= new ArrayList<>();
+    private final List<Path> failed_= new ArrayList<>();
+    private final Thread thread_;
+    private long oldest_= 0;
+    private boolean closed_= false;
+
+    /**
+     * @param files    - files synced at once
+     * @param interval - longest time a completed file waits for its sync in milliseconds
+     */
+    public BatchedSync(int files, long interval) {
+        files_= Math.max(1, files);
+        interval_= interval;
+        thread_= new Thread(this::run, "BatchedSync");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    /**
+     * Take over a completely written file
+     *
+     * @param channel - open channel of the file
+     * @param temp    - temporary name the file is written under
+     * @param target  - final name of the file
+     */
+    public synchronized void commit(FileChannel channel, Path temp, Path target) {
+        if (pending_.isEmpty())
+            oldest_= System.currentTimeMillis();
+        pending_.add(new Pending(channel, temp, target));
+        if (pending_.size() >= files_)
+            notifyAll();
+    }
+
+    private void run() {
+        while (true) {
+            List<Pending> batch;
+            synchronized (this) {
+                try {
+                    while (!closed_ && pending_.size() < files_
+                           && (pending_.isEmpty() || System.currentTimeMillis() - oldest_ < interval_))
+                        wait(pending_.isEmpty() ? 0 : Math.max(1, interval_ - (System.currentTimeMillis() - oldest_)));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed_)
+                    return;
+                batch= new ArrayList<>(pending_);
+                pending_.clear();
+            }
+            sync(batch);
+        }
+    }
+
+    private void sync(List<Pending> batch) {
+        log.fine("Syncing " + batch.size() + " downloaded files");
+        Set<Path> directories= new LinkedHashSet<>();
+        for (Pending file : batch) {
+            try (FileChannel channel= file.channel_) {
+                channel.force(true);
+            } catch (IOException e) {
+                failed(file, e);
+                continue;
+            }
+            try {
+                Files.move(file.temp_, file.target_, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                directories.add(file.target_.toAbsolutePath().getParent());
+            } catch (IOException e) {
+                failed(file, e);
+            }
+        }
+        // Make the renames durable. Not every platform can open a directory, which is fine to skip
+        for (Path directory : directories) {
+            try (FileChannel channel= FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                log.finer("Unable to sync directory \"" + directory + "\": " + e);
+            }
+        }
+    }
+
+    private synchronized void failed(Pending file, IOException e) {
+        log.severe("Failed storing downloaded \"" + file.target_ + "\": " + e);
+        failed_.add(file.target_);
+        try {
+            Files.deleteIfExists(file.temp_);
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Sync all the files committed so far and stop
+     *
+     * @return files, which failed to be stored
+     */
+    public List<Path> finish() {
+        List<Pending> batch;
+        synchronized (this) {
+            closed_= true;
+            notifyAll();
+            batch= new ArrayList<>(pending_);
+            pending_.clear();
+        }
+        try {
+            thread_.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync(batch);
+        synchronized (this) {
+            return new ArrayList<>(failed_);
+        }
+    }
+
+    @Override
+    public void close() {
+        finish();
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import com.amazonaws.event.ProgressListener;
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.chunk.ChunkIndex;
+import com.vkleban.glacier_backup.chunk.Chunker;
+import com.vkleban.glacier_backup.chunk.Manifest;
+import com.vkleban.glacier_backup.codec.Codec;
+import com.vkleban.glacier_backup.codec.EncryptionKey;
+import com.vkleban.glacier_backup.codec.GcmEncryptInputStream;
+import com.vkleban.glacier_backup.codec.TreeHashInputStream;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.shard.Shard;
+import com.vkleban.glacier_backup.trace.TransferTrace;
+import com.vkleban.glacier_backup.trace.TransferTrace.Phase;
+
+/**
+ * Upload of a file as chunks. The file is split by content (see Chunker), chunks found in the chunk index or earlier
+ * in the file are referred to, and the new ones are packed into archives of up to "chunk_pack_bytes", which are
+ * encoded like files. The manifest of the file is uploaded last, as the archive of the file, once all of its packs
+ * are in Glacier
+ *
+ * @author vova
+ */
+public class ChunkedUploader {
+
+    private static final Logger log= Logger.getLogger(ChunkedUploader.class.getName());
+
+    // Directory of the pack archives. Restores stage packs and manifests in it under root_dir
+    public static final String CHUNK_DIR= ".chunks";
+
+    private final Config c_= Config.get();
+    private final Shard shard_;
+    private final Codec codec_;
+    private final long partSize_;
+    private final ProgressListener listener_;
+    private final ChunkIndex index_= ChunkIndex.get();
+    private final MessageDigest sha256_;
+    private Manifest manifest_;
+    // Pack being filled, its index in the manifest and its chunks
+    private byte[] pack_= null;
+    private int packLength_= 0;
+    private int packIndex_;
+    private final List<Manifest.Chunk> packChunks_= new ArrayList<>();
+    private final Map<String, Manifest.Chunk> packed_= new HashMap<>();
+    private long newBytes_= 0;
+
+    /**
+     * @param shard    - shard of the file
+     * @param codec    - codec of the packs and the manifest
+     * @param partSize - largest part size of the uploads. See PartSizer
+     * @param listener - progress listener of all the requests
+     */
+    public ChunkedUploader(Shard shard, Codec codec, long partSize, ProgressListener listener) {
+        shard_= shard;
+        codec_= codec;
+        partSize_= partSize;
+        listener_= listener;
+        try {
+            sha256_= MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex= new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Upload the contents encoded like a file
+     *
+     * @return archive of the encoded contents, with the size and tree hash of the contents if encoded
+     */
+    private Archive store(String description, byte[] contents, int length) throws IOException {
+        EncryptionKey key= EncryptionKey.get();
+        try (TreeHashInputStream original= new TreeHashInputStream(new ByteArrayInputStream(contents, 0, length));
+             InputStream compressed= codec_.encode(original, c_.compression_level);
+             InputStream encoded= key == null ? compressed : new GcmEncryptInputStream(compressed, key))
+        {
+            long partSize= Math.min(partSize_, PartSizer.powerOfTwoMiB(length));
+            Archive archive= shard_.getUploader().upload(description, encoded, partSize, listener_);
+            boolean plain= codec_ == Codec.NONE && key == null;
+            return new Archive(
+                archive.getArchiveId(),
+                description,
+                archive.getTreeHash(),
+                archive.getSize(),
+                codec_ == Codec.NONE ? null : codec_.getName(),
+                key == null ? null : key.getId(),
+                plain ? null : original.getCount(),
+                plain ? null : original.getTreeHash(),
+                shard_.getName());
+        }
+    }
+
+    /**
+     * Upload the pack being filled and record it in the index
+     */
+    private void flush() throws IOException {
+        if (packLength_ == 0)
+            return;
+        Archive pack= store(CHUNK_DIR + "/pack-" + UUID.randomUUID(), pack_, packLength_);
+        log.fine("Uploaded pack \"" + pack.getFileName() + "\" of " + packChunks_.size() + " chunks");
+        manifest_.setPack(packIndex_, pack);
+        index_.add(pack, packChunks_);
+        newBytes_+= packLength_;
+        packLength_= 0;
+        packChunks_.clear();
+        packed_.clear();
+    }
+
+    /**
+     * @param sha256 - SHA-256 of the chunk
+     * @return the chunk referred to in the manifest, if it's in the pack being filled or in the index
+     */
+    private Manifest.Chunk find(String sha256, int length) throws IOException {
+        Manifest.Chunk packed= packed_.get(sha256);
+        if (packed != null)
+            return packed;
+        ChunkIndex.Location location= index_.find(sha256);
+        if (location == null)
+            return null;
+        return new Manifest.Chunk(manifest_.pack(location.getPack()), location.getOffset(), length, sha256);
+    }
+
+    /**
+     * Upload the chunks of the file, which are not uploaded yet, and its manifest
+     *
+     * @param fileName - file name
+     * @param data     - file contents
+     * @return archive of the manifest with the size and tree hash of the file
+     * @throws IOException when reading the file or uploading fails
+     */
+    public Archive upload(String fileName, InputStream data) throws IOException {
+        TransferTrace trace= TransferTrace.current();
+        manifest_= new Manifest();
+        TreeHashInputStream original= new TreeHashInputStream(data);
+        Chunker chunker= new Chunker(original, c_.chunk_average_bytes);
+        byte[] chunk;
+        while ((chunk= chunker.next()) != null) {
+            Phase previous= trace.enter(Phase.HASH);
+            String sha256= hex(sha256_.digest(chunk));
+            trace.enter(previous);
+            Manifest.Chunk found= find(sha256, chunk.length);
+            if (found != null) {
+                manifest_.add(found);
+                continue;
+            }
+            if (packLength_ + chunk.length > c_.chunk_pack_bytes)
+                flush();
+            if (pack_ == null)
+                pack_= new byte[c_.chunk_pack_bytes];
+            if (packLength_ == 0)
+                packIndex_= manifest_.reservePack();
+            Manifest.Chunk added= new Manifest.Chunk(packIndex_, packLength_, chunk.length, sha256);
+            System.arraycopy(chunk, 0, pack_, packLength_, chunk.length);
+            packLength_+= chunk.length;
+            packChunks_.add(added);
+            packed_.put(sha256, added);
+            manifest_.add(added);
+        }
+        flush();
+        pack_= null;
+        manifest_.finish(original.getCount(), original.getTreeHash());
+        log.info("\"" + fileName + "\": " + manifest_.getChunks().size() + " chunks, " + newBytes_ + " of "
+            + original.getCount() + " bytes new");
+        trace.note("new_bytes", newBytes_);
+        byte[] json= manifest_.toJson().getBytes(StandardCharsets.UTF_8);
+        Archive manifest= store(fileName, json, json.length);
+        return new Archive(
+            manifest.getArchiveId(),
+            fileName,
+            manifest.getTreeHash(),
+            manifest.getSize(),
+            manifest.getCodec(),
+            manifest.getEncryptionKeyId(),
+            original.getCount(),
+            original.getTreeHash(),
+            shard_.getName(),
+            true);
+    }
+
+}
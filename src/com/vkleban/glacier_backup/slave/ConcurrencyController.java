@@ -0,0 +1,140 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.util.logging.Logger;
+
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+
+/**
+ * AIMD controller of the number of transfer slaves. Every interval it adds one slave while there is queued work
+ * and the network keeps up, and halves the slaves on congestion: throttling errors or request retries,
+ * request latency growing well above the best one seen, or throughput falling after the last increase.
+ * Stays within configured min/max limits
+ *
+ * @author vova
+ */
+public class ConcurrencyController implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(ConcurrencyController.class.getName());
+
+    // Multiplicative decrease factor
+    private static final double DECREASE= 0.5;
+    // Latency this many times the best one seen is congestion
+    private static final double LATENCY_TOLERANCE= 2.0;
+    // Throughput drop after increase, which is considered congestion
+    private static final double THROUGHPUT_TOLERANCE= 0.1;
+
+    private final Config c_= Config.get();
+    private final TransferEngine<?, ?> pool_;
+    private final TransferProgress progress_;
+    private final Thread thread_;
+
+    private long lastNanos_;
+    private long lastBytes_;
+    private long lastRequests_;
+    private long lastRequestNanos_;
+    private long lastCongestion_;
+    private double lastThroughput_= -1;
+    private boolean increased_= false;
+    private double bestLatency_= Double.MAX_VALUE;
+
+    /**
+     * Start controlling given pool, if adaptive slaves are configured
+     *
+     * @param pool     - slaves to control
+     * @param progress - counters of the run the slaves work on
+     */
+    public ConcurrencyController(TransferEngine<?, ?> pool, TransferProgress progress) {
+        pool_= pool;
+        progress_= progress;
+        if (!c_.adaptive_slaves) {
+            thread_= null;
+            return;
+        }
+        lastNanos_= System.nanoTime();
+        lastBytes_= progress.getTransferredBytes();
+        lastRequests_= progress.getRequests();
+        lastRequestNanos_= progress.getRequestNanos();
+        lastCongestion_= progress.getCongestion();
+        thread_= new Thread(this::control, "ConcurrencyController");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    private void control() {
+        try {
+            while (true) {
+                Thread.sleep(c_.adaptive_interval_milliseconds);
+                adjust();
+            }
+        } catch (InterruptedException e) {
+            log.finer("Concurrency controller has been stopped");
+        }
+    }
+
+    private void adjust() {
+        long now= System.nanoTime();
+        long bytes= progress_.getTransferredBytes();
+        long requests= progress_.getRequests();
+        long requestNanos= progress_.getRequestNanos();
+        long congestion= progress_.getCongestion();
+        double throughput= (bytes - lastBytes_) * 1e9 / Math.max(1, now - lastNanos_);
+        double latency= requests > lastRequests_
+            ? (double) (requestNanos - lastRequestNanos_) / (requests - lastRequests_)
+            : -1;
+        long congestionEvents= congestion - lastCongestion_;
+        lastNanos_= now;
+        lastBytes_= bytes;
+        lastRequests_= requests;
+        lastRequestNanos_= requestNanos;
+        lastCongestion_= congestion;
+
+        int slaves= pool_.size();
+        String reason= null;
+        if (congestionEvents > 0)
+            reason= congestionEvents + " throttling errors or retries";
+        else if (latency > 0 && latency > LATENCY_TOLERANCE * bestLatency_)
+            reason= String.format("request latency %.0f ms against best %.0f ms", latency / 1e6, bestLatency_ / 1e6);
+        else if (increased_ && lastThroughput_ > 0 && throughput < (1 - THROUGHPUT_TOLERANCE) * lastThroughput_)
+            reason= String.format("throughput fell from %.0f to %.0f B/s", lastThroughput_, throughput);
+        if (latency > 0)
+            bestLatency_= Math.min(bestLatency_, latency);
+        lastThroughput_= throughput;
+        increased_= false;
+
+        int target= slaves;
+        if (reason != null) {
+            target= Math.max(c_.min_transfer_slaves, (int) (slaves * DECREASE));
+        } else if (pool_.queued() > 0 && slaves < c_.max_transfer_slaves) {
+            target= slaves + 1;
+            increased_= true;
+        }
+        if (target == slaves)
+            return;
+        log.info("Changing number of transfer slaves from " + slaves + " to " + target
+            + (reason == null ? "" : " due to " + reason));
+        pool_.resize(target);
+    }
+
+    /**
+     * @param slaves - configured number of slaves
+     * @return initial number of slaves within adaptive limits if those are enabled
+     */
+    public static int initialSlaves(int slaves) {
+        Config c= Config.get();
+        if (!c.adaptive_slaves)
+            return slaves;
+        return Math.max(c.min_transfer_slaves, Math.min(c.max_transfer_slaves, slaves));
+    }
+
+    @Override
+    public void close() {
+        if (thread_ == null)
+            return;
+        thread_.interrupt();
+        try {
+            thread_.join();
+        } catch (InterruptedException e) {}
+    }
+
+}
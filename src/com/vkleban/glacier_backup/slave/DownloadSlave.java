@@ -4,22 +4,32 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Logger;
 
 import com.vkleban.glacier_backup.Archive;
 import com.vkleban.glacier_backup.DownloadJob;
+import com.vkleban.glacier_backup.progress.FileProgressListener;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+import com.vkleban.glacier_backup.shard.Shard;
 
-public class DownloadSlave extends TransferSlave {
+public class DownloadSlave extends TransferSlave<DownloadJob, DownloadJob> {
 
     private static Logger log = Logger.getLogger(UploadSlave.class.getName());
 
-    private final BlockingQueue<SlaveRequest<DownloadJob>> downloads_;
-    private final BlockingQueue<SlaveResponse<DownloadJob>> reports_;
+    private final RetryLane<DownloadJob> retries_;
+    private final TransferProgress progress_;
+    private final BatchedSync sync_;
 
-    public DownloadSlave(BlockingQueue<SlaveRequest<DownloadJob>> downloads, BlockingQueue<SlaveResponse<DownloadJob>> reports) {
-        downloads_ = downloads;
-        reports_= reports;
+    /**
+     * @param retries  - retry lane of failed downloads
+     * @param progress - counters of the downloads
+     * @param sync     - batched sync the downloaded files are committed to
+     */
+    public DownloadSlave(RetryLane<DownloadJob> retries, TransferProgress progress, BatchedSync sync) {
+        retries_= retries;
+        progress_= progress;
+        sync_= sync;
     }
 
     /**
@@ -38,53 +48,61 @@ public class DownloadSlave extends TransferSlave {
         Files.createDirectories(parentFile.toPath());
     }
 
+    /**
+     * Stream the archive from Glacier to disk, decrypting and decompressing it on the way if it's encoded.
+     * The tree hash of the archive is verified once all of it has been read, and only then the file is committed
+     */
+    private void download(Shard shard, DownloadJob job, File downloadedFile, FileProgressListener listener)
+        throws IOException
+    {
+        try (ArchiveReader reader= new ArchiveReader(shard, job, listener);
+             DownloadWriter writer= new DownloadWriter(downloadedFile.toPath(), ArchiveReader.fileSize(job)))
+        {
+            writer.write(reader.getContents());
+            reader.verify();
+            writer.commit(sync_);
+        }
+    }
+
     @Override
-    public void run() {
-        SlaveRequest<DownloadJob> request= null;
-        log.finer("Starting download slave thread \"" + Thread.currentThread() + "\"");
+    public SlaveResponse<DownloadJob> transfer(DownloadJob job) {
+        FileProgressListener listener= new FileProgressListener(progress_);
         try {
-            while (true) {
-                request= null; // next line can fail. This is to avoid misreporting failed job
-                request= downloads_.take();
-                DownloadJob job= request.getRequest();
-                if (request.isStopped())
-                {
-                    log.finer("Received thread stop request");
-                    // passing the request on to the next thread
-                    downloads_.add(request);
-                    reports_.add(
-                        new SlaveResponse<DownloadJob>(job, null, true));
-                    return;
-                }
-                try {
-                    File downloadedFile = Paths.get(c_.root_dir, job.getArchive().getFileName()).toFile();
-                    ensureParentDirectory(downloadedFile);
-                    log.info("Downloading file \"" + downloadedFile + "\"");
-                    archiveTransferManager_.downloadJobOutput(null, c_.vault, job.getJobId(), downloadedFile);
-                    log.info("Download of \"" + downloadedFile + "\" completed successfully");
-                    reports_.add(new SlaveResponse<DownloadJob>(job, null, false));
-                } catch (Exception e) {
-                    Archive archive= job.getArchive();
-                    log.severe("Download job of file \""
-                            + archive.getFileName()
-                            + "\" with archive ID \""
-                            + archive.getArchiveId()
-                            + "\" using job \""
-                            + job.getJobId()
-                            + "\" has failed on Glacier.\n"
-                            + "Failure to download single file won't stop the download cycle.\n"
-                            + "This is best effort download");
-                    reports_.add(new SlaveResponse<DownloadJob>(job, e, false));
-                }
-            }
+            Shard shard= shards_.forArchive(job.getArchive());
+            File downloadedFile = Paths.get(c_.root_dir, job.getArchive().getFileName()).toFile();
+            ensureParentDirectory(downloadedFile);
+            log.info("Downloading file \"" + downloadedFile + "\"");
+            download(shard, job, downloadedFile, listener);
+            log.info("Download of \"" + downloadedFile + "\" completed successfully");
+            progress_.fileCompleted();
+            return new SlaveResponse<DownloadJob>(job, null, false);
         } catch (Exception e) {
-            reports_.add(
-                new SlaveResponse<DownloadJob>(
-                    request == null ? null : request.getRequest(),
-                    new Exception("Unexpected exception", e), true));            
-        } finally {
-            log.finer("Shutting down download slave thread \"" + Thread.currentThread() + "\"");
+            if (isThrottling(e))
+                progress_.congestion();
+            if (retries_.retry(job, e)) {
+                progress_.attemptFailed(listener.getBytes());
+                return null;
+            }
+            Archive archive= job.getArchive();
+            progress_.fileFailed(listener.getBytes(), job.getSize());
+            log.severe("Download job of file \""
+                    + archive.getFileName()
+                    + "\" with archive ID \""
+                    + archive.getArchiveId()
+                    + "\" using job \""
+                    + job.getJobId()
+                    + "\" has failed on Glacier.\n"
+                    + "Failure to download single file won't stop the download cycle.\n"
+                    + "This is best effort download");
+            return new SlaveResponse<DownloadJob>(job, e, false);
         }
     }
 
+    @Override
+    public SlaveResponse<DownloadJob> cancelled(DownloadJob job) {
+        progress_.fileFailed(0, job.getSize());
+        return new SlaveResponse<DownloadJob>(job,
+            new CancellationException("Download of \"" + job.getArchive().getFileName() + "\" is cancelled"), false);
+    }
+
 }
@@ -0,0 +1,176 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.vkleban.glacier_backup.trace.TransferTrace;
+import com.vkleban.glacier_backup.trace.TransferTrace.Phase;
+
+/**
+ * Writes a downloaded file through a file channel from pooled direct buffers. The stream is still read through
+ * the heap, but the file channel doesn't copy direct buffers once more into a temporary one of its own, and the
+ * buffers aren't allocated per download. The file is written under a unique temporary name next to its target,
+ * and it's given to the batched sync to be made durable and renamed to the target. The file isn't preallocated,
+ * as Java can't reserve blocks up front. Instead the expected length is reserved against the usable space,
+ * together with what the concurrent downloads have still to write, so that they don't all pass the check and fill
+ * the disk anyway
+ *
+ * @author vova
+ */
+public class DownloadWriter implements AutoCloseable {
+
+    private static final int BUFFER= 1024 * 1024;
+
+    // Direct buffers are expensive to allocate and are freed late, so they are reused by all the downloads
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool_= new ConcurrentLinkedQueue<>();
+
+    // Bytes the open downloads have still to write
+    private static final Object reservationLock_= new Object();
+    private static long reserved_= 0;
+
+    private final Path target_;
+    private final Path temp_;
+    private final FileChannel channel_;
+    private long written_= 0;
+    // Reserved bytes of this download, which haven't been written yet
+    private long reservation_= 0;
+    private boolean committed_= false;
+
+    /**
+     * @param target - file to write
+     * @param size   - expected file size in bytes. 0 if unknown
+     * @throws IOException when the temporary file can't be created or the file system has no room for the file
+     */
+    public DownloadWriter(Path target, long size) throws IOException {
+        target_= target;
+        Path directory= target.toAbsolutePath().getParent();
+        // Rather than running out of space after hours of download
+        long usable= Files.getFileStore(directory).getUsableSpace();
+        synchronized (reservationLock_) {
+            if (size > usable - reserved_)
+                throw new IOException("No room for \"" + target + "\" of " + size + " bytes, "
+                    + usable + " bytes are usable in \"" + directory + "\" and concurrent downloads have "
+                    + reserved_ + " bytes of them still to write");
+            reserved_+= size;
+        }
+        reservation_= size;
+        try {
+            temp_= createTemp(target);
+            channel_= FileChannel.open(temp_, StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException e) {
+            release(reservation_);
+            throw e;
+        }
+    }
+
+    /**
+     * @return bytes the open downloads have reserved and not written yet
+     */
+    static long reserved() {
+        synchronized (reservationLock_) {
+            return reserved_;
+        }
+    }
+
+    /**
+     * Give back part of the reservation of this download
+     *
+     * @param bytes - bytes written or no longer expected
+     */
+    private void release(long bytes) {
+        bytes= Math.min(bytes, reservation_);
+        if (bytes <= 0)
+            return;
+        reservation_-= bytes;
+        synchronized (reservationLock_) {
+            reserved_-= bytes;
+        }
+    }
+
+    /**
+     * @return new empty "<name>.<random>.part" next to the target. Unique, as downloads of the same name may run at once
+     */
+    private static Path createTemp(Path target) throws IOException {
+        while (true) {
+            try {
+                return Files.createFile(target.resolveSibling(
+                    target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part"));
+            } catch (FileAlreadyExistsException e) {}
+        }
+    }
+
+    private static ByteBuffer borrow() {
+        ByteBuffer buffer= pool_.poll();
+        return buffer == null ? ByteBuffer.allocateDirect(BUFFER) : buffer;
+    }
+
+    /**
+     * Write all of the stream into the file
+     *
+     * @param in - file contents
+     * @return number of bytes written
+     * @throws IOException when reading or writing fails
+     */
+    public long write(InputStream in) throws IOException {
+        ReadableByteChannel source= Channels.newChannel(in);
+        ByteBuffer buffer= borrow();
+        TransferTrace trace= TransferTrace.current();
+        try {
+            while (true) {
+                buffer.clear();
+                int n= 0;
+                while (buffer.hasRemaining() && n >= 0)
+                    n= source.read(buffer);
+                buffer.flip();
+                Phase previous= trace.enter(Phase.WRITE);
+                try {
+                    while (buffer.hasRemaining()) {
+                        int written= channel_.write(buffer, written_);
+                        written_+= written;
+                        release(written);
+                    }
+                } finally {
+                    trace.enter(previous);
+                }
+                if (n < 0)
+                    return written_;
+            }
+        } finally {
+            pool_.add(buffer);
+        }
+    }
+
+    /**
+     * The file is complete. Hand it over to be synced and renamed to the target
+     *
+     * @param sync - batched sync of the download
+     */
+    public void commit(BatchedSync sync) {
+        committed_= true;
+        release(reservation_);
+        sync.commit(channel_, temp_, target_);
+    }
+
+    /**
+     * Drop the temporary file unless it has been committed
+     */
+    @Override
+    public void close() throws IOException {
+        release(reservation_);
+        if (committed_)
+            return;
+        channel_.close();
+        Files.deleteIfExists(temp_);
+    }
+
+}
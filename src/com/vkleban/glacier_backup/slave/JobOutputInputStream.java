@@ -0,0 +1,110 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.model.GetJobOutputRequest;
+import com.vkleban.glacier_backup.trace.TransferTrace;
+import com.vkleban.glacier_backup.trace.TransferTrace.Phase;
+
+/**
+ * Output of an archive retrieval job as a single stream. The archive is fetched in consecutive byte ranges
+ * as the stream is read, so it can be decoded on the fly without being stored first. Reads count to the network
+ * phase of the current transfer trace
+ *
+ * @author vova
+ */
+public class JobOutputInputStream extends InputStream {
+
+    private static final long CHUNK= 128L * 1024 * 1024;
+
+    private final AmazonGlacier glacier_;
+    private final String vault_;
+    private final String jobId_;
+    private final long size_;
+    private final ProgressListener listener_;
+    private InputStream body_= null;
+    private long offset_= 0;
+    private boolean done_= false;
+
+    /**
+     * @param glacier  - Glacier client
+     * @param vault    - vault name
+     * @param jobId    - completed archive retrieval job
+     * @param size     - archive size. 0 if unknown, then the output is fetched in a single request
+     * @param listener - progress listener of the requests
+     */
+    public JobOutputInputStream(AmazonGlacier glacier, String vault, String jobId, long size, ProgressListener listener) {
+        glacier_= glacier;
+        vault_= vault;
+        jobId_= jobId;
+        size_= size;
+        listener_= listener;
+    }
+
+    private void fetch() {
+        GetJobOutputRequest request= new GetJobOutputRequest()
+            .withVaultName(vault_)
+            .withJobId(jobId_)
+            .<GetJobOutputRequest>withGeneralProgressListener(listener_);
+        if (size_ > 0)
+            request.setRange("bytes=" + offset_ + "-" + (Math.min(offset_ + CHUNK, size_) - 1));
+        body_= glacier_.getJobOutput(request).getBody();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b= new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        TransferTrace trace= TransferTrace.current();
+        Phase previous= trace.enter(Phase.NETWORK);
+        try {
+            return readBody(b, off, len);
+        } finally {
+            trace.enter(previous);
+        }
+    }
+
+    private int readBody(byte[] b, int off, int len) throws IOException {
+        while (!done_) {
+            if (body_ == null) {
+                if (size_ > 0 && offset_ >= size_) {
+                    done_= true;
+                    break;
+                }
+                fetch();
+            }
+            int n= body_.read(b, off, len);
+            if (n > 0) {
+                offset_+= n;
+                return n;
+            }
+            if (n < 0) {
+                body_.close();
+                body_= null;
+                if (size_ <= 0)
+                    done_= true;
+                else if (offset_ % CHUNK != 0 && offset_ < size_)
+                    throw new IOException("Job output of \"" + jobId_ + "\" ended at " + offset_ + " out of " + size_);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        done_= true;
+        if (body_ != null)
+            body_.close();
+        body_= null;
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.services.glacier.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.UploadMultipartPartRequest;
+import com.amazonaws.util.BinaryUtils;
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.trace.TransferTrace;
+import com.vkleban.glacier_backup.trace.TransferTrace.Phase;
+
+/**
+ * Multipart upload of a stream, which size is not known in advance (e.g. compressed file), or of a file in parts
+ * of chosen size. Parts are read into a buffer one by one, their tree hashes are combined into the archive tree hash.
+ * Requests count to the network phase of the current transfer trace, part hashes to the hash phase
+ *
+ * @author vova
+ */
+public class MultipartUploader {
+
+    private static final Logger log= Logger.getLogger(MultipartUploader.class.getName());
+
+    private final AmazonGlacier glacier_;
+    private final String vault_;
+
+    public MultipartUploader(AmazonGlacier glacier, String vault) {
+        glacier_= glacier;
+        vault_= vault;
+    }
+
+    private static int readPart(InputStream data, byte[] part) throws IOException {
+        int length= 0;
+        while (length < part.length) {
+            int n= data.read(part, length, part.length - length);
+            if (n < 0)
+                break;
+            length+= n;
+        }
+        return length;
+    }
+
+    /**
+     * Upload the stream as a new archive
+     *
+     * @param description - archive description
+     * @param data        - archive contents
+     * @param partSize    - power of two MiB, so that part tree hashes combine into the archive one. See PartSizer
+     * @param listener    - progress listener of all the requests
+     * @return uploaded archive with its ID, tree hash and size
+     * @throws IOException when reading the stream fails or the stream is empty
+     */
+    public Archive upload(String description, InputStream data, long partSize, ProgressListener listener)
+        throws IOException
+    {
+        TransferTrace trace= TransferTrace.current();
+        Phase previous= trace.enter(Phase.NETWORK);
+        String uploadId= glacier_.initiateMultipartUpload(new InitiateMultipartUploadRequest()
+                .withVaultName(vault_)
+                .withArchiveDescription(description)
+                .withPartSize(String.valueOf(partSize))
+                .<InitiateMultipartUploadRequest>withGeneralProgressListener(listener))
+            .getUploadId();
+        trace.enter(previous);
+        try {
+            byte[] part= new byte[(int) partSize];
+            List<byte[]> partHashes= new ArrayList<>();
+            long offset= 0;
+            while (true) {
+                int length= readPart(data, part);
+                if (length == 0)
+                    break;
+                previous= trace.enter(Phase.HASH);
+                String partHash= TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(part, 0, length));
+                trace.enter(Phase.NETWORK);
+                glacier_.uploadMultipartPart(new UploadMultipartPartRequest()
+                    .withVaultName(vault_)
+                    .withUploadId(uploadId)
+                    .withChecksum(partHash)
+                    .withRange("bytes " + offset + "-" + (offset + length - 1) + "/*")
+                    .withBody(new ByteArrayInputStream(part, 0, length))
+                    .<UploadMultipartPartRequest>withGeneralProgressListener(listener));
+                trace.enter(previous);
+                partHashes.add(BinaryUtils.fromHex(partHash));
+                offset+= length;
+                if (length < part.length)
+                    break;
+            }
+            if (offset == 0)
+                throw new IOException("Nothing to upload for \"" + description + "\"");
+            String treeHash= TreeHashGenerator.calculateTreeHash(partHashes);
+            previous= trace.enter(Phase.NETWORK);
+            String archiveId= glacier_.completeMultipartUpload(new CompleteMultipartUploadRequest()
+                    .withVaultName(vault_)
+                    .withUploadId(uploadId)
+                    .withArchiveSize(String.valueOf(offset))
+                    .withChecksum(treeHash)
+                    .<CompleteMultipartUploadRequest>withGeneralProgressListener(listener))
+                .getArchiveId();
+            trace.enter(previous);
+            return new Archive(archiveId, description, treeHash, offset);
+        } catch (IOException | RuntimeException e) {
+            try {
+                glacier_.abortMultipartUpload(new AbortMultipartUploadRequest()
+                    .withVaultName(vault_)
+                    .withUploadId(uploadId));
+            } catch (RuntimeException abortFailure) {
+                log.warning("Failed aborting multipart upload of \"" + description + "\": " + abortFailure);
+            }
+            throw e;
+        }
+    }
+
+}
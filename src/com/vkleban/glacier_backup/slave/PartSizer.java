@@ -0,0 +1,159 @@
+package com.vkleban.glacier_backup.slave;
+
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+
+/**
+ * Chooses the part size of every multipart upload from the size of the file, the number of uploads running
+ * alongside it and the request latency and throughput seen so far in the run. A part is big enough for the latency
+ * of its request to be a small share of its time, yet small enough to be cheap to send again when it fails and for
+ * the part buffers of all running uploads to fit the heap. Whatever else, the file must fit into 10000 parts, so
+ * larger uploads than 10000 parts of the largest size are refused before they start. Glacier takes powers of two
+ * MiB only
+ *
+ * @author vova
+ */
+public class PartSizer {
+
+    private static final long MIB= 1024 * 1024;
+    private static final long MIN_PART_SIZE= MIB;
+    // Parts are buffered in a byte array. Glacier would take up to 4 GiB
+    private static final long MAX_PART_SIZE= 1024 * MIB;
+    private static final long MAX_PARTS= 10000;
+    // Largest upload in parts, with room for the encoding overhead. About 9.8 TiB
+    public static final long MAX_UPLOAD_SIZE= MAX_PART_SIZE * MAX_PARTS / 65 * 64;
+    // Part size until latency and throughput have been seen
+    private static final long INITIAL_PART_SIZE= 16 * MIB;
+    // Share of the heap the part buffers of all running uploads may take
+    private static final double HEAP_SHARE= 0.5;
+    private static final long SAMPLE_NANOS= 5000000000L;
+    // Weight of the latest sample in the averages
+    private static final double SMOOTHING= 0.5;
+
+    /**
+     * Part size with the bound, which has decided it
+     */
+    public static class Choice {
+
+        private final long partSize_;
+        private final String reason_;
+
+        Choice(long partSize, String reason) {
+            partSize_= partSize;
+            reason_= reason;
+        }
+
+        public long getPartSize() {
+            return partSize_;
+        }
+
+        public String getReason() {
+            return reason_;
+        }
+
+        @Override
+        public String toString() {
+            return partSize_ / MIB + " MiB (" + reason_ + ")";
+        }
+    }
+
+    private final Config c_= Config.get();
+    private final TransferProgress progress_;
+    private long lastNanos_= System.nanoTime();
+    private long lastBytes_;
+    private long lastRequests_;
+    private long lastRequestNanos_;
+    // Bytes per second of all transfers. Negative until seen
+    private double throughput_= -1;
+    // Nanoseconds from a request sent to its response. Negative until seen
+    private double latency_= -1;
+
+    /**
+     * @param progress - counters of the run, where latency and throughput are seen
+     */
+    public PartSizer(TransferProgress progress) {
+        progress_= progress;
+        lastBytes_= progress.getTransferredBytes();
+        lastRequests_= progress.getRequests();
+        lastRequestNanos_= progress.getRequestNanos();
+    }
+
+    /**
+     * @param bytes - size in bytes
+     * @return the smallest power of two MiB not below the size, within Glacier part size limits
+     */
+    static long powerOfTwoMiB(double bytes) {
+        long partSize= MIN_PART_SIZE;
+        while (partSize < bytes && partSize < MAX_PART_SIZE)
+            partSize*= 2;
+        return partSize;
+    }
+
+    private void sample() {
+        long now= System.nanoTime();
+        if (now - lastNanos_ < SAMPLE_NANOS)
+            return;
+        long bytes= progress_.getTransferredBytes();
+        long requests= progress_.getRequests();
+        long requestNanos= progress_.getRequestNanos();
+        double throughput= (bytes - lastBytes_) * 1e9 / (now - lastNanos_);
+        if (throughput > 0)
+            throughput_= throughput_ < 0 ? throughput : SMOOTHING * throughput + (1 - SMOOTHING) * throughput_;
+        if (requests > lastRequests_) {
+            double latency= (double) (requestNanos - lastRequestNanos_) / (requests - lastRequests_);
+            latency_= latency_ < 0 ? latency : SMOOTHING * latency + (1 - SMOOTHING) * latency_;
+        }
+        lastNanos_= now;
+        lastBytes_= bytes;
+        lastRequests_= requests;
+        lastRequestNanos_= requestNanos;
+    }
+
+    /**
+     * @param size        - approximate size of the upload. Encoded streams may come out slightly bigger
+     * @param concurrency - number of uploads running now, this one included
+     * @return part size of the upload
+     * @throws IllegalArgumentException when the upload doesn't fit into 10000 parts
+     */
+    public synchronized Choice choose(long size, int concurrency) {
+        if (size > MAX_UPLOAD_SIZE)
+            throw new IllegalArgumentException("Upload of " + size + " bytes doesn't fit into " + MAX_PARTS
+                + " parts of " + MAX_PART_SIZE / MIB + " MiB. Uploads up to " + MAX_UPLOAD_SIZE + " bytes are taken"
+                + " as a whole, larger files only in chunks (chunk_index)");
+        sample();
+        concurrency= Math.max(1, concurrency);
+        long fitting= powerOfTwoMiB((size + size / 64) / (double) MAX_PARTS);
+        double wanted= INITIAL_PART_SIZE;
+        String reason= "initial";
+        if (c_.part_size_mib > 0) {
+            wanted= c_.part_size_mib * MIB;
+            reason= "configured";
+        } else if (throughput_ > 0 && latency_ > 0) {
+            double perUpload= throughput_ / concurrency;
+            wanted= latency_ / 1e9 * perUpload / c_.part_request_overhead;
+            reason= "latency";
+            double retryCost= perUpload * c_.part_retry_seconds;
+            if (retryCost < wanted) {
+                wanted= retryCost;
+                reason= "retry cost";
+            }
+        }
+        double heap= Runtime.getRuntime().maxMemory() * HEAP_SHARE / concurrency;
+        if (heap < wanted) {
+            wanted= heap;
+            reason= "memory";
+        }
+        if (size < wanted) {
+            wanted= size;
+            reason= "file size";
+        }
+        long partSize= powerOfTwoMiB(wanted);
+        // Caps are rounded down to power of two
+        if (partSize > wanted && (reason.equals("retry cost") || reason.equals("memory")) && partSize > MIN_PART_SIZE)
+            partSize/= 2;
+        if (partSize < fitting)
+            return new Choice(fitting, "10000 parts");
+        return new Choice(partSize, reason);
+    }
+
+}
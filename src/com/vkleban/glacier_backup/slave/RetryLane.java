@@ -0,0 +1,174 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.vkleban.glacier_backup.config.Config;
+
+/**
+ * Delayed queue of failed transfers to be attempted again. Transient failures are retried with exponential backoff
+ * and full jitter up to configured number of attempts. Due retries are put in front of the slave queue,
+ * so that they run alongside new work instead of after all of it. A retry is held until the engine has taken
+ * the failed transfer back, so that it never comes due before the engine knows the request is waiting
+ *
+ * @author vova
+ *
+ * @param <Request> - piece of work the slaves take
+ */
+public class RetryLane<Request> implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(RetryLane.class.getName());
+
+    private static class Retry<Request> implements Delayed {
+        final Request request_;
+        final long dueNanos_;
+
+        Retry(Request request, long delayMilliseconds) {
+            request_= request;
+            dueNanos_= System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMilliseconds);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos_ - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private final Config c_= Config.get();
+    private final DelayQueue<Retry<Request>> delayed_= new DelayQueue<>();
+    // Failed attempts of the outstanding requests. Requests are compared the way the slaves get them back
+    private final Map<Request, Integer> attempts_= new ConcurrentHashMap<>();
+    // Retries decided by the transfers, which the engine hasn't scheduled yet
+    private final Map<Request, Retry<Request>> pending_= new ConcurrentHashMap<>();
+    private Thread thread_= null;
+
+    /**
+     * Start moving due retries to the slaves
+     *
+     * @param target - puts the request in front of the slave queue
+     */
+    synchronized void start(Consumer<Request> target) {
+        thread_= new Thread(() -> {
+            try {
+                while (true)
+                    target.accept(delayed_.take().request_);
+            } catch (InterruptedException e) {
+                log.finer("Retry lane has been stopped");
+            }
+        }, "RetryLane");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    /**
+     * @param e - transfer failure
+     * @return true if the failure is likely to go away on its own: throttling, service side errors, network problems.
+     *         Missing or unreadable files and rejected requests are permanent
+     */
+    public static boolean isTransient(Exception e) {
+        for (Throwable cause= e; cause != null; cause= cause.getCause()) {
+            if (cause instanceof FileNotFoundException
+                || cause instanceof NoSuchFileException
+                || cause instanceof AccessDeniedException)
+                return false;
+            if (cause instanceof AmazonServiceException) {
+                AmazonServiceException serviceException= (AmazonServiceException) cause;
+                return RetryUtils.isThrottlingException(serviceException)
+                    || RetryUtils.isRetryableServiceException(serviceException)
+                    || serviceException.getStatusCode() >= 500
+                    || "RequestTimeoutException".equals(serviceException.getErrorCode());
+            }
+        }
+        if (e instanceof AmazonClientException)
+            return ((AmazonClientException) e).isRetryable();
+        return e instanceof IOException;
+    }
+
+    /**
+     * @param attempt - number of failed attempts so far
+     * @return random delay between 0 and the exponential backoff of this attempt
+     */
+    static long backoff(int attempt) {
+        Config c= Config.get();
+        long ceiling= c.retry_max_milliseconds;
+        if (attempt - 1 < 62 && c.retry_base_milliseconds <= ceiling >> (attempt - 1))
+            ceiling= c.retry_base_milliseconds << (attempt - 1);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Decide on another attempt of failed transfer: it's retried if the failure is transient and attempts are
+     * not exhausted. The engine schedules the retry once the transfer has returned
+     *
+     * @param request - failed piece of work
+     * @param e       - failure
+     * @return true if the transfer will be attempted again. Otherwise the failure is final
+     */
+    public boolean retry(Request request, Exception e) {
+        int attempt= attempts_.merge(request, 1, Integer::sum);
+        if (!isTransient(e)) {
+            log.fine("Failure of \"" + request + "\" is permanent: " + e);
+            return false;
+        }
+        if (attempt >= c_.transfer_attempts) {
+            log.warning("Giving up on \"" + request + "\" after " + attempt + " attempts");
+            return false;
+        }
+        long delay= backoff(attempt);
+        log.warning("Attempt " + attempt + " of " + c_.transfer_attempts + " of \"" + request + "\" has failed:\n"
+            + e + "\nRetrying in " + delay + " ms");
+        pending_.put(request, new Retry<Request>(request, delay));
+        return true;
+    }
+
+    /**
+     * Start the delay of the retry decided for the request
+     *
+     * @param request - failed piece of work, which the engine has taken as waiting for retry
+     */
+    void schedule(Request request) {
+        Retry<Request> retry= pending_.remove(request);
+        if (retry != null)
+            delayed_.add(retry);
+    }
+
+    /**
+     * Forget the failed attempts of a request, which has been finally reported or cancelled, so that the same
+     * request submitted again gets all its attempts
+     *
+     * @param request - piece of work
+     */
+    void forget(Request request) {
+        attempts_.remove(request);
+        pending_.remove(request);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (thread_ == null)
+            return;
+        thread_.interrupt();
+        try {
+            thread_.join();
+        } catch (InterruptedException e) {}
+    }
+
+}
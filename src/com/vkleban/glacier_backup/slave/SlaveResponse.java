@@ -1,11 +1,15 @@
 package com.vkleban.glacier_backup.slave;
 
+import com.vkleban.glacier_backup.trace.TransferTrace;
+
 public class SlaveResponse<Response> {
 
     Thread slave_;
     Response response_;
     Exception exception_;
     boolean isStopped_;
+    // Trace of the transfer, set by the transfer engine
+    TransferTrace trace_= TransferTrace.NONE;
     
     public SlaveResponse(Response response, Exception exception, boolean isStopped) {
         slave_= Thread.currentThread();
@@ -0,0 +1,257 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.services.glacier.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.UploadMultipartPartRequest;
+import com.amazonaws.util.BinaryUtils;
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+
+/**
+ * Multipart upload of a stream of unknown length, which can't be read again (e.g. standard input). Parts are read
+ * into a bounded pool of buffers and sent by a thread per buffer while the stream goes on, so memory stays at
+ * "stream_part_buffers" parts whatever the length. Part tree hashes are computed as the parts are sent and combined
+ * into the archive tree hash at the end. Every request is retried on its own, since the stream can't be read again
+ *
+ * @author vova
+ */
+public class StreamUploader {
+
+    private static final Logger log= Logger.getLogger(StreamUploader.class.getName());
+
+    private static final int MAX_PARTS= 10000;
+    // Share of the heap the part buffers may take
+    private static final double HEAP_SHARE= 0.5;
+
+    private final Config c_= Config.get();
+    private final AmazonGlacier glacier_;
+    private final String vault_;
+    private final long partSize_;
+    private final int buffers_;
+
+    /**
+     * Size the parts to fit "stream_max_bytes" into 10000 parts and the buffers into the heap
+     *
+     * @param glacier  - Glacier client
+     * @param vault    - vault name
+     * @param progress - counters of the upload
+     */
+    public StreamUploader(AmazonGlacier glacier, String vault, TransferProgress progress) {
+        glacier_= glacier;
+        vault_= vault;
+        int buffers= Math.max(1, c_.stream_part_buffers);
+        PartSizer.Choice choice= new PartSizer(progress).choose(c_.stream_max_bytes, buffers);
+        partSize_= choice.getPartSize();
+        long fitting= (long) (Runtime.getRuntime().maxMemory() * HEAP_SHARE / partSize_);
+        if (fitting < buffers) {
+            log.warning("Only " + Math.max(1, fitting) + " part buffers of " + choice + " fit the heap (-Xmx)");
+            buffers= (int) Math.max(1, fitting);
+        }
+        buffers_= buffers;
+        log.info("Streaming in parts of " + choice + " through " + buffers_ + " buffers");
+    }
+
+    private static int readPart(InputStream data, byte[] part) throws IOException {
+        int length= 0;
+        while (length < part.length) {
+            int n= data.read(part, length, part.length - length);
+            if (n < 0)
+                break;
+            length+= n;
+        }
+        return length;
+    }
+
+    /**
+     * Run a request, retrying transient failures
+     *
+     * @param what    - request description for the log
+     * @param request - the request
+     * @return result of the request
+     */
+    private <T> T retrying(String what, Supplier<T> request) throws InterruptedException {
+        for (int attempt= 1;; attempt++) {
+            try {
+                return request.get();
+            } catch (AmazonClientException e) {
+                if (attempt >= c_.transfer_attempts || !RetryLane.isTransient(e))
+                    throw e;
+                long delay= RetryLane.backoff(attempt);
+                log.warning("Attempt " + attempt + " of " + c_.transfer_attempts + " of " + what + " has failed:\n"
+                    + e + "\nRetrying in " + delay + " ms");
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Send a part, retrying transient failures
+     *
+     * @return tree hash of the part
+     */
+    private byte[] send(String uploadId, byte[] part, int length, long offset, ProgressListener listener)
+        throws InterruptedException
+    {
+        String partHash= TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(part, 0, length));
+        String range= "bytes " + offset + "-" + (offset + length - 1) + "/*";
+        retrying("part " + range, () -> glacier_.uploadMultipartPart(new UploadMultipartPartRequest()
+            .withVaultName(vault_)
+            .withUploadId(uploadId)
+            .withChecksum(partHash)
+            .withRange(range)
+            .withBody(new ByteArrayInputStream(part, 0, length))
+            .<UploadMultipartPartRequest>withGeneralProgressListener(listener)));
+        return BinaryUtils.fromHex(partHash);
+    }
+
+    /**
+     * @param sent - completed send of a part
+     * @throws IOException when the part has failed for good
+     */
+    private static void collect(Future<Void> sent) throws IOException, InterruptedException {
+        try {
+            sent.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException("Failed sending part", e.getCause());
+        }
+    }
+
+    private void abort(String description, String uploadId) {
+        try {
+            glacier_.abortMultipartUpload(new AbortMultipartUploadRequest()
+                .withVaultName(vault_)
+                .withUploadId(uploadId));
+        } catch (RuntimeException abortFailure) {
+            log.warning("Failed aborting multipart upload of \"" + description + "\": " + abortFailure);
+        }
+    }
+
+    /**
+     * Upload the stream as a new archive
+     *
+     * @param description - archive description
+     * @param data        - archive contents, read to the end
+     * @param listener    - progress listener of all the requests
+     * @return uploaded archive with its ID, tree hash and size
+     * @throws IOException when reading the stream or sending a part fails, or the stream is empty or too long
+     */
+    public Archive upload(String description, InputStream data, ProgressListener listener) throws IOException {
+        String uploadId;
+        try {
+            uploadId= retrying("initiation", () -> glacier_.initiateMultipartUpload(new InitiateMultipartUploadRequest()
+                    .withVaultName(vault_)
+                    .withArchiveDescription(description)
+                    .withPartSize(String.valueOf(partSize_))
+                    .<InitiateMultipartUploadRequest>withGeneralProgressListener(listener))
+                .getUploadId());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted streaming \"" + description + "\"", e);
+        }
+        ExecutorService senders= Executors.newFixedThreadPool(buffers_, task -> {
+            Thread thread= new Thread(task, "StreamPart");
+            thread.setDaemon(true);
+            return thread;
+        });
+        BlockingQueue<byte[]> free= new ArrayBlockingQueue<>(buffers_);
+        AtomicReferenceArray<byte[]> partHashes= new AtomicReferenceArray<>(MAX_PARTS);
+        ExecutorCompletionService<Void> done= new ExecutorCompletionService<>(senders);
+        try {
+            int allocated= 0;
+            int pending= 0;
+            int parts= 0;
+            long offset= 0;
+            while (true) {
+                Future<Void> sent;
+                while ((sent= done.poll()) != null) {
+                    pending--;
+                    collect(sent);
+                }
+                byte[] part= free.poll();
+                if (part == null && allocated < buffers_) {
+                    part= new byte[(int) partSize_];
+                    allocated++;
+                }
+                // All buffers are being sent. A failed send returns its buffer too, caught on the next round
+                if (part == null)
+                    part= free.take();
+                int length= readPart(data, part);
+                if (length == 0) {
+                    free.add(part);
+                    break;
+                }
+                if (parts == MAX_PARTS)
+                    throw new IOException("Stream of \"" + description + "\" is longer than " + MAX_PARTS + " parts of "
+                        + partSize_ + " bytes. Raise \"stream_max_bytes\"");
+                int index= parts++;
+                long start= offset;
+                byte[] buffer= part;
+                done.submit(() -> {
+                    try {
+                        partHashes.set(index, send(uploadId, buffer, length, start, listener));
+                    } finally {
+                        free.add(buffer);
+                    }
+                    return null;
+                });
+                pending++;
+                offset+= length;
+                if (length < part.length)
+                    break;
+            }
+            for (; pending > 0; pending--)
+                collect(done.take());
+            if (offset == 0)
+                throw new IOException("Nothing to upload for \"" + description + "\"");
+            List<byte[]> hashes= new ArrayList<>(parts);
+            for (int i= 0; i < parts; i++)
+                hashes.add(partHashes.get(i));
+            String treeHash= TreeHashGenerator.calculateTreeHash(hashes);
+            long size= offset;
+            String archiveId= retrying("completion", () -> glacier_.completeMultipartUpload(new CompleteMultipartUploadRequest()
+                    .withVaultName(vault_)
+                    .withUploadId(uploadId)
+                    .withArchiveSize(String.valueOf(size))
+                    .withChecksum(treeHash)
+                    .<CompleteMultipartUploadRequest>withGeneralProgressListener(listener))
+                .getArchiveId());
+            return new Archive(archiveId, description, treeHash, offset);
+        } catch (IOException | RuntimeException e) {
+            senders.shutdownNow();
+            abort(description, uploadId);
+            throw e;
+        } catch (InterruptedException e) {
+            senders.shutdownNow();
+            abort(description, uploadId);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted streaming \"" + description + "\"", e);
+        } finally {
+            senders.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Single transfer run by the transfer engine. Implementations are shared by all concurrent transfers
+ * of the engine, so they have to be thread safe
+ *
+ * @author vova
+ *
+ * @param <Request>  - piece of work
+ * @param <Response> - report of the work
+ */
+@FunctionalInterface
+public interface Transfer<Request, Response> {
+
+    /**
+     * @param request - piece of work
+     * @return final report of the work. null if the request has been given to the retry lane
+     */
+    SlaveResponse<Response> transfer(Request request);
+
+    /**
+     * @param request - piece of work cancelled before it could be finished
+     * @return final report of the cancelled work
+     */
+    default SlaveResponse<Response> cancelled(Request request) {
+        return new SlaveResponse<Response>(null, new CancellationException("\"" + request + "\" is cancelled"), false);
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.vkleban.glacier_backup.InitException;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.progress.BandwidthLimiter;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+
+/**
+ * Transfer run registered with the platform MBean server as "com.vkleban.glacier_backup:type=Transfers,name=<run>"
+ * for as long as the run lasts, so that jconsole or any JMX client can watch and tune it. Changes of the slaves,
+ * bandwidth and polling interval are written back to the configuration, so later runs of the process keep them
+ *
+ * @author vova
+ */
+public class TransferControl implements TransferControlMBean, AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(TransferControl.class.getName());
+
+    private final Config c_= Config.get();
+    private final TransferEngine<?, ?> engine_;
+    private final TransferProgress progress_;
+    private ObjectName name_= null;
+    private long lastBytes_;
+    private long lastNanos_;
+    private double rate_= 0;
+
+    /**
+     * Register the run
+     *
+     * @param name     - name of the run, e.g. "Upload"
+     * @param engine   - engine of the run
+     * @param progress - counters of the run
+     */
+    public TransferControl(String name, TransferEngine<?, ?> engine, TransferProgress progress) {
+        engine_= engine;
+        progress_= progress;
+        lastBytes_= progress.getTransferredBytes();
+        lastNanos_= System.nanoTime();
+        try {
+            ObjectName objectName= new ObjectName("com.vkleban.glacier_backup:type=Transfers,name=" + ObjectName.quote(name));
+            MBeanServer server= ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+            name_= objectName;
+        } catch (JMException e) {
+            log.warning("Failed registering JMX control of \"" + name + "\": " + e);
+        }
+    }
+
+    @Override
+    public int getQueuedFiles() {
+        return engine_.queued();
+    }
+
+    @Override
+    public int getRunningTransfers() {
+        return engine_.running();
+    }
+
+    @Override
+    public String[] getInFlightFiles() {
+        return engine_.inFlight().toArray(new String[0]);
+    }
+
+    @Override
+    public long getPlannedFiles() {
+        return progress_.getPlannedFiles();
+    }
+
+    @Override
+    public long getCompletedFiles() {
+        return progress_.getCompletedFiles();
+    }
+
+    @Override
+    public long getFailedFiles() {
+        return progress_.getFailedFiles();
+    }
+
+    @Override
+    public long getRetries() {
+        return progress_.getRetries();
+    }
+
+    @Override
+    public long getPlannedBytes() {
+        return progress_.getPlannedBytes();
+    }
+
+    @Override
+    public long getTransferredBytes() {
+        return progress_.getTransferredBytes();
+    }
+
+    @Override
+    public synchronized double getBytesPerSecond() {
+        long now= System.nanoTime();
+        if (now - lastNanos_ >= 1000000000L) {
+            long bytes= progress_.getTransferredBytes();
+            rate_= (bytes - lastBytes_) * 1e9 / (now - lastNanos_);
+            lastBytes_= bytes;
+            lastNanos_= now;
+        }
+        return rate_;
+    }
+
+    @Override
+    public int getSlaves() {
+        return engine_.size();
+    }
+
+    @Override
+    public void setSlaves(int slaves) {
+        if (slaves < 1)
+            throw new IllegalArgumentException("Number of slaves has to be positive");
+        log.info("Setting number of transfer slaves to " + slaves + " through JMX");
+        c_.file_transfer_slaves= slaves;
+        engine_.resize(slaves);
+    }
+
+    @Override
+    public long getBandwidthLimitBytesPerSecond() {
+        return BandwidthLimiter.get().getLimit();
+    }
+
+    @Override
+    public String getBandwidthLimit() {
+        return c_.bandwidth_limit;
+    }
+
+    @Override
+    public void setBandwidthLimit(String rate) {
+        try {
+            BandwidthLimiter.get().setLimit(rate);
+        } catch (InitException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        c_.bandwidth_limit= rate;
+    }
+
+    @Override
+    public long getPollingMilliseconds() {
+        return c_.polling_milliseconds;
+    }
+
+    @Override
+    public void setPollingMilliseconds(long milliseconds) {
+        if (milliseconds < 1)
+            throw new IllegalArgumentException("Polling interval has to be positive");
+        log.info("Setting polling interval to " + milliseconds + " ms through JMX");
+        c_.polling_milliseconds= milliseconds;
+    }
+
+    @Override
+    public boolean isPaused() {
+        return engine_.isPaused();
+    }
+
+    @Override
+    public void pause() {
+        engine_.pause();
+    }
+
+    @Override
+    public void resume() {
+        engine_.resume();
+    }
+
+    @Override
+    public boolean cancel(String file) {
+        return engine_.cancel(file);
+    }
+
+    /**
+     * Unregister the run
+     */
+    @Override
+    public void close() {
+        if (name_ == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name_);
+        } catch (JMException e) {
+            log.fine("Failed unregistering \"" + name_ + "\": " + e);
+        }
+        name_= null;
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.vkleban.glacier_backup.slave;
+
+/**
+ * JMX view of a transfer run: its live state and the knobs, which can be turned while it runs
+ *
+ * @author vova
+ */
+public interface TransferControlMBean {
+
+    int getQueuedFiles();
+
+    int getRunningTransfers();
+
+    /**
+     * @return files being transferred now
+     */
+    String[] getInFlightFiles();
+
+    long getPlannedFiles();
+
+    long getCompletedFiles();
+
+    long getFailedFiles();
+
+    long getRetries();
+
+    long getPlannedBytes();
+
+    long getTransferredBytes();
+
+    /**
+     * @return transfer rate since the previous sample, at most a second old
+     */
+    double getBytesPerSecond();
+
+    int getSlaves();
+
+    /**
+     * @param slaves - new number of concurrent transfers. Adaptive slaves carry on from it
+     */
+    void setSlaves(int slaves);
+
+    /**
+     * @return bandwidth limit of the process in bytes per second. 0 is unlimited
+     */
+    long getBandwidthLimitBytesPerSecond();
+
+    /**
+     * @return configured bandwidth limit, or the last one set. "bandwidth_schedule" overrides it unless it was set
+     */
+    String getBandwidthLimit();
+
+    /**
+     * @param rate - bits per second with optional decimal suffix k, M or G. Empty or 0 is unlimited.
+     *               Replaces "bandwidth_schedule" until the end of the process
+     */
+    void setBandwidthLimit(String rate);
+
+    long getPollingMilliseconds();
+
+    void setPollingMilliseconds(long milliseconds);
+
+    boolean isPaused();
+
+    /**
+     * Hold back the start of new transfers. Running ones complete
+     */
+    void pause();
+
+    void resume();
+
+    /**
+     * @param file - file to cancel, queued, waiting for a retry or running
+     * @return true if the file has been found
+     */
+    boolean cancel(String file);
+
+}
@@ -0,0 +1,391 @@
+package com.vkleban.glacier_backup.slave;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.vkleban.glacier_backup.trace.TransferTrace;
+import com.vkleban.glacier_backup.trace.TransferTrace.Phase;
+import com.vkleban.glacier_backup.trace.Tracer;
+
+/**
+ * Runs transfers as tasks of an executor, at most given number of them at a time. The limit can be changed
+ * while transfers run: extra ones are started right away, and on decrease running transfers simply complete
+ * before new ones start. Failed transfers may come back through the retry lane, so the engine is done only
+ * when every submitted request has been finally reported. Cancellation interrupts running transfers and drops
+ * the queued ones. The engine can be paused, which only holds back the start of new transfers, and single
+ * requests can be cancelled wherever they are. With tracing on, every request is traced from its submission until its report is taken.
+ * On Java 21+ transfers run on virtual threads, so thousands of concurrent I/O bound transfers are cheap
+ *
+ * @author vova
+ *
+ * @param <Request>  - piece of work
+ * @param <Response> - report of the work
+ */
+public class TransferEngine<Request, Response> implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(TransferEngine.class.getName());
+
+    private final String name_;
+    private final Transfer<Request, Response> transfer_;
+    private final ExecutorService executor_;
+    private final RetryLane<Request> retries_;
+    private final Deque<Request> queued_= new LinkedList<>();
+    private final Tracer tracer_= Tracer.get();
+    // Traces of the outstanding requests
+    private final Map<Request, TransferTrace> traces_= new HashMap<>();
+    private final BlockingQueue<SlaveResponse<Response>> responses_= new LinkedBlockingQueue<>();
+    // Transfer threads to their requests
+    private final Map<Thread, Request> running_= new ConcurrentHashMap<>();
+    // Requests given to the executor, whose transfers haven't started yet
+    private final List<Request> dispatched_= new LinkedList<>();
+    // Requests waiting in the retry lane
+    private final Set<Request> waiting_= new HashSet<>();
+    // Cancelled requests, which are still dispatched, running or waiting in the retry lane
+    private final Set<Request> cancelled_= new HashSet<>();
+    private final AtomicInteger started_= new AtomicInteger();
+    private final SlaveResponse<Response> end_= new SlaveResponse<Response>(null, null, true);
+    private int limit_;
+    private int inFlight_= 0;
+    // Submitted requests, which haven't been finally reported yet. Includes the ones waiting for retry
+    private int outstanding_= 0;
+    private boolean paused_= false;
+    private boolean shutdown_= false;
+    private boolean done_= false;
+
+    /**
+     * @param kind - "virtual", "platform" or "auto" (virtual if the runtime has them)
+     * @return executor starting a thread per transfer
+     */
+    public static ExecutorService newExecutor(String kind) {
+        if (!"platform".equals(kind)) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                if ("virtual".equals(kind))
+                    log.warning("Virtual threads need Java 21 or newer. Falling back to platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread= new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param name     - transfer thread name prefix
+     * @param transfer - the transfer run for every request
+     * @param executor - executor to run the transfers on. It's shut down along with the engine
+     * @param limit    - initial number of concurrent transfers
+     * @param retries  - retry lane the transfer gives failed requests to. null if it doesn't retry
+     */
+    public TransferEngine(String name,
+                          Transfer<Request, Response> transfer,
+                          ExecutorService executor,
+                          int limit,
+                          RetryLane<Request> retries)
+    {
+        name_= name;
+        transfer_= transfer;
+        executor_= executor;
+        limit_= limit;
+        retries_= retries;
+        if (retries != null)
+            retries.start(this::retry);
+    }
+
+    /**
+     * @return the limit of concurrent transfers
+     */
+    public synchronized int size() {
+        return limit_;
+    }
+
+    /**
+     * @return number of requests waiting for a transfer to start
+     */
+    public synchronized int queued() {
+        return queued_.size();
+    }
+
+    /**
+     * @return number of transfers running now
+     */
+    public synchronized int running() {
+        return inFlight_;
+    }
+
+    /**
+     * Change the limit of concurrent transfers. Running transfers are never stopped for it
+     *
+     * @param limit - new limit
+     */
+    public synchronized void resize(int limit) {
+        log.fine("Changing limit of \"" + name_ + "\" transfers from " + limit_ + " to " + limit);
+        limit_= limit;
+        dispatch();
+    }
+
+    /**
+     * @param request - piece of work
+     */
+    public synchronized void submit(Request request) {
+        outstanding_++;
+        if (tracer_.isEnabled())
+            traces_.put(request, tracer_.start(name_, String.valueOf(request)));
+        queued_.addLast(request);
+        dispatch();
+    }
+
+    /**
+     * @return names of the requests being transferred now
+     */
+    public List<String> inFlight() {
+        List<String> names= new ArrayList<>();
+        for (Request request : running_.values())
+            names.add(String.valueOf(request));
+        return names;
+    }
+
+    /**
+     * Hold back the start of new transfers. Running transfers complete
+     */
+    public synchronized void pause() {
+        log.info("Pausing \"" + name_ + "\" transfers");
+        paused_= true;
+    }
+
+    public synchronized void resume() {
+        log.info("Resuming \"" + name_ + "\" transfers");
+        paused_= false;
+        dispatch();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused_;
+    }
+
+    /**
+     * Cancel a request: a queued or retried one is reported as cancelled at once, a dispatched one as its transfer
+     * was to start, and a running one is interrupted and reported as its transfer ends
+     *
+     * @param name - name of the request, e.g. file path
+     * @return true if such request has been found
+     */
+    public synchronized boolean cancel(String name) {
+        boolean found= false;
+        for (Iterator<Request> i= queued_.iterator(); i.hasNext();) {
+            Request request= i.next();
+            if (String.valueOf(request).equals(name)) {
+                i.remove();
+                finishCancelled(request);
+                found= true;
+            }
+        }
+        for (Iterator<Request> i= waiting_.iterator(); i.hasNext();) {
+            Request request= i.next();
+            if (String.valueOf(request).equals(name)) {
+                i.remove();
+                // The retry lane gives it back later, to be dropped then
+                cancelled_.add(request);
+                finishCancelled(request);
+                found= true;
+            }
+        }
+        for (Request request : dispatched_) {
+            if (String.valueOf(request).equals(name)) {
+                cancelled_.add(request);
+                found= true;
+            }
+        }
+        for (Map.Entry<Thread, Request> running : running_.entrySet()) {
+            if (String.valueOf(running.getValue()).equals(name)) {
+                cancelled_.add(running.getValue());
+                running.getKey().interrupt();
+                found= true;
+            }
+        }
+        if (found)
+            log.warning("Cancelled \"" + name + "\" of \"" + name_ + "\" transfers");
+        return found;
+    }
+
+    private void finishCancelled(Request request) {
+        SlaveResponse<Response> response= transfer_.cancelled(request);
+        outstanding_--;
+        forget(request);
+        TransferTrace trace= trace(request);
+        traces_.remove(request);
+        trace.enter(Phase.REPORT);
+        response.trace_= trace;
+        responses_.add(response);
+        finishIfDone();
+    }
+
+    private synchronized void retry(Request request) {
+        if (!waiting_.remove(request)) {
+            // Cancelled while waiting
+            cancelled_.remove(request);
+            return;
+        }
+        trace(request).enter(Phase.QUEUE);
+        queued_.addFirst(request);
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (!done_ && !paused_ && inFlight_ < limit_ && !queued_.isEmpty()) {
+            Request request= queued_.removeFirst();
+            inFlight_++;
+            dispatched_.add(request);
+            TransferTrace trace= trace(request);
+            executor_.execute(() -> run(request, trace));
+        }
+    }
+
+    private void forget(Request request) {
+        if (retries_ != null)
+            retries_.forget(request);
+    }
+
+    private TransferTrace trace(Request request) {
+        TransferTrace trace= traces_.get(request);
+        return trace == null ? TransferTrace.NONE : trace;
+    }
+
+    private void run(Request request, TransferTrace trace) {
+        Thread thread= Thread.currentThread();
+        thread.setName(name_ + "-" + started_.getAndIncrement());
+        synchronized (this) {
+            dispatched_.remove(request);
+            if (cancelled_.remove(request)) {
+                // Cancelled before it started
+                inFlight_--;
+                finishCancelled(request);
+                dispatch();
+                return;
+            }
+            running_.put(thread, request);
+        }
+        trace.enter(Phase.OTHER);
+        trace.attempt();
+        TransferTrace.setCurrent(trace);
+        SlaveResponse<Response> response= null;
+        try {
+            response= transfer_.transfer(request);
+        } catch (Throwable e) {
+            // Reported as any failure, so that the engine doesn't wait for it. Errors go on up after that
+            response= new SlaveResponse<Response>(null, new Exception("Unexpected exception", e), false);
+            if (e instanceof Error)
+                throw (Error) e;
+        } finally {
+            TransferTrace.setCurrent(null);
+            running_.remove(thread);
+            finish(request, trace, response);
+        }
+    }
+
+    /**
+     * Account for the end of a transfer and report it, unless it goes for a retry. The retry is scheduled only
+     * here, once the request is waiting, so that it can't come back before
+     */
+    private synchronized void finish(Request request, TransferTrace trace, SlaveResponse<Response> response) {
+        inFlight_--;
+        boolean cancelled= cancelled_.remove(request);
+        // The interrupt is not for the next transfer of the thread
+        if (cancelled)
+            Thread.interrupted();
+        if (response == null) {
+            if (cancelled) {
+                // Interrupted transfers either fail or go for a retry, which is dropped
+                finishCancelled(request);
+            } else {
+                waiting_.add(request);
+                trace.enter(Phase.RETRY_WAIT);
+                retries_.schedule(request);
+            }
+        } else {
+            outstanding_--;
+            forget(request);
+            traces_.remove(request);
+            trace.enter(Phase.REPORT);
+            response.trace_= trace;
+            responses_.add(response);
+        }
+        finishIfDone();
+        dispatch();
+    }
+
+    private void finishIfDone() {
+        if (!shutdown_ || done_ || outstanding_ > 0)
+            return;
+        done_= true;
+        responses_.add(end_);
+    }
+
+    /**
+     * No more requests are coming. The engine is done as soon as all submitted work is, retries included
+     */
+    public synchronized void shutdown() {
+        shutdown_= true;
+        finishIfDone();
+    }
+
+    /**
+     * Cancel all the work: queued requests are dropped, running transfers are interrupted
+     * and their reports are not waited for
+     */
+    public synchronized void cancel() {
+        if (done_)
+            return;
+        log.warning("Cancelling " + queued_.size() + " queued and " + inFlight_ + " running \"" + name_ + "\" transfers");
+        queued_.clear();
+        traces_.clear();
+        for (Thread thread : running_.keySet())
+            thread.interrupt();
+        shutdown_= true;
+        done_= true;
+        responses_.add(end_);
+    }
+
+    /**
+     * Wait for the next report
+     *
+     * @return report of a finished transfer. null when all the work is done or cancelled
+     * @throws InterruptedException
+     */
+    public SlaveResponse<Response> take() throws InterruptedException {
+        SlaveResponse<Response> response= responses_.take();
+        if (response != end_) {
+            tracer_.finish(response.trace_, response.getException() == null);
+            return response;
+        }
+        // Keep the end for the next callers
+        responses_.add(end_);
+        close();
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (retries_ != null)
+            retries_.close();
+        executor_.shutdown();
+        tracer_.summarize();
+    }
+
+}
@@ -1,19 +1,26 @@
 package com.vkleban.glacier_backup.slave;
 
-import com.amazonaws.services.glacier.transfer.ArchiveTransferManager;
-import com.amazonaws.services.glacier.transfer.ArchiveTransferManagerBuilder;
-import com.vkleban.glacier_backup.GlacierClient;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.shard.ShardRing;
 
-public abstract class TransferSlave extends GlacierClient implements Runnable {
+/**
+ * Transfer to or from the shards of the backup, shared by all concurrent transfers of an engine
+ *
+ * @param <Request>  - piece of work
+ * @param <Response> - report of the work
+ */
+public abstract class TransferSlave<Request, Response> implements Transfer<Request, Response> {
 
-    protected ArchiveTransferManager archiveTransferManager_;
-    
-    protected TransferSlave() {
-        ArchiveTransferManagerBuilder builder = new ArchiveTransferManagerBuilder();
-        archiveTransferManager_ = builder
-                .withGlacierClient(amazonGlacier_)
-                .withSqsClient(amazonSQS_)
-                .withSnsClient(amazonSNS_)
-                .build();
+    protected final Config c_= Config.get();
+    protected final ShardRing shards_= ShardRing.get();
+
+    /**
+     * @param e - transfer failure
+     * @return true if the failure is the service throttling us
+     */
+    protected static boolean isThrottling(Exception e) {
+        return e instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) e);
     }
 }
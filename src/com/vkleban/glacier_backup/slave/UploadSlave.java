@@ -1,75 +1,196 @@
 package com.vkleban.glacier_backup.slave;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Paths;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import com.amazonaws.services.glacier.TreeHashGenerator;
 import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.chunk.ChunkIndex;
+import com.vkleban.glacier_backup.codec.Codec;
+import com.vkleban.glacier_backup.codec.EncryptionKey;
+import com.vkleban.glacier_backup.codec.GcmEncryptInputStream;
+import com.vkleban.glacier_backup.codec.TreeHashInputStream;
+import com.vkleban.glacier_backup.progress.FileProgressListener;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+import com.vkleban.glacier_backup.shard.Shard;
+import com.vkleban.glacier_backup.trace.TracedInputStream;
+import com.vkleban.glacier_backup.trace.TransferTrace;
+import com.vkleban.glacier_backup.trace.TransferTrace.Phase;
 
-public class UploadSlave extends TransferSlave {
+public class UploadSlave extends TransferSlave<String, Archive> {
     
     private static Logger log= Logger.getLogger(UploadSlave.class.getName());
+
+    // Plain files of a single part up to this size go in one request through the transfer manager,
+    // which would split anything over 100 MiB into its own parts
+    private static final long SINGLE_REQUEST_MAX= 64 * 1024 * 1024;
     
-    private final BlockingQueue<SlaveRequest<String>> uploads_;
-    private final BlockingQueue<SlaveResponse<Archive>> reports_;
+    private final RetryLane<String> retries_;
+    private final TransferProgress progress_;
+    private final Codec codec_;
+    private final PartSizer partSizer_;
+    private final AtomicInteger uploading_= new AtomicInteger();
     
-    public UploadSlave(BlockingQueue<SlaveRequest<String>> uploads, BlockingQueue<SlaveResponse<Archive>> reports) {
-        uploads_ = uploads;
-        reports_= reports;
+    public UploadSlave(RetryLane<String> retries, TransferProgress progress) {
+        retries_= retries;
+        progress_= progress;
+        codec_= Codec.forName(c_.compression);
+        partSizer_= new PartSizer(progress);
     }
 
-    @Override
-    public void run() {
-        SlaveRequest<String> request= null;
-        log.finer("Starting upload slave thread \"" + Thread.currentThread() + "\"");
+    private Archive uploadAsIs(Shard shard, String fileName, File uploadFile, FileProgressListener listener)
+        throws FileNotFoundException
+    {
+        TransferTrace trace= TransferTrace.current();
+        Phase previous= trace.enter(Phase.NETWORK);
+        String archiveId;
+        String treeHash;
         try {
-            while (true) {
-                request= null; // next line can fail. This is to avoid misreporting failed job
-                request= uploads_.take();
-                String fileName= request.getRequest();
-                if (request.isStopped())
-                {
-                    log.finer("Received thread stop request");
-                    // passing the request on to the next thread
-                    uploads_.add(request);
-                    reports_.add(
-                        new SlaveResponse<Archive>(null, null, true));
-                    return;
-                }
-                try {
-                    log.info("Uploading \"" + fileName + "\"");
-                    File uploadFile= Paths.get(c_.root_dir, fileName).toFile();
-                    String archiveId = archiveTransferManager_
-                            .upload(c_.vault,
-                                    fileName,
-                                    uploadFile)
-                            .getArchiveId();
-                    log.info("Upload successful. Archive ID: " + archiveId);
-                    reports_.add(new SlaveResponse<Archive>(
-                        new Archive(
-                            archiveId,
+            archiveId = shard.getTransferManager()
+                    .upload(null,
+                            shard.getVault(),
                             fileName,
-                            TreeHashGenerator.calculateTreeHash(uploadFile)), null, false));
-                } catch (Exception e) {
-                    Archive archive= new Archive(null, fileName, null);
-                    log.severe("Upload job of file \""
-                            + archive.getFileName()
-                            + "\" has failed on Glacier.\n"
-                            + "Failure to upload single file won't stop the upload cycle.\n"
-                            + "This is best effort upload");
-                    reports_.add(new SlaveResponse<Archive>(archive, e, false));
-                }
-            }
+                            uploadFile,
+                            listener)
+                    .getArchiveId();
+            trace.enter(Phase.HASH);
+            treeHash= TreeHashGenerator.calculateTreeHash(uploadFile);
+        } finally {
+            trace.enter(previous);
+        }
+        return new Archive(
+            archiveId,
+            fileName,
+            treeHash,
+            uploadFile.length(),
+            null,
+            null,
+            null,
+            null,
+            shard.getName());
+    }
+
+    /**
+     * Upload the file as it is in parts of given size
+     */
+    private Archive uploadInParts(Shard shard, String fileName, File uploadFile, long partSize, FileProgressListener listener)
+        throws IOException
+    {
+        try (InputStream in= new TracedInputStream(new FileInputStream(uploadFile), Phase.READ)) {
+            Archive archive= shard.getUploader().upload(fileName, in, partSize, listener);
+            return new Archive(
+                archive.getArchiveId(),
+                fileName,
+                archive.getTreeHash(),
+                archive.getSize(),
+                null,
+                null,
+                null,
+                null,
+                shard.getName());
+        }
+    }
+
+    /**
+     * Upload the file through the compression and encryption stages straight from disk, no intermediate files.
+     * The original size and tree hash are counted on the way, so that the inventory describes both the archive
+     * and the file. The archive tree hash is computed over what is sent, i.e. the cipher text
+     */
+    private Archive uploadEncoded(Shard shard, String fileName, File uploadFile, long partSize, FileProgressListener listener)
+        throws IOException
+    {
+        EncryptionKey key= EncryptionKey.get();
+        try (TreeHashInputStream original= new TreeHashInputStream(
+                 new TracedInputStream(new FileInputStream(uploadFile), Phase.READ));
+             InputStream compressed= codec_.encode(new TracedInputStream(original, Phase.HASH), c_.compression_level);
+             InputStream encoded= new TracedInputStream(
+                 key == null ? compressed : new GcmEncryptInputStream(compressed, key), Phase.CODEC))
+        {
+            Archive archive= shard.getUploader().upload(fileName, encoded, partSize, listener);
+            return new Archive(
+                archive.getArchiveId(),
+                fileName,
+                archive.getTreeHash(),
+                archive.getSize(),
+                codec_ == Codec.NONE ? null : codec_.getName(),
+                key == null ? null : key.getId(),
+                original.getCount(),
+                original.getTreeHash(),
+                shard.getName());
+        }
+    }
+
+    /**
+     * Upload the chunks of the file missing from the chunk index and its manifest. See ChunkedUploader
+     */
+    private Archive uploadChunked(Shard shard, String fileName, File uploadFile, long partSize, FileProgressListener listener)
+        throws IOException
+    {
+        try (InputStream in= new TracedInputStream(new FileInputStream(uploadFile), Phase.READ)) {
+            return new ChunkedUploader(shard, codec_, partSize, listener).upload(fileName, in);
+        }
+    }
+
+    @Override
+    public SlaveResponse<Archive> transfer(String fileName) {
+        File uploadFile= Paths.get(c_.root_dir, fileName).toFile();
+        FileProgressListener listener= new FileProgressListener(progress_);
+        uploading_.incrementAndGet();
+        try {
+            Shard shard= shards_.forPath(fileName);
+            long size= uploadFile.length();
+            boolean chunked= ChunkIndex.get() != null && size >= c_.chunk_min_file_bytes;
+            // Chunked files are sent a pack at a time
+            PartSizer.Choice part= partSizer_.choose(
+                chunked ? Math.min(size, c_.chunk_pack_bytes) : size, uploading_.get());
+            boolean encoded= codec_ != Codec.NONE || EncryptionKey.get() != null;
+            boolean single= !chunked && !encoded && size <= Math.min(SINGLE_REQUEST_MAX, part.getPartSize());
+            log.info("Uploading \"" + fileName + "\"" + (shard.getName() == null ? "" : " to \"" + shard + "\"")
+                + (chunked ? " in chunks" : "") + (single ? "" : " in parts of " + part));
+            if (!single)
+                TransferTrace.current().note("part_size", part.getPartSize());
+            Archive archive= chunked
+                ? uploadChunked(shard, fileName, uploadFile, part.getPartSize(), listener)
+                : single
+                    ? uploadAsIs(shard, fileName, uploadFile, listener)
+                    : encoded
+                        ? uploadEncoded(shard, fileName, uploadFile, part.getPartSize(), listener)
+                        : uploadInParts(shard, fileName, uploadFile, part.getPartSize(), listener);
+            log.info("Upload successful. Archive ID: " + archive.getArchiveId());
+            progress_.fileCompleted();
+            return new SlaveResponse<Archive>(archive, null, false);
         } catch (Exception e) {
-            reports_.add(
-                new SlaveResponse<Archive>(
-                    request == null ? null : new Archive(null, request.getRequest(), null),
-                    new Exception("Unexpected exception", e), true));            
+            if (isThrottling(e))
+                progress_.congestion();
+            if (retries_.retry(fileName, e)) {
+                progress_.attemptFailed(listener.getBytes());
+                return null;
+            }
+            progress_.fileFailed(listener.getBytes(), uploadFile.length());
+            Archive archive= new Archive(null, fileName, null);
+            log.severe("Upload job of file \""
+                    + archive.getFileName()
+                    + "\" has failed on Glacier.\n"
+                    + "Failure to upload single file won't stop the upload cycle.\n"
+                    + "This is best effort upload");
+            return new SlaveResponse<Archive>(archive, e, false);
         } finally {
-            log.finer("Shutting down upload slave thread \"" + Thread.currentThread() + "\"");
+            uploading_.decrementAndGet();
         }
     }
+
+    @Override
+    public SlaveResponse<Archive> cancelled(String fileName) {
+        progress_.fileFailed(0, Paths.get(c_.root_dir, fileName).toFile().length());
+        return new SlaveResponse<Archive>(new Archive(null, fileName, null),
+            new CancellationException("Upload of \"" + fileName + "\" is cancelled"), false);
+    }
     
 }
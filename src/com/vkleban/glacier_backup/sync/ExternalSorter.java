@@ -0,0 +1,166 @@
+package com.vkleban.glacier_backup.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+/**
+ * Sort in bounded memory. Entries are kept in memory up to a limit, beyond it they are sorted and spilled
+ * to temporary files in runs, which are merged back while the result is read
+ *
+ * @author vova
+ *
+ * @param <T> - sorted entry
+ */
+public class ExternalSorter<T extends Comparable<T>> implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(ExternalSorter.class.getName());
+
+    /**
+     * Binary form of the entries in spilled runs
+     *
+     * @param <T> - sorted entry
+     */
+    public interface Serializer<T> {
+        void write(T entry, DataOutput out) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
+    private final int limit_;
+    private final Serializer<T> serializer_;
+    private final List<T> buffer_= new ArrayList<>();
+    private final List<Path> runs_= new ArrayList<>();
+    private final List<DataInputStream> readers_= new ArrayList<>();
+    private long count_= 0;
+
+    /**
+     * Sorted run being read back
+     */
+    private class Run {
+        final DataInputStream in_;
+        long left_;
+        T head_;
+
+        Run(DataInputStream in, long size) throws IOException {
+            in_= in;
+            left_= size;
+            advance();
+        }
+
+        void advance() throws IOException {
+            head_= left_-- > 0 ? serializer_.read(in_) : null;
+        }
+    }
+
+    /**
+     * @param limit      - number of entries kept in memory
+     * @param serializer - binary form of the entries
+     */
+    public ExternalSorter(int limit, Serializer<T> serializer) {
+        limit_= Math.max(1, limit);
+        serializer_= serializer;
+    }
+
+    public void add(T entry) throws IOException {
+        buffer_.add(entry);
+        count_++;
+        if (buffer_.size() >= limit_)
+            spill();
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer_);
+        Path run= Files.createTempFile("glacier_backup_sort", ".run");
+        runs_.add(run);
+        try (DataOutputStream out= new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+            out.writeLong(buffer_.size());
+            for (T entry : buffer_)
+                serializer_.write(entry, out);
+        }
+        buffer_.clear();
+    }
+
+    /**
+     * @return number of added entries
+     */
+    public long size() {
+        return count_;
+    }
+
+    /**
+     * @return the entries sorted. Can be called once, after all the entries are added
+     * @throws IOException when spilled runs can't be read
+     */
+    public Iterator<T> sorted() throws IOException {
+        if (runs_.isEmpty()) {
+            Collections.sort(buffer_);
+            return buffer_.iterator();
+        }
+        if (!buffer_.isEmpty())
+            spill();
+        log.fine("Merging " + runs_.size() + " sorted runs of " + count_ + " entries");
+        PriorityQueue<Run> heads= new PriorityQueue<>((a, b) -> a.head_.compareTo(b.head_));
+        for (Path path : runs_) {
+            DataInputStream in= new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+            readers_.add(in);
+            Run run= new Run(in, in.readLong());
+            if (run.head_ != null)
+                heads.add(run);
+        }
+        return new Iterator<T>() {
+
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                Run run= heads.poll();
+                if (run == null)
+                    throw new NoSuchElementException();
+                T entry= run.head_;
+                try {
+                    run.advance();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed reading sorted run", e);
+                }
+                if (run.head_ != null)
+                    heads.add(run);
+                return entry;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        for (DataInputStream reader : readers_) {
+            try {
+                reader.close();
+            } catch (IOException e) {}
+        }
+        for (Path run : runs_) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                log.warning("Failed deleting temporary \"" + run + "\": " + e);
+            }
+        }
+    }
+
+}
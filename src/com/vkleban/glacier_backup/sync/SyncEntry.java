@@ -0,0 +1,72 @@
+package com.vkleban.glacier_backup.sync;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * File of the local tree or archive of the inventory, as much of it as the sync plan needs
+ *
+ * @author vova
+ */
+public class SyncEntry implements Comparable<SyncEntry> {
+
+    static final ExternalSorter.Serializer<SyncEntry> SERIALIZER= new ExternalSorter.Serializer<SyncEntry>() {
+        @Override
+        public void write(SyncEntry entry, DataOutput out) throws IOException {
+            entry.write(out);
+        }
+
+        @Override
+        public SyncEntry read(DataInput in) throws IOException {
+            return SyncEntry.read(in);
+        }
+    };
+
+    private final String path_;
+    private final long size_;
+    private final String archiveId_;
+
+    /**
+     * @param path      - path relative to root_dir
+     * @param size      - file size in bytes. Negative if unknown
+     * @param archiveId - archive ID. null for local files
+     */
+    public SyncEntry(String path, long size, String archiveId) {
+        path_= path;
+        size_= size;
+        archiveId_= archiveId;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(path_);
+        out.writeLong(size_);
+        out.writeBoolean(archiveId_ != null);
+        if (archiveId_ != null)
+            out.writeUTF(archiveId_);
+    }
+
+    static SyncEntry read(DataInput in) throws IOException {
+        String path= in.readUTF();
+        long size= in.readLong();
+        return new SyncEntry(path, size, in.readBoolean() ? in.readUTF() : null);
+    }
+
+    public String getPath() {
+        return path_;
+    }
+
+    public long getSize() {
+        return size_;
+    }
+
+    public String getArchiveId() {
+        return archiveId_;
+    }
+
+    @Override
+    public int compareTo(SyncEntry another) {
+        return path_.compareTo(another.path_);
+    }
+
+}
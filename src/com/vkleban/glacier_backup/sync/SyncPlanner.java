@@ -0,0 +1,243 @@
+package com.vkleban.glacier_backup.sync;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.scan.LocalFile;
+
+/**
+ * Plan of syncing the local tree to the inventory. Both sides are sorted by path (spilling to disk beyond
+ * sync_sort_entries) and merge-joined in a single pass, so memory stays bounded whatever the size of the tree
+ * or the inventory. A local file is new when the inventory doesn't have it, changed when its size differs
+ * from the size of every archive of the same name, and skipped otherwise. Archives without local file are orphans.
+ * Archives of unknown size (old inventories) never make a file changed
+ *
+ * @author vova
+ */
+public class SyncPlanner implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(SyncPlanner.class.getName());
+
+    public enum Action {
+        UPLOAD,
+        CHANGED,
+        SKIP,
+        ORPHAN
+    }
+
+    /**
+     * Single step of the plan
+     */
+    public static class Step {
+
+        private final Action action_;
+        private final SyncEntry entry_;
+
+        Step(Action action, SyncEntry entry) {
+            action_= action;
+            entry_= entry;
+        }
+
+        public Action getAction() {
+            return action_;
+        }
+
+        /**
+         * @return local file for upload and skip steps, archive for orphan steps
+         */
+        public SyncEntry getEntry() {
+            return entry_;
+        }
+
+        /**
+         * @return true if the step uploads the local file
+         */
+        public boolean isUpload() {
+            return action_ == Action.UPLOAD || action_ == Action.CHANGED;
+        }
+
+        @Override
+        public String toString() {
+            return action_ + "\t" + entry_.getPath() + (action_ == Action.ORPHAN ? "\t" + entry_.getArchiveId() : "");
+        }
+    }
+
+    private final ExternalSorter<SyncEntry> local_;
+    private final ExternalSorter<SyncEntry> inventory_;
+    private final long[] counts_= new long[Action.values().length];
+
+    /**
+     * Sort both sides of the plan
+     *
+     * @param files     - local files
+     * @param inventory - inventory file. null if there is none yet
+     * @throws IOException when the inventory can't be read or sorting fails
+     */
+    public SyncPlanner(Stream<LocalFile> files, Path inventory) throws IOException {
+        int limit= Config.get().sync_sort_entries;
+        local_= new ExternalSorter<>(limit, SyncEntry.SERIALIZER);
+        inventory_= new ExternalSorter<>(limit, SyncEntry.SERIALIZER);
+        try {
+            for (Iterator<LocalFile> i= files.iterator(); i.hasNext();) {
+                LocalFile file= i.next();
+                local_.add(new SyncEntry(file.getPath(), file.getSize(), null));
+            }
+            if (inventory != null)
+                readInventory(inventory);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        log.info("Planning sync of " + local_.size() + " local files against " + inventory_.size() + " archives");
+    }
+
+    /**
+     * Stream the archives of the inventory into the sorter without loading all of it
+     */
+    private void readInventory(Path inventory) throws IOException {
+        try (Reader in= Files.newBufferedReader(inventory, StandardCharsets.UTF_8);
+             JsonReader json= new JsonReader(in))
+        {
+            json.beginObject();
+            while (json.hasNext()) {
+                if (!json.nextName().equals("ArchiveList")) {
+                    json.skipValue();
+                    continue;
+                }
+                json.beginArray();
+                while (json.hasNext()) {
+                    String archiveId= null;
+                    String name= null;
+                    long size= -1;
+                    long originalSize= -1;
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        String field= json.nextName();
+                        if (json.peek() == JsonToken.NULL) {
+                            json.nextNull();
+                        } else if (field.equals("ArchiveId")) {
+                            archiveId= json.nextString();
+                        } else if (field.equals("ArchiveDescription")) {
+                            name= json.nextString();
+                        } else if (field.equals("Size")) {
+                            size= json.nextLong();
+                        } else if (field.equals("OriginalSize")) {
+                            originalSize= json.nextLong();
+                        } else {
+                            json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                    inventory_.add(new SyncEntry(
+                        Paths.get(name).normalize().toString(),
+                        originalSize >= 0 ? originalSize : size,
+                        archiveId));
+                }
+                json.endArray();
+            }
+            json.endObject();
+        }
+    }
+
+    /**
+     * @return the plan in path order. Can be taken once
+     * @throws IOException when sorted entries can't be read
+     */
+    public Stream<Step> plan() throws IOException {
+        Iterator<SyncEntry> local= local_.sorted();
+        Iterator<SyncEntry> inventory= inventory_.sorted();
+        Iterator<Step> steps= new Iterator<Step>() {
+
+            private SyncEntry nextLocal_= local.hasNext() ? local.next() : null;
+            private SyncEntry nextArchive_= inventory.hasNext() ? inventory.next() : null;
+
+            private SyncEntry takeLocal() {
+                SyncEntry entry= nextLocal_;
+                // The same file given twice is planned once
+                do {
+                    nextLocal_= local.hasNext() ? local.next() : null;
+                } while (nextLocal_ != null && nextLocal_.compareTo(entry) == 0);
+                return entry;
+            }
+
+            private SyncEntry takeArchive() {
+                SyncEntry entry= nextArchive_;
+                nextArchive_= inventory.hasNext() ? inventory.next() : null;
+                return entry;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextLocal_ != null || nextArchive_ != null;
+            }
+
+            @Override
+            public Step next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                int order= nextLocal_ == null ? 1 : nextArchive_ == null ? -1 : nextLocal_.compareTo(nextArchive_);
+                if (order < 0)
+                    return step(Action.UPLOAD, takeLocal());
+                if (order > 0)
+                    return step(Action.ORPHAN, takeArchive());
+                // Same path on both sides. It may have several archives (versions)
+                SyncEntry file= takeLocal();
+                List<SyncEntry> archives= new ArrayList<>();
+                while (nextArchive_ != null && nextArchive_.compareTo(file) == 0)
+                    archives.add(takeArchive());
+                for (SyncEntry archive : archives) {
+                    if (archive.getSize() < 0 || archive.getSize() == file.getSize())
+                        return step(Action.SKIP, file);
+                }
+                return step(Action.CHANGED, file);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(steps, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private Step step(Action action, SyncEntry entry) {
+        counts_[action.ordinal()]++;
+        return new Step(action, entry);
+    }
+
+    /**
+     * @param action - kind of step
+     * @return number of such steps planned so far
+     */
+    public long count(Action action) {
+        return counts_[action.ordinal()];
+    }
+
+    /**
+     * @return counts of the steps planned so far
+     */
+    public String summary() {
+        StringBuilder summary= new StringBuilder();
+        for (Action action : Action.values())
+            summary.append(summary.length() == 0 ? "" : ", ").append(action).append(": ").append(count(action));
+        return summary.toString();
+    }
+
+    @Override
+    public void close() {
+        local_.close();
+        inventory_.close();
+    }
+
+}
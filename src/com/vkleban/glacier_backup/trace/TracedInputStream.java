@@ -0,0 +1,62 @@
+package com.vkleban.glacier_backup.trace;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.vkleban.glacier_backup.trace.TransferTrace.Phase;
+
+/**
+ * Counts the time of reads to a phase of the current transfer trace. Time of the streams it wraps counts to their
+ * own phases if they are traced as well, so a stage of a stream pipeline gets only its own time. Reads by other
+ * threads than the transfer one (e.g. pipeline workers) are not counted
+ *
+ * @author vova
+ */
+public class TracedInputStream extends FilterInputStream {
+
+    private final Phase phase_;
+
+    /**
+     * @param in    - stream to trace
+     * @param phase - phase its reads count to
+     */
+    public TracedInputStream(InputStream in, Phase phase) {
+        super(in);
+        phase_= phase;
+    }
+
+    @Override
+    public int read() throws IOException {
+        TransferTrace trace= TransferTrace.current();
+        Phase previous= trace.enter(phase_);
+        try {
+            return in.read();
+        } finally {
+            trace.enter(previous);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        TransferTrace trace= TransferTrace.current();
+        Phase previous= trace.enter(phase_);
+        try {
+            return in.read(b, off, len);
+        } finally {
+            trace.enter(previous);
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        TransferTrace trace= TransferTrace.current();
+        Phase previous= trace.enter(phase_);
+        try {
+            return in.skip(n);
+        } finally {
+            trace.enter(previous);
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.vkleban.glacier_backup.trace;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.vkleban.glacier_backup.InitException;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.trace.TransferTrace.Phase;
+
+/**
+ * Trace file of the transfers, enabled by "trace_file". Every finished transfer is appended to it as a JSON line
+ * with the time spent in each phase. A summary of the slowest transfers and a histogram of the time per phase is
+ * logged and appended to the file whenever a run of transfers is over. Tracing is off until initialized, and costs
+ * next to nothing when off
+ *
+ * @author vova
+ */
+public class Tracer {
+
+    private static final Logger log= Logger.getLogger(Tracer.class.getName());
+
+    // Upper bounds of the histogram buckets in milliseconds. The last bucket is unbounded
+    private static final long[] BUCKETS= { 1, 10, 100, 1000, 10000, 60000, 600000, 3600000 };
+    private static final String[] BUCKET_NAMES= { "<1ms", "<10ms", "<100ms", "<1s", "<10s", "<1min", "<10min", "<1h", ">=1h" };
+
+    private static Tracer instance_= new Tracer(null, 0);
+
+    private final Path path_;
+    private final int slowestCount_;
+    private Writer out_= null;
+    // Summary of the transfers finished since the last one
+    private final PriorityQueue<TransferTrace> slowest_=
+        new PriorityQueue<>(Comparator.comparingLong(TransferTrace::getTotalNanos));
+    private final long[][] histogram_= new long[Phase.values().length][BUCKETS.length + 1];
+    private final long[] phaseNanos_= new long[Phase.values().length];
+    private long finished_= 0;
+    private long failed_= 0;
+
+    /**
+     * @param path    - trace file. null if tracing is off
+     * @param slowest - number of the slowest transfers in the summary
+     */
+    private Tracer(Path path, int slowest) {
+        path_= path;
+        slowestCount_= slowest;
+    }
+
+    /**
+     * Set up tracing of the configuration
+     *
+     * @throws InitException when "trace_slowest" is invalid
+     */
+    public static synchronized void init() throws InitException {
+        Config c= Config.get();
+        if (c.trace_slowest < 0)
+            throw new InitException("\"trace_slowest\" can't be negative");
+        instance_= new Tracer(c.trace_file.isEmpty() ? null : Paths.get(c.trace_file), c.trace_slowest);
+    }
+
+    public static synchronized Tracer get() {
+        return instance_;
+    }
+
+    public boolean isEnabled() {
+        return path_ != null;
+    }
+
+    /**
+     * @param kind - kind of the transfer, e.g. name of the transfer engine
+     * @param name - file being transferred
+     * @return new trace of the transfer in the queue phase. NONE if tracing is off
+     */
+    public TransferTrace start(String kind, String name) {
+        return isEnabled() ? new TransferTrace(kind, name) : TransferTrace.NONE;
+    }
+
+    private static int bucket(long nanos) {
+        long millis= nanos / 1000000;
+        int bucket= 0;
+        while (bucket < BUCKETS.length && millis >= BUCKETS[bucket])
+            bucket++;
+        return bucket;
+    }
+
+    /**
+     * The master has taken the report of the transfer. Record the trace
+     *
+     * @param trace     - trace of the transfer
+     * @param succeeded - true if the file has been transferred
+     */
+    public void finish(TransferTrace trace, boolean succeeded) {
+        if (trace == TransferTrace.NONE)
+            return;
+        trace.finish(succeeded);
+        synchronized (this) {
+            finished_++;
+            if (!succeeded)
+                failed_++;
+            for (Phase phase : Phase.values()) {
+                long nanos= trace.getNanos(phase);
+                phaseNanos_[phase.ordinal()]+= nanos;
+                if (nanos > 0)
+                    histogram_[phase.ordinal()][bucket(nanos)]++;
+            }
+            slowest_.add(trace);
+            if (slowest_.size() > slowestCount_)
+                slowest_.poll();
+            write(trace.toJson());
+        }
+    }
+
+    private void write(JsonObject record) {
+        try {
+            if (out_ == null)
+                out_= Files.newBufferedWriter(path_, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            out_.write(record.toString());
+            out_.write('\n');
+            out_.flush();
+        } catch (IOException e) {
+            log.warning("Failed writing trace file \"" + path_ + "\": " + e);
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format("%.3f s", nanos / 1e9);
+    }
+
+    /**
+     * Log and record the summary of the transfers finished since the last summary
+     */
+    public synchronized void summarize() {
+        if (finished_ == 0)
+            return;
+        List<TransferTrace> slowest= new ArrayList<>(slowest_);
+        slowest.sort(Comparator.comparingLong(TransferTrace::getTotalNanos).reversed());
+        StringBuilder report= new StringBuilder("Trace of " + finished_ + " transfers (" + failed_ + " failed)");
+        JsonObject summary= new JsonObject();
+        summary.addProperty("transfers", finished_);
+        summary.addProperty("failed", failed_);
+        report.append(", slowest first:");
+        JsonArray slowestJson= new JsonArray();
+        for (TransferTrace trace : slowest) {
+            report.append("\n    ").append(seconds(trace.getTotalNanos())).append("  \"").append(trace.getName()).append("\"");
+            // The phases worth looking at, in order of time
+            List<Phase> phases= new ArrayList<>();
+            for (Phase phase : Phase.values()) {
+                if (trace.getNanos(phase) > 0)
+                    phases.add(phase);
+            }
+            phases.sort(Comparator.comparingLong(trace::getNanos).reversed());
+            for (int i= 0; i < phases.size() && i < 3; i++)
+                report.append(i == 0 ? "  " : ", ").append(phases.get(i).getName()).append(" ")
+                      .append(seconds(trace.getNanos(phases.get(i))));
+            JsonObject slow= new JsonObject();
+            slow.addProperty("file", trace.getName());
+            slow.addProperty("total_ms", trace.getTotalNanos() / 1e6);
+            slowestJson.add(slow);
+        }
+        summary.add("slowest", slowestJson);
+        report.append("\nTime per phase: total, then number of transfers by time in the phase\n    ")
+              .append(String.format("%-10s %12s", "", "total"));
+        for (String name : BUCKET_NAMES)
+            report.append(String.format(" %8s", name));
+        JsonObject phasesJson= new JsonObject();
+        for (Phase phase : Phase.values()) {
+            if (phaseNanos_[phase.ordinal()] == 0)
+                continue;
+            report.append("\n    ").append(String.format("%-10s %12s", phase.getName(), seconds(phaseNanos_[phase.ordinal()])));
+            JsonObject phaseJson= new JsonObject();
+            phaseJson.addProperty("total_ms", phaseNanos_[phase.ordinal()] / 1e6);
+            JsonObject histogram= new JsonObject();
+            for (int bucket= 0; bucket < BUCKET_NAMES.length; bucket++) {
+                long count= histogram_[phase.ordinal()][bucket];
+                report.append(String.format(" %8d", count));
+                if (count > 0)
+                    histogram.addProperty(BUCKET_NAMES[bucket], count);
+            }
+            phaseJson.add("histogram", histogram);
+            phasesJson.add(phase.getName(), phaseJson);
+        }
+        summary.add("phases", phasesJson);
+        log.info(report.toString());
+        JsonObject record= new JsonObject();
+        record.add("summary", summary);
+        write(record);
+        slowest_.clear();
+        for (int i= 0; i < phaseNanos_.length; i++) {
+            phaseNanos_[i]= 0;
+            histogram_[i]= new long[BUCKETS.length + 1];
+        }
+        finished_= 0;
+        failed_= 0;
+    }
+
+}
@@ -0,0 +1,194 @@
+package com.vkleban.glacier_backup.trace;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Timeline of a single file transfer, from submission to the transfer engine until the master takes its report.
+ * The trace is always in exactly one phase, and time is counted to the phase it's in, so nested phases (e.g. disk
+ * read inside hashing) count exclusively and the phases add up to the total. The transfer thread has the trace of
+ * its file as the current one, so that streams and clients deep in the transfer can switch phases without it being
+ * passed around
+ *
+ * @author vova
+ */
+public class TransferTrace {
+
+    public enum Phase {
+        // Waiting for a transfer slave
+        QUEUE,
+        // Waiting in the retry lane after a failed attempt
+        RETRY_WAIT,
+        // Reading local files
+        READ,
+        // Computing tree hashes
+        HASH,
+        // Compression, encryption and their reverse
+        CODEC,
+        // Sending and receiving bytes
+        NETWORK,
+        // Waiting for Glacier to respond to a sent request
+        GLACIER,
+        // Writing downloaded files
+        WRITE,
+        // Report waiting for the master to take it
+        REPORT,
+        // Anything else of the transfer
+        OTHER;
+
+        public String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Trace of transfers, which aren't traced. Ignores everything
+     */
+    public static final TransferTrace NONE= new TransferTrace(null, null);
+
+    private static final ThreadLocal<TransferTrace> current_= new ThreadLocal<>();
+
+    private final String kind_;
+    private final String name_;
+    private final long startMillis_= System.currentTimeMillis();
+    private final long startNanos_= System.nanoTime();
+    private final long[] nanos_= new long[Phase.values().length];
+    private Phase phase_= Phase.QUEUE;
+    private long since_= startNanos_;
+    private long totalNanos_= 0;
+    private int attempts_= 0;
+    private boolean succeeded_= false;
+    private final Map<String, Long> notes_= new LinkedHashMap<>();
+
+    /**
+     * Start the trace in the queue phase
+     *
+     * @param kind - kind of the transfer, e.g. name of the transfer engine
+     * @param name - file being transferred
+     */
+    TransferTrace(String kind, String name) {
+        kind_= kind;
+        name_= name;
+    }
+
+    /**
+     * @return trace of the transfer run by this thread. NONE if there is none
+     */
+    public static TransferTrace current() {
+        TransferTrace trace= current_.get();
+        return trace == null ? NONE : trace;
+    }
+
+    /**
+     * @param trace - trace of the transfer this thread starts to run. null when the thread is done with it
+     */
+    public static void setCurrent(TransferTrace trace) {
+        if (trace == null || trace == NONE)
+            current_.remove();
+        else
+            current_.set(trace);
+    }
+
+    /**
+     * Switch to another phase. Restore the returned one when the work of the phase is over
+     *
+     * @param phase - phase starting now
+     * @return the phase the trace has been in
+     */
+    public Phase enter(Phase phase) {
+        if (this == NONE)
+            return phase;
+        synchronized (this) {
+            long now= System.nanoTime();
+            nanos_[phase_.ordinal()]+= now - since_;
+            since_= now;
+            Phase previous= phase_;
+            phase_= phase;
+            return previous;
+        }
+    }
+
+    /**
+     * A transfer slave starts another attempt of the transfer
+     */
+    public void attempt() {
+        if (this == NONE)
+            return;
+        synchronized (this) {
+            attempts_++;
+        }
+    }
+
+    /**
+     * Record a choice made for the transfer, e.g. its part size
+     *
+     * @param key   - name of the choice
+     * @param value - the choice
+     */
+    public void note(String key, long value) {
+        if (this == NONE)
+            return;
+        synchronized (this) {
+            notes_.put(key, value);
+        }
+    }
+
+    /**
+     * The master has taken the report of the transfer
+     *
+     * @param succeeded - true if the file has been transferred
+     */
+    synchronized void finish(boolean succeeded) {
+        enter(phase_);
+        totalNanos_= since_ - startNanos_;
+        succeeded_= succeeded;
+    }
+
+    public String getKind() {
+        return kind_;
+    }
+
+    public String getName() {
+        return name_;
+    }
+
+    /**
+     * @return nanoseconds from submission until the report has been taken
+     */
+    public synchronized long getTotalNanos() {
+        return totalNanos_;
+    }
+
+    /**
+     * @param phase - phase of the transfer
+     * @return nanoseconds spent in the phase
+     */
+    public synchronized long getNanos(Phase phase) {
+        return nanos_[phase.ordinal()];
+    }
+
+    /**
+     * @return JSON record of the finished trace, times in milliseconds
+     */
+    public synchronized JsonObject toJson() {
+        JsonObject json= new JsonObject();
+        json.addProperty("kind", kind_);
+        json.addProperty("file", name_);
+        json.addProperty("start", startMillis_);
+        json.addProperty("total_ms", totalNanos_ / 1e6);
+        json.addProperty("attempts", attempts_);
+        json.addProperty("succeeded", succeeded_);
+        for (Map.Entry<String, Long> note : notes_.entrySet())
+            json.addProperty(note.getKey(), note.getValue());
+        JsonObject phases= new JsonObject();
+        for (Phase phase : Phase.values()) {
+            if (nanos_[phase.ordinal()] > 0)
+                phases.addProperty(phase.getName(), nanos_[phase.ordinal()] / 1e6);
+        }
+        json.add("phases", phases);
+        return json;
+    }
+
+}
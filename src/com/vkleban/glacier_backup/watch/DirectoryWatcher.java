@@ -0,0 +1,200 @@
+package com.vkleban.glacier_backup.watch;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.vkleban.glacier_backup.scan.LocalFile;
+import com.vkleban.glacier_backup.scan.PathFilter;
+
+/**
+ * Watches the whole tree under the root for created and modified files. A file is given out once it has been
+ * quiet for the debounce interval, so that a burst of writes into it is uploaded once, after the writes are done.
+ * New directories are watched as they appear. The watch may lose events (kernel queue overflow, watch limits),
+ * which is reported, so that the caller can fall back to a full scan
+ *
+ * @author vova
+ */
+public class DirectoryWatcher implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(DirectoryWatcher.class.getName());
+
+    private final Path root_;
+    private final long debounce_;
+    private final PathFilter filter_= new PathFilter();
+    private final WatchService watcher_;
+    private final Map<WatchKey, Path> directories_= new HashMap<>();
+    // Changed files to the time of their last change, oldest change first
+    private final LinkedHashMap<Path, Long> changed_= new LinkedHashMap<>();
+    private final BlockingQueue<LocalFile> ready_= new LinkedBlockingQueue<>();
+    private final AtomicBoolean lost_= new AtomicBoolean(false);
+    private final Thread thread_;
+
+    /**
+     * @param root     - root of the tree
+     * @param debounce - time a file has to be quiet in milliseconds
+     * @throws IOException when the watch can't be started
+     */
+    public DirectoryWatcher(Path root, long debounce) throws IOException {
+        root_= root;
+        debounce_= debounce;
+        watcher_= root.getFileSystem().newWatchService();
+        register(root, false);
+        log.info("Watching " + directories_.size() + " directories under \"" + root + "\"");
+        thread_= new Thread(this::run, "DirectoryWatcher");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    /**
+     * Watch the directory and everything under it
+     *
+     * @param directory - directory to watch
+     * @param created   - true if the directory is new, so that files already in it count as changed
+     */
+    private void register(Path directory, boolean created) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root_) && filter_.excludes(root_.relativize(dir)))
+                    return FileVisitResult.SKIP_SUBTREE;
+                try {
+                    directories_.put(dir.register(watcher_, ENTRY_CREATE, ENTRY_MODIFY), dir);
+                } catch (IOException e) {
+                    log.warning("Unable to watch \"" + dir + "\": " + e + ". Its changes are found by reconcile scans");
+                    lost_.set(true);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (created)
+                    changed(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warning("Skipping \"" + file + "\": " + e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void changed(Path file) {
+        changed_.remove(file);
+        changed_.put(file, System.currentTimeMillis());
+    }
+
+    private void handle(WatchKey key) {
+        Path directory= directories_.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                log.warning("Watch of \"" + root_ + "\" has overflown. Changes are found by reconcile scan");
+                lost_.set(true);
+                continue;
+            }
+            if (directory == null)
+                continue;
+            Path path= directory.resolve((Path) event.context());
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == ENTRY_CREATE) {
+                    try {
+                        register(path, true);
+                    } catch (IOException e) {
+                        log.warning("Unable to watch new \"" + path + "\": " + e);
+                        lost_.set(true);
+                    }
+                }
+            } else {
+                changed(path);
+            }
+        }
+        if (!key.reset())
+            directories_.remove(key);
+    }
+
+    /**
+     * Give out the files, which have been quiet long enough
+     */
+    private void release() {
+        long quietSince= System.currentTimeMillis() - debounce_;
+        for (Iterator<Map.Entry<Path, Long>> i= changed_.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<Path, Long> change= i.next();
+            if (change.getValue() > quietSince)
+                break;
+            i.remove();
+            Path relative= root_.relativize(change.getKey());
+            try {
+                BasicFileAttributes attributes= Files.readAttributes(
+                    change.getKey(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isRegularFile() && filter_.accepts(relative))
+                    ready_.add(new LocalFile(relative.toString(), attributes));
+            } catch (IOException e) {
+                // Deleted or renamed away before it settled
+                log.finer("Changed \"" + relative + "\" is gone: " + e);
+            }
+        }
+    }
+
+    private void run() {
+        long tick= Math.max(10, debounce_ / 4);
+        try {
+            while (true) {
+                WatchKey key= watcher_.poll(tick, TimeUnit.MILLISECONDS);
+                for (; key != null; key= watcher_.poll())
+                    handle(key);
+                release();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.fine("Watch of \"" + root_ + "\" has stopped");
+        }
+    }
+
+    /**
+     * Wait for a changed file
+     *
+     * @param timeout - time to wait in milliseconds
+     * @return the file. null on timeout
+     * @throws InterruptedException
+     */
+    public LocalFile poll(long timeout) throws InterruptedException {
+        return ready_.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if changes may have been missed since the last call
+     */
+    public boolean lostChanges() {
+        return lost_.getAndSet(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread_.interrupt();
+        watcher_.close();
+    }
+
+}
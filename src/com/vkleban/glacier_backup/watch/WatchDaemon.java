@@ -0,0 +1,229 @@
+package com.vkleban.glacier_backup.watch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.BackupMaster;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+import com.vkleban.glacier_backup.scan.FileScanner;
+import com.vkleban.glacier_backup.scan.LocalFile;
+import com.vkleban.glacier_backup.slave.ConcurrencyController;
+import com.vkleban.glacier_backup.slave.RetryLane;
+import com.vkleban.glacier_backup.slave.SlaveResponse;
+import com.vkleban.glacier_backup.slave.TransferControl;
+import com.vkleban.glacier_backup.slave.TransferEngine;
+import com.vkleban.glacier_backup.slave.UploadSlave;
+
+/**
+ * Continuous incremental backup of root_dir. The inventory is kept in memory, changed files come from the watch
+ * of the tree and go straight to a transfer engine, which stays up for the life of the daemon. A reconcile scan
+ * at start, periodically and whenever the watch may have lost changes uploads whatever the watch has missed.
+ * The inventory file is rewritten once in a while when there are new archives, and on stop
+ *
+ * @author vova
+ */
+public class WatchDaemon implements AutoCloseable {
+
+    private static final Logger log= Logger.getLogger(WatchDaemon.class.getName());
+
+    private final Config c_= Config.get();
+    private final Path inventoryPath_;
+    private final Set<Archive> archives_;
+    // Uploaded files to their modification time at upload. Inventory files found unchanged at start are here as well
+    private final Map<String, Long> uploaded_= new HashMap<>();
+    // Files being uploaded to their modification time at submission
+    private final Map<String, Long> inFlight_= new HashMap<>();
+    // Files changed again while being uploaded
+    private final Set<String> dirty_= new HashSet<>();
+    // Inventory names not yet seen by a scan to the file sizes of their archives, -1 if unknown. Existing local
+    // ones of the same size as an archive are taken as uploaded, as by the incremental upload
+    private final Map<String, Set<Long>> unseen_= new HashMap<>();
+    private final TransferProgress progress_= new TransferProgress();
+    private final TransferEngine<String, Archive> slaves_;
+    private final ConcurrencyController controller_;
+    private final TransferControl control_;
+    private final Thread results_;
+    private boolean inventoryChanged_= false;
+    private long lastSave_= System.currentTimeMillis();
+
+    /**
+     * @param inventory - inventory file to keep up to date
+     * @throws IOException when the inventory can't be read or updated
+     */
+    public WatchDaemon(String inventory) throws IOException {
+        inventoryPath_= Paths.get(inventory);
+        archives_= BackupMaster.readInventoryForUpdate(inventoryPath_);
+        for (Archive archive : archives_) {
+            Long size= archive.getOriginalSize() != null ? archive.getOriginalSize() : archive.getSize();
+            unseen_.computeIfAbsent(Paths.get(archive.getFileName()).normalize().toString(), name -> new HashSet<>())
+                .add(size == null ? -1 : size);
+        }
+        RetryLane<String> retries= new RetryLane<>();
+        slaves_= new TransferEngine<>(
+            "UploadSlave",
+            new UploadSlave(retries, progress_),
+            TransferEngine.newExecutor(c_.transfer_threads),
+            ConcurrencyController.initialSlaves(c_.file_transfer_slaves),
+            retries);
+        controller_= new ConcurrencyController(slaves_, progress_);
+        control_= new TransferControl("Watch", slaves_, progress_);
+        results_= new Thread(this::collect, "WatchResults");
+        results_.setDaemon(true);
+        results_.start();
+    }
+
+    /**
+     * Upload the file unless it's being uploaded or hasn't changed since its upload
+     *
+     * @param file - changed file
+     */
+    private synchronized void schedule(LocalFile file) {
+        String path= file.getPath();
+        if (inFlight_.containsKey(path)) {
+            dirty_.add(path);
+            return;
+        }
+        Set<Long> sizes= unseen_.remove(path);
+        if (sizes != null) {
+            if (sizes.contains(-1L) || sizes.contains(file.getSize())) {
+                // In the inventory since before the start: uploaded, unless the watch tells otherwise
+                uploaded_.put(path, file.getModified());
+                return;
+            }
+            log.fine("\"" + path + "\" has changed its size since its upload");
+        }
+        Long uploaded= uploaded_.get(path);
+        if (uploaded != null && uploaded == file.getModified())
+            return;
+        log.fine("Scheduling upload of changed file \"" + path + "\"");
+        inFlight_.put(path, file.getModified());
+        progress_.plan(file.getSize());
+        slaves_.submit(path);
+    }
+
+    /**
+     * Upload the file the watch has seen changing, even if it's one of the inventory not scanned yet
+     *
+     * @param file - changed file
+     */
+    private synchronized void changed(LocalFile file) {
+        unseen_.remove(file.getPath());
+        schedule(file);
+    }
+
+    private synchronized void completed(String path, Archive archive) {
+        Long modified= inFlight_.remove(path);
+        if (archive != null) {
+            archives_.add(archive);
+            uploaded_.put(path, modified);
+            inventoryChanged_= true;
+        }
+        if (dirty_.remove(path))
+            schedule(LocalFile.stat(c_.root_dir, path));
+    }
+
+    /**
+     * Take reports of the uploads until the engine stops
+     */
+    private void collect() {
+        try {
+            SlaveResponse<Archive> response;
+            while ((response= slaves_.take()) != null) {
+                Archive archive= response.getResponse();
+                if (response.getException() == null) {
+                    log.info("\"" + archive.getFileName() + "\" is uploaded as archive ID \"" + archive.getArchiveId() + "\"");
+                    completed(archive.getFileName(), archive);
+                } else {
+                    log.severe("Upload of " + (archive == null ? "UNKNOWN FILE" : "\"" + archive.getFileName() + "\"")
+                        + " has failed: " + response.getException() + "\n"
+                        + "It will be retried by the next reconcile scan");
+                    if (archive != null)
+                        completed(archive.getFileName(), null);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Scan the whole tree and upload what has changed
+     */
+    private void reconcile() {
+        log.info("Reconciling \"" + c_.root_dir + "\" with the inventory");
+        try (Stream<LocalFile> files= new FileScanner().stream()) {
+            files.forEach(this::schedule);
+        } catch (UncheckedIOException e) {
+            // Not seeing a file doesn't mean it's gone, so nothing is forgotten. The next reconcile scans again
+            log.severe(e.getCause().getMessage());
+            return;
+        }
+        synchronized (this) {
+            // Whatever wasn't found is gone locally. It stays in the inventory, but isn't special any more
+            unseen_.clear();
+        }
+    }
+
+    private synchronized void saveInventory(boolean force) {
+        if (!inventoryChanged_ || (!force && System.currentTimeMillis() - lastSave_ < c_.watch_save_milliseconds))
+            return;
+        try {
+            BackupMaster.writeInventory(inventoryPath_, archives_);
+            inventoryChanged_= false;
+            lastSave_= System.currentTimeMillis();
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Failed updating inventory \"" + inventoryPath_ + "\". Will try again later", e);
+        }
+    }
+
+    /**
+     * Watch and upload until interrupted
+     *
+     * @throws IOException when the watch can't be started
+     */
+    public void run() throws IOException {
+        try (DirectoryWatcher watcher= new DirectoryWatcher(Paths.get(c_.root_dir), c_.watch_debounce_milliseconds)) {
+            long nextReconcile= 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                if (watcher.lostChanges() || System.currentTimeMillis() >= nextReconcile) {
+                    reconcile();
+                    nextReconcile= System.currentTimeMillis() + c_.watch_reconcile_milliseconds;
+                }
+                LocalFile file= watcher.poll(Math.min(1000, Math.max(1, nextReconcile - System.currentTimeMillis())));
+                if (file != null)
+                    changed(file);
+                saveInventory(false);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the uploads in progress and save the inventory. Interrupted uploads are picked up by the reconcile
+     * scan of the next start
+     */
+    @Override
+    public void close() {
+        log.info("Stopping the watch of \"" + c_.root_dir + "\"");
+        slaves_.cancel();
+        try {
+            results_.join();
+        } catch (InterruptedException e) {}
+        controller_.close();
+        control_.close();
+        saveInventory(true);
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.vkleban.glacier_backup;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BackupMasterTest {
+
+    private Path directory_;
+
+    @Before
+    public void setUp() throws Exception {
+        directory_= Files.createTempDirectory("master");
+        TestConfig.init(directory_);
+        Path root= directory_.resolve("root");
+        Files.write(root.resolve("b"), new byte[2]);
+        Files.createDirectories(root.resolve("a"));
+        Files.write(root.resolve("a").resolve("c"), new byte[3]);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestConfig.delete(directory_);
+    }
+
+    @Test
+    public void dryRunWithoutInventoryPlansEveryFileAsNew() throws Exception {
+        ByteArrayOutputStream plan= new ByteArrayOutputStream();
+        PrintStream out= System.out;
+        System.setOut(new PrintStream(plan, true, "UTF-8"));
+        try {
+            new BackupMaster().uploadIncremental(null, true, true);
+        } finally {
+            System.setOut(out);
+        }
+        String separator= System.lineSeparator();
+        assertEquals(Arrays.asList("UPLOAD\ta/c", "UPLOAD\tb"),
+            Arrays.asList(new String(plan.toByteArray(), StandardCharsets.UTF_8).split(separator)));
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.vkleban.glacier_backup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.SetQueueAttributesResult;
+import com.google.gson.JsonObject;
+import com.vkleban.glacier_backup.codec.EncryptionKey;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.progress.BandwidthLimiter;
+import com.vkleban.glacier_backup.shard.Shard;
+import com.vkleban.glacier_backup.shard.ShardRing;
+
+public class StatusMonitorTest {
+
+    /**
+     * Simulated SQS recording the jobs of the deleted messages
+     */
+    private static class RecordingSQS extends AbstractAmazonSQS {
+        final AmazonSQS sqs_;
+        final List<String> received_= new CopyOnWriteArrayList<>();
+        final List<String> deleted_= new CopyOnWriteArrayList<>();
+
+        RecordingSQS(AmazonSQS sqs) {
+            sqs_= sqs;
+        }
+
+        @Override
+        public CreateQueueResult createQueue(CreateQueueRequest request) {
+            return sqs_.createQueue(request);
+        }
+
+        @Override
+        public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest request) {
+            return sqs_.getQueueAttributes(request);
+        }
+
+        @Override
+        public SetQueueAttributesResult setQueueAttributes(SetQueueAttributesRequest request) {
+            return sqs_.setQueueAttributes(request);
+        }
+
+        @Override
+        public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+            ReceiveMessageResult result= sqs_.receiveMessage(request);
+            for (Message message : result.getMessages())
+                received_.add(message.getReceiptHandle() + " " + message.getBody());
+            return result;
+        }
+
+        @Override
+        public DeleteMessageResult deleteMessage(DeleteMessageRequest request) {
+            for (String message : received_) {
+                if (message.startsWith(request.getReceiptHandle() + " "))
+                    deleted_.add(message);
+            }
+            return sqs_.deleteMessage(request);
+        }
+
+        @Override
+        public DeleteQueueResult deleteQueue(DeleteQueueRequest request) {
+            return sqs_.deleteQueue(request);
+        }
+
+        boolean deleted(String job) {
+            for (String message : deleted_) {
+                if (message.contains("\\\"JobId\\\":\\\"" + job + "\\\""))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private Path directory_;
+    private Shard shard_;
+    private RecordingSQS sqs_;
+
+    @Before
+    public void setUp() throws Exception {
+        directory_= Files.createTempDirectory("monitor");
+        Config c= TestConfig.init(directory_);
+        c.simulator.enabled= true;
+        BandwidthLimiter.init();
+        EncryptionKey.init();
+        ShardRing.init();
+        shard_= ShardRing.get().forPath("file");
+        sqs_= new RecordingSQS(shard_.getSQS());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestConfig.delete(directory_);
+    }
+
+    private void notify(String job, String statusCode, String statusMessage) {
+        JsonObject notification= new JsonObject();
+        notification.addProperty("JobId", job);
+        notification.addProperty("Action", "ArchiveRetrieval");
+        notification.addProperty("Completed", true);
+        notification.addProperty("StatusCode", statusCode);
+        notification.addProperty("StatusMessage", statusMessage);
+        notification.addProperty("ArchiveSizeInBytes", 10);
+        shard_.getSNS().publish(shard_.getSnsTopicArn(), notification.toString());
+    }
+
+    @Test
+    public void reportsFailedJob() {
+        try (StatusMonitor monitor= new StatusMonitor(sqs_, Collections.singleton(shard_))) {
+            notify("a", "Failed", "Failed");
+            notify("b", "Succeeded", "Succeeded");
+            StatusMonitor.JobResult failed= monitor.waitForJobToComplete(Collections.singleton("a"));
+            assertEquals("a", failed.getJob());
+            assertFalse(failed.succeeded());
+            StatusMonitor.JobResult succeeded= monitor.waitForJobToComplete(Collections.singleton("b"));
+            assertTrue(succeeded.succeeded());
+            assertEquals(10L, (long) succeeded.getArchiveSize());
+            assertTrue(sqs_.deleted("a"));
+            assertTrue(sqs_.deleted("b"));
+        }
+    }
+
+    @Test
+    public void takesStatusFromStatusCode() {
+        try (StatusMonitor monitor= new StatusMonitor(sqs_, Collections.singleton(shard_))) {
+            notify("a", "Failed", "Retrieval of the archive has failed");
+            assertFalse(monitor.waitForJobToComplete(Collections.singleton("a")).succeeded());
+            notify("b", "Succeeded", "Archive retrieved");
+            assertTrue(monitor.waitForJobToComplete(Collections.singleton("b")).succeeded());
+        }
+    }
+
+    @Test
+    public void removesNotificationsOfResolvedJobsFromReusableQueue() {
+        try (StatusMonitor monitor= new StatusMonitor(sqs_, Collections.singleton(shard_), "jobs", "b"::equals)) {
+            notify("b", "Succeeded", "Succeeded");
+            notify("c", "Succeeded", "Succeeded");
+            notify("a", "Succeeded", "Succeeded");
+            assertEquals("a", monitor.waitForJobToComplete(Collections.singleton("a")).getJob());
+            assertTrue(sqs_.deleted("a"));
+            assertTrue(sqs_.deleted("b"));
+            // Another ledger's job
+            assertFalse(sqs_.deleted("c"));
+        }
+    }
+
+}
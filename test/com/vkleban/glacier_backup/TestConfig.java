@@ -0,0 +1,70 @@
+package com.vkleban.glacier_backup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.vkleban.glacier_backup.config.Config;
+
+/**
+ * Configuration of the tests: the required entries only, with root_dir in a directory of the test.
+ * Optional entries keep their defaults and can be changed on the returned configuration
+ *
+ * @author vova
+ */
+public class TestConfig {
+
+    /**
+     * @param directory - directory of the test. root_dir and the log go there
+     * @return the configuration
+     * @throws IOException when the configuration file can't be written
+     * @throws InitException when the configuration can't be read
+     */
+    public static Config init(Path directory) throws IOException, InitException {
+        Path root= Files.createDirectories(directory.resolve("root"));
+        String json= "{"
+            + "\"root_dir\" : \"" + escape(root) + "\", "
+            + "\"region\" : \"us-east-1\", "
+            + "\"vault\" : \"test\", "
+            + "\"access_key\" : \"none\", "
+            + "\"secret_key\" : \"none\", "
+            + "\"sns_topic_arn\" : \"none\", "
+            + "\"polling_milliseconds\" : 10, "
+            + "\"retrieval_tier\" : \"Standard\", "
+            + "\"log_name\" : \"" + escape(directory.resolve("test_%g.log")) + "\", "
+            + "\"log_level\" : \"INFO\", "
+            + "\"log_files\" : 1, "
+            + "\"log_size\" : 1048576, "
+            + "\"file_transfer_slaves\" : 1"
+            + "}";
+        Path config= directory.resolve("config.json");
+        Files.write(config, json.getBytes(StandardCharsets.UTF_8));
+        Config.init(config);
+        return Config.get();
+    }
+
+    private static String escape(Path path) {
+        return path.toString().replace("\\", "\\\\");
+    }
+
+    /**
+     * @param directory - directory to delete with all its contents
+     * @throws IOException when something can't be deleted
+     */
+    public static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory))
+            return;
+        List<Path> paths;
+        try (Stream<Path> walk= Files.walk(directory)) {
+            paths= walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path : paths)
+            Files.delete(path);
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.vkleban.glacier_backup.catalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexFileTest {
+
+    private Path path_;
+
+    @Before
+    public void setUp() throws IOException {
+        path_= Files.createTempFile("index", ".idx");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path_);
+    }
+
+    // 16 bytes a number entry, so 4096 entries a block. Every key repeats 10 times and runs across blocks
+    private static List<IndexEntry> numbers(int count) {
+        List<IndexEntry> entries= new ArrayList<>();
+        for (int i= 0; i < count; i++)
+            entries.add(new IndexEntry(null, i / 10, i));
+        return entries;
+    }
+
+    private static List<Long> offsets(Iterator<IndexEntry> entries, long upTo) {
+        List<Long> offsets= new ArrayList<>();
+        while (entries.hasNext()) {
+            IndexEntry entry= entries.next();
+            if (entry.getValue() > upTo)
+                break;
+            offsets.add(entry.getOffset());
+        }
+        return offsets;
+    }
+
+    @Test
+    public void scansNumberKeysAcrossBlocks() throws IOException {
+        List<IndexEntry> entries= numbers(20000);
+        assertEquals(20000, IndexFile.write(path_, false, entries.iterator()));
+        try (IndexFile index= new IndexFile(path_)) {
+            assertFalse(index.isNamed());
+            // Key 409 covers the entries 4090 to 4099, the first block ends at 4095
+            assertEquals(rangeOf(4090, 4100), offsets(index.scan(new IndexEntry(null, 409, 0)), 409));
+            assertEquals(rangeOf(0, 20), offsets(index.scan(new IndexEntry(null, Long.MIN_VALUE, 0)), 1));
+            assertEquals(rangeOf(19990, 20000), offsets(index.scan(new IndexEntry(null, 1999, 0)), 1999));
+            assertFalse(index.scan(new IndexEntry(null, 2000, 0)).hasNext());
+        }
+    }
+
+    @Test
+    public void estimatesAtBlockGranularity() throws IOException {
+        IndexFile.write(path_, false, numbers(20000).iterator());
+        try (IndexFile index= new IndexFile(path_)) {
+            long all= index.estimate(new IndexEntry(null, Long.MIN_VALUE, 0), new IndexEntry(null, Long.MAX_VALUE, 0));
+            assertEquals(20000, all);
+            long one= index.estimate(new IndexEntry(null, 100, 0), new IndexEntry(null, 100, 0));
+            assertTrue(one >= 10 && one <= 2 * 4096);
+        }
+    }
+
+    @Test
+    public void scansNameKeys() throws IOException {
+        List<IndexEntry> entries= new ArrayList<>();
+        for (int i= 0; i < 10000; i++)
+            entries.add(new IndexEntry(String.format("dir/file%05d", i), 0, i));
+        Collections.sort(entries);
+        IndexFile.write(path_, true, entries.iterator());
+        try (IndexFile index= new IndexFile(path_)) {
+            assertTrue(index.isNamed());
+            Iterator<IndexEntry> scan= index.scan(new IndexEntry("dir/file07000", 0, 0));
+            IndexEntry first= scan.next();
+            assertEquals("dir/file07000", first.getName());
+            assertEquals(7000, first.getOffset());
+            assertEquals("dir/file07001", scan.next().getName());
+            // Between the keys
+            assertEquals("dir/file00001", index.scan(new IndexEntry("dir/file00000a", 0, 0)).next().getName());
+        }
+    }
+
+    @Test
+    public void readsEmptyIndex() throws IOException {
+        assertEquals(0, IndexFile.write(path_, true, Collections.<IndexEntry>emptyIterator()));
+        try (IndexFile index= new IndexFile(path_)) {
+            assertFalse(index.scan(new IndexEntry("a", 0, 0)).hasNext());
+            assertEquals(0, index.estimate(new IndexEntry("a", 0, 0), new IndexEntry("z", 0, 0)));
+        }
+    }
+
+    private static List<Long> rangeOf(long from, long to) {
+        List<Long> range= new ArrayList<>();
+        for (long i= from; i < to; i++)
+            range.add(i);
+        return range;
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.vkleban.glacier_backup.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ChunkerTest {
+
+    private static final int AVERAGE= 4096;
+
+    private static byte[] random(int size, long seed) {
+        byte[] data= new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static List<byte[]> split(byte[] data) throws IOException {
+        Chunker chunker= new Chunker(new ByteArrayInputStream(data), AVERAGE);
+        List<byte[]> chunks= new ArrayList<>();
+        byte[] chunk;
+        while ((chunk= chunker.next()) != null)
+            chunks.add(chunk);
+        assertNull(chunker.next());
+        return chunks;
+    }
+
+    private static Set<String> contents(List<byte[]> chunks) {
+        Set<String> contents= new HashSet<>();
+        for (byte[] chunk : chunks)
+            contents.add(new String(chunk, StandardCharsets.ISO_8859_1));
+        return contents;
+    }
+
+    @Test
+    public void chunksMakeUpTheStream() throws IOException {
+        byte[] data= random(1 << 20, 1);
+        ByteArrayOutputStream joined= new ByteArrayOutputStream();
+        for (byte[] chunk : split(data))
+            joined.write(chunk);
+        assertArrayEquals(data, joined.toByteArray());
+    }
+
+    @Test
+    public void chunkSizesStayWithinBounds() throws IOException {
+        List<byte[]> chunks= split(random(1 << 20, 2));
+        for (int i= 0; i < chunks.size(); i++) {
+            int length= chunks.get(i).length;
+            assertTrue("chunk " + i + " of " + length + " bytes", length <= 4 * AVERAGE);
+            if (i < chunks.size() - 1)
+                assertTrue("chunk " + i + " of " + length + " bytes", length > AVERAGE / 4);
+        }
+        // Close to the average on random data
+        long average= (1 << 20) / chunks.size();
+        assertTrue("average " + average, average > AVERAGE / 2 && average < AVERAGE * 2);
+    }
+
+    @Test
+    public void cutPointsFollowContent() throws IOException {
+        byte[] data= random(1 << 20, 3);
+        ByteArrayOutputStream changed= new ByteArrayOutputStream();
+        changed.write(data, 0, data.length / 2);
+        changed.write(random(100, 4));
+        changed.write(data, data.length / 2, data.length - data.length / 2);
+        List<byte[]> before= split(data);
+        Set<String> after= contents(split(changed.toByteArray()));
+        int kept= 0;
+        for (String chunk : contents(before)) {
+            if (after.contains(chunk))
+                kept++;
+        }
+        // Only the chunks around the insertion change
+        assertTrue(kept + " of " + before.size() + " chunks kept", kept >= before.size() - 3);
+    }
+
+    @Test
+    public void emptyStreamHasNoChunks() throws IOException {
+        assertTrue(split(new byte[0]).isEmpty());
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.vkleban.glacier_backup.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.gson.JsonParseException;
+import com.vkleban.glacier_backup.Archive;
+
+public class ManifestTest {
+
+    private static final String TREE_HASH= "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private static Manifest manifest() {
+        Manifest manifest= new Manifest();
+        int first= manifest.pack(new Archive("pack-1", ".chunks/1", TREE_HASH, 1000L));
+        int reserved= manifest.reservePack();
+        manifest.add(new Manifest.Chunk(first, 0, 600, "aa"));
+        manifest.add(new Manifest.Chunk(reserved, 0, 300, "bb"));
+        manifest.add(new Manifest.Chunk(first, 600, 400, "cc"));
+        manifest.setPack(reserved, new Archive("pack-2", ".chunks/2", TREE_HASH, 300L));
+        manifest.finish(1300, TREE_HASH);
+        return manifest;
+    }
+
+    @Test
+    public void roundTripsThroughJson() {
+        Manifest manifest= Manifest.fromJson(manifest().toJson());
+        assertEquals(1300, manifest.getSize());
+        assertEquals(TREE_HASH, manifest.getTreeHash());
+        assertEquals(2, manifest.getPacks().size());
+        assertEquals("pack-2", manifest.getPacks().get(1).getArchiveId());
+        assertEquals(3, manifest.getChunks().size());
+        Manifest.Chunk last= manifest.getChunks().get(2);
+        assertEquals(0, last.getPack());
+        assertEquals(600, last.getOffset());
+        assertEquals(400, last.getLength());
+        assertEquals("cc", last.getSha256());
+    }
+
+    @Test
+    public void recognizesItsStart() {
+        byte[] json= manifest().toJson().getBytes(StandardCharsets.UTF_8);
+        assertTrue(Manifest.isManifestStart(Arrays.copyOf(json, Math.min(json.length, 256))));
+        assertFalse(Manifest.isManifestStart("{\"Size\":12,\"Other\":1}".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(Manifest.isManifestStart("plain file contents".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test(expected= JsonParseException.class)
+    public void refusesUnknownPack() {
+        Manifest.fromJson(manifest().toJson().replace("\"P\":1", "\"P\":5"));
+    }
+
+    @Test
+    public void keepsIndexOfKnownPack() {
+        Manifest manifest= manifest();
+        assertEquals(1, manifest.pack(new Archive("pack-2", ".chunks/2", TREE_HASH, 300L)));
+        assertEquals(2, manifest.pack(new Archive("pack-3", ".chunks/3", TREE_HASH, 100L)));
+    }
+
+    @Test(expected= JsonParseException.class)
+    public void refusesMissingChunks() {
+        Manifest.fromJson(manifest().toJson().replace("\"L\":400", "\"L\":40"));
+    }
+
+    @Test(expected= JsonParseException.class)
+    public void refusesOtherJson() {
+        Manifest.fromJson("{\"ArchiveList\":[]}");
+    }
+
+}
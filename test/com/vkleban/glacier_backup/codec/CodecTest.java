@@ -0,0 +1,110 @@
+package com.vkleban.glacier_backup.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class CodecTest {
+
+    // Block of the parallel compression
+    private static final int BLOCK= 128 * 1024;
+
+    private static byte[] random(int size) {
+        byte[] data= new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] text(int size) {
+        byte[] line= "Amazon Glacier keeps the archive for years, at a fraction of a cent per GiB\n"
+            .getBytes(StandardCharsets.US_ASCII);
+        byte[] data= new byte[size];
+        for (int i= 0; i < size; i++)
+            data[i]= line[i % line.length];
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        byte[] buffer= new byte[4099];
+        int n;
+        while ((n= in.read(buffer)) >= 0)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(Codec codec, byte[] data) throws IOException {
+        try (InputStream in= codec.encode(new ByteArrayInputStream(data), 6)) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] decode(Codec codec, byte[] data) throws IOException {
+        try (InputStream in= codec.decode(new ByteArrayInputStream(data))) {
+            return readAll(in);
+        }
+    }
+
+    @Test
+    public void gzipRoundTripsAroundBlockBoundaries() throws IOException {
+        for (int size : new int[] { 0, 1, BLOCK - 1, BLOCK, BLOCK + 1, 5 * BLOCK + 17 }) {
+            byte[] data= random(size);
+            assertArrayEquals("size " + size, data, decode(Codec.GZIP, encode(Codec.GZIP, data)));
+        }
+    }
+
+    @Test
+    public void gzipIsStandardAndCompresses() throws IOException {
+        byte[] data= text(10 * BLOCK + 3);
+        byte[] encoded= encode(Codec.GZIP, data);
+        assertTrue(encoded.length < data.length / 10);
+        // A single member readable by any gzip decoder, not only by the codec
+        try (InputStream in= new GZIPInputStream(new ByteArrayInputStream(encoded))) {
+            assertArrayEquals(data, readAll(in));
+        }
+    }
+
+    @Test
+    public void gzipMarksItsOwnOutput() throws IOException {
+        assertTrue(ParallelGzipInputStream.isOwnStart(encode(Codec.GZIP, random(10))));
+        ByteArrayOutputStream gzip= new ByteArrayOutputStream();
+        try (GZIPOutputStream out= new GZIPOutputStream(gzip)) {
+            out.write(random(10));
+        }
+        assertFalse(ParallelGzipInputStream.isOwnStart(gzip.toByteArray()));
+        assertFalse(ParallelGzipInputStream.isOwnStart(new byte[0]));
+    }
+
+    @Test
+    public void noneKeepsData() throws IOException {
+        byte[] data= random(1000);
+        assertArrayEquals(data, encode(Codec.NONE, data));
+        assertArrayEquals(data, decode(Codec.NONE, data));
+    }
+
+    @Test
+    public void findsCodecByName() {
+        assertSame(Codec.NONE, Codec.forName(null));
+        assertSame(Codec.GZIP, Codec.forName("GZip"));
+        assertEquals("gzip", Codec.GZIP.getName());
+    }
+
+    @Test(expected= IllegalArgumentException.class)
+    public void refusesUnknownCodec() {
+        Codec.forName("zstd");
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.vkleban.glacier_backup.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vkleban.glacier_backup.TestConfig;
+import com.vkleban.glacier_backup.config.Config;
+
+public class GcmRoundTripTest {
+
+    private static final int CHUNK= GcmEncryptInputStream.CHUNK;
+
+    private Path directory_;
+    private EncryptionKey key_;
+
+    @Before
+    public void setUp() throws Exception {
+        directory_= Files.createTempDirectory("gcm");
+        Config c= TestConfig.init(directory_);
+        byte[] key= new byte[32];
+        new Random(1).nextBytes(key);
+        Path keyfile= directory_.resolve("key");
+        Files.write(keyfile, Base64.getEncoder().encode(key));
+        c.encryption_keyfile= keyfile.toString();
+        EncryptionKey.init();
+        key_= EncryptionKey.get();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Config.get().encryption_keyfile= "";
+        EncryptionKey.init();
+        TestConfig.delete(directory_);
+    }
+
+    private static byte[] data(int size) {
+        byte[] data= new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        byte[] buffer= new byte[7919];
+        int n;
+        while ((n= in.read(buffer)) >= 0)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    private byte[] encrypt(byte[] plain) throws IOException {
+        try (InputStream in= new GcmEncryptInputStream(new ByteArrayInputStream(plain), key_)) {
+            return readAll(in);
+        }
+    }
+
+    private byte[] decrypt(byte[] sealed) throws IOException {
+        try (InputStream in= new GcmDecryptInputStream(new ByteArrayInputStream(sealed), key_)) {
+            return readAll(in);
+        }
+    }
+
+    @Test
+    public void roundTripsAroundChunkBoundaries() throws IOException {
+        for (int size : new int[] { 0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK + 5 }) {
+            byte[] plain= data(size);
+            byte[] sealed= encrypt(plain);
+            assertArrayEquals("size " + size, plain, decrypt(sealed));
+            assertEquals("size " + size, size, GcmDecryptInputStream.plainSize(sealed.length));
+        }
+    }
+
+    @Test
+    public void recordsKeyId() throws IOException {
+        byte[] sealed= encrypt(data(100));
+        assertEquals(key_.getId(), GcmDecryptInputStream.keyId(Arrays.copyOf(sealed, 64)));
+        assertNull(GcmDecryptInputStream.keyId("plain text, not encrypted".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void refusesTamperedChunk() throws IOException {
+        byte[] sealed= encrypt(data(2 * CHUNK));
+        sealed[sealed.length - CHUNK / 2]^= 1;
+        try {
+            decrypt(sealed);
+            fail("Tampered archive has been decrypted");
+        } catch (IOException expected) {}
+    }
+
+    @Test
+    public void refusesTruncatedArchive() throws IOException {
+        byte[] sealed= encrypt(data(2 * CHUNK + 10));
+        // Dropping the last chunk leaves a stream, which doesn't end with the last chunk flag
+        int header= GcmEncryptInputStream.MAGIC.length + GcmEncryptInputStream.KEY_ID + GcmEncryptInputStream.NONCE_PREFIX;
+        int chunk= CHUNK + GcmEncryptInputStream.TAG;
+        try {
+            decrypt(Arrays.copyOf(sealed, sealed.length - (sealed.length - header) % chunk));
+            fail("Truncated archive has been decrypted");
+        } catch (IOException expected) {}
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.vkleban.glacier_backup.restore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TarOutputStreamTest {
+
+    private static String string(byte[] tar, int offset, int length) {
+        int end= offset;
+        while (end < offset + length && tar[end] != 0)
+            end++;
+        return new String(tar, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long octal(byte[] tar, int offset, int length) {
+        return Long.parseLong(string(tar, offset, length).trim(), 8);
+    }
+
+    private static void checkHeader(byte[] tar, int offset) {
+        long sum= 0;
+        for (int i= 0; i < 512; i++)
+            sum+= i >= 148 && i < 156 ? ' ' : tar[offset + i] & 0xff;
+        assertEquals(sum, octal(tar, offset + 148, 8));
+        assertEquals("ustar", string(tar, offset + 257, 6));
+    }
+
+    /**
+     * @return value of the PAX record of the key, checking the length of every record
+     */
+    private static String paxValue(byte[] tar, int offset, String key) {
+        int size= (int) octal(tar, offset + 124, 12);
+        byte[] records= Arrays.copyOfRange(tar, offset + 512, offset + 512 + size);
+        String value= null;
+        for (int at= 0; at < records.length;) {
+            int space= at;
+            while (records[space] != ' ')
+                space++;
+            int length= Integer.parseInt(new String(records, at, space - at, StandardCharsets.US_ASCII));
+            assertEquals('\n', records[at + length - 1]);
+            String record= new String(records, space + 1, at + length - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith(key + "="))
+                value= record.substring(key.length() + 1);
+            at+= length;
+        }
+        return value;
+    }
+
+    @Test
+    public void writesUstarEntry() throws IOException {
+        ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+        try (TarOutputStream tar= new TarOutputStream(bytes)) {
+            tar.putEntry("dir/file", 5, 1000000);
+            tar.write("hello".getBytes(StandardCharsets.US_ASCII));
+        }
+        byte[] tar= bytes.toByteArray();
+        assertEquals(512 + 512 + 1024, tar.length);
+        checkHeader(tar, 0);
+        assertEquals("dir/file", string(tar, 0, 100));
+        assertEquals(5, octal(tar, 124, 12));
+        assertEquals(1000, octal(tar, 136, 12));
+        assertEquals('0', tar[156]);
+        assertEquals("hello", string(tar, 512, 512));
+        assertArrayEquals(new byte[1024], Arrays.copyOfRange(tar, 1024, 2048));
+    }
+
+    @Test
+    public void givesLongNameInPaxHeader() throws IOException {
+        StringBuilder name= new StringBuilder();
+        while (name.length() < 300)
+            name.append("directory/");
+        name.append("file");
+        ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+        try (TarOutputStream tar= new TarOutputStream(bytes)) {
+            tar.putEntry(name.toString(), 0, 0);
+        }
+        byte[] tar= bytes.toByteArray();
+        checkHeader(tar, 0);
+        assertEquals('x', tar[156]);
+        assertEquals(name.toString(), paxValue(tar, 0, "path"));
+        assertEquals(null, paxValue(tar, 0, "size"));
+        checkHeader(tar, 1024);
+        assertEquals('0', tar[1024 + 156]);
+        assertEquals(name.substring(0, 100), string(tar, 1024, 100));
+    }
+
+    @Test
+    public void givesNonAsciiNameInPaxHeader() throws IOException {
+        ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+        try (TarOutputStream tar= new TarOutputStream(bytes)) {
+            tar.putEntry("r\u00e9sum\u00e9.txt", 0, 0);
+        }
+        byte[] tar= bytes.toByteArray();
+        assertEquals("r\u00e9sum\u00e9.txt", paxValue(tar, 0, "path"));
+        assertEquals("r_sum_.txt", string(tar, 1024, 100));
+    }
+
+    @Test
+    public void countsPaxRecordLengthAcrossDigits() throws IOException {
+        // Records of 10 to over 1000 bytes, so that the length field itself gains a digit
+        for (int length= 1; length < 1000; length++) {
+            char[] name= new char[length];
+            Arrays.fill(name, 'a');
+            name[0]= '\u00e9';
+            ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+            try (TarOutputStream tar= new TarOutputStream(bytes)) {
+                tar.putEntry(new String(name), 0, 0);
+            }
+            assertEquals(new String(name), paxValue(bytes.toByteArray(), 0, "path"));
+        }
+    }
+
+    @Test
+    public void givesLargeSizeInPaxHeader() throws IOException {
+        long size= 10L << 30;
+        ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+        TarOutputStream tar= new TarOutputStream(bytes);
+        // Header alone, the contents are not written
+        tar.putEntry("big", size, 0);
+        byte[] header= bytes.toByteArray();
+        assertEquals(Long.toString(size), paxValue(header, 0, "size"));
+        assertEquals(null, paxValue(header, 0, "path"));
+        checkHeader(header, 1024);
+        assertEquals(077777777777L, octal(header, 1024 + 124, 12));
+    }
+
+    @Test
+    public void fillsShortEntryWithZeros() throws IOException {
+        ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+        try (TarOutputStream tar= new TarOutputStream(bytes)) {
+            tar.putEntry("a", 600, 0);
+            tar.write(new byte[100]);
+            assertEquals(500, tar.closeEntry());
+            tar.putEntry("b", 0, 0);
+        }
+        byte[] tar= bytes.toByteArray();
+        assertEquals(512 + 1024 + 512 + 1024, tar.length);
+        assertEquals("b", string(tar, 1536, 100));
+        checkHeader(tar, 1536);
+    }
+
+    @Test(expected= IOException.class)
+    public void refusesWritingBeyondDeclaredSize() throws IOException {
+        TarOutputStream tar= new TarOutputStream(new ByteArrayOutputStream());
+        tar.putEntry("a", 1, 0);
+        tar.write(new byte[2]);
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.vkleban.glacier_backup.restore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.TestConfig;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.restore.TierPlanner.Tier;
+
+public class TierPlannerTest {
+
+    private static final Archive SMALL= new Archive("s", "small", "h", 1L << 20);
+    private static final Archive LARGE= new Archive("l", "large", "h", 1L << 30);
+
+    private Path directory_;
+    private Config c_;
+
+    @Before
+    public void setUp() throws Exception {
+        directory_= Files.createTempDirectory("tiers");
+        c_= TestConfig.init(directory_);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestConfig.delete(directory_);
+    }
+
+    @Test
+    public void keepsExpeditedForSmallArchivesAfterLargeOnes() {
+        c_.retrieval_tier= "Expedited";
+        TierPlanner planner= new TierPlanner();
+        assertEquals(Tier.STANDARD, planner.plan(LARGE));
+        assertEquals(Tier.EXPEDITED, planner.plan(SMALL));
+    }
+
+    @Test
+    public void dropsExpeditedOnceRefused() {
+        c_.retrieval_tier= "Expedited";
+        TierPlanner planner= new TierPlanner();
+        assertEquals(Tier.STANDARD, planner.fallback(Tier.EXPEDITED, SMALL));
+        assertEquals(Tier.STANDARD, planner.plan(SMALL));
+        assertEquals(Tier.BULK, planner.fallback(Tier.STANDARD, SMALL));
+        assertNull(planner.fallback(Tier.BULK, SMALL));
+    }
+
+    @Test
+    public void picksCheapestTierMeetingDeadline() {
+        c_.retrieval_bytes_per_second= 1L << 20;
+        c_.retrieval_priorities.put("urgent*", 0.5);
+        c_.retrieval_deadline_hours= 13.0;
+        TierPlanner planner= new TierPlanner();
+        assertEquals(Tier.BULK, planner.plan(SMALL));
+        assertEquals(Tier.EXPEDITED, planner.plan(new Archive("u", "urgent", "h", 1L << 20)));
+        // Nothing meets half an hour for 1 GiB at 1 MiB/s, and Expedited can't take it
+        assertEquals(Tier.STANDARD, planner.plan(new Archive("u", "urgent-large", "h", 1L << 30)));
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.vkleban.glacier_backup.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.InitException;
+import com.vkleban.glacier_backup.TestConfig;
+import com.vkleban.glacier_backup.config.Config;
+
+public class ShardRingTest {
+
+    private static final int FILES= 10000;
+
+    private Path directory_;
+    private Config c_;
+
+    @Before
+    public void setUp() throws Exception {
+        directory_= Files.createTempDirectory("shards");
+        c_= TestConfig.init(directory_);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestConfig.delete(directory_);
+    }
+
+    private void shard(String region, String vault) {
+        Config.Shard shard= new Config.Shard();
+        shard.region= region;
+        shard.vault= vault;
+        c_.shards.add(shard);
+    }
+
+    private static Map<String, String> place() {
+        Map<String, String> placement= new HashMap<>();
+        for (int i= 0; i < FILES; i++)
+            placement.put("dir" + i % 100 + "/file" + i, ShardRing.get().forPath("dir" + i % 100 + "/file" + i).getName());
+        return placement;
+    }
+
+    @Test
+    public void unshardedBackupIsTheConfiguredVault() throws InitException {
+        ShardRing.init();
+        assertFalse(ShardRing.get().isSharded());
+        Shard shard= ShardRing.get().forPath("any/file");
+        assertEquals("test", shard.getVault());
+        assertSame(shard, ShardRing.get().forArchive(new Archive("id", "any/file", "hash")));
+    }
+
+    @Test
+    public void spreadsFilesOverAllShards() throws InitException {
+        shard("us-east-1", "a");
+        shard("us-east-1", "b");
+        shard("eu-west-1", "c");
+        ShardRing.init();
+        Map<String, Integer> counts= new HashMap<>();
+        for (String shard : place().values())
+            counts.merge(shard, 1, Integer::sum);
+        assertEquals(3, counts.size());
+        for (Map.Entry<String, Integer> count : counts.entrySet())
+            assertTrue(count.toString(), count.getValue() > FILES / 3 / 2);
+        // The same file always goes to the same shard
+        assertEquals(place(), place());
+    }
+
+    @Test
+    public void newShardTakesOnlyItsShare() throws InitException {
+        shard("us-east-1", "a");
+        shard("us-east-1", "b");
+        shard("eu-west-1", "c");
+        ShardRing.init();
+        Map<String, String> before= place();
+        shard("eu-west-1", "d");
+        ShardRing.init();
+        Map<String, String> after= place();
+        int moved= 0;
+        for (Map.Entry<String, String> file : before.entrySet()) {
+            if (!file.getValue().equals(after.get(file.getKey()))) {
+                moved++;
+                assertEquals("eu-west-1/d", after.get(file.getKey()));
+            }
+        }
+        assertTrue(moved + " files moved", moved > FILES / 8 && moved < FILES * 3 / 8);
+    }
+
+    @Test
+    public void archivesGoToTheirRecordedShard() throws InitException {
+        shard("us-east-1", "a");
+        shard("eu-west-1", "b");
+        ShardRing.init();
+        Archive archive= new Archive("id", "file", "hash", 1L, null, null, null, null, "eu-west-1/b");
+        assertEquals("b", ShardRing.get().forArchive(archive).getVault());
+    }
+
+    @Test(expected= IllegalArgumentException.class)
+    public void refusesArchiveOfUnknownShard() throws InitException {
+        shard("us-east-1", "a");
+        ShardRing.init();
+        ShardRing.get().forArchive(new Archive("id", "file", "hash", 1L, null, null, null, null, "us-east-1/gone"));
+    }
+
+    @Test(expected= IllegalArgumentException.class)
+    public void refusesArchiveWithoutShardWhenSharded() throws InitException {
+        shard("us-east-1", "a");
+        ShardRing.init();
+        ShardRing.get().forArchive(new Archive("id", "file", "hash"));
+    }
+
+    @Test(expected= InitException.class)
+    public void refusesShardConfiguredTwice() throws InitException {
+        shard("us-east-1", "a");
+        shard("us-east-1", "a");
+        ShardRing.init();
+    }
+
+}
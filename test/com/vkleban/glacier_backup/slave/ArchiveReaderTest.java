@@ -0,0 +1,123 @@
+package com.vkleban.glacier_backup.slave;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.InitiateJobRequest;
+import com.amazonaws.services.glacier.model.JobParameters;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.vkleban.glacier_backup.Archive;
+import com.vkleban.glacier_backup.BackupMaster;
+import com.vkleban.glacier_backup.DownloadJob;
+import com.vkleban.glacier_backup.TestConfig;
+import com.vkleban.glacier_backup.codec.Codec;
+import com.vkleban.glacier_backup.codec.EncryptionKey;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.progress.BandwidthLimiter;
+import com.vkleban.glacier_backup.progress.FileProgressListener;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+import com.vkleban.glacier_backup.shard.Shard;
+import com.vkleban.glacier_backup.shard.ShardRing;
+
+public class ArchiveReaderTest {
+
+    private Path directory_;
+    private Shard shard_;
+    private TransferProgress progress_= new TransferProgress();
+
+    @Before
+    public void setUp() throws Exception {
+        directory_= Files.createTempDirectory("reader");
+        Config c= TestConfig.init(directory_);
+        c.simulator.enabled= true;
+        BandwidthLimiter.init();
+        EncryptionKey.init();
+        ShardRing.init();
+        shard_= ShardRing.get().forPath("file");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestConfig.delete(directory_);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        byte[] buffer= new byte[8192];
+        for (int n; (n= in.read(buffer)) >= 0;)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return archive of the data as taken from Glacier's listing
+     */
+    private Archive uploadListed(String name, byte[] data) throws Exception {
+        Archive uploaded= shard_.getUploader().upload(name, new ByteArrayInputStream(data), 1 << 20,
+            new FileProgressListener(progress_));
+        JsonObject listed= new Gson().toJsonTree(uploaded).getAsJsonObject();
+        listed.addProperty("EncodingUnknown", true);
+        return BackupMaster.parseArchive(listed);
+    }
+
+    private DownloadJob retrieve(Archive archive, long size) throws InterruptedException {
+        String job= shard_.getGlacier().initiateJob(new InitiateJobRequest()
+            .withVaultName(shard_.getVault())
+            .withJobParameters(new JobParameters()
+                .withType("archive-retrieval")
+                .withArchiveId(archive.getArchiveId())
+                .withTier("Standard")))
+            .getJobId();
+        while (!shard_.getGlacier().describeJob(
+                new DescribeJobRequest().withVaultName(shard_.getVault()).withJobId(job)).getCompleted())
+            Thread.sleep(10);
+        return new DownloadJob(job, archive, size);
+    }
+
+    private byte[] read(Archive archive, long size, long fileSize) throws Exception {
+        try (ArchiveReader reader= new ArchiveReader(shard_, retrieve(archive, size),
+                new FileProgressListener(progress_)))
+        {
+            byte[] contents= readAll(reader.getContents());
+            reader.verify();
+            assertEquals(fileSize, reader.getFileSize());
+            return contents;
+        }
+    }
+
+    @Test
+    public void decompressesOwnGzipOfUnknownEncoding() throws Exception {
+        byte[] data= new byte[300000];
+        new Random(1).nextBytes(data);
+        byte[] compressed= readAll(Codec.GZIP.encode(new ByteArrayInputStream(data), 6));
+        Archive archive= uploadListed("file", compressed);
+        assertArrayEquals(data, read(archive, compressed.length, -1));
+    }
+
+    @Test
+    public void keepsBackedUpGzipFile() throws Exception {
+        ByteArrayOutputStream gzip= new ByteArrayOutputStream();
+        try (GZIPOutputStream out= new GZIPOutputStream(gzip)) {
+            out.write("A file the user has compressed".getBytes("UTF-8"));
+        }
+        byte[] file= gzip.toByteArray();
+        Archive archive= uploadListed("file.gz", file);
+        assertArrayEquals(file, read(archive, file.length, file.length));
+    }
+
+}
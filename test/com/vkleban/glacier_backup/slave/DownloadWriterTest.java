@@ -0,0 +1,90 @@
+package com.vkleban.glacier_backup.slave;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vkleban.glacier_backup.TestConfig;
+
+public class DownloadWriterTest {
+
+    private Path directory_;
+
+    @Before
+    public void setUp() throws IOException {
+        directory_= Files.createTempDirectory("writer");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestConfig.delete(directory_);
+    }
+
+    private long parts() throws IOException {
+        try (Stream<Path> files= Files.list(directory_)) {
+            return files.filter(file -> file.toString().endsWith(".part")).count();
+        }
+    }
+
+    @Test
+    public void writesAndCommits() throws IOException {
+        byte[] data= new byte[3 * 1024 * 1024 + 5];
+        new Random(1).nextBytes(data);
+        Path target= directory_.resolve("file");
+        BatchedSync sync= new BatchedSync(1, 1000);
+        try (DownloadWriter writer= new DownloadWriter(target, data.length)) {
+            assertEquals(data.length, writer.write(new ByteArrayInputStream(data)));
+            assertEquals(0, DownloadWriter.reserved());
+            writer.commit(sync);
+        }
+        assertTrue(sync.finish().isEmpty());
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertEquals(0, parts());
+    }
+
+    @Test
+    public void dropsUncommittedFile() throws IOException {
+        try (DownloadWriter writer= new DownloadWriter(directory_.resolve("file"), 100);
+             DownloadWriter same= new DownloadWriter(directory_.resolve("file"), 100))
+        {
+            assertEquals(200, DownloadWriter.reserved());
+            // Downloads of the same name don't share the temporary file
+            assertEquals(2, parts());
+            writer.write(new ByteArrayInputStream(new byte[40]));
+            assertEquals(160, DownloadWriter.reserved());
+        }
+        assertEquals(0, DownloadWriter.reserved());
+        assertEquals(0, parts());
+        assertFalse(Files.exists(directory_.resolve("file")));
+    }
+
+    @Test
+    public void reservesSpaceAgainstConcurrentDownloads() throws IOException {
+        long usable= Files.getFileStore(directory_).getUsableSpace();
+        try (DownloadWriter first= new DownloadWriter(directory_.resolve("first"), usable / 3 * 2)) {
+            try (DownloadWriter second= new DownloadWriter(directory_.resolve("second"), usable / 3 * 2)) {
+                fail("Both downloads fit in the usable space");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("No room"));
+            }
+            assertEquals(usable / 3 * 2, DownloadWriter.reserved());
+        }
+        try (DownloadWriter second= new DownloadWriter(directory_.resolve("second"), usable / 3 * 2)) {
+            assertEquals(1, parts());
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.vkleban.glacier_backup.slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vkleban.glacier_backup.TestConfig;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.progress.TransferProgress;
+
+public class PartSizerTest {
+
+    private static final long MIB= 1024 * 1024;
+
+    private Path directory_;
+    private Config c_;
+    private PartSizer sizer_;
+
+    @Before
+    public void setUp() throws Exception {
+        directory_= Files.createTempDirectory("parts");
+        c_= TestConfig.init(directory_);
+        sizer_= new PartSizer(new TransferProgress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestConfig.delete(directory_);
+    }
+
+    @Test
+    public void roundsToPowersOfTwoMiB() {
+        assertEquals(MIB, PartSizer.powerOfTwoMiB(0));
+        assertEquals(MIB, PartSizer.powerOfTwoMiB(MIB));
+        assertEquals(2 * MIB, PartSizer.powerOfTwoMiB(MIB + 1));
+        assertEquals(1024 * MIB, PartSizer.powerOfTwoMiB(1e15));
+    }
+
+    @Test
+    public void startsWithInitialSize() {
+        PartSizer.Choice choice= sizer_.choose(1024 * MIB, 1);
+        assertEquals(16 * MIB, choice.getPartSize());
+        assertEquals("initial", choice.getReason());
+    }
+
+    @Test
+    public void smallFileTakesASinglePart() {
+        PartSizer.Choice choice= sizer_.choose(3 * MIB, 1);
+        assertEquals(4 * MIB, choice.getPartSize());
+        assertEquals("file size", choice.getReason());
+    }
+
+    @Test
+    public void configuredSizeWins() {
+        c_.part_size_mib= 64;
+        PartSizer.Choice choice= sizer_.choose(1024 * MIB, 1);
+        assertEquals(64 * MIB, choice.getPartSize());
+        assertEquals("configured", choice.getReason());
+    }
+
+    @Test
+    public void manyUploadsShareTheHeap() {
+        int concurrency= (int) (Runtime.getRuntime().maxMemory() / 2 / (4 * MIB)) + 1;
+        PartSizer.Choice choice= sizer_.choose(1024 * MIB, concurrency);
+        assertEquals("memory", choice.getReason());
+        assertTrue(choice.toString(), choice.getPartSize() * concurrency <= Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    @Test
+    public void largeFileFitsIntoTenThousandParts() {
+        long size= 5L * 1024 * 1024 * MIB;
+        PartSizer.Choice choice= sizer_.choose(size, 1);
+        assertEquals("10000 parts", choice.getReason());
+        assertTrue(choice.toString(), (size + size / 64) / choice.getPartSize() < 10000);
+        assertEquals(1024 * MIB, sizer_.choose(PartSizer.MAX_UPLOAD_SIZE, 1).getPartSize());
+    }
+
+    @Test(expected= IllegalArgumentException.class)
+    public void refusesUploadBeyondTenThousandParts() {
+        sizer_.choose(PartSizer.MAX_UPLOAD_SIZE + 1, 1);
+    }
+
+}
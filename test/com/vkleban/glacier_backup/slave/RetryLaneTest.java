@@ -0,0 +1,107 @@
+package com.vkleban.glacier_backup.slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.vkleban.glacier_backup.TestConfig;
+import com.vkleban.glacier_backup.config.Config;
+
+public class RetryLaneTest {
+
+    private Path directory_;
+    private Config c_;
+    private RetryLane<String> lane_;
+
+    @Before
+    public void setUp() throws Exception {
+        directory_= Files.createTempDirectory("lane");
+        c_= TestConfig.init(directory_);
+        c_.retry_base_milliseconds= 0L;
+        c_.transfer_attempts= 3;
+        lane_= new RetryLane<>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        lane_.close();
+        TestConfig.delete(directory_);
+    }
+
+    private static AmazonServiceException serviceException(int status, String code) {
+        AmazonServiceException e= new AmazonServiceException("Failure");
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        return e;
+    }
+
+    @Test
+    public void tellsTransientFailures() {
+        assertTrue(RetryLane.isTransient(new SocketTimeoutException()));
+        assertTrue(RetryLane.isTransient(serviceException(503, "ServiceUnavailableException")));
+        assertTrue(RetryLane.isTransient(serviceException(400, "ThrottlingException")));
+        assertTrue(RetryLane.isTransient(serviceException(408, "RequestTimeoutException")));
+        assertFalse(RetryLane.isTransient(serviceException(400, "InvalidParameterValueException")));
+        assertFalse(RetryLane.isTransient(new NoSuchFileException("a")));
+        assertFalse(RetryLane.isTransient(new IOException(new AccessDeniedException("a"))));
+        assertFalse(RetryLane.isTransient(new UncheckedIOException(new FileNotFoundException("a"))));
+        assertFalse(RetryLane.isTransient(new IllegalArgumentException("Too large")));
+    }
+
+    @Test
+    public void keepsBackoffWithinItsCeiling() {
+        c_.retry_base_milliseconds= 100L;
+        c_.retry_max_milliseconds= 1000L;
+        for (int i= 0; i < 1000; i++) {
+            assertTrue(RetryLane.backoff(1) <= 100);
+            assertTrue(RetryLane.backoff(3) <= 400);
+            long backoff= RetryLane.backoff(100);
+            assertTrue(backoff >= 0 && backoff <= 1000);
+        }
+    }
+
+    @Test
+    public void givesUpAfterConfiguredAttempts() {
+        IOException failure= new IOException("Transient");
+        assertTrue(lane_.retry("a", failure));
+        assertTrue(lane_.retry("a", failure));
+        assertFalse(lane_.retry("a", failure));
+        lane_.forget("a");
+        assertTrue(lane_.retry("a", failure));
+        assertFalse(lane_.retry("b", new NoSuchFileException("b")));
+    }
+
+    @Test
+    public void holdsRetryUntilScheduled() throws InterruptedException {
+        BlockingQueue<String> due= new LinkedBlockingQueue<>();
+        lane_.start(due::add);
+        assertTrue(lane_.retry("a", new IOException("Transient")));
+        assertTrue(lane_.retry("b", new IOException("Transient")));
+        assertNull(due.poll(100, TimeUnit.MILLISECONDS));
+        lane_.schedule("a");
+        assertEquals("a", due.poll(10, TimeUnit.SECONDS));
+        // Forgotten before it was scheduled
+        lane_.forget("b");
+        lane_.schedule("b");
+        assertNull(due.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.vkleban.glacier_backup.slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vkleban.glacier_backup.TestConfig;
+import com.vkleban.glacier_backup.config.Config;
+
+public class TransferEngineTest {
+
+    private Path directory_;
+    private RetryLane<String> retries_;
+    private TransferEngine<String, String> engine_;
+
+    @Before
+    public void setUp() throws Exception {
+        directory_= Files.createTempDirectory("engine");
+        Config c= TestConfig.init(directory_);
+        // Due at once
+        c.retry_base_milliseconds= 0L;
+        c.transfer_attempts= 3;
+        retries_= new RetryLane<>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (engine_ != null)
+            engine_.close();
+        TestConfig.delete(directory_);
+    }
+
+    private TransferEngine<String, String> engine(Transfer<String, String> transfer, int limit) {
+        engine_= new TransferEngine<>("test", transfer, TransferEngine.newExecutor("platform"), limit, retries_);
+        return engine_;
+    }
+
+    private static SlaveResponse<String> done(String request) {
+        return new SlaveResponse<String>(request, null, false);
+    }
+
+    private Set<String> takeAll(TransferEngine<String, String> engine) throws InterruptedException {
+        Set<String> reported= new TreeSet<>();
+        for (SlaveResponse<String> response; (response= engine.take()) != null;)
+            reported.add(response.getException() == null ? response.getResponse() : "failed");
+        return reported;
+    }
+
+    @Test
+    public void keepsToTheLimit() throws InterruptedException {
+        AtomicInteger running= new AtomicInteger();
+        AtomicInteger most= new AtomicInteger();
+        TransferEngine<String, String> engine= engine(request -> {
+            most.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {}
+            running.decrementAndGet();
+            return done(request);
+        }, 3);
+        Set<String> expected= new TreeSet<>();
+        for (int i= 0; i < 30; i++) {
+            engine.submit("r" + i);
+            expected.add("r" + i);
+        }
+        engine.shutdown();
+        assertEquals(expected, takeAll(engine));
+        assertEquals(3, most.get());
+        assertNull(engine.take());
+    }
+
+    @Test
+    public void retriesFailedRequests() throws InterruptedException {
+        Map<String, Integer> attempts= new ConcurrentHashMap<>();
+        TransferEngine<String, String> engine= engine(request -> {
+            if (attempts.merge(request, 1, Integer::sum) < 3
+                && retries_.retry(request, new IOException("Transient")))
+                return null;
+            return done(request);
+        }, 2);
+        for (int i= 0; i < 10; i++)
+            engine.submit("r" + i);
+        engine.shutdown();
+        assertEquals(10, takeAll(engine).size());
+        for (int i= 0; i < 10; i++)
+            assertEquals(3, (int) attempts.get("r" + i));
+    }
+
+    @Test
+    public void forgetsRetriedRequestsOnceReported() throws InterruptedException {
+        // The lane has the retry due before the transfer returns
+        Map<String, Integer> attempts= new ConcurrentHashMap<>();
+        TransferEngine<String, String> engine= engine(request -> {
+            if (attempts.merge(request, 1, Integer::sum) == 1 && retries_.retry(request, new IOException("Transient"))) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {}
+                return null;
+            }
+            return done(request);
+        }, 4);
+        for (int i= 0; i < 4; i++)
+            engine.submit("r" + i);
+        for (int i= 0; i < 4; i++)
+            assertNull(engine.take().getException());
+        // Nothing is left waiting for a retry, so there is nothing to cancel and no report to come
+        for (int i= 0; i < 4; i++)
+            assertFalse(engine.cancel("r" + i));
+        engine.shutdown();
+        assertTrue(takeAll(engine).isEmpty());
+    }
+
+    @Test
+    public void cancelsQueuedRequest() throws InterruptedException {
+        TransferEngine<String, String> engine= engine(TransferEngineTest::done, 1);
+        engine.pause();
+        engine.submit("a");
+        engine.submit("b");
+        assertTrue(engine.cancel("a"));
+        engine.resume();
+        engine.shutdown();
+        assertEquals(new TreeSet<>(Arrays.asList("b", "failed")), takeAll(engine));
+    }
+
+    @Test
+    public void cancelsRunningRequest() throws InterruptedException {
+        CountDownLatch started= new CountDownLatch(1);
+        TransferEngine<String, String> engine= engine(request -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                return done(request);
+            } catch (InterruptedException e) {
+                return new SlaveResponse<String>(null, e, false);
+            }
+        }, 1);
+        engine.submit("a");
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(engine.cancel("a"));
+        engine.shutdown();
+        assertEquals(new TreeSet<>(Arrays.asList("failed")), takeAll(engine));
+    }
+
+    @Test
+    public void cancelsWaitingRetry() throws InterruptedException {
+        Config.get().retry_base_milliseconds= 60000L;
+        Config.get().retry_max_milliseconds= 60000L;
+        CountDownLatch failed= new CountDownLatch(1);
+        TransferEngine<String, String> engine= engine(request -> {
+            retries_.retry(request, new IOException("Transient"));
+            failed.countDown();
+            return null;
+        }, 1);
+        engine.submit("a");
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        // The transfer may still be finishing
+        while (!engine.cancel("a"))
+            Thread.sleep(1);
+        engine.shutdown();
+        assertEquals(new TreeSet<>(Arrays.asList("failed")), takeAll(engine));
+    }
+
+    @Test
+    public void reportsUnexpectedFailure() throws InterruptedException {
+        TransferEngine<String, String> engine= engine(request -> {
+            throw new IllegalStateException("Broken");
+        }, 1);
+        engine.submit("a");
+        engine.shutdown();
+        assertEquals(new TreeSet<>(Arrays.asList("failed")), takeAll(engine));
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.vkleban.glacier_backup.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExternalSorterTest {
+
+    private static List<String> sort(List<String> paths, int limit) throws IOException {
+        try (ExternalSorter<SyncEntry> sorter= new ExternalSorter<>(limit, SyncEntry.SERIALIZER)) {
+            for (String path : paths)
+                sorter.add(new SyncEntry(path, path.length(), null));
+            assertEquals(paths.size(), sorter.size());
+            List<String> sorted= new ArrayList<>();
+            for (Iterator<SyncEntry> i= sorter.sorted(); i.hasNext();) {
+                SyncEntry entry= i.next();
+                assertEquals(entry.getPath().length(), entry.getSize());
+                sorted.add(entry.getPath());
+            }
+            return sorted;
+        }
+    }
+
+    private static List<String> paths(int count) {
+        Random random= new Random(count);
+        List<String> paths= new ArrayList<>();
+        for (int i= 0; i < count; i++)
+            paths.add("dir" + random.nextInt(50) + "/file" + random.nextInt(1000000));
+        return paths;
+    }
+
+    @Test
+    public void sortsInMemory() throws IOException {
+        List<String> paths= paths(1000);
+        List<String> expected= new ArrayList<>(paths);
+        Collections.sort(expected);
+        assertEquals(expected, sort(paths, 10000));
+    }
+
+    @Test
+    public void sortsBeyondTheLimitThroughSpilledRuns() throws IOException {
+        List<String> paths= paths(10000);
+        paths.addAll(paths.subList(0, 100));
+        List<String> expected= new ArrayList<>(paths);
+        Collections.sort(expected);
+        assertEquals(expected, sort(paths, 333));
+    }
+
+    @Test
+    public void sortsNothing() throws IOException {
+        try (ExternalSorter<SyncEntry> sorter= new ExternalSorter<>(10, SyncEntry.SERIALIZER)) {
+            assertFalse(sorter.sorted().hasNext());
+        }
+    }
+
+}
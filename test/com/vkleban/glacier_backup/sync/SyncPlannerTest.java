@@ -0,0 +1,96 @@
+package com.vkleban.glacier_backup.sync;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vkleban.glacier_backup.TestConfig;
+import com.vkleban.glacier_backup.config.Config;
+import com.vkleban.glacier_backup.scan.LocalFile;
+
+public class SyncPlannerTest {
+
+    private Path directory_;
+    private Path inventory_;
+
+    @Before
+    public void setUp() throws Exception {
+        directory_= Files.createTempDirectory("sync");
+        Config c= TestConfig.init(directory_);
+        // Both sides spill to disk
+        c.sync_sort_entries= 2;
+        inventory_= directory_.resolve("inventory.json");
+        Files.write(inventory_, ("{\"ArchiveList\":["
+            + archive("a1", "same", 10, null) + ","
+            + archive("a2", "grown", 10, null) + ","
+            + archive("a3", "gone", 5, null) + ","
+            + archive("a4", "versions", 1, null) + ","
+            + archive("a5", "versions", 7, null) + ","
+            + archive("a6", "encoded", 50, 20L) + ","
+            + archive("a7", "./unknown", -1, null)
+            + "]}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestConfig.delete(directory_);
+    }
+
+    private static String archive(String id, String name, long size, Long originalSize) {
+        return "{\"ArchiveId\":\"" + id + "\",\"ArchiveDescription\":\"" + name + "\",\"SHA256TreeHash\":\"h\""
+            + (size < 0 ? "" : ",\"Size\":" + size)
+            + (originalSize == null ? "" : ",\"OriginalSize\":" + originalSize) + "}";
+    }
+
+    private static LocalFile file(String path, long size) {
+        return new LocalFile(path, size, 0, null);
+    }
+
+    private List<String> plan(Stream<LocalFile> files, Path inventory) throws IOException {
+        try (SyncPlanner planner= new SyncPlanner(files, inventory)) {
+            return planner.plan().map(SyncPlanner.Step::toString).collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void mergesTreeWithInventory() throws IOException {
+        List<String> plan= plan(Stream.of(
+                file("versions", 7),
+                file("same", 10),
+                file("new", 3),
+                file("grown", 11),
+                file("encoded", 20),
+                file("unknown", 100)),
+            inventory_);
+        assertEquals(Arrays.asList(
+                "SKIP\tencoded",
+                "ORPHAN\tgone\ta3",
+                "CHANGED\tgrown",
+                "UPLOAD\tnew",
+                "SKIP\tsame",
+                "SKIP\tunknown",
+                "SKIP\tversions"),
+            plan);
+    }
+
+    @Test
+    public void withoutInventoryEverythingIsNew() throws IOException {
+        try (SyncPlanner planner= new SyncPlanner(Stream.of(file("b", 1), file("a", 2)), null)) {
+            assertEquals(2, planner.plan().filter(SyncPlanner.Step::isUpload).count());
+            assertEquals(2, planner.count(SyncPlanner.Action.UPLOAD));
+            assertEquals("UPLOAD: 2, CHANGED: 0, SKIP: 0, ORPHAN: 0", planner.summary());
+        }
+    }
+
+}